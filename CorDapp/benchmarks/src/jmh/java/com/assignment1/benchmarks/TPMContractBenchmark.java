@@ -0,0 +1,72 @@
+package com.assignment1.benchmarks;
+
+import com.assignment1.contract.TPMContract;
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.node.MockServices;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import static java.util.Arrays.asList;
+
+/**
+ * TPMContract.verify over prebuilt ledger transactions, so only the contract code is measured and not
+ * transaction resolution or signature checks.
+ */
+@State(Scope.Benchmark)
+public class TPMContractBenchmark {
+
+    @Param({"THREE", "NINE"})
+    public TPMVariant variant;
+
+    private final TPMContract contract = new TPMContract();
+    private LedgerTransaction createTx;
+    private LedgerTransaction moveTx;
+
+    @Setup
+    public void setup() throws Exception {
+        final MockServices services = new MockServices(asList("com.assignment1.contract"), TPMFixtures.miniCorp, TPMFixtures.megaCorp);
+        final TPMState state = TPMFixtures.moving(variant);
+        createTx = transaction(services, null, TPMFixtures.initial(variant), new TPMContract.Commands.Create());
+
+        // The move's input has to be on the ledger to be resolved, record a transaction that outputs it.
+        final SignedTransaction issue = services.signInitialTransaction(builder(null, state, new TPMContract.Commands.Create()));
+        services.recordTransactions(issue);
+        moveTx = transaction(services, issue.getTx().outRef(0), TPMFixtures.next(state), new TPMContract.Commands.Move());
+    }
+
+    private static TransactionBuilder builder(StateAndRef<TPMState> input, TPMState output, CommandData command) {
+        final TransactionBuilder builder = new TransactionBuilder(TPMFixtures.notary.getParty())
+                .addOutputState(output, TPMContract.ID)
+                .addCommand(command, TPMFixtures.miniCorp.getPublicKey(), TPMFixtures.megaCorp.getPublicKey());
+        if (null != input) {
+            builder.addInputState(input);
+        }
+        return builder;
+    }
+
+    // Resolved once here, so the benchmarks only run the contract.
+    private static LedgerTransaction transaction(MockServices services, StateAndRef<TPMState> input, TPMState output, CommandData command) throws Exception {
+        return builder(input, output, command).toWireTransaction(services).toLedgerTransaction(services);
+    }
+
+    @Benchmark
+    public LedgerTransaction verifyCreate() {
+        contract.verify(createTx);
+        return createTx;
+    }
+
+    @Benchmark
+    public LedgerTransaction verifyMove() {
+        contract.verify(moveTx);
+        return moveTx;
+    }
+}
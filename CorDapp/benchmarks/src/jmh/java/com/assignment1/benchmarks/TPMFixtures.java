@@ -0,0 +1,61 @@
+package com.assignment1.benchmarks;
+
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.core.TestIdentity;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Game positions shared by the benchmarks, built the same way on every run so results compare.
+ */
+final class TPMFixtures {
+    static final TestIdentity megaCorp = new TestIdentity(new CordaX500Name("MegaCorp", "London", "GB"));
+    static final TestIdentity miniCorp = new TestIdentity(new CordaX500Name("MiniCorp", "London", "GB"));
+    static final TestIdentity notary = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+
+    private TPMFixtures() {
+    }
+
+    static TPMState initial(TPMVariant variant) {
+        return new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "bench", variant);
+    }
+
+    /**
+     * A moving phase position, reached by seeded random play, with at least one legal move left.
+     */
+    static TPMState moving(TPMVariant variant) {
+        final Random random = new Random(1);
+        for (;;) {
+            TPMState state = initial(variant);
+            while (TPMState.GameStatus.FINISHED != state.getGameStatus()) {
+                if (TPMState.GameStatus.MOVING == state.getGameStatus() && (state.getMoves() > 2 * variant.getTokens() + 4)) {
+                    return state;
+                }
+                final List<TPMState> successors = state.successors(state.getNextPlayer());
+                if (successors.isEmpty()) {
+                    break;
+                }
+                state = successors.get(random.nextInt(successors.size()));
+            }
+        }
+    }
+
+    // The first legal move from state.
+    static TPMState next(TPMState state) {
+        return state.successors(state.getNextPlayer()).get(0);
+    }
+
+    // Source and destination of the first legal move from state, src is -1 for a placement.
+    static int[] firstMove(TPMState state) {
+        final int[] move = new int[2];
+        state.forEachLegalMove((src, dst) -> {
+            move[0] = src;
+            move[1] = dst;
+            return 1;
+        });
+        return move;
+    }
+}
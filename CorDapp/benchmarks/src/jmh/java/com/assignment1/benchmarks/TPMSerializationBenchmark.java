@@ -0,0 +1,64 @@
+package com.assignment1.benchmarks;
+
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMStateSerializer;
+import com.assignment1.state.TPMVariant;
+import net.corda.core.serialization.SerializationContext;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.serialization.SerializedBytes;
+import net.corda.core.serialization.internal.SerializationEnvironment;
+import net.corda.testing.internal.InternalSerializationTestHelpersKt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * AMQP serialisation of [TPMState] with the P2P context, which is what goes over the wire with every
+ * move and into the transaction storage of both nodes. The test environment doesn't scan CorDapps for
+ * custom serializers, so the compact benchmarks go through [TPMStateSerializer] by hand.
+ */
+@State(Scope.Benchmark)
+public class TPMSerializationBenchmark {
+
+    @Param({"THREE", "NINE"})
+    public TPMVariant variant;
+
+    private SerializationFactory factory;
+    private SerializationContext context;
+    private TPMState state;
+    private SerializedBytes<TPMState> bytes;
+    private final TPMStateSerializer serializer = new TPMStateSerializer();
+    private SerializedBytes<TPMStateSerializer.Proxy> compactBytes;
+
+    @Setup
+    public void setup() {
+        final SerializationEnvironment env = InternalSerializationTestHelpersKt.createTestSerializationEnv();
+        factory = env.getSerializationFactory();
+        context = env.getP2pContext();
+        state = TPMFixtures.moving(variant);
+        bytes = factory.serialize(state, context);
+        compactBytes = factory.serialize(serializer.toProxy(state), context);
+    }
+
+    @Benchmark
+    public SerializedBytes<TPMState> serialize() {
+        return factory.serialize(state, context);
+    }
+
+    @Benchmark
+    public TPMState deserialize() {
+        return factory.deserialize(bytes, TPMState.class, context);
+    }
+
+    @Benchmark
+    public SerializedBytes<TPMStateSerializer.Proxy> serializeCompact() {
+        return factory.serialize(serializer.toProxy(state), context);
+    }
+
+    @Benchmark
+    public TPMState deserializeCompact() {
+        return serializer.fromProxy(factory.deserialize(compactBytes, TPMStateSerializer.Proxy.class, context));
+    }
+}
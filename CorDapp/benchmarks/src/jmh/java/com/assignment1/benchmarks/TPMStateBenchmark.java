@@ -0,0 +1,55 @@
+package com.assignment1.benchmarks;
+
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The rules called on every move, by the flow building it and by every node verifying it.
+ */
+@State(Scope.Benchmark)
+public class TPMStateBenchmark {
+
+    @Param({"THREE", "NINE"})
+    public TPMVariant variant;
+
+    private TPMState state;
+    private TPMState stateNew;
+    private int src;
+    private int dst;
+
+    @Setup
+    public void setup() {
+        state = TPMFixtures.moving(variant);
+        stateNew = TPMFixtures.next(state);
+        final int[] move = TPMFixtures.firstMove(state);
+        src = move[0];
+        dst = move[1];
+    }
+
+    @Benchmark
+    public TPMState move() {
+        return state.move(state.getNextPlayer(), null, src, dst);
+    }
+
+    @Benchmark
+    public TPMState checkMove() {
+        state.checkMove(stateNew);
+        return stateNew;
+    }
+
+    @Benchmark
+    public TPMState checkInvariants() {
+        stateNew.checkInvariants();
+        return stateNew;
+    }
+
+    @Benchmark
+    public boolean gameOver() {
+        return stateNew.gameOver();
+    }
+}
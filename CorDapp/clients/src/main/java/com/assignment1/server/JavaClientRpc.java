@@ -1,50 +1,51 @@
 package com.assignment1.server;
 
-import com.assignment1.flow.TPMFlowCreate;
-import com.assignment1.flow.TPMFlowMove;
+import com.assignment1.schema.TPMQueries;
 import com.assignment1.state.TPMState;
-import com.google.common.collect.ImmutableList;
+import com.assignment1.state.TPMVariant;
 import net.corda.client.rpc.CordaRPCClient;
 import net.corda.client.rpc.CordaRPCConnection;
 import net.corda.core.contracts.StateAndRef;
 import net.corda.core.identity.Party;
 import net.corda.core.messaging.CordaRPCOps;
-import net.corda.core.messaging.DataFeed;
 import net.corda.core.node.NodeInfo;
-import net.corda.core.node.services.Vault;
-import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.utilities.NetworkHostAndPort;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import rx.Observable;
-import rx.Subscription;
-import rx.observables.BlockingObservable;
 
-import java.time.Duration;
-import java.time.Instant;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
 import java.util.Set;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Demonstration of using the CordaRPCClient to connect to a Corda Node.
+ *
+ * Follows the given games, or every game the node plays, through a [TPMClientEngine]. Boards are printed as
+ * the states arrive and moves are read from standard input on a thread of their own, so waiting for the
+ * player never holds up showing another game. Each line is a command, e.g. `gameBerty 4 5 Your move`.
  */
 public class JavaClientRpc {
 
     public static void main(String[] args) {
         //Get the node address to connect to, rpc username , rpc password via command line
-        if (args.length != 4) {
-            throw new IllegalArgumentException("Usage: Client <node address> <rpc username> <rpc password> <gameId>");
+        if (args.length < 3) {
+            throw new IllegalArgumentException("Usage: Client <node address> <rpc username> <rpc password> [<gameId> ...]");
         }
 
         NetworkHostAndPort networkHostAndPort = NetworkHostAndPort.parse(args[0]);
         String rpcUsername = args[1];
         String rpcPassword = args[2];
-        String gameId = args[3];
+        List<String> gameIds = Arrays.asList(args).subList(3, args.length);
 
-        new JavaClientRpcClass(networkHostAndPort, rpcUsername, rpcPassword, gameId).run();
+        new JavaClientRpcClass(networkHostAndPort, rpcUsername, rpcPassword, gameIds).run();
     }
 
     private static class JavaClientRpcClass {
@@ -53,24 +54,23 @@ public class JavaClientRpc {
         private final NetworkHostAndPort networkHostAndPort;
         private final String rpcUsername;
         private final String rpcPassword;
-        private final String gameId;
-        private TPMState stateLast;
-        private Semaphore semaphore;
-        boolean error;
-        Scanner scanner;
+        private final List<String> gameIds;
+        // The games asked for on the command line that haven't finished, the client stops once there are none.
+        private final Set<String> playing = ConcurrentHashMap.newKeySet();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private CordaRPCOps proxy;
+        private TPMClientEngine engine;
+        private Party me;
 
         JavaClientRpcClass(
                 NetworkHostAndPort networkHostAndPort,
                 String rpcUsername,
                 String rpcPassword,
-                String gameId) {
+                List<String> gameIds) {
             this.networkHostAndPort = networkHostAndPort;
             this.rpcUsername = rpcUsername;
             this.rpcPassword = rpcPassword;
-            this.gameId = gameId;
-            this.semaphore = new Semaphore(0);
-            this.error = false;
-            this.scanner = new Scanner(System.in);
+            this.gameIds = gameIds;
         }
 
         public void run() {
@@ -83,208 +83,230 @@ public class JavaClientRpc {
             CordaRPCConnection rpcConnection = client.start(rpcUsername, rpcPassword);
 
             //proxy is used to convert the client high level calls to artemis specific low level messages
-            CordaRPCOps proxy = rpcConnection.getProxy();
+            proxy = rpcConnection.getProxy();
 
             // Get a list of legal identities. Should have at least one.
             List<Party> parties = proxy.nodeInfo().getLegalIdentities();
-            final Party me = parties.get(0);
+            me = parties.get(0);
             logger.info(String.format("Node legal identity %s", me));
 
             //hit the node to retrieve network map
             List<NodeInfo> nodes = proxy.networkMapSnapshot();
             logger.info("All the nodes available in this network", nodes);
 
-            //hit the node to get snapshot and observable for TPMState
-            QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(me), null, ImmutableList.of(gameId));
-            DataFeed<Vault.Page<TPMState>, Vault.Update<TPMState>> dataFeed = proxy.vaultTrackByCriteria(TPMState.class, queryCriteria);
-
-            // This gives a snapshot of TPMState as of now. so if there are 11 TPMState as of now, this will return 11 TPMState objects
-            Vault.Page<TPMState> snapshot = dataFeed.getSnapshot();
-
-            // Subscribe to updates from query, after draining above ??
-            Observable<Vault.Update<TPMState>> updates = dataFeed.getUpdates();
-            Subscription subscription = updates.subscribe(update -> update.getProduced().forEach(update2 -> {actionToPerform(update2);}));
+            // Games on this node waiting for us, an indexed query on the TPM schema.
+            final List<StateAndRef<TPMState>> waiting = proxy.vaultQueryByCriteria(TPMQueries.myMove(me), TPMState.class).getStates();
+            for (StateAndRef<TPMState> game : waiting) {
+                logger.info(String.format("Game '%s' is waiting for your move", game.getState().getData().getGameId()));
+            }
 
+            // One feed for all the node's games, each game is shown as its states arrive.
+            engine = new TPMClientEngine(proxy);
             try {
-                // If there are no states the game does not exist, ask to create.
-                if (!snapshot.getStates().isEmpty()) {
-                    // Show the current state. State could be set here.
-                    snapshot.getStates().forEach(update -> {
-                        actionToPerform(update);
-                    });
+                if (gameIds.isEmpty()) {
+                    engine.watchAll(this::actionToPerform);
                 } else {
-                    final String msg = String.format("Game '%s' not found, create? [y/n] : ", gameId);
-                    logger.info(msg);
-                    System.out.print(msg);
-                    if ('y' == getChar()) {
-
-                        System.out.print("Enter opponent name : ");
-                        final String opponent = getString();
-
-                        // Get an opponent from the name.
-                        final Set<Party> opponents = proxy.partiesFromName(opponent, false);
-                        if (opponents.isEmpty()) {
-                            final String msge = String.format("Failed to find opponent '%s'", opponent);
-                            logger.error(msge);
-                            return;
-                        }
-
-                        final Party party = opponents.iterator().next();
-
-                        // Create game and wait for completion.
-                        logger.info(String.format("Creating game '%s' with opponent '%s'", gameId, party));
-                        Observable<String> ob = proxy.startTrackedFlowDynamic(TPMFlowCreate.Initiator.class, party, "JavaClientRpc", gameId).getProgress();
-
-                        // TODO There must be a better way of detecting an error occurred inside blocking subscription.
-                        error = false;
-                        ob.toBlocking().subscribe(progress -> {
-                            logger.info(progress);
-                        }, err -> {
-                            logger.error(err.getMessage());
-                            error = true;
-                        });
-
-                        // Just get out the bus.
-                        if (error) {return;}
-
-                    } else {
-                        // finally will shut everything down.
-                        return;
+                    playing.addAll(gameIds);
+                    gameIds.forEach(gameId -> engine.watch(gameId, this::actionToPerform));
+                }
+                engine.start();
+                for (String gameId : gameIds) {
+                    if (null == engine.getGame(gameId) && proxy.vaultQueryByCriteria(TPMQueries.byGameId(gameId), TPMState.class).getStates().isEmpty()) {
+                        print(String.format("Game '%s' not found, type 'new %s <opponent> [THREE|SIX|NINE|TWELVE]' to create it", gameId, gameId));
                     }
-                    // If we have a separate subscription for the state, in addition to the display, then could block here and wait.
                 }
+                print("Type '<gameId> <cell> [comment]' to place, '<gameId> <from> <to> [comment]' to move, 'games' to list and 'quit' to stop");
 
-                // Wait for update.
-                if (!semaphore.tryAcquire(10, TimeUnit.SECONDS) ) {
-                    logger.error("Semaphore timed out waiting for state change");
-                }
+                // The console is read on its own thread, the main thread only waits to be done.
+                final Thread input = new Thread(this::readInput, "tpm-input");
+                input.setDaemon(true);
+                input.start();
+                done.await();
 
-                // TODO I don't like this at all. Must be a more elegant way.
-                TPMState state = null;
-                synchronized (this) {
-                    state = stateLast;
+            } catch (InterruptedException e) {
+                logger.error(e.toString());
+            } finally {
+                // Not sure how to gracefully close. Seems to cause issues calling this.
+                // It's not enough to simply fall off the end here as that blocks.
+                engine.close();
+                rpcConnection.notifyServerAndClose();
+            }
+        }
+
+        private void readInput() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); null != line; line = reader.readLine()) {
+                    if (!line.trim().isEmpty() && !command(line.trim())) {
+                        break;
+                    }
                 }
+            } catch (IOException e) {
+                logger.error(e.toString());
+            }
+            done.countDown();
+        }
 
-                // Enter main game loop making moves. We need to work out if we're next or not.
-                int waitingIndex = 0;
-                Instant tStart = Instant.now();
-                final char[] ticker = new String("|/-\\").toCharArray();
-                while (TPMState.GameStatus.FINISHED != state.getGameStatus()) {
-                    // TPMState.player is the player who made the last move. However in initial state they created the board.
-                    if ((state.getGameStatus() == TPMState.GameStatus.INITIAL) && me.equals(state.getPlayer1()) ||
-                       ((state.getGameStatus() != TPMState.GameStatus.INITIAL) && !me.equals(state.getPlayer()))) {
-
-                        System.out.println();
-                        logger.info(String.format("Last move took %ds", Duration.between(tStart, Instant.now()).getSeconds()));
-
-                        // Our move.
-                        logger.info(String.format("Next move '%s', you're token '%c'", me, state.getPlayer1().equals(me) ? 'O' : 'X'));
-
-                        int src = -1;
-                        int dst = -1;
-                        if (state.getGameStatus() != TPMState.GameStatus.MOVING) {
-                            System.out.print("Enter placement cell and optional comment : ");
-                            dst = getInt();
-                        } else {
-                            System.out.print("Enter from dest cell and optional comment : ");
-                            src = getInt();
-                            dst = getInt();
-                        }
-                        final String hint = getString();
-
-                        // Now try a move ! Block until move has completed.
-                        Observable<String> ob = proxy.startTrackedFlowDynamic(TPMFlowMove.Initiator.class, gameId, hint, src, dst).getProgress();
-
-                        error = false;
-                        ob.toBlocking().subscribe(progress -> {
-                            logger.info(progress);
-                        }, err -> {
-                            logger.error(err.getMessage());
-                            error=true;
-                        });
-
-                        if (error) {continue;}
-
-                        // Start the timer.
-                        tStart = Instant.now();
-                        waitingIndex = 0;
-
-                    } else {
-                        if (0 == waitingIndex) {
-                            logger.info(String.format("Waiting for move ..."));
-                            System.out.print(String.format("      "));
-                        }
-                        System.out.print(String.format("\b\b\b\b\b\b%3ds %c", Duration.between(tStart, Instant.now()).getSeconds(), ticker[(++waitingIndex) % 4]));
+        // Runs one line of input, false to stop.
+        private boolean command(String line) {
+            final String[] words = line.split("\\s+");
+            switch (words[0]) {
+                case "quit":
+                    return false;
+                case "games":
+                    for (TPMState state : engine.getGames()) {
+                        print(String.format("Game : %s, State: %s, Moves: %s%s", state.getGameId(), state.getGameStatus(), state.getMoves(), isMyMove(state) ? ", your move" : ""));
                     }
+                    return true;
+                case "new":
+                    create(words);
+                    return true;
+                default:
+                    move(words);
+                    return true;
+            }
+        }
 
-                    // Wait for state to change.
-                    semaphore.tryAcquire(1, TimeUnit.SECONDS);
+        // new <gameId> <opponent> [board], Three Men's Morris unless a larger board is asked for.
+        private void create(String[] words) {
+            if (words.length < 3) {
+                print("Usage: new <gameId> <opponent> [THREE|SIX|NINE|TWELVE]");
+                return;
+            }
+            final String gameId = words[1];
+            // Get an opponent from the name.
+            final Set<Party> opponents = proxy.partiesFromName(words[2], false);
+            if (opponents.isEmpty()) {
+                logger.error(String.format("Failed to find opponent '%s'", words[2]));
+                return;
+            }
+            final Party party = opponents.iterator().next();
 
-                    // TODO I don't like this at all.
-                    synchronized (this) {
-                        state = stateLast;
+            TPMVariant variant = TPMVariant.THREE;
+            if (words.length > 3) {
+                for (TPMVariant v : TPMVariant.values()) {
+                    if (v.name().equals(words[3].toUpperCase())) {
+                        variant = v;
                     }
                 }
+            }
 
-                if (TPMState.GameStatus.FINISHED == state.getGameStatus()) {
-                    if (me.equals(state.getPlayer())) {
-                        logger.info("* Congratulations you won, go straight to Corda Enterprise *");
-                    } else {
-                        logger.info("! Commiserations, you lost, better get back to signing some cordapps !");
+            logger.info(String.format("Creating %s game '%s' with opponent '%s'", variant.getTitle(), gameId, party));
+            engine.watch(gameId, this::actionToPerform);
+            playing.add(gameId);
+            completed(gameId, engine.getClient().create(party, "JavaClientRpc", gameId, variant));
+        }
+
+        // <gameId> <cell> or <gameId> <from> <to>, then the cell to capture if the move makes a line, then the comment.
+        private void move(String[] words) {
+            final String gameId = words[0];
+            final TPMState state = engine.getGame(gameId);
+            if (null == state) {
+                print(String.format("Game '%s' not found", gameId));
+                return;
+            }
+            if (!isMyMove(state)) {
+                print(String.format("Not your move in '%s'", gameId));
+                return;
+            }
+            final int cells = (TPMState.GameStatus.MOVING == state.getGameStatus()) ? 2 : 1;
+            try {
+                int next = 1;
+                final int src = (2 == cells) ? Integer.parseInt(words[next++]) : -1;
+                final int dst = Integer.parseInt(words[next++]);
+                // On the larger boards a line takes one of the opponent's tokens.
+                int capture = -1;
+                if (state.requiresCapture(src, dst)) {
+                    if (words.length <= next) {
+                        print(String.format("Line! Add the opponent cell to capture, e.g. '%s %s <cell>'", gameId, String.join(" ", Arrays.copyOfRange(words, 1, next))));
+                        return;
                     }
+                    capture = Integer.parseInt(words[next++]);
                 }
+                final String hint = String.join(" ", Arrays.copyOfRange(words, next, words.length));
 
-
-                } catch (InterruptedException e) {
-                logger.error(e.toString());
-            } finally {
-                // Not sure how to gracefully close. Seems to cause issues calling this.
-                // It's not enough to simply fall off the end here as that blocks.
-                subscription.unsubscribe();
-                rpcConnection.notifyServerAndClose();
+                // Now try a move ! The result is reported when it comes, other games carry on meanwhile.
+                completed(gameId, engine.getClient().move(gameId, hint, src, dst, capture));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                print((2 == cells) ? "Enter from and dest cells and optional comment" : "Enter placement cell and optional comment");
             }
         }
 
-        private char getChar() {
-            return getString().charAt(0);
+        // Report a create or move when it's done, a broken rule is reported so the player can try again.
+        private void completed(String gameId, CompletableFuture<SignedTransaction> future) {
+            future.whenComplete((tx, e) -> {
+                if (null == e) {
+                    logger.info(String.format("Recorded transaction %s", tx.getId()));
+                } else if (e instanceof TPMRuleViolationException) {
+                    logger.error(String.format("Not allowed in '%s' : %s", gameId, ((TPMRuleViolationException) e).getRule()));
+                } else {
+                    logger.error(String.format("Failed in '%s' : %s", gameId, e.getMessage()));
+                }
+            });
         }
 
-        private String getString() {
-            return scanner.nextLine();
+        private boolean isMyMove(TPMState state) {
+            return (TPMState.GameStatus.FINISHED != state.getGameStatus()) && me.equals(state.getNextPlayer());
         }
 
-        private int getInt() {
-            while (scanner.hasNext()) {
-                if (scanner.hasNextInt()) {
-                    return scanner.nextInt();
-                } else {
-                    scanner.next();
-                }
+        // Games print whole, one at a time.
+        private void print(String text) {
+            synchronized (System.out) {
+                System.out.println(text);
             }
-            return -1;
         }
 
         /**
-         * @param stateRef
+         * Shows a state of a game as it arrives, called by the engine one state at a time for each game.
          */
-        private void actionToPerform(StateAndRef<TPMState> stateRef) {
-            TPMState state = stateRef.getState().getData();
-
-            // TODO Yuck !
-            synchronized (this) {
-                stateLast = state;
+        private void actionToPerform(TPMState state) {
+            logger.info(String.format("New state received : %s", state));
+            synchronized (System.out) {
+                System.out.println(String.format("Game : %s, State: %s, Moves: %s, Hint: '%s'", state.getGameId(), state.getGameStatus(), state.getMoves(), state.getMoveHint()));
+                printBoard(state);
+                if (isMyMove(state)) {
+                    logger.info(String.format("Next move in '%s', you're token '%c'", state.getGameId(), state.getPlayer1().equals(me) ? 'O' : 'X'));
+                }
             }
 
-            logger.info(String.format("New state received : %s", state));
-            System.out.println(String.format("Game : %s, State: %s, Moves: %s, Hint: '%s'", state.getGameId(), state.getGameStatus(), state.getMoves(), state.getMoveHint()));
-            printBoard(state);
+            if (TPMState.GameStatus.FINISHED == state.getGameStatus()) {
+                if (state.isDraw()) {
+                    logger.info("= " + state.getGameStatusHint() + ", nobody wins =");
+                } else if (me.equals(state.getPlayer())) {
+                    logger.info("* Congratulations you won, go straight to Corda Enterprise *");
+                } else {
+                    logger.info("! Commiserations, you lost, better get back to signing some cordapps !");
+                }
+                logger.info("Moves : " + formatMoves(state));
+                // Done once every game asked for has finished.
+                if (playing.remove(state.getGameId()) && playing.isEmpty() && !gameIds.isEmpty()) {
+                    done.countDown();
+                }
+            }
+        }
 
-            // Release semaphore after we've output the board.
-            semaphore.tryAcquire();
-            semaphore.release();
+        // The game from the move log in the state, placements as the address, moves as src-dst and captures with x.
+        private String formatMoves(TPMState state) {
+            final StringBuilder moves = new StringBuilder();
+            for (int[] move : state.getMoveList()) {
+                if (moves.length() > 0) {
+                    moves.append(' ');
+                }
+                if (move[0] >= 0) {
+                    moves.append(move[0]).append('-');
+                }
+                moves.append(move[1]);
+                if (move[2] >= 0) {
+                    moves.append('x').append(move[2]);
+                }
+            }
+            return moves.toString();
         }
 
         private void printBoard(TPMState state) {
+            if (TPMVariant.THREE != state.getVariant()) {
+                printRings(state);
+                return;
+            }
             System.out.println("   [0] [1] [2]");
             for (int i = 0; i < TPMState.BOARD_WIDTH; ++i) {
                 if (1 == i) {
@@ -311,5 +333,30 @@ public class JavaClientRpc {
             }
             System.out.println("   [6] [7] [8]");
         }
+
+        // The larger boards are concentric squares of eight points, each point shows its token or its address if empty.
+        private void printRings(TPMState state) {
+            final int rings = state.getVariant().getPoints() / 8;
+            final int size = 2 * rings + 1;
+            final String[][] grid = new String[size][size];
+            for (int r = 0; r < rings; ++r) {
+                final int near = r;
+                final int far = size - 1 - r;
+                final int mid = rings;
+                final int[][] xy = {{near, near}, {mid, near}, {far, near}, {far, mid}, {far, far}, {mid, far}, {near, far}, {near, mid}};
+                for (int k = 0; k < 8; ++k) {
+                    final int address = r * 8 + k;
+                    TPMState.Token t = state.getToken(address);
+                    grid[xy[k][1]][xy[k][0]] = (null == t) ? String.format("%2d", address) : (TPMState.Token.PLAYER1 == t ? " O" : " X");
+                }
+            }
+            for (String[] row : grid) {
+                final StringBuilder line = new StringBuilder();
+                for (String cell : row) {
+                    line.append(null == cell ? "   " : cell + " ");
+                }
+                System.out.println(line);
+            }
+        }
     }
 }
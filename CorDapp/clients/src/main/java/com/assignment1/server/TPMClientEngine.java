@@ -0,0 +1,201 @@
+package com.assignment1.server;
+
+import com.assignment1.schema.TPMQueries;
+import com.assignment1.state.TPMState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.MAX_PAGE_SIZE;
+
+/**
+ * Event driven view of every game the node plays, over one RPC connection, for clients that follow many
+ * games at once.
+ *
+ * One vault feed covers all the node's games and each state is handed to the handler watching its gameId,
+ * or to the handler for all games if none is. Nothing polls and there is no thread per game: a game with
+ * states waiting runs once on the executor and hands over the latest, so a handler sees its game's states
+ * in order, one at a time, skipping any it was too slow for. Handlers for different games run in parallel.
+ * Moves and creates go through [getClient], which doesn't block either.
+ */
+public class TPMClientEngine implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TPMClientEngine.class);
+
+    /**
+     * Receives the states of a game, on the executor, never two at once for the same game.
+     */
+    public interface Handler {
+        void update(TPMState state);
+    }
+
+    private final CordaRPCOps proxy;
+    private final Party me;
+    private final Executor executor;
+    private final TPMGameClient client;
+    private final Map<String, Game> games = new ConcurrentHashMap<>();
+    private volatile Handler all;
+    private Subscription subscription;
+
+    // One game's states waiting to be handled, and the latest handled.
+    private final class Game implements Runnable {
+        private final AtomicReference<StateAndRef<TPMState>> pending = new AtomicReference<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean replay = new AtomicBoolean();
+        private volatile StateAndRef<TPMState> latest;
+        private volatile Handler handler;
+
+        // Keep the later of two states, a forfeit has the same moves as the state it consumed.
+        void offer(StateAndRef<TPMState> stateAndRef) {
+            pending.accumulateAndGet(stateAndRef, (a, b) -> ((null == a) || (b.getState().getData().getMoves() >= a.getState().getData().getMoves())) ? b : a);
+            schedule();
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                final StateAndRef<TPMState> last = latest;
+                if (replay.getAndSet(false) && (null != last)) {
+                    handle(last.getState().getData());
+                }
+                for (StateAndRef<TPMState> next = pending.getAndSet(null); null != next; next = pending.getAndSet(null)) {
+                    final StateAndRef<TPMState> current = latest;
+                    // The snapshot and the updates can both have a state.
+                    if ((null != current) && (current.getRef().equals(next.getRef()) ||
+                            (next.getState().getData().getMoves() < current.getState().getData().getMoves()))) {
+                        continue;
+                    }
+                    latest = next;
+                    handle(next.getState().getData());
+                }
+            } finally {
+                scheduled.set(false);
+                // Anything offered while finishing up runs again.
+                if ((null != pending.get()) || replay.get()) {
+                    schedule();
+                }
+            }
+        }
+
+        private void handle(TPMState state) {
+            final Handler target = (null != handler) ? handler : all;
+            if (null == target) {
+                return;
+            }
+            try {
+                target.update(state);
+            } catch (RuntimeException e) {
+                logger.error(String.format("Handler failed for game '%s'", state.getGameId()), e);
+            }
+        }
+    }
+
+    public TPMClientEngine(CordaRPCOps proxy) {
+        this(proxy, ForkJoinPool.commonPool());
+    }
+
+    public TPMClientEngine(CordaRPCOps proxy, Executor executor) {
+        this.proxy = proxy;
+        this.me = proxy.nodeInfo().getLegalIdentities().get(0);
+        this.executor = executor;
+        this.client = new TPMGameClient(proxy, executor);
+    }
+
+    /**
+     * Start following the node's games. Handlers can be set before or after, a handler set after a game's
+     * state has arrived is given the latest straight away.
+     */
+    public void start() {
+        final DataFeed<Vault.Page<TPMState>, Vault.Update<TPMState>> feed = proxy.vaultTrackByWithPagingSpec(
+                TPMState.class, TPMQueries.involving(me), new PageSpecification(DEFAULT_PAGE_NUM, MAX_PAGE_SIZE));
+        subscription = feed.getUpdates().subscribe(update -> update.getProduced().forEach(this::dispatch));
+        feed.getSnapshot().getStates().forEach(this::dispatch);
+        logger.info(String.format("Following %d games for %s", games.size(), me));
+    }
+
+    // The updates aren't filtered by the query, a game only watched by this node isn't ours to play.
+    private void dispatch(StateAndRef<TPMState> stateAndRef) {
+        final TPMState state = stateAndRef.getState().getData();
+        if (me.equals(state.getPlayer1()) || me.equals(state.getPlayer2())) {
+            games.computeIfAbsent(state.getGameId(), gameId -> new Game()).offer(stateAndRef);
+        }
+    }
+
+    // Handle the states of one game, the handler for all games no longer gets them.
+    public void watch(String gameId, Handler handler) {
+        final Game game = games.computeIfAbsent(gameId, id -> new Game());
+        game.handler = handler;
+        game.replay.set(true);
+        game.schedule();
+    }
+
+    public void unwatch(String gameId) {
+        final Game game = games.get(gameId);
+        if (null != game) {
+            game.handler = null;
+        }
+    }
+
+    // Handle the states of every game not watched on its own, including games created later.
+    public void watchAll(Handler handler) {
+        all = handler;
+        for (Game game : games.values()) {
+            game.replay.set(true);
+            game.schedule();
+        }
+    }
+
+    public Party getMe() {
+        return me;
+    }
+
+    public TPMGameClient getClient() {
+        return client;
+    }
+
+    // The latest state handled for the game, null if there is none yet.
+    public TPMState getGame(String gameId) {
+        final Game game = games.get(gameId);
+        final StateAndRef<TPMState> latest = (null == game) ? null : game.latest;
+        return (null == latest) ? null : latest.getState().getData();
+    }
+
+    public List<TPMState> getGames() {
+        final List<TPMState> states = new ArrayList<>(games.size());
+        for (Game game : games.values()) {
+            final StateAndRef<TPMState> latest = game.latest;
+            if (null != latest) {
+                states.add(latest.getState().getData());
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public void close() {
+        if (null != subscription) {
+            subscription.unsubscribe();
+        }
+    }
+}
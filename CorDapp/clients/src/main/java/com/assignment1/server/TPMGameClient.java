@@ -0,0 +1,125 @@
+package com.assignment1.server;
+
+import com.assignment1.flow.TPMFlowCreate;
+import com.assignment1.flow.TPMFlowMatch;
+import com.assignment1.flow.TPMFlowMove;
+import com.assignment1.flow.TPMFlowMoveBatch;
+import com.assignment1.state.TPMVariant;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.messaging.FlowProgressHandle;
+import net.corda.core.transactions.SignedTransaction;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Non blocking game API over one RPC connection, for services that drive many games at once.
+ *
+ * Each create or move starts its flow and returns straight away with a future, completed with the recorded
+ * transaction or exceptionally with a [TPMRuleViolationException] if the game rules or the contract rejected
+ * it. Flows are started from the executor so calls from any number of games are pipelined over the
+ * connection, and no thread waits on a move in flight. Futures complete on the RPC client's threads, use
+ * the *Async methods of CompletableFuture for any slow follow on work.
+ */
+public class TPMGameClient {
+
+    // How requireThat and the contract report a failed rule, over RPC it is part of the message.
+    private static final Pattern RULE = Pattern.compile("Failed requirement: (.*?)(, contract: .*)?$", Pattern.DOTALL);
+
+    private final CordaRPCOps proxy;
+    private final Executor executor;
+
+    public TPMGameClient(CordaRPCOps proxy) {
+        this(proxy, ForkJoinPool.commonPool());
+    }
+
+    public TPMGameClient(CordaRPCOps proxy, Executor executor) {
+        this.proxy = proxy;
+        this.executor = executor;
+    }
+
+    public CompletableFuture<SignedTransaction> create(Party opponent, String createHint, String gameId, TPMVariant variant) {
+        return start(() -> proxy.startFlowDynamic(TPMFlowCreate.Initiator.class, opponent, createHint, gameId, variant));
+    }
+
+    public CompletableFuture<SignedTransaction> move(String gameId, String moveHint, int src, int dst) {
+        return move(gameId, moveHint, src, dst, -1);
+    }
+
+    public CompletableFuture<SignedTransaction> move(String gameId, String moveHint, int src, int dst, int capture) {
+        return start(() -> proxy.startFlowDynamic(TPMFlowMove.Initiator.class, gameId, moveHint, src, dst, capture));
+    }
+
+    // As create, with each step of the flow's progress passed to the listener as the flow reaches it.
+    public CompletableFuture<SignedTransaction> create(Party opponent, String createHint, String gameId, TPMVariant variant, Consumer<String> progress) {
+        return start(() -> tracked(proxy.startTrackedFlowDynamic(TPMFlowCreate.Initiator.class, opponent, createHint, gameId, variant), progress));
+    }
+
+    // As move, with each step of the flow's progress passed to the listener as the flow reaches it.
+    public CompletableFuture<SignedTransaction> move(String gameId, String moveHint, int src, int dst, int capture, Consumer<String> progress) {
+        return start(() -> tracked(proxy.startTrackedFlowDynamic(TPMFlowMove.Initiator.class, gameId, moveHint, src, dst, capture), progress));
+    }
+
+    // Many moves against one opponent in one transaction, see [TPMFlowMoveBatch].
+    public CompletableFuture<TPMFlowMoveBatch.Result> moveBatch(Party opponent, List<TPMFlowMoveBatch.Move> moves) {
+        return start(() -> proxy.startFlowDynamic(TPMFlowMoveBatch.Initiator.class, opponent, moves));
+    }
+
+    // Queue to be paired by the matchmaker, see [TPMMatchmaker]. Completes once queued, the game comes later.
+    public CompletableFuture<Void> register(Party matchmaker, TPMVariant variant, int rating) {
+        return start(() -> proxy.startFlowDynamic(TPMFlowMatch.Register.class, matchmaker, variant, rating));
+    }
+
+    private static <T> FlowHandle<T> tracked(FlowProgressHandle<T> handle, Consumer<String> progress) {
+        handle.getProgress().subscribe(progress::accept, error -> { });
+        return handle;
+    }
+
+    private <T> CompletableFuture<T> start(Supplier<FlowHandle<T>> startFlow) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture.supplyAsync(startFlow, executor).whenComplete((handle, startError) -> {
+            if (null != startError) {
+                result.completeExceptionally(translate(startError));
+                return;
+            }
+            handle.getReturnValue().then(future -> {
+                try {
+                    result.complete(future.get());
+                } catch (ExecutionException e) {
+                    result.completeExceptionally(translate(e.getCause()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.completeExceptionally(e);
+                } finally {
+                    handle.close();
+                }
+                return null;
+            });
+        });
+        return result;
+    }
+
+    // A failed requirement anywhere in the causes becomes a rule violation.
+    static Throwable translate(Throwable error) {
+        final Throwable cause = (error instanceof CompletionException) && (null != error.getCause()) ? error.getCause() : error;
+        for (Throwable t = cause; null != t; t = t.getCause()) {
+            if (null != t.getMessage()) {
+                final Matcher matcher = RULE.matcher(t.getMessage());
+                if (matcher.find()) {
+                    return new TPMRuleViolationException(matcher.group(1), cause);
+                }
+            }
+        }
+        return cause;
+    }
+}
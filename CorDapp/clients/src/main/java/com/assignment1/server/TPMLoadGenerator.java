@@ -0,0 +1,420 @@
+package com.assignment1.server;
+
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.utilities.NetworkHostAndPort;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Headless load generator, plays many games at once between several nodes over RPC and reports how long
+ * the flows took.
+ *
+ * Each game is created with [TPMFlowCreate] by one node against the next and played out with [TPMFlowMove],
+ * each move made by the node whose turn it is. Moves are random, from a seed so a run can be repeated, or
+ * follow a script in the client's move notation (e.g. "0 3 1 4 2", "3-0" for a move, "x" and the cell for a
+ * capture), random once the script is used up or doesn't fit. Up to concurrency games are in play at once,
+ * each a chain of futures through [TPMGameClient] so no thread waits on a flow.
+ *
+ * The latency of every create, move and whole game is recorded in HdrHistograms in microseconds, and of
+ * each progress step of the flows, with the moves per second and errors. The report is written as JSON, with
+ * each histogram also encoded in full so runs can be compared or merged later.
+ * <pre>
+ * TPMLoadGenerator host:port:user:password host:port:user:password ... [--games 100] [--concurrency 100]
+ *     [--variant THREE] [--seed 1] [--script "0 3 1 4 2"] [--prefix load] [--timeoutSeconds 3600]
+ *     [--report load-report.json]
+ * </pre>
+ */
+public class TPMLoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(TPMLoadGenerator.class);
+
+    private static final String USAGE = "Usage: TPMLoadGenerator <host:port:user:password> <host:port:user:password> ... " +
+            "[--games n] [--concurrency n] [--variant THREE|SIX|NINE|TWELVE] [--seed n] [--script moves] [--prefix id] [--timeoutSeconds n] [--report file]";
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<Party, Node> byParty = new HashMap<>();
+    private final int games;
+    private final int concurrency;
+    private final TPMVariant variant;
+    private final long seed;
+    private final List<int[]> script;
+    private final String prefix;
+    private final long timeoutSeconds;
+    private final String report;
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicLong finished = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong moves = new AtomicLong();
+    private final AtomicLong moveErrors = new AtomicLong();
+    private final AtomicLong createErrors = new AtomicLong();
+    private CountDownLatch remaining;
+    private long elapsedNanos;
+
+    // One node to play on, and its RPC connection once connected.
+    private static class Node {
+        private final NetworkHostAndPort address;
+        private final String username;
+        private final String password;
+        private CordaRPCConnection connection;
+        private TPMGameClient client;
+        private Party party;
+
+        Node(String spec) {
+            final String[] parts = spec.split(":");
+            if (4 != parts.length) {
+                throw new IllegalArgumentException("Node should be host:port:user:password, not " + spec);
+            }
+            this.address = NetworkHostAndPort.parse(parts[0] + ":" + parts[1]);
+            this.username = parts[2];
+            this.password = parts[3];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final TPMLoadGenerator generator = new TPMLoadGenerator(args);
+        try {
+            generator.connect();
+            generator.run();
+            generator.report();
+        } finally {
+            generator.close();
+        }
+    }
+
+    TPMLoadGenerator(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (int i=0; i<args.length; ++i) {
+            if (args[i].startsWith("--")) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(USAGE);
+                }
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                nodes.add(new Node(args[i]));
+            }
+        }
+        if (nodes.size() < 2) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        this.games = Integer.parseInt(options.getOrDefault("games", "100"));
+        this.concurrency = Math.min(games, Integer.parseInt(options.getOrDefault("concurrency", String.valueOf(games))));
+        this.variant = TPMVariant.valueOf(options.getOrDefault("variant", TPMVariant.THREE.name()).toUpperCase());
+        this.seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        this.script = parseScript(options.getOrDefault("script", ""));
+        this.prefix = options.getOrDefault("prefix", "load" + Long.toString(System.currentTimeMillis(), 36));
+        this.timeoutSeconds = Long.parseLong(options.getOrDefault("timeoutSeconds", "3600"));
+        this.report = options.getOrDefault("report", "load-report.json");
+    }
+
+    // Moves as the client prints them, a placement as the cell, a move as src-dst, either then x and the capture.
+    static List<int[]> parseScript(String moves) {
+        final List<int[]> parsed = new ArrayList<>();
+        for (String move : moves.trim().split("\\s+")) {
+            if (move.isEmpty()) {
+                continue;
+            }
+            final String[] capture = move.split("x");
+            final String[] cells = capture[0].split("-");
+            parsed.add(new int[] {
+                    (2 == cells.length) ? Integer.parseInt(cells[0]) : -1,
+                    Integer.parseInt(cells[cells.length - 1]),
+                    (2 == capture.length) ? Integer.parseInt(capture[1]) : -1});
+        }
+        return parsed;
+    }
+
+    private void connect() {
+        for (Node node : nodes) {
+            node.connection = new CordaRPCClient(node.address).start(node.username, node.password);
+            node.client = new TPMGameClient(node.connection.getProxy());
+            node.party = node.connection.getProxy().nodeInfo().getLegalIdentities().get(0);
+            byParty.put(node.party, node);
+            logger.info(String.format("Connected to %s at %s", node.party, node.address));
+        }
+    }
+
+    private void close() {
+        for (Node node : nodes) {
+            if (null != node.connection) {
+                node.connection.notifyServerAndClose();
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        logger.info(String.format("Playing %d %s games, %d at once, between %d nodes", games, variant.getTitle(), concurrency, nodes.size()));
+        remaining = new CountDownLatch(games);
+        final long start = System.nanoTime();
+        for (int i=0; i<concurrency; ++i) {
+            startNext();
+        }
+        if (!remaining.await(timeoutSeconds, TimeUnit.SECONDS)) {
+            logger.warn(String.format("Timed out with %d games still in play", remaining.getCount()));
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    // Start the next game if there is one left, a game over starts the next so concurrency stay in play.
+    private void startNext() {
+        final int i = started.getAndIncrement();
+        if (i < games) {
+            new Game(i).create();
+        }
+    }
+
+    private Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new ConcurrentHistogram(3));
+    }
+
+    private void record(String name, long nanos) {
+        histogram(name).recordValue(Math.max(0L, nanos / 1000L));
+    }
+
+    // Count an error by the rule broken, or by the exception.
+    private void error(Throwable e) {
+        final Throwable cause = ((e instanceof CompletionException) && (null != e.getCause())) ? e.getCause() : e;
+        final String key = (cause instanceof TPMRuleViolationException) ?
+                "rule: " + ((TPMRuleViolationException) cause).getRule() : cause.getClass().getSimpleName();
+        errors.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+        logger.debug("Flow failed", cause);
+    }
+
+    /**
+     * Times a flow overall and each step of its progress, from the step being reached to the next, the last
+     * to the flow returning.
+     */
+    private CompletableFuture<SignedTransaction> timed(String name, Function<Consumer<String>, CompletableFuture<SignedTransaction>> flow) {
+        final Object lock = new Object();
+        final String[] step = {null};
+        final long[] since = {0L};
+        final long start = System.nanoTime();
+        final Consumer<String> progress = next -> {
+            synchronized (lock) {
+                final long now = System.nanoTime();
+                if (null != step[0]) {
+                    record(name + " stage " + step[0], now - since[0]);
+                }
+                step[0] = next;
+                since[0] = now;
+            }
+        };
+        return flow.apply(progress).whenComplete((stx, e) -> {
+            final long now = System.nanoTime();
+            synchronized (lock) {
+                if (null != step[0]) {
+                    record(name + " stage " + step[0], now - since[0]);
+                }
+                // Steps reported after the flow has returned aren't timed.
+                step[0] = null;
+            }
+            if (null == e) {
+                record(name, now - start);
+            }
+        });
+    }
+
+    // One game played out as a chain of futures, only one flow at a time.
+    private final class Game {
+        private final String gameId;
+        private final Node creator;
+        private final Node opponent;
+        private final Random random;
+        private int scripted;
+        private long start;
+
+        Game(int i) {
+            this.gameId = String.format("%s-%d", prefix, i);
+            this.creator = nodes.get(i % nodes.size());
+            this.opponent = nodes.get((i + 1) % nodes.size());
+            this.random = new Random(seed + i);
+        }
+
+        void create() {
+            start = System.nanoTime();
+            timed("create", progress -> creator.client.create(opponent.party, "TPMLoadGenerator", gameId, variant, progress))
+                    .whenComplete((stx, e) -> {
+                        if (null != e) {
+                            createErrors.incrementAndGet();
+                            error(e);
+                            over(false);
+                        } else {
+                            next(state(stx));
+                        }
+                    });
+        }
+
+        private void next(TPMState state) {
+            if ((null == state) || (TPMState.GameStatus.FINISHED == state.getGameStatus())) {
+                if (null != state) {
+                    record("game", System.nanoTime() - start);
+                }
+                over(null != state);
+                return;
+            }
+            final int[] move = choose(state);
+            final Node mover = byParty.get(state.getNextPlayer());
+            timed("move", progress -> mover.client.move(gameId, null, move[0], move[1], move[2], progress))
+                    .whenComplete((stx, e) -> {
+                        if (null != e) {
+                            moveErrors.incrementAndGet();
+                            error(e);
+                            over(false);
+                        } else {
+                            moves.incrementAndGet();
+                            next(state(stx));
+                        }
+                    });
+        }
+
+        private TPMState state(SignedTransaction stx) {
+            for (TPMState state : stx.getTx().outputsOfType(TPMState.class)) {
+                if (state.getGameId().equals(gameId)) {
+                    return state;
+                }
+            }
+            return null;
+        }
+
+        // The next scripted move if it's legal here, otherwise a random legal move.
+        private int[] choose(TPMState state) {
+            if (scripted < script.size()) {
+                final int[] move = script.get(scripted++);
+                if (state.isLegalMove(move[0], move[1]) && (state.requiresCapture(move[0], move[1]) == (move[2] >= 0))) {
+                    return move;
+                }
+                scripted = script.size();
+            }
+            final List<int[]> legal = new ArrayList<>();
+            state.forEachLegalMove((src, dst) -> {
+                legal.add(new int[] {src, dst, -1});
+                return 0;
+            });
+            final int[] move = legal.get(random.nextInt(legal.size()));
+            if (state.requiresCapture(move[0], move[1])) {
+                final List<Integer> capturable = new ArrayList<>();
+                for (int c = state.capturableMask(); 0 != c; c &= c - 1) {
+                    capturable.add(Integer.numberOfTrailingZeros(c));
+                }
+                move[2] = capturable.get(random.nextInt(capturable.size()));
+            }
+            return move;
+        }
+
+        private void over(boolean success) {
+            (success ? finished : failed).incrementAndGet();
+            remaining.countDown();
+            startNext();
+        }
+    }
+
+    private void report() throws IOException {
+        final double seconds = Math.max(1L, elapsedNanos) / 1e9;
+        final long attempts = moves.get() + moveErrors.get();
+        final StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        final List<String> names = new ArrayList<>();
+        for (Node node : nodes) {
+            names.add(quote(node.party.toString()));
+        }
+        json.append(String.format("  \"nodes\": [%s],%n", String.join(", ", names)));
+        json.append(String.format("  \"variant\": %s,%n", quote(variant.name())));
+        json.append(String.format("  \"games\": %d,%n", games));
+        json.append(String.format("  \"concurrency\": %d,%n", concurrency));
+        json.append(String.format("  \"seed\": %d,%n", seed));
+        json.append(String.format("  \"scriptMoves\": %d,%n", script.size()));
+        json.append(String.format("  \"elapsedMillis\": %d,%n", elapsedNanos / 1000000L));
+        json.append(String.format("  \"gamesFinished\": %d,%n", finished.get()));
+        json.append(String.format("  \"gamesFailed\": %d,%n", failed.get()));
+        json.append(String.format("  \"gamesUnfinished\": %d,%n", games - finished.get() - failed.get()));
+        json.append(String.format("  \"moves\": %d,%n", moves.get()));
+        json.append(String.format("  \"movesPerSecond\": %.2f,%n", moves.get() / seconds));
+        json.append(String.format("  \"createErrors\": %d,%n", createErrors.get()));
+        json.append(String.format("  \"moveErrors\": %d,%n", moveErrors.get()));
+        json.append(String.format("  \"moveErrorRate\": %.6f,%n", (0 == attempts) ? 0.0 : (double) moveErrors.get() / attempts));
+
+        json.append("  \"errors\": {");
+        final Map<String, AtomicLong> sortedErrors = new TreeMap<>(errors);
+        String separator = "\n";
+        for (Map.Entry<String, AtomicLong> entry : sortedErrors.entrySet()) {
+            json.append(separator).append(String.format("    %s: %d", quote(entry.getKey()), entry.getValue().get()));
+            separator = ",\n";
+        }
+        json.append(sortedErrors.isEmpty() ? "},\n" : "\n  },\n");
+
+        json.append("  \"latencyMicros\": {");
+        separator = "\n";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            final Histogram histogram = entry.getValue().copy();
+            json.append(separator).append(String.format(
+                    "    %s: {\"count\": %d, \"min\": %d, \"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d, \"histogram\": %s}",
+                    quote(entry.getKey()), histogram.getTotalCount(), histogram.getMinValue(), histogram.getMean(),
+                    histogram.getValueAtPercentile(50.0), histogram.getValueAtPercentile(90.0), histogram.getValueAtPercentile(99.0),
+                    histogram.getValueAtPercentile(99.9), histogram.getMaxValue(), quote(encode(histogram))));
+            separator = ",\n";
+            logger.info(String.format("%s : count=%d, p50=%dus, p99=%dus, max=%dus", entry.getKey(), histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50.0), histogram.getValueAtPercentile(99.0), histogram.getMaxValue()));
+        }
+        json.append(histograms.isEmpty() ? "}\n" : "\n  }\n");
+        json.append("}\n");
+
+        try (Writer out = Files.newBufferedWriter(Paths.get(report), StandardCharsets.UTF_8)) {
+            out.write(json.toString());
+        }
+        logger.info(String.format("%d games finished, %d failed, %d moves at %.1f moves/s, report written to %s",
+                finished.get(), failed.get(), moves.get(), moves.get() / seconds, report));
+    }
+
+    // The whole histogram, compressed and base64 encoded, read back with Histogram.decodeFromCompressedByteBuffer.
+    private static String encode(Histogram histogram) {
+        final ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        final int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+        return Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length));
+    }
+
+    private static String quote(String text) {
+        final StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (('"' == c) || ('\\' == c)) {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
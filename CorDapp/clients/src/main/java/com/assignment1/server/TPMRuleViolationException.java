@@ -0,0 +1,19 @@
+package com.assignment1.server;
+
+/**
+ * A create or move rejected by the game rules or [com.assignment1.contract.TPMContract], the rule is the
+ * requirement that failed, e.g. "Invalid move". Other failures, such as a lost connection or a notary
+ * error, are passed on as they are.
+ */
+public class TPMRuleViolationException extends RuntimeException {
+    private final String rule;
+
+    public TPMRuleViolationException(String rule, Throwable cause) {
+        super(rule, cause);
+        this.rule = rule;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+}
@@ -1,13 +1,22 @@
 package com.assignment1.contract;
 
+import com.assignment1.state.TPMResultState;
 import com.assignment1.state.TPMState;
 import net.corda.core.contracts.CommandData;
 import net.corda.core.contracts.CommandWithParties;
 import net.corda.core.contracts.Contract;
-import net.corda.core.identity.AbstractParty;
+import net.corda.core.contracts.TimeWindow;
+import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.transactions.LedgerTransaction;
 
-import java.util.stream.Collectors;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
@@ -22,10 +31,23 @@ import static net.corda.core.contracts.ContractsDSL.requireThat;
  * - One output state: the new [TPM].
  * - An Create() command with the public keys of both the lender and the borrower.
  *
+ * A transaction may create or move many games at once under the one command, the states for each linearId
+ * are checked against these rules on their own and no two games may share a gameId.
+ *
+ * A timed game, one with a move timeout, needs a time window on each create and move no wider than
+ * MAX_TIME_WINDOW. The move must be notarised by the deadline, and the new deadline is the end of the window
+ * plus the move timeout. Once a deadline has passed the player owed the move may take the game with a
+ * Forfeit() command signed by them alone, the window must then start after the deadline.
+ *
+ * A finished game may be archived by either player with an Archive() command, which consumes the game and
+ * outputs its [TPMResultState]. Results are only made this way and are never consumed.
+ *
  * All contracts must sub-class the [Contract] interface.
  */
 public class TPMContract implements Contract {
     public static final String ID = "com.assignment1.contract.TPMContract";
+    // Widest time window allowed on a timed create or move, the deadline is set from the end of it.
+    public static final Duration MAX_TIME_WINDOW = Duration.ofSeconds(60);
 
     /**
      * The verify() function of all the states' contracts must not throw an exception for a transaction to be
@@ -36,14 +58,46 @@ public class TPMContract implements Contract {
 
         // Fetch the command and do common checks.
         final CommandWithParties<Commands> command = requireSingleCommand(tx.getCommands(), Commands.class);
+        final Set<PublicKey> signers = new HashSet<>(command.getSigners());
+
+        // A transaction may carry many games, their states are grouped by linearId and each group is checked
+        // as one create or one move. Two games can't share a gameId, the flows look games up by it.
+        final List<LedgerTransaction.InOutGroup<TPMState, UniqueIdentifier>> groups = tx.groupStates(TPMState.class, TPMState::getLinearId);
+        final Set<String> gameIds = new HashSet<>();
+        for (LedgerTransaction.InOutGroup<TPMState, UniqueIdentifier> group : groups) {
+            gameIds.add(group.getGroupingKey().getExternalId());
+        }
+
+        final List<TPMResultState> results = tx.outputsOfType(TPMResultState.class);
+        requireThat(require -> {
+            require.using("The transaction should have at least one game.", !groups.isEmpty());
+            require.using("Each game in the transaction should have its own gameId.", gameIds.size() == groups.size());
+            require.using("A result can't be consumed.", tx.inputsOfType(TPMResultState.class).isEmpty());
+            require.using("Results are only made by archiving.", results.isEmpty() || (command.getValue() instanceof Commands.Archive));
+            return null;
+        });
+
+        if (command.getValue() instanceof Commands.Archive) {
+            verifyArchive(signers, groups, results);
+            return;
+        }
+
+        for (LedgerTransaction.InOutGroup<TPMState, UniqueIdentifier> group : groups) {
+            verifyGame(command.getValue(), signers, tx.getTimeWindow(), group.getInputs(), group.getOutputs());
+        }
+    }
+
+    // The rules for one game in the transaction.
+    private static void verifyGame(Commands command, Set<PublicKey> signers, TimeWindow timeWindow, List<TPMState> inputs, List<TPMState> outputs) {
 
         requireThat(require -> {
-            // Generic constraints around the transaction.
-            require.using("Only one output state should be created.",tx.getOutputs().size() == 1);
-            final TPMState out = tx.outputsOfType(TPMState.class).get(0);
+            // Generic constraints around the game.
+            require.using("Only one output state should be created.", outputs.size() == 1);
+            final TPMState out = outputs.get(0);
             require.using("The two players cannot be the same entity.", !out.getPlayer1().equals(out.getPlayer2()));
-            require.using("All of the players must be signers.",
-                    command.getSigners().containsAll(out.getParticipants().stream().map(AbstractParty::getOwningKey).collect(Collectors.toList())));
+            // A forfeit is claimed by one player, checked below.
+            require.using("All of the players must be signers.", (command instanceof Commands.Forfeit) ||
+                    (signers.contains(out.getPlayer1().getOwningKey()) && signers.contains(out.getPlayer2().getOwningKey())));
 
             // Game specific invariants on output only. Will raise exception on failure.
             out.checkInvariants();
@@ -52,42 +106,103 @@ public class TPMContract implements Contract {
         });
 
         // We have two commands, Create and Move, so check each separately.
-        if (command.getValue() instanceof Commands.Create) {
+        if (command instanceof Commands.Create) {
 
             requireThat(require -> {
                 // For creation there should be no input state.
-                require.using("On creation there should be no input state.", tx.getInputs().size() == 0);
+                require.using("On creation there should be no input state.", inputs.size() == 0);
+                // A new game has no moves to log, each move then appends its own, see TPMState.checkMove.
+                require.using("On creation the move log should be empty.", 0 == outputs.get(0).getMoveLog().length);
                 // There should be a full set of available tokens as well.
                 // There should also be zero moves.
                 return null;
             });
+            verifyDeadline(timeWindow, outputs.get(0));
 
-        } else if (command.getValue() instanceof Commands.Move) {
+        } else if (command instanceof Commands.Move) {
 
             requireThat(require -> {
                 // For move there should be one input, of the right type.
-                require.using("Move should have one input state.", tx.getInputs().size() == 1);
-                final TPMState in  = tx.inputsOfType(TPMState.class).get(0);
-                final TPMState out = tx.outputsOfType(TPMState.class).get(0);
+                require.using("Move should have one input state.", inputs.size() == 1);
 
-                // Make sure that the proposed move is a valid one.
+                // Make sure that the proposed move is a valid one, a table lookup for Three Men's Morris, see TPMTransitions.
                 // This method will throw exceptions giving details of the move violation.
-                in.checkMove(out);
+                inputs.get(0).checkMove(outputs.get(0));
+
+                // The move must be notarised before its deadline, the window ends no later.
+                final Instant deadline = inputs.get(0).getDeadline();
+                require.using("Move is after the deadline.", (null == deadline) ||
+                        ((null != timeWindow) && (null != timeWindow.getUntilTime()) && !timeWindow.getUntilTime().isAfter(deadline)));
 
                 return null;
             });
+            verifyDeadline(timeWindow, outputs.get(0));
+
+        } else if (command instanceof Commands.Forfeit) {
+
+            requireThat(require -> {
+                require.using("Forfeit should have one input state.", inputs.size() == 1);
+                final TPMState in = inputs.get(0);
+                in.checkForfeit(outputs.get(0));
+                require.using("The claimant must be a signer.", signers.contains(in.getClaimant().getOwningKey()));
+                // The notary only signs once the window has opened, so after the deadline.
+                require.using("Forfeit is before the deadline.", (null != timeWindow) && (null != timeWindow.getFromTime()) &&
+                        !timeWindow.getFromTime().isBefore(in.getDeadline()));
+                return null;
+            });
 
         } else {
             // Thanks to https://training.corda.net/first-code/solution-contract !
-            throw new IllegalArgumentException("Unknown Command : " + command.getValue());
+            throw new IllegalArgumentException("Unknown Command : " + command);
         }
     }
 
+    // Each finished game is consumed for exactly its result, signed by either player.
+    private static void verifyArchive(Set<PublicKey> signers, List<LedgerTransaction.InOutGroup<TPMState, UniqueIdentifier>> groups, List<TPMResultState> results) {
+        final Map<UniqueIdentifier, TPMResultState> byGame = new HashMap<>();
+        requireThat(require -> {
+            for (TPMResultState result : results) {
+                require.using("One result per game.", null == byGame.put(result.getLinearId(), result));
+            }
+            for (LedgerTransaction.InOutGroup<TPMState, UniqueIdentifier> group : groups) {
+                require.using("Archive should have one input state.", group.getInputs().size() == 1);
+                require.using("An archived game has no output state.", group.getOutputs().isEmpty());
+                final TPMState in = group.getInputs().get(0);
+                require.using("Only a finished game can be archived.", TPMState.GameStatus.FINISHED == in.getGameStatus());
+                require.using("A player must be a signer.",
+                        signers.contains(in.getPlayer1().getOwningKey()) || signers.contains(in.getPlayer2().getOwningKey()));
+                final TPMResultState result = byGame.remove(group.getGroupingKey());
+                require.using("Result should match the game.", (null != result) && result.isResultOf(in));
+            }
+            require.using("Result without a game.", byGame.isEmpty());
+            return null;
+        });
+    }
+
+    // A timed game's new state is due the move timeout after the window closes, an untimed game has no deadline.
+    private static void verifyDeadline(TimeWindow timeWindow, TPMState out) {
+        requireThat(require -> {
+            final Duration moveTimeout = out.getMoveTimeout();
+            if (null == moveTimeout) {
+                require.using("An untimed game has no deadline.", null == out.getDeadline());
+                return null;
+            }
+            require.using("A timed game needs a bounded time window.",
+                    (null != timeWindow) && (null != timeWindow.getFromTime()) && (null != timeWindow.getUntilTime()));
+            require.using("Time window is too wide.", timeWindow.getLength().compareTo(MAX_TIME_WINDOW) <= 0);
+            require.using("Deadline should be the move timeout after the time window.",
+                    timeWindow.getUntilTime().plus(moveTimeout).equals(out.getDeadline()));
+            return null;
+        });
+    }
+
     /**
-     * We have two commands, Create and Move.
+     * We have four commands, Create, Move, Forfeit and Archive.
      */
     public interface Commands extends CommandData {
         class Create implements Commands {};
         class Move implements Commands {};
+        class Forfeit implements Commands {};
+        class Archive implements Commands {};
     };
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package com.assignment1.schema;
+
+import com.assignment1.state.TPMState;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.BinaryComparisonOperator;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.ColumnPredicate;
+import net.corda.core.node.services.vault.CriteriaExpression;
+import net.corda.core.node.services.vault.QueryCriteria;
+
+import java.lang.reflect.Field;
+import java.time.Instant;
+
+/**
+ * Vault queries for unconsumed games over the [TPMSchemaV1] columns, for the flows, services and RPC
+ * clients. Each is one indexed lookup rather than a scan of the states, and they combine with and/or,
+ * e.g. TPMQueries.myMove(me).and(TPMQueries.withStatus(GameStatus.MOVING)).
+ */
+public final class TPMQueries {
+
+    private TPMQueries() {
+    }
+
+    private static Field field(String name) {
+        try {
+            return TPMSchemaV1.PersistentTPM.class.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("No column for " + name, e);
+        }
+    }
+
+    private static QueryCriteria equal(String name, Object value) {
+        final CriteriaExpression expression = Builder.equal(field(name), value);
+        return new QueryCriteria.VaultCustomQueryCriteria(expression);
+    }
+
+    public static QueryCriteria byGameId(String gameId) {
+        return equal("gameId", gameId);
+    }
+
+    // Games where the party is either player.
+    public static QueryCriteria involving(Party party) {
+        final String name = party.getName().toString();
+        return equal("player1", name).or(equal("player2", name));
+    }
+
+    public static QueryCriteria withStatus(TPMState.GameStatus status) {
+        return equal("status", status.name());
+    }
+
+    // Games still being played.
+    public static QueryCriteria active() {
+        return new QueryCriteria.VaultCustomQueryCriteria(Builder.notEqual(field("status"), TPMState.GameStatus.FINISHED.name()));
+    }
+
+    // All my active games where it is my move.
+    public static QueryCriteria myMove(Party me) {
+        return equal("nextPlayer", me.getName().toString()).and(active());
+    }
+
+    private static QueryCriteria.TimeCondition before(QueryCriteria.TimeInstantType type, Instant cutoff) {
+        return new QueryCriteria.TimeCondition(type, new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.LESS_THAN, cutoff));
+    }
+
+    // Finished games recorded before the cutoff, for archiving.
+    public static QueryCriteria finishedBefore(Instant cutoff) {
+        return withStatus(TPMState.GameStatus.FINISHED).and(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, null, null, before(QueryCriteria.TimeInstantType.RECORDED, cutoff)));
+    }
+
+    // Consumed states before the cutoff that still have their row in the schema, see TPMFlowArchive.Compact.
+    public static QueryCriteria consumedBefore(Instant cutoff) {
+        return new QueryCriteria.VaultCustomQueryCriteria(Builder.notNull(field("gameId")), Vault.StateStatus.CONSUMED).and(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.CONSUMED, null, null, null, null, before(QueryCriteria.TimeInstantType.CONSUMED, cutoff)));
+    }
+}
@@ -0,0 +1,7 @@
+package com.assignment1.schema;
+
+/**
+ * The family of schemas for [com.assignment1.state.TPMState].
+ */
+public class TPMSchema {
+}
@@ -0,0 +1,145 @@
+package com.assignment1.schema;
+
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * A [TPMState] schema, one row per state with the columns the vault is asked about: which game, who plays
+ * it, whose turn it is and how far it has got. Parties are stored by X.500 name. Each column is indexed,
+ * the next player with the status for the "my move" query, so these stay fast however many consumed
+ * states the vault holds.
+ *
+ * Consumed states compacted by TPMFlowArchive.Compact move to the tpm_states_archive table, the same columns
+ * and when the state was consumed, indexed only by game.
+ */
+public class TPMSchemaV1 extends MappedSchema {
+    public TPMSchemaV1() {
+        super(TPMSchema.class, 1, Arrays.asList(PersistentTPM.class, PersistentArchivedTPM.class));
+    }
+
+    @Override
+    public String getMigrationResource() {
+        return "tpm.changelog-master";
+    }
+
+    @Entity
+    @Table(name = "tpm_states", indexes = {
+            @Index(name = "tpm_game_id_idx", columnList = "game_id"),
+            @Index(name = "tpm_player1_idx", columnList = "player1"),
+            @Index(name = "tpm_player2_idx", columnList = "player2"),
+            @Index(name = "tpm_last_mover_idx", columnList = "last_mover"),
+            @Index(name = "tpm_moves_idx", columnList = "moves"),
+            @Index(name = "tpm_status_idx", columnList = "status"),
+            @Index(name = "tpm_next_player_idx", columnList = "next_player,status")
+    })
+    public static class PersistentTPM extends PersistentState {
+        @Column(name = "game_id") private final String gameId;
+        @Column(name = "linear_id") private final String linearId;
+        @Column(name = "variant") private final String variant;
+        @Column(name = "player1") private final String player1;
+        @Column(name = "player2") private final String player2;
+        @Column(name = "last_mover", nullable = true) private final String lastMover;
+        @Column(name = "next_player") private final String nextPlayer;
+        @Column(name = "moves") private final int moves;
+        @Column(name = "status") private final String status;
+
+        public PersistentTPM(String gameId, String linearId, String variant, String player1, String player2,
+                             String lastMover, String nextPlayer, int moves, String status) {
+            this.gameId = gameId;
+            this.linearId = linearId;
+            this.variant = variant;
+            this.player1 = player1;
+            this.player2 = player2;
+            this.lastMover = lastMover;
+            this.nextPlayer = nextPlayer;
+            this.moves = moves;
+            this.status = status;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentTPM() {
+            this(null, null, null, null, null, null, null, 0, null);
+        }
+
+        public String getGameId() { return gameId; }
+
+        public String getLinearId() { return linearId; }
+
+        public String getVariant() { return variant; }
+
+        public String getPlayer1() { return player1; }
+
+        public String getPlayer2() { return player2; }
+
+        public String getLastMover() { return lastMover; }
+
+        public String getNextPlayer() { return nextPlayer; }
+
+        public int getMoves() { return moves; }
+
+        public String getStatus() { return status; }
+    }
+
+    @Entity
+    @Table(name = "tpm_states_archive", indexes = {
+            @Index(name = "tpm_archive_game_id_idx", columnList = "game_id")
+    })
+    public static class PersistentArchivedTPM extends PersistentState {
+        @Column(name = "game_id") private final String gameId;
+        @Column(name = "linear_id") private final String linearId;
+        @Column(name = "variant") private final String variant;
+        @Column(name = "player1") private final String player1;
+        @Column(name = "player2") private final String player2;
+        @Column(name = "last_mover", nullable = true) private final String lastMover;
+        @Column(name = "next_player") private final String nextPlayer;
+        @Column(name = "moves") private final int moves;
+        @Column(name = "status") private final String status;
+        @Column(name = "consumed_time") private final Instant consumedTime;
+
+        public PersistentArchivedTPM(String gameId, String linearId, String variant, String player1, String player2,
+                                     String lastMover, String nextPlayer, int moves, String status, Instant consumedTime) {
+            this.gameId = gameId;
+            this.linearId = linearId;
+            this.variant = variant;
+            this.player1 = player1;
+            this.player2 = player2;
+            this.lastMover = lastMover;
+            this.nextPlayer = nextPlayer;
+            this.moves = moves;
+            this.status = status;
+            this.consumedTime = consumedTime;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentArchivedTPM() {
+            this(null, null, null, null, null, null, null, 0, null, null);
+        }
+
+        public String getGameId() { return gameId; }
+
+        public String getLinearId() { return linearId; }
+
+        public String getVariant() { return variant; }
+
+        public String getPlayer1() { return player1; }
+
+        public String getPlayer2() { return player2; }
+
+        public String getLastMover() { return lastMover; }
+
+        public String getNextPlayer() { return nextPlayer; }
+
+        public int getMoves() { return moves; }
+
+        public String getStatus() { return status; }
+
+        public Instant getConsumedTime() { return consumedTime; }
+    }
+}
@@ -0,0 +1,153 @@
+package com.assignment1.state;
+
+import java.util.Arrays;
+
+/**
+ * The moves of a game packed into bits, extended by every move so the whole game can be replayed from
+ * the latest state without walking back through the transactions that consumed the earlier ones.
+ *
+ * Points are written in the fewest bits that hold the variant's points plus one, four on the Three Men's
+ * Morris board and five on the larger ones. Each move is its destination plus one, then for a move on the
+ * board its source, then on boards with captures a bit set if the captured point follows. The first
+ * 2 * tokens moves are placements, so whether a source follows is known from the move number: a Three Men's
+ * Morris placement is four bits and a slide eight. A destination of zero marks the padding at the end, or
+ * at the start a log begun mid-game, which is followed by eight bits holding the number of moves before it.
+ */
+public final class TPMMoveLog {
+
+    public static final byte[] EMPTY = new byte[0];
+
+    private static final int START_BITS = 8;
+
+    private interface Visitor {
+        void visit(int src, int dst, int capture);
+    }
+
+    private TPMMoveLog() {
+    }
+
+    // Bits for a point plus one, zero is kept for the end of the log.
+    private static int pointBits(TPMVariant variant) {
+        return Integer.SIZE - Integer.numberOfLeadingZeros(variant.getPoints());
+    }
+
+    private static boolean isPlacement(TPMVariant variant, int move) {
+        return move < 2 * variant.getTokens();
+    }
+
+    private static int read(byte[] log, int bit, int bits) {
+        int value = 0;
+        for (int i=0; i<bits; ++i, ++bit) {
+            value = (value << 1) | ((log[bit >> 3] >> (7 - (bit & 7))) & 1);
+        }
+        return value;
+    }
+
+    private static void write(byte[] log, int bit, int bits, int value) {
+        for (int i=bits-1; i>=0; --i, ++bit) {
+            if (0 != ((value >> i) & 1)) {
+                log[bit >> 3] |= (byte) (0x80 >> (bit & 7));
+            }
+        }
+    }
+
+    // Bits in the entry for the move, including the start if it begins the log.
+    private static int entryBits(TPMVariant variant, boolean start, int move, int capture) {
+        final int w = pointBits(variant);
+        return (start ? (w + START_BITS) : 0) + w + (isPlacement(variant, move) ? 0 : w) +
+                (variant.hasCaptures() ? (1 + ((capture >= 0) ? w : 0)) : 0);
+    }
+
+    // Write the move at bit, returns the bit after it.
+    private static int write(byte[] log, int bit, TPMVariant variant, boolean start, int move, int src, int dst, int capture) {
+        final int w = pointBits(variant);
+        if (start) {
+            bit += w;
+            write(log, bit, START_BITS, move);
+            bit += START_BITS;
+        }
+        write(log, bit, w, dst + 1);
+        bit += w;
+        if (!isPlacement(variant, move)) {
+            write(log, bit, w, src);
+            bit += w;
+        }
+        if (variant.hasCaptures()) {
+            write(log, bit, 1, (capture >= 0) ? 1 : 0);
+            bit += 1;
+            if (capture >= 0) {
+                write(log, bit, w, capture);
+                bit += w;
+            }
+        }
+        return bit;
+    }
+
+    // Walks the log, calling the visitor with each move, returns the bit after the last one.
+    private static int walk(byte[] log, TPMVariant variant, Visitor visitor) {
+        final int w = pointBits(variant);
+        final int end = log.length * 8;
+        int bit = 0;
+        int move = 0;
+        if ((end >= w + START_BITS) && (0 == read(log, 0, w))) {
+            move = read(log, w, START_BITS);
+            bit = w + START_BITS;
+        }
+        for (; bit + w <= end; ++move) {
+            final int dst = read(log, bit, w) - 1;
+            if (dst < 0) {
+                break;
+            }
+            int next = bit + w;
+            final int src = isPlacement(variant, move) ? -1 : read(log, next, w);
+            next += isPlacement(variant, move) ? 0 : w;
+            int capture = -1;
+            if (variant.hasCaptures()) {
+                if (0 != read(log, next, 1)) {
+                    capture = read(log, next + 1, w);
+                    next += w;
+                }
+                next += 1;
+            }
+            if (null != visitor) {
+                visitor.visit(src, dst, capture);
+            }
+            bit = next;
+        }
+        return bit;
+    }
+
+    /**
+     * A new log with the move from src to dst on the end, src and capture are -1 for none.
+     * @param moves Moves made in the game before this one.
+     */
+    public static byte[] append(byte[] log, TPMVariant variant, int moves, int src, int dst, int capture) {
+        final boolean start = (0 == log.length) && (moves > 0);
+        final int bit = walk(log, variant, null);
+        final byte[] logNew = Arrays.copyOf(log, (bit + entryBits(variant, start, moves, capture) + 7) >> 3);
+        write(logNew, bit, variant, start, moves, src, dst, capture);
+        return logNew;
+    }
+
+    // True if logNew is log with the move on the end.
+    public static boolean isAppended(byte[] log, byte[] logNew, TPMVariant variant, int moves, int src, int dst, int capture) {
+        return Arrays.equals(append(log, variant, moves, src, dst, capture), logNew);
+    }
+
+    // Number of moves in the log.
+    public static int count(byte[] log, TPMVariant variant) {
+        final int[] count = {0};
+        walk(log, variant, (src, dst, capture) -> ++count[0]);
+        return count[0];
+    }
+
+    /**
+     * The moves in the order they were made, each {src, dst, capture} with -1 for no source or capture.
+     */
+    public static int[][] decode(byte[] log, TPMVariant variant) {
+        final int[][] moves = new int[count(log, variant)][];
+        final int[] i = {0};
+        walk(log, variant, (src, dst, capture) -> moves[i[0]++] = new int[] {src, dst, capture});
+        return moves;
+    }
+}
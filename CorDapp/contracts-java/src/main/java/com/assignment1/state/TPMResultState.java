@@ -0,0 +1,133 @@
+package com.assignment1.state;
+
+import com.assignment1.contract.TPMContract;
+import net.corda.core.contracts.BelongsToContract;
+import net.corda.core.contracts.LinearState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.ConstructorForDeserialization;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The compact record a finished game is archived to, see [TPMContract.Commands.Archive]. It keeps who played,
+ * who won and the move log, from which the whole game can be replayed, and drops the board, hands and position
+ * history. It has the game's linearId so the game can still be found by gameId.
+ *
+ * A result is never consumed.
+ */
+@BelongsToContract(TPMContract.class)
+public class TPMResultState implements LinearState {
+
+    private final TPMVariant variant;
+    private final Party player1;
+    private final Party player2;
+    // Null for a draw.
+    private final Party winner;
+    private final int moves;
+    private final boolean forfeited;
+    private final byte[] moveLog;
+    private final UniqueIdentifier linearId;
+
+    @ConstructorForDeserialization
+    public TPMResultState(TPMVariant variant,
+                          Party player1,
+                          Party player2,
+                          Party winner,
+                          int moves,
+                          boolean forfeited,
+                          byte[] moveLog,
+                          UniqueIdentifier linearId) {
+        this.variant = variant;
+        this.player1 = player1;
+        this.player2 = player2;
+        this.winner = winner;
+        this.moves = moves;
+        this.forfeited = forfeited;
+        this.moveLog = (null == moveLog) ? TPMMoveLog.EMPTY : moveLog.clone();
+        this.linearId = linearId;
+    }
+
+    // The result of a finished game.
+    public static TPMResultState of(TPMState state) {
+        final TPMState.Token winner = state.getWinner();
+        return new TPMResultState(
+                state.getVariant(),
+                state.getPlayer1(),
+                state.getPlayer2(),
+                (null == winner) ? null : ((TPMState.Token.PLAYER1 == winner) ? state.getPlayer1() : state.getPlayer2()),
+                state.getMoves(),
+                state.isForfeited(),
+                state.getMoveLog(),
+                state.getLinearId());
+    }
+
+    public TPMVariant getVariant() {
+        return variant;
+    }
+
+    public String getGameId() {
+        return linearId.getExternalId();
+    }
+
+    public Party getPlayer1() {
+        return player1;
+    }
+
+    public Party getPlayer2() {
+        return player2;
+    }
+
+    public Party getWinner() {
+        return winner;
+    }
+
+    public boolean isDraw() {
+        return null == winner;
+    }
+
+    public int getMoves() {
+        return moves;
+    }
+
+    public boolean isForfeited() {
+        return forfeited;
+    }
+
+    public byte[] getMoveLog() {
+        return moveLog.clone();
+    }
+
+    // The moves of the game, oldest first, as for TPMState.getMoveList.
+    public int[][] getMoveList() {
+        return TPMMoveLog.decode(moveLog, variant);
+    }
+
+    // True if this is exactly the result of the finished game.
+    public boolean isResultOf(TPMState state) {
+        final TPMResultState expected = of(state);
+        return (variant == expected.variant) &&
+                player1.equals(expected.player1) &&
+                player2.equals(expected.player2) &&
+                ((null == winner) ? (null == expected.winner) : winner.equals(expected.winner)) &&
+                (moves == expected.moves) &&
+                (forfeited == expected.forfeited) &&
+                Arrays.equals(moveLog, expected.moveLog) &&
+                linearId.equals(expected.linearId);
+    }
+
+    @Override public UniqueIdentifier getLinearId() {
+        return linearId;
+    }
+
+    @Override public List<AbstractParty> getParticipants() {
+        return Arrays.asList(player1, player2);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("gameId=%s, player1=%s, player2=%s, variant=%s, winner=%s, moves=%d", getGameId(), player1, player2, variant, winner, moves);
+    }
+}
@@ -1,35 +1,54 @@
 package com.assignment1.state;
 
 import com.assignment1.contract.TPMContract;
+import com.assignment1.schema.TPMSchemaV1;
 import net.corda.core.contracts.BelongsToContract;
 import net.corda.core.contracts.LinearState;
 import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
 import net.corda.core.serialization.ConstructorForDeserialization;
 import net.corda.core.serialization.CordaSerializable;
 
-import static net.corda.core.contracts.ContractsDSL.requireThat;
-
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.function.IntBinaryOperator;
 
 /**
- * The state object recording Three Person's Morris (TPM)
+ * The state object recording Three Person's Morris (TPM), or one of the larger Morris boards in [TPMVariant].
  *
  * A state must implement [ContractState] or one of its descendants.
+ *
+ * A game may be timed, each move must then be made before the deadline set by the move before it. Once a
+ * deadline passes the player who is owed the move may claim the game by forfeit, see
+ * [TPMContract.Commands.Forfeit].
  */
 @BelongsToContract(TPMContract.class)
-public class TPMState implements LinearState {
+public class TPMState implements LinearState, QueryableState {
 
     @CordaSerializable
     public enum Token {PLAYER1, PLAYER2};
+    // The Three Men's Morris board, the larger variants are addressed by point, see [TPMVariant].
     public static final int BOARD_WIDTH=3;
+    public static final int BOARD_SIZE=BOARD_WIDTH*BOARD_WIDTH;
+    // Draw rules for the moving phase, a position seen this many times in the history or the variant's move limit.
+    public static final int REPETITION_LIMIT=3;
+    public static final int HISTORY_LENGTH=16;
+    // Longest free text a move may carry, longer hints are cut short by move().
+    public static final int MAX_MOVE_HINT_LENGTH=64;
+    private final TPMVariant variant;
     private final int player1Tokens;
     private final int player2Tokens;
-    private final Token[] board;
+    // The board is packed as one mask per player, bit i set if the player has a token at address i.
+    private final int player1Mask;
+    private final int player2Mask;
     private final Party player;
     private final Party player1;
     private final Party player2;
@@ -37,9 +56,23 @@ public class TPMState implements LinearState {
     @CordaSerializable
     public enum GameStatus {INITIAL, PLACEMENT, MOVING, FINISHED};
     private GameStatus gameStatus;
-    private final String gameStatusHint;
+    // Formatted on first use for states built by move() or read by TPMStateSerializer, see getGameStatusHint.
+    private String gameStatusHint;
+    private final int lastSrc;
+    private final int lastDst;
+    private final int lastCapture;
     private final String moveHint;
     private final UniqueIdentifier linearId;
+    // Zobrist hash of the board and side to move, and the hashes of the most recent moving phase positions.
+    private final long positionHash;
+    private final long[] positionHistory;
+    // Every move of the game in order, see [TPMMoveLog].
+    private final byte[] moveLog;
+    // Milliseconds allowed for each move and the epoch millisecond the next move is due by, zero if untimed.
+    private final long moveTimeout;
+    private final long deadline;
+    // Finished by forfeit, the player who missed the deadline lost.
+    private final boolean forfeited;
 
     /**
      * @param player1Tokens Player1 Pieces off board.
@@ -52,6 +85,12 @@ public class TPMState implements LinearState {
      * @param gameStatus The game status.
      * @param gameStatusHint Human readable class set string as a helpful hint.
      * @param moveHint Free set string set by the move, maybe a popular local insult.
+     * @param positionHistory Hashes of the last HISTORY_LENGTH moving phase positions, oldest first, null if none.
+     * @param variant The board being played, null for Three Men's Morris.
+     * @param moveLog The moves made so far packed by [TPMMoveLog], null for a game begun before the log was kept.
+     * @param moveTimeout The time allowed for each move, null if untimed.
+     * @param deadline When the next move is due, null if untimed or finished.
+     * @param forfeited True if the game was finished by forfeit, null as false for a game recorded before timed games.
      */
     @ConstructorForDeserialization
     public TPMState(int player1Tokens,
@@ -64,88 +103,157 @@ public class TPMState implements LinearState {
                     GameStatus gameStatus,
                     String gameStatusHint,
                     String moveHint,
-                    UniqueIdentifier linearId)
+                    UniqueIdentifier linearId,
+                    long[] positionHistory,
+                    TPMVariant variant,
+                    byte[] moveLog,
+                    Duration moveTimeout,
+                    Instant deadline,
+                    Boolean forfeited)
     {
-        this.player1Tokens = Math.max( Math.min( player1Tokens, BOARD_WIDTH), 0);
-        this.player2Tokens = Math.max( Math.min( player2Tokens, BOARD_WIDTH), 0);
-        this.board = board;
+        this.variant = (null == variant) ? TPMVariant.THREE : variant;
+        this.player1Tokens = Math.max( Math.min( player1Tokens, this.variant.getTokens()), 0);
+        this.player2Tokens = Math.max( Math.min( player2Tokens, this.variant.getTokens()), 0);
+        this.player1Mask = toMask(board, Token.PLAYER1, this.variant.getPoints());
+        this.player2Mask = toMask(board, Token.PLAYER2, this.variant.getPoints());
         this.player = player;
         this.player1 = player1;
         this.player2 = player2;
         this.moves = moves;
         this.gameStatus = gameStatus;
         this.gameStatusHint = gameStatusHint;
+        this.lastSrc = -1;
+        this.lastDst = -1;
+        this.lastCapture = -1;
         this.moveHint = moveHint;
         this.linearId = linearId;
+        this.positionHash = zobrist(this.player1Mask, this.player2Mask, isPlayer1Next());
+        this.positionHistory = (null == positionHistory) ? NO_HISTORY : positionHistory.clone();
+        this.moveLog = (null == moveLog) ? TPMMoveLog.EMPTY : moveLog.clone();
+        this.moveTimeout = (null == moveTimeout) ? 0L : moveTimeout.toMillis();
+        this.deadline = (null == deadline) ? 0L : deadline.toEpochMilli();
+        this.forfeited = Boolean.TRUE.equals(forfeited);
     }
 
     /*
      * The constructor used when creating a new state for a move.
      */
-    private TPMState(int player1Tokens,
+    private TPMState(TPMVariant variant,
+                    int player1Tokens,
                     int player2Tokens,
-                    Token[] board,
+                    int player1Mask,
+                    int player2Mask,
                     Party player,
                     Party player1,
                     Party player2,
                     int moves,
                     String moveHint,
                     UniqueIdentifier linearId,
+                    long positionHash,
+                    long[] positionHistory,
+                    byte[] moveLog,
                     int src,
-                    int dst) {
+                    int dst,
+                    int capture,
+                    long moveTimeout,
+                    long deadline,
+                    boolean forfeited) {
         // Maybe call above constructor??
-        this.player1Tokens = Math.max( Math.min( player1Tokens, BOARD_WIDTH), 0);
-        this.player2Tokens = Math.max( Math.min( player2Tokens, BOARD_WIDTH), 0);
-        this.board = board;
+        this.variant = variant;
+        this.player1Tokens = Math.max( Math.min( player1Tokens, variant.getTokens()), 0);
+        this.player2Tokens = Math.max( Math.min( player2Tokens, variant.getTokens()), 0);
+        this.player1Mask = player1Mask;
+        this.player2Mask = player2Mask;
         this.player = player;
         this.player1 = player1;
         this.player2 = player2;
         this.moves = moves;
         this.moveHint = moveHint;
         this.linearId = linearId;
-
-        // Easier to refer to player1 and player2 in hints at the moment.
-        String playerHint = player.equals(player1) ? "Player1" : (player.equals(player2) ? "Player2" : player.toString());
+        this.lastSrc = src;
+        this.lastDst = dst;
+        this.lastCapture = capture;
+        this.positionHash = positionHash;
+        this.positionHistory = positionHistory;
+        this.moveLog = moveLog;
+        this.moveTimeout = moveTimeout;
+        this.deadline = deadline;
+        this.forfeited = forfeited;
 
         // We work out the state from the above fields.
         // The state field stops clients implementing this logic repeatedly.
-        if ((BOARD_WIDTH == player1Tokens) && (BOARD_WIDTH == player2Tokens)) {
-            this.gameStatus = GameStatus.INITIAL;
-            this.gameStatusHint = "Initial";
-        } else if ((0 == player1Tokens) && (0 == player2Tokens)) {
-            if (gameOver(Token.PLAYER1)) {
-                this.gameStatus = gameStatus.FINISHED;
-                this.gameStatusHint = String.format("Player1 won in %d moves",moves);
-            }
-            else if (gameOver(Token.PLAYER2)) {
-                this.gameStatus = gameStatus.FINISHED;
-                this.gameStatusHint = String.format("Player2 won in %d moves",moves);
-            } else {
-                this.gameStatus = gameStatus.MOVING;
-                this.gameStatusHint =String.format("%s moved from %d to %d", playerHint, src, dst);
-            }
-        } else {
-            this.gameStatus = gameStatus.PLACEMENT;
-            this.gameStatusHint = String.format("%s placed at %d", playerHint, dst);
-        }
+        this.gameStatus = deriveGameStatus();
     }
 
-    /* Initialize a new board.
+    /* Initialize a new Three Men's Morris board.
      * @param player1 The player in the game, they made the first move.
      * @param player2 The second player in the game.
      */
     public TPMState(Party player1, Party player2, String createHint, String gameId) {
-        this.player1Tokens = BOARD_WIDTH;
-        this.player2Tokens = BOARD_WIDTH;
-        this.board = new Token[BOARD_WIDTH*BOARD_WIDTH];
+        this(player1, player2, createHint, gameId, TPMVariant.THREE);
+    }
+
+    /* Initialize a new board.
+     * @param player1 The player in the game, they made the first move.
+     * @param player2 The second player in the game.
+     * @param variant The board to play on.
+     */
+    public TPMState(Party player1, Party player2, String createHint, String gameId, TPMVariant variant) {
+        this(player1, player2, createHint, gameId, variant, null);
+    }
+
+    /* Initialize a new timed board, the deadline for the first move is set with withDeadline.
+     * @param player1 The player in the game, they made the first move.
+     * @param player2 The second player in the game.
+     * @param variant The board to play on.
+     * @param moveTimeout The time allowed for each move, null for an untimed game.
+     */
+    public TPMState(Party player1, Party player2, String createHint, String gameId, TPMVariant variant, Duration moveTimeout) {
+        this.variant = variant;
+        this.player1Tokens = variant.getTokens();
+        this.player2Tokens = variant.getTokens();
+        this.player1Mask = 0;
+        this.player2Mask = 0;
         this.player = null;
         this.player1 = player1;
         this.player2 = player2;
         this.gameStatus = GameStatus.INITIAL;
         this.gameStatusHint = "Initial";
-        this.moveHint = createHint;
+        this.lastSrc = -1;
+        this.lastDst = -1;
+        this.lastCapture = -1;
+        this.moveHint = boundHint(createHint);
         this.moves = 0;
         this.linearId = new UniqueIdentifier(gameId);
+        this.positionHash = zobrist(0, 0, true);
+        this.positionHistory = NO_HISTORY;
+        this.moveLog = TPMMoveLog.EMPTY;
+        this.moveTimeout = (null == moveTimeout) ? 0L : moveTimeout.toMillis();
+        this.deadline = 0L;
+        this.forfeited = false;
+    }
+
+    // Status follows from the tokens, the board, the move count and the position history.
+    private GameStatus deriveGameStatus() {
+        if (forfeited) {
+            return GameStatus.FINISHED;
+        } else if ((variant.getTokens() == player1Tokens) && (variant.getTokens() == player2Tokens)) {
+            return GameStatus.INITIAL;
+        } else if ((0 == player1Tokens) && (0 == player2Tokens)) {
+            if (gameOver() || (moves >= variant.getMoveLimit()) || (repetitions() >= REPETITION_LIMIT)) {
+                return GameStatus.FINISHED;
+            }
+            return GameStatus.MOVING;
+        } else if (variant.hasCaptures() && (gameOver() || (variant.getFullBoard() == (player1Mask | player2Mask)))) {
+            // Beaten during placement, or nowhere left to place a token.
+            return GameStatus.FINISHED;
+        } else {
+            return GameStatus.PLACEMENT;
+        }
+    }
+
+    public TPMVariant getVariant() {
+        return variant;
     }
 
     public String getGameId() {
@@ -153,7 +261,12 @@ public class TPMState implements LinearState {
     }
 
     public Token getToken(int x, int y) {
-        return getBoard()[y*BOARD_WIDTH + x];
+        return getToken(y*BOARD_WIDTH + x);
+    }
+
+    public Token getToken(int address) {
+        final int bit = variant.pointBit(address);
+        return (0 != (player1Mask & bit)) ? Token.PLAYER1 : ((0 != (player2Mask & bit)) ? Token.PLAYER2 : null);
     }
 
     public int getPlayer1Tokens() {
@@ -164,10 +277,23 @@ public class TPMState implements LinearState {
         return player2Tokens;
     }
 
+    // A view of the packed board, a new array is built on each call so prefer the masks or getToken on hot paths.
     public Token[] getBoard() {
+        Token[] board = new Token[variant.getPoints()];
+        for (int i=0; i<board.length; ++i) {
+            board[i] = getToken(i);
+        }
         return board;
     }
 
+    public int getPlayer1Mask() {
+        return player1Mask;
+    }
+
+    public int getPlayer2Mask() {
+        return player2Mask;
+    }
+
     public Party getPlayer() { return player; }
 
     public Party getPlayer1() {
@@ -183,118 +309,454 @@ public class TPMState implements LinearState {
     }
 
     public String getGameStatusHint() {
+        if (null == gameStatusHint) {
+            gameStatusHint = formatGameStatusHint();
+        }
         return gameStatusHint;
     }
 
+    // Human readable status for a state built by move(). Deferred as enumerating successors would
+    // otherwise format a string for every candidate.
+    private String formatGameStatusHint() {
+        if (GameStatus.INITIAL == gameStatus) {
+            return "Initial";
+        }
+
+        // Easier to refer to player1 and player2 in hints at the moment.
+        String playerHint = player.equals(player1) ? "Player1" : (player.equals(player2) ? "Player2" : player.toString());
+
+        switch (gameStatus) {
+            case FINISHED:
+                if (isDraw()) {
+                    final String reason = (0 != (player1Tokens | player2Tokens)) ? "full board" : ((moves >= variant.getMoveLimit()) ? "move limit" : "repetition");
+                    return String.format("Draw by %s after %d moves", reason, moves);
+                }
+                if (forfeited) {
+                    return String.format("%s won by forfeit after %d moves", (Token.PLAYER1 == getWinner()) ? "Player1" : "Player2", moves);
+                }
+                return String.format("%s won in %d moves", (Token.PLAYER1 == getWinner()) ? "Player1" : "Player2", moves);
+            case MOVING:
+                if (lastDst < 0) {
+                    return playerHint + " moved";
+                }
+                return String.format((lastCapture >= 0) ? "%s moved from %d to %d capturing %d" : "%s moved from %d to %d", playerHint, lastSrc, lastDst, lastCapture);
+            default:
+                if (lastDst < 0) {
+                    return playerHint + " placed";
+                }
+                return String.format((lastCapture >= 0) ? "%s placed at %d capturing %d" : "%s placed at %d", playerHint, lastDst, lastCapture);
+        }
+    }
+
     public String getMoveHint() {
         return moveHint;
     }
 
+    // The time allowed for each move, null if the game is untimed.
+    public Duration getMoveTimeout() {
+        return (0L == moveTimeout) ? null : Duration.ofMillis(moveTimeout);
+    }
+
+    // When the next move is due, null if untimed or finished.
+    public Instant getDeadline() {
+        return (0L == deadline) ? null : Instant.ofEpochMilli(deadline);
+    }
+
+    public boolean isForfeited() {
+        return forfeited;
+    }
+
     public int getMoves() {
         return moves;
     }
 
-    // Encode a board address into an integer, used to check for winning line.
-    private static int encodeAddress(int c, int a, int p) {
-        return c | (a << (8*p));
-    }
-
-    // Winning line addresses encoded into a single integer, order is important, same as board scanning order.
-    private static HashSet<Integer> winningAddresses = new HashSet<>(Arrays.asList(
-        encodeAddress(encodeAddress(encodeAddress(0, 0, 0), 1, 1), 2,2),
-        encodeAddress(encodeAddress(encodeAddress(0, 0, 0), 4, 1), 8,2),
-        encodeAddress(encodeAddress(encodeAddress(0, 0, 0), 3, 1), 6,2),
-        encodeAddress(encodeAddress(encodeAddress(0, 1, 0), 4, 1), 7,2),
-        encodeAddress(encodeAddress(encodeAddress(0, 2, 0), 5, 1), 8,2),
-        encodeAddress(encodeAddress(encodeAddress(0, 2, 0), 4, 1), 6,2),
-        encodeAddress(encodeAddress(encodeAddress(0, 3, 0), 4, 1), 5,2),
-        encodeAddress(encodeAddress(encodeAddress(0, 6, 0), 7, 1), 8,2)
-    ));
-
-    // Return true if the game is over, there is a completed line.
-    private boolean gameOver(Token pt) {
-        int a = 0;
-        int ii = 0;
-        for (int i=0;i<board.length;++i) {
-            if (pt.equals(board[i])) {
-                a = encodeAddress(a, i, ii++);
+    public long[] getPositionHistory() {
+        return positionHistory.clone();
+    }
+
+    public byte[] getMoveLog() {
+        return moveLog.clone();
+    }
+
+    // The moves recorded in the log, oldest first, as {src, dst, capture} with -1 for none.
+    public int[][] getMoveList() {
+        return TPMMoveLog.decode(moveLog, variant);
+    }
+
+    public long getPositionHash() {
+        return positionHash;
+    }
+
+    // Number of times the current position appears in the history, including itself.
+    public int repetitions() {
+        int count = 0;
+        for (long hash : positionHistory) {
+            if (hash == positionHash) {
+                ++count;
             }
         }
-        return winningAddresses.contains(a);
+        return count;
     }
 
-    public boolean gameOver() {
-        return gameOver(Token.PLAYER1) || gameOver(Token.PLAYER2);
-    }
-
-    // Legal moves encoded as src -> dst.
-    private static HashSet<Integer> legalMoves = new HashSet<>(Arrays.asList(
-            encodeAddress(encodeAddress(0, 0, 0), 1, 1),
-            encodeAddress(encodeAddress(0, 1, 0), 0, 1),
-            encodeAddress(encodeAddress(0, 0, 0), 4, 1),
-            encodeAddress(encodeAddress(0, 4, 0), 0, 1),
-            encodeAddress(encodeAddress(0, 0, 0), 3, 1),
-            encodeAddress(encodeAddress(0, 3, 0), 0, 1),
-            encodeAddress(encodeAddress(0, 1, 0), 2, 1),
-            encodeAddress(encodeAddress(0, 2, 0), 1, 1),
-            encodeAddress(encodeAddress(0, 1, 0), 4, 1),
-            encodeAddress(encodeAddress(0, 4, 0), 1, 1),
-            encodeAddress(encodeAddress(0, 2, 0), 4, 1),
-            encodeAddress(encodeAddress(0, 4, 0), 2, 1),
-            encodeAddress(encodeAddress(0, 2, 0), 5, 1),
-            encodeAddress(encodeAddress(0, 5, 0), 2, 1),
-            encodeAddress(encodeAddress(0, 3, 0), 4, 1),
-            encodeAddress(encodeAddress(0, 4, 0), 3, 1),
-            encodeAddress(encodeAddress(0, 3, 0), 6, 1),
-            encodeAddress(encodeAddress(0, 6, 0), 3, 1),
-            encodeAddress(encodeAddress(0, 4, 0), 5, 1),
-            encodeAddress(encodeAddress(0, 5, 0), 4, 1),
-            encodeAddress(encodeAddress(0, 4, 0), 6, 1),
-            encodeAddress(encodeAddress(0, 6, 0), 4, 1),
-            encodeAddress(encodeAddress(0, 4, 0), 7, 1),
-            encodeAddress(encodeAddress(0, 7, 0), 4, 1),
-            encodeAddress(encodeAddress(0, 4, 0), 8, 1),
-            encodeAddress(encodeAddress(0, 8, 0), 4, 1),
-            encodeAddress(encodeAddress(0, 5, 0), 8, 1),
-            encodeAddress(encodeAddress(0, 8, 0), 5, 1),
-            encodeAddress(encodeAddress(0, 6, 0), 7, 1),
-            encodeAddress(encodeAddress(0, 7, 0), 6, 1),
-            encodeAddress(encodeAddress(0, 7, 0), 8, 1),
-            encodeAddress(encodeAddress(0, 8, 0), 7, 1)
-    ));
-
-    private boolean legalMove(int src, int dst) {
-        return legalMoves.contains(encodeAddress(encodeAddress(0, src, 0), dst, 1));
+    // Finished without a winner, by repetition, the move limit or a full board.
+    public boolean isDraw() {
+        return (GameStatus.FINISHED == gameStatus) && !gameOver();
     }
 
-    // Make sure there are the required number of tokens in play and they are in valid positions.
-    public void checkInvariants() {
-        requireThat(require -> {
-
-            // Make sure that player that set state was supposed to.
-            // In checkMove we catch the case where player1 made the move but moved player2s token.
-            if (null != getPlayer()) {
-                // If move is odd then it was player1 that proposed the state, else player2.
-                require.using("Expected Player2 to make move", (getPlayer().equals(getPlayer1())) || ((getPlayer().equals(getPlayer2())) && (0 == (getMoves() % 2))));
-                require.using("Expected Player1 to make move", (getPlayer().equals(getPlayer2())) || ((getPlayer().equals(getPlayer1())) && (0 != (getMoves() % 2))));
+    // The static move tables and helpers below are for Three Men's Morris, used to search and tabulate
+    // positions by mask. Winning lines as board masks, a player has won if all three bits of a line are
+    // set in their mask, and ADJACENT[src] has bit dst set if a token may move from src to dst.
+    private static final int[] WINNING_LINES = TPMVariant.THREE.getMills();
+    private static final int[] ADJACENT = new int[BOARD_SIZE];
+
+    private static final int FULL_BOARD = (1 << BOARD_SIZE) - 1;
+
+    // Every possible move is numbered so that a set of moves packs into a long. Placements come
+    // first with index equal to the destination, then the slides in source, destination order.
+    public static final int MOVE_COUNT;
+    private static final int[] MOVE_SRC;
+    private static final int[] MOVE_DST;
+    // Move index by [src+1][dst], -1 if there is no such move.
+    private static final int[][] MOVE_INDEX = new int[BOARD_SIZE+1][BOARD_SIZE];
+    // Legal slides from a source by [src][empty cells mask], as a mask of move indexes.
+    private static final long[][] SLIDES = new long[BOARD_SIZE][FULL_BOARD+1];
+
+    static {
+        for (int i=0; i<BOARD_SIZE; ++i) {
+            ADJACENT[i] = TPMVariant.THREE.getAdjacent(i);
+        }
+        int count = BOARD_SIZE;
+        for (int adjacent : ADJACENT) {
+            count += Integer.bitCount(adjacent);
+        }
+        MOVE_COUNT = count;
+        MOVE_SRC = new int[count];
+        MOVE_DST = new int[count];
+        for (int[] row : MOVE_INDEX) {
+            Arrays.fill(row, -1);
+        }
+
+        int index = 0;
+        for (int dst=0; dst<BOARD_SIZE; ++dst, ++index) {
+            MOVE_SRC[index] = -1;
+            MOVE_DST[index] = dst;
+            MOVE_INDEX[0][dst] = index;
+        }
+        for (int src=0; src<BOARD_SIZE; ++src) {
+            for (int dst=0; dst<BOARD_SIZE; ++dst) {
+                if (0 != (ADJACENT[src] & (1 << dst))) {
+                    MOVE_SRC[index] = src;
+                    MOVE_DST[index] = dst;
+                    MOVE_INDEX[src+1][dst] = index++;
+                }
             }
+        }
 
-            // Sum of tokens in counters and on board should equal BOARD_WIDTH for each player.
-            int p1pt = getPlayer1Tokens();
-            int p2pt = getPlayer2Tokens();
-            for (Token t : getBoard()) {
-                if (null == t) {
-                    ;
-                } else if (Token.PLAYER1 == t) {
-                    ++p1pt;
-                } else if (Token.PLAYER2 == t) {
-                    ++p2pt;
+        for (int src=0; src<BOARD_SIZE; ++src) {
+            for (int empty=0; empty<=FULL_BOARD; ++empty) {
+                long moves = 0L;
+                for (int dst=0; dst<BOARD_SIZE; ++dst) {
+                    if (0 != (ADJACENT[src] & empty & (1 << dst))) {
+                        moves |= 1L << MOVE_INDEX[src+1][dst];
+                    }
                 }
+                SLIDES[src][empty] = moves;
+            }
+        }
+    }
+
+    public static int[] getWinningLines() {
+        return WINNING_LINES.clone();
+    }
+
+    private static int toMask(Token[] board, Token pt, int points) {
+        int mask = 0;
+        if (null != board) {
+            for (int i=0; i<Math.min(board.length, points); ++i) {
+                if (pt == board[i]) {
+                    mask |= (1 << i);
+                }
+            }
+        }
+        return mask;
+    }
+
+    // Zobrist keys per player and cell plus one for the side to move, from a fixed seed so every node agrees.
+    private static final long[][] ZOBRIST = new long[2][TPMVariant.MAX_POINTS];
+    private static final long ZOBRIST_PLAYER2_NEXT;
+    private static final long[] NO_HISTORY = new long[0];
+
+    static {
+        // SplitMix64.
+        long seed = 0x544D504D6F727269L;
+        for (int player=0; player<2; ++player) {
+            for (int i=0; i<TPMVariant.MAX_POINTS; ++i) {
+                seed += 0x9E3779B97F4A7C15L;
+                ZOBRIST[player][i] = mix(seed);
             }
-            require.using("Expected 3 tokens in play for player1", BOARD_WIDTH == p1pt);
-            require.using("Expected 3 tokens in play for player2", BOARD_WIDTH == p2pt);
-            return null;
-        });
+        }
+        seed += 0x9E3779B97F4A7C15L;
+        ZOBRIST_PLAYER2_NEXT = mix(seed);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Xor of the keys for the cells set in mask, so a move updates the hash with the cells that changed.
+    private static long zobrist(int mask, long[] keys) {
+        long hash = 0L;
+        for (int m = mask; 0 != m; m &= m - 1) {
+            hash ^= keys[Integer.numberOfTrailingZeros(m)];
+        }
+        return hash;
+    }
+
+    public static long zobrist(int player1Mask, int player2Mask, boolean player1Next) {
+        return zobrist(player1Mask, ZOBRIST[0]) ^ zobrist(player2Mask, ZOBRIST[1]) ^ (player1Next ? 0L : ZOBRIST_PLAYER2_NEXT);
+    }
+
+    // The history after a move to the position with hash, only moving phase positions are kept.
+    private static long[] nextHistory(long[] history, int player1Tokens, int player2Tokens, long hash) {
+        if ((0 != player1Tokens) || (0 != player2Tokens)) {
+            return NO_HISTORY;
+        }
+        final int length = Math.min(history.length + 1, HISTORY_LENGTH);
+        final long[] historyNew = new long[length];
+        System.arraycopy(history, history.length - (length - 1), historyNew, 0, length - 1);
+        historyNew[length - 1] = hash;
+        return historyNew;
+    }
+
+    // True if history is the next history after this state's for the position with hash, without building it.
+    private boolean isNextHistory(long[] history, int player1Tokens, int player2Tokens, long hash) {
+        if ((0 != player1Tokens) || (0 != player2Tokens)) {
+            return 0 == history.length;
+        }
+        final int length = Math.min(positionHistory.length + 1, HISTORY_LENGTH);
+        if ((history.length != length) || (history[length - 1] != hash)) {
+            return false;
+        }
+        final int offset = positionHistory.length - (length - 1);
+        for (int i=0; i<length - 1; ++i) {
+            if (history[i] != positionHistory[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Return true if the mask contains a completed line on the Three Men's Morris board.
+    public static boolean isMill(int mask) {
+        for (int line : WINNING_LINES) {
+            if ((mask & line) == line) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The player who has won, null if nobody has. In Three Men's Morris that is whoever has a line. On the
+     * larger boards the player who moved last wins once the other is down to two tokens or is blocked in.
+     */
+    public Token getWinner() {
+        if (forfeited) {
+            // The player who was next to move missed the deadline.
+            return isPlayer1Next() ? Token.PLAYER2 : Token.PLAYER1;
+        }
+        if (!variant.hasCaptures()) {
+            return variant.isMill(player1Mask) ? Token.PLAYER1 : (variant.isMill(player2Mask) ? Token.PLAYER2 : null);
+        }
+        final boolean player1Next = isPlayer1Next();
+        final int mover = player1Next ? player1Mask : player2Mask;
+        final int moverTokens = player1Next ? player1Tokens : player2Tokens;
+        final boolean beaten = ((moverTokens + Integer.bitCount(mover)) < 3) ||
+                ((0 == moverTokens) && !variant.canMove(mover, variant.getFullBoard() & ~(player1Mask | player2Mask)));
+        return beaten ? (player1Next ? Token.PLAYER2 : Token.PLAYER1) : null;
+    }
+
+    public boolean gameOver() {
+        return null != getWinner();
+    }
+
+    public static int moveSource(int moveIndex) {
+        return MOVE_SRC[moveIndex];
+    }
+
+    public static int moveDestination(int moveIndex) {
+        return MOVE_DST[moveIndex];
+    }
+
+    // Index of the move from src to dst (src -1 for a placement), or -1 if it isn't a move on this board.
+    public static int moveIndex(int src, int dst) {
+        return ((src >= -1) && (src < BOARD_SIZE) && (dst >= 0) && (dst < BOARD_SIZE)) ? MOVE_INDEX[src+1][dst] : -1;
+    }
+
+    /**
+     * Legal Three Men's Morris moves for a position given as masks, used by [hasLegalMove] and by anything
+     * searching positions without building states.
+     * @param moverMask Board mask of the player to move.
+     * @param opponentMask Board mask of the other player.
+     * @param moverTokens Tokens the player to move has off the board, non zero means placement.
+     * @return Mask with bit i set if move index i is legal, zero once either player has a line.
+     */
+    public static long legalMoveMask(int moverMask, int opponentMask, int moverTokens) {
+        if (isMill(moverMask) || isMill(opponentMask)) {
+            return 0L;
+        }
+        final int empty = ~(moverMask | opponentMask) & FULL_BOARD;
+        if (moverTokens > 0) {
+            // Placement move indexes are the destination address.
+            return empty;
+        }
+        long moves = 0L;
+        for (int m = moverMask; 0 != m; m &= m - 1) {
+            moves |= SLIDES[Integer.numberOfTrailingZeros(m)][empty];
+        }
+        return moves;
+    }
+
+    // Player1 makes the odd numbered moves, so is next when an even number of moves have been made.
+    public boolean isPlayer1Next() {
+        return 0 == (moves % 2);
+    }
+
+    public Party getNextPlayer() {
+        return isPlayer1Next() ? player1 : player2;
+    }
+
+    // True if the player who is next to move has a legal move, on any board.
+    public boolean hasLegalMove() {
+        if (GameStatus.FINISHED == gameStatus) {
+            return false;
+        }
+        // Three Men's Morris moves fit in a mask, the larger boards have more moves than fit in a long.
+        if (TPMVariant.THREE == variant) {
+            return 0L != (isPlayer1Next() ?
+                    legalMoveMask(player1Mask, player2Mask, player1Tokens) :
+                    legalMoveMask(player2Mask, player1Mask, player2Tokens));
+        }
+        return 0 != forEachLegalMove((src, dst) -> 1);
+    }
+
+    // Legal placements, src -1, or slides for the next player, as a mask of destinations.
+    private int destinations(int src) {
+        if ((GameStatus.FINISHED == gameStatus) || gameOver()) {
+            return 0;
+        }
+        final boolean player1Next = isPlayer1Next();
+        final int mover = player1Next ? player1Mask : player2Mask;
+        final int empty = variant.getFullBoard() & ~(player1Mask | player2Mask);
+        if (0 != (player1Next ? player1Tokens : player2Tokens)) {
+            return (-1 == src) ? empty : 0;
+        }
+        return (0 != (mover & variant.pointBit(src))) ? variant.destinations(src, mover, empty) : 0;
+    }
+
+    public boolean isLegalMove(int src, int dst) {
+        return 0 != (destinations(src) & variant.pointBit(dst));
+    }
+
+    /**
+     * True if the move from src to dst by the next player completes a line and so must capture one of the
+     * opponent's tokens, always false for Three Men's Morris where the line wins instead.
+     */
+    public boolean requiresCapture(int src, int dst) {
+        final boolean player1Next = isPlayer1Next();
+        final int mover = player1Next ? player1Mask : player2Mask;
+        final int opponent = player1Next ? player2Mask : player1Mask;
+        final int dstBit = variant.pointBit(dst);
+        return variant.hasCaptures() && (0 != opponent) && (0 != dstBit) &&
+                variant.inMill((mover & ~variant.pointBit(src)) | dstBit, dst);
+    }
+
+    // Opponent tokens the next player may capture.
+    public int capturableMask() {
+        return variant.capturable(isPlayer1Next() ? player2Mask : player1Mask);
+    }
+
+    /**
+     * Call op with (src, dst) for each legal move of the next player, src is -1 for a placement.
+     * Iteration stops at the first non zero result from op, which is returned, otherwise returns 0.
+     */
+    public int forEachLegalMove(IntBinaryOperator op) {
+        int result = forEachDestination(-1, op);
+        for (int s = isPlayer1Next() ? player1Mask : player2Mask; (0 == result) && (0 != s); s &= s - 1) {
+            result = forEachDestination(Integer.numberOfTrailingZeros(s), op);
+        }
+        return result;
+    }
+
+    private int forEachDestination(int src, IntBinaryOperator op) {
+        for (int d = destinations(src); 0 != d; d &= d - 1) {
+            final int result = op.applyAsInt(src, Integer.numberOfTrailingZeros(d));
+            if (0 != result) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    // All states reachable by a legal move of player, one per capture where a move completes a line, empty if it is not their turn.
+    public List<TPMState> successors(Party player) {
+        final List<TPMState> states = new ArrayList<>();
+        if (player.equals(getNextPlayer())) {
+            final int capturable = capturableMask();
+            forEachLegalMove((src, dst) -> {
+                if (requiresCapture(src, dst)) {
+                    for (int c = capturable; 0 != c; c &= c - 1) {
+                        states.add(move(player, null, src, dst, Integer.numberOfTrailingZeros(c)));
+                    }
+                } else {
+                    states.add(move(player, null, src, dst));
+                }
+                return 0;
+            });
+        }
+        return states;
+    }
+
+    // Same failure as Requirements.using, without a requireThat lambda being allocated for every check.
+    private static void require(String message, boolean expr) {
+        if (!expr) {
+            throw new IllegalArgumentException("Failed requirement: " + message);
+        }
+    }
+
+    // As above, the message is only formatted on failure.
+    private static void require(String format, int arg, boolean expr) {
+        if (!expr) {
+            require(String.format(format, arg), false);
+        }
+    }
+
+    // Make sure there are the required number of tokens in play and they are in valid positions.
+    public void checkInvariants() {
+
+        // Make sure that player that set state was supposed to.
+        // In checkMove we catch the case where player1 made the move but moved player2s token.
+        if (null != getPlayer()) {
+            // If move is odd then it was player1 that proposed the state, else player2.
+            require("Expected Player2 to make move", (getPlayer().equals(getPlayer1())) || ((getPlayer().equals(getPlayer2())) && (0 == (getMoves() % 2))));
+            require("Expected Player1 to make move", (getPlayer().equals(getPlayer2())) || ((getPlayer().equals(getPlayer1())) && (0 != (getMoves() % 2))));
+        }
+
+        // Sum of tokens in counters and on board should equal the variant's tokens for each player, less any captured.
+        final int tokens = variant.getTokens();
+        final int player1InPlay = getPlayer1Tokens() + Integer.bitCount(player1Mask);
+        final int player2InPlay = getPlayer2Tokens() + Integer.bitCount(player2Mask);
+        if (variant.hasCaptures()) {
+            require("More than %d tokens in play for player1", tokens, tokens >= player1InPlay);
+            require("More than %d tokens in play for player2", tokens, tokens >= player2InPlay);
+        } else {
+            require("Expected %d tokens in play for player1", tokens, tokens == player1InPlay);
+            require("Expected %d tokens in play for player2", tokens, tokens == player2InPlay);
+        }
+
+        require("Move hint longer than %d characters", MAX_MOVE_HINT_LENGTH, (null == moveHint) || (moveHint.length() <= MAX_MOVE_HINT_LENGTH));
     }
 
     // Make sure that new state is valid from this current state.
@@ -302,76 +764,125 @@ public class TPMState implements LinearState {
     // It is invariant to the contract, it's the rules of the game, which form a _part_ of the contract.
     public void checkMove(TPMState stateNew) {
 
-        requireThat(require -> {
-            // Make sure that the new state is the same game, must have same Id.
-            require.using("Next state is from a different game", getLinearId().equals(stateNew.getLinearId()));
-            require.using("Moves are not contiguous", ((getMoves() + 1) == stateNew.getMoves()));
-            require.using("Game is over", !gameOver());
-
-            // Work out what has changed on the board, should be one move onto or move on the board.
-            Token srcToken = null;
-            int srcAddress = -1;
-            Token dstToken = null;
-            int dstAddress = -1;
-
-            for (int i=0; i<getBoard().length; ++i) {
-                Token srcTokenTmp = getBoard()[i];
-                Token dstTokenTmp = stateNew.getBoard()[i];
-                if (Objects.equals(srcTokenTmp, dstTokenTmp)) {
-                    // Same objects on board at same address, nothing has changed.
-                    ;
-                }
-                else if (null == srcTokenTmp) {
-                    // We've found a move to. Should always find one.
-                    require.using("Only one token move to allowed", null == dstToken);
-                    dstToken = dstTokenTmp;
-                    dstAddress = i;
-                }
-                else if (null == dstTokenTmp) {
-                    // We've found a move from. Should find at most one.
-                    require.using("Only one token move from allowed", null == srcToken);
-                    srcToken = srcTokenTmp;
-                    srcAddress = i;
-                } else {
-                    // Only end up here is token has been flipped.
-                    require.using("Tokens have been swapped", false);
-                }
-            }
+        // Make sure that the new state is the same game, must have same Id.
+        require("Next state is from a different game", getLinearId().equals(stateNew.getLinearId()));
+        require("Variant has changed", variant == stateNew.variant);
+        require("Moves are not contiguous", ((getMoves() + 1) == stateNew.getMoves()));
+        require("Game is over", !gameOver() && (GameStatus.FINISHED != getGameStatus()));
+        require("Move timeout has changed", moveTimeout == stateNew.moveTimeout);
+        require("A move can't forfeit the game", !stateNew.forfeited);
 
-            // Must have moved something.
-            require.using("No destination move found", null != dstToken);
+        // Three Men's Morris moves are checked against the precomputed transitions, anything not found
+        // there goes through the step by step checks which say what is wrong with it.
+        if (!isTransition(stateNew)) {
+            checkBoardMove(stateNew);
+        }
 
-            // Make sure that the destination token is for the correct player.
-            require.using("Expected Player2 to make move", (Token.PLAYER2 == dstToken) || (stateNew.getPlayer().equals(getPlayer1())));
-            require.using("Expected Player1 to make move", (Token.PLAYER1 == dstToken) || (stateNew.getPlayer().equals(getPlayer2())));
+        // The history must be ours plus the new position, which sets the status for repetition and move limit draws.
+        require("Position history mismatch", isNextHistory(stateNew.positionHistory, stateNew.getPlayer1Tokens(), stateNew.getPlayer2Tokens(), stateNew.positionHash));
 
-            // If there are pieces to play then in initial placement phase.
-            if ((0 != getPlayer1Tokens()) || (0 != getPlayer2Tokens())) {
+        // The log only grows, by the move that the board checks above have accepted. Both here and in move()
+        // the logged move is read from the change to the board.
+        final boolean player1Moved = 0 != (stateNew.player1Mask & ~player1Mask);
+        final int mover = player1Moved ? player1Mask : player2Mask;
+        final int moverNew = player1Moved ? stateNew.player1Mask : stateNew.player2Mask;
+        final int opponent = player1Moved ? player2Mask : player1Mask;
+        final int opponentNew = player1Moved ? stateNew.player2Mask : stateNew.player1Mask;
+        require("Move log mismatch", TPMMoveLog.isAppended(moveLog, stateNew.moveLog, variant, moves,
+                lowestPoint(mover & ~moverNew), lowestPoint(moverNew & ~mover), lowestPoint(opponent & ~opponentNew)));
+        require("Game status mismatch", stateNew.getGameStatus() == stateNew.deriveGameStatus());
+    }
 
-                // Make sure boards are not identical.
-                require.using("Token moved during initial phase", null == srcToken);
+    private static int lowestPoint(int mask) {
+        return (0 == mask) ? -1 : Integer.numberOfTrailingZeros(mask);
+    }
 
-                // Make sure that the found token was taken from the correct pool.
-                require.using("Player2 token mismatch",  (Token.PLAYER2 == dstToken) || ((Token.PLAYER1 == dstToken) && ((getPlayer1Tokens()-1) == stateNew.getPlayer1Tokens())));
-                require.using("Player1 token mismatch",  (Token.PLAYER1 == dstToken) || ((Token.PLAYER2 == dstToken) && ((getPlayer2Tokens()-1) == stateNew.getPlayer2Tokens())));
+    // One table lookup for a Three Men's Morris move by the right player with tokens in hand that match the board.
+    private boolean isTransition(TPMState stateNew) {
+        final int tokens = variant.getTokens();
+        return (TPMVariant.THREE == variant) &&
+                (tokens == (player1Tokens + Integer.bitCount(player1Mask))) &&
+                (tokens == (player2Tokens + Integer.bitCount(player2Mask))) &&
+                (tokens == (stateNew.player1Tokens + Integer.bitCount(stateNew.player1Mask))) &&
+                (tokens == (stateNew.player2Tokens + Integer.bitCount(stateNew.player2Mask))) &&
+                getNextPlayer().equals(stateNew.getPlayer()) &&
+                TPMTransitions.isLegal(player1Mask, player2Mask, isPlayer1Next(), stateNew.player1Mask, stateNew.player2Mask);
+    }
 
-            } else {
+    // The board checks step by step, for the larger boards and to explain a move that isn't a transition.
+    private void checkBoardMove(TPMState stateNew) {
 
-                // Something must have moved.
-                require.using("No source token was found during play", null != srcToken);
+        // Work out what has changed on the board, should be one move onto or move on the board.
+        // Every check is a few mask operations whatever the size of the board.
+        final int occupied = player1Mask | player2Mask;
+        final int occupiedNew = stateNew.player1Mask | stateNew.player2Mask;
+        final int dstMask = occupiedNew & ~occupied;
 
-                // Make sure that the tokens are the same.
-                require.using("Tokens must be the same player", srcToken.equals(dstToken));
+        // A token that is on the board in both states must belong to the same player.
+        require("Tokens have been swapped", 0 == ((player1Mask & stateNew.player2Mask) | (player2Mask & stateNew.player1Mask)));
+        require("Only one token move to allowed", Integer.bitCount(dstMask) <= 1);
 
-                // Check for a valid move on the board.
-                require.using("Invalid move", legalMove(srcAddress, dstAddress));
-            }
-            return null;
-        });
+        // Must have moved something.
+        require("No destination move found", 0 != dstMask);
+        final Token dstToken = (0 != (stateNew.player1Mask & dstMask)) ? Token.PLAYER1 : Token.PLAYER2;
+
+        // Make sure that the destination token is for the correct player.
+        require("Expected Player2 to make move", (Token.PLAYER2 == dstToken) || (stateNew.getPlayer().equals(getPlayer1())));
+        require("Expected Player1 to make move", (Token.PLAYER1 == dstToken) || (stateNew.getPlayer().equals(getPlayer2())));
+
+        // On the larger boards an opponent's token may go with a line, otherwise every token leaving was the source.
+        final boolean player1Moved = (Token.PLAYER1 == dstToken);
+        final int mover = player1Moved ? player1Mask : player2Mask;
+        final int moverNew = player1Moved ? stateNew.player1Mask : stateNew.player2Mask;
+        final int opponent = player1Moved ? player2Mask : player1Mask;
+        final int captureMask = variant.hasCaptures() ? (opponent & ~occupiedNew) : 0;
+        final int srcMask = occupied & ~occupiedNew & ~captureMask;
+        require("Only one token move from allowed", Integer.bitCount(srcMask) <= 1);
+
+        // If there are pieces to play then in initial placement phase.
+        if ((0 != getPlayer1Tokens()) || (0 != getPlayer2Tokens())) {
+
+            // Make sure boards are not identical.
+            require("Token moved during initial phase", 0 == srcMask);
+
+            // Make sure that the found token was taken from the correct pool.
+            require("Player2 token mismatch",  (Token.PLAYER2 == dstToken) || ((getPlayer1Tokens()-1) == stateNew.getPlayer1Tokens()));
+            require("Player1 token mismatch",  (Token.PLAYER1 == dstToken) || ((getPlayer2Tokens()-1) == stateNew.getPlayer2Tokens()));
+
+        } else {
+
+            // Something must have moved.
+            require("No source token was found during play", 0 != srcMask);
+
+            // Make sure that the tokens are the same.
+            final Token srcToken = (0 != (player1Mask & srcMask)) ? Token.PLAYER1 : Token.PLAYER2;
+            require("Tokens must be the same player", srcToken == dstToken);
+
+            // Check for a valid move on the board, a slide or a flight when down to three.
+            require("Invalid move", variant.flies(mover) || variant.isAdjacent(Integer.numberOfTrailingZeros(srcMask), Integer.numberOfTrailingZeros(dstMask)));
+        }
+
+        // Only the mover's hand may change, by the one token placed.
+        final int opponentTokens = player1Moved ? getPlayer2Tokens() : getPlayer1Tokens();
+        require("Tokens in hand mismatch", opponentTokens == (player1Moved ? stateNew.getPlayer2Tokens() : stateNew.getPlayer1Tokens()));
+
+        // A line on the larger boards takes exactly one opponent token, not from a line unless they're all in lines.
+        if (variant.hasCaptures()) {
+            final boolean mill = variant.inMill(moverNew, Integer.numberOfTrailingZeros(dstMask));
+            require("Capture without a line", mill || (0 == captureMask));
+            require("Capture required", !mill || (0 == opponent) || (0 != captureMask));
+            require("Only one capture allowed", Integer.bitCount(captureMask) <= 1);
+            require("Token can't be captured", 0 == (captureMask & ~variant.capturable(opponent)));
+        }
     }
 
     // We also need to transition a state given a move. The move specifies, source, dest and player.
     public TPMState move(Party player, String moveHint, int src, int dst) {
+        return move(player, moveHint, src, dst, -1);
+    }
+
+    // As above, capture is the opponent token taken when the move completes a line on the larger boards, -1 for none.
+    public TPMState move(Party player, String moveHint, int src, int dst, int capture) {
 
         // We don't check much else here as any problems should be caught above when checking the contract.
         Token t = null;
@@ -389,33 +900,135 @@ public class TPMState implements LinearState {
             }
         }
 
-        // This is interesting, we're creating a new board and then copying elements.
-        Token[] boardOld = getBoard();
-        Token[] boardNew = new Token[boardOld.length];
-        for (int i=0; i<boardOld.length; ++i) {
-            if (i == src) {
-                boardNew[i] = null;
-            } else if (i == dst) {
-                boardNew[i] = t;
-            } else {
-                boardNew[i] = boardOld[i];
-            }
+        // Clear the source and destination then place the token, a source on the destination leaves it empty.
+        final int srcBit = variant.pointBit(src);
+        final int dstBit = variant.pointBit(dst) & ~srcBit;
+        int player1MaskNew = player1Mask & ~(srcBit | dstBit);
+        int player2MaskNew = player2Mask & ~(srcBit | dstBit);
+        if (Token.PLAYER1 == t) {
+            player1MaskNew |= dstBit;
+            player2MaskNew &= ~variant.pointBit(capture);
+        } else if (Token.PLAYER2 == t) {
+            player2MaskNew |= dstBit;
+            player1MaskNew &= ~variant.pointBit(capture);
         }
 
+        // Only the cells that changed and the side to move contribute to the new hash.
+        final long positionHashNew = positionHash
+                ^ zobrist(player1Mask ^ player1MaskNew, ZOBRIST[0])
+                ^ zobrist(player2Mask ^ player2MaskNew, ZOBRIST[1])
+                ^ ZOBRIST_PLAYER2_NEXT;
+
+        final int captureNew = (0 != variant.pointBit(capture)) ? capture : -1;
         return new TPMState(
+            variant,
             player1TokensNew,
             player2TokensNew,
-            boardNew,
+            player1MaskNew,
+            player2MaskNew,
             player,
             getPlayer1(),
             getPlayer2(),
             getMoves()+1,
-            moveHint,
+            boundHint(moveHint),
             getLinearId(),
-            src,dst
+            positionHashNew,
+            nextHistory(positionHistory, player1TokensNew, player2TokensNew, positionHashNew),
+            (Token.PLAYER2 == t) ?
+                TPMMoveLog.append(moveLog, variant, getMoves(), lowestPoint(player2Mask & ~player2MaskNew), lowestPoint(player2MaskNew & ~player2Mask), lowestPoint(player1Mask & ~player1MaskNew)) :
+                TPMMoveLog.append(moveLog, variant, getMoves(), lowestPoint(player1Mask & ~player1MaskNew), lowestPoint(player1MaskNew & ~player1Mask), lowestPoint(player2Mask & ~player2MaskNew)),
+            src,dst,captureNew,
+            moveTimeout,
+            0L,
+            false
         );
     }
 
+    /**
+     * A copy of this state with the next move due by deadline, for a timed game. The flows set it from the
+     * transaction's time window, see [TPMContract].
+     */
+    public TPMState withDeadline(Instant deadline) {
+        return new TPMState(variant, player1Tokens, player2Tokens, player1Mask, player2Mask, player, player1, player2, moves,
+                moveHint, linearId, positionHash, positionHistory, moveLog, lastSrc, lastDst, lastCapture,
+                moveTimeout, (null == deadline) ? 0L : deadline.toEpochMilli(), forfeited);
+    }
+
+    // This game finished by forfeit, lost by the player who is next to move. The board is left as it was.
+    public TPMState forfeit() {
+        return new TPMState(variant, player1Tokens, player2Tokens, player1Mask, player2Mask, player, player1, player2, moves,
+                moveHint, linearId, positionHash, positionHistory, moveLog, lastSrc, lastDst, lastCapture,
+                moveTimeout, 0L, true);
+    }
+
+    // The player owed the next move, who may claim the game once the deadline passes.
+    public Party getClaimant() {
+        return isPlayer1Next() ? player2 : player1;
+    }
+
+    // Make sure that stateNew is this game forfeited and nothing else has changed.
+    public void checkForfeit(TPMState stateNew) {
+        require("Next state is from a different game", getLinearId().equals(stateNew.getLinearId()));
+        require("Game has no deadline", 0L != deadline);
+        require("Game is over", !gameOver() && (GameStatus.FINISHED != getGameStatus()));
+        require("Forfeit should finish the game", stateNew.forfeited && (0L == stateNew.deadline));
+        require("Forfeit can't change the board", (variant == stateNew.variant) && (moves == stateNew.moves) &&
+                (player1Mask == stateNew.player1Mask) && (player2Mask == stateNew.player2Mask) &&
+                (player1Tokens == stateNew.player1Tokens) && (player2Tokens == stateNew.player2Tokens) &&
+                Arrays.equals(positionHistory, stateNew.positionHistory) && Arrays.equals(moveLog, stateNew.moveLog));
+        require("Move timeout has changed", moveTimeout == stateNew.moveTimeout);
+        require("Game status mismatch", stateNew.getGameStatus() == stateNew.deriveGameStatus());
+    }
+
+    private static String boundHint(String hint) {
+        return ((null == hint) || (hint.length() <= MAX_MOVE_HINT_LENGTH)) ? hint : hint.substring(0, MAX_MOVE_HINT_LENGTH);
+    }
+
+    /*
+     * Rebuild a state from the compact encoding, see [TPMStateSerializer]. Player1 makes the odd moves so
+     * the player follows from the move count, and the hash, status and status hint from the board.
+     */
+    static TPMState fromCompact(TPMVariant variant,
+                                int player1Tokens,
+                                int player2Tokens,
+                                int player1Mask,
+                                int player2Mask,
+                                Party player1,
+                                Party player2,
+                                int moves,
+                                String moveHint,
+                                UniqueIdentifier linearId,
+                                long[] positionHistory,
+                                byte[] moveLog,
+                                int src,
+                                int dst,
+                                int capture,
+                                long moveTimeout,
+                                long deadline,
+                                boolean forfeited) {
+        final Party player = (0 == moves) ? null : ((0 != (moves % 2)) ? player1 : player2);
+        final int p1 = player1Mask & variant.getFullBoard();
+        final int p2 = player2Mask & variant.getFullBoard() & ~p1;
+        return new TPMState(variant, player1Tokens, player2Tokens, p1, p2, player, player1, player2, moves, moveHint, linearId,
+                zobrist(p1, p2, (0 == (moves % 2))),
+                (null == positionHistory) ? NO_HISTORY : positionHistory,
+                (null == moveLog) ? TPMMoveLog.EMPTY : moveLog,
+                src, dst, capture, moveTimeout, deadline, forfeited);
+    }
+
+    // The last move, kept for the status hint. All -1 for a new game or a state read from the original encoding.
+    int getLastSrc() {
+        return lastSrc;
+    }
+
+    int getLastDst() {
+        return lastDst;
+    }
+
+    int getLastCapture() {
+        return lastCapture;
+    }
+
     @Override public UniqueIdentifier getLinearId() {
         return linearId;
     }
@@ -424,8 +1037,30 @@ public class TPMState implements LinearState {
         return Arrays.asList(player1, player2);
     }
 
+    // The columns of TPMSchemaV1 so the vault can find games without reading the state.
+    @Override public PersistentState generateMappedObject(MappedSchema schema) {
+        if (schema instanceof TPMSchemaV1) {
+            return new TPMSchemaV1.PersistentTPM(
+                    getGameId(),
+                    linearId.getId().toString(),
+                    variant.name(),
+                    player1.getName().toString(),
+                    player2.getName().toString(),
+                    (null == player) ? null : player.getName().toString(),
+                    getNextPlayer().getName().toString(),
+                    moves,
+                    gameStatus.name());
+        } else {
+            throw new IllegalArgumentException("Unrecognised schema " + schema);
+        }
+    }
+
+    @Override public Iterable<MappedSchema> supportedSchemas() {
+        return Collections.singletonList(new TPMSchemaV1());
+    }
+
     @Override
     public String toString() {
-        return String.format("player=%s, player1=%s, player2=%s, gameStatus=%s, move=%s)", player, player1, player2, gameStatus, moves);
+        return String.format("player=%s, player1=%s, player2=%s, variant=%s, gameStatus=%s, move=%s)", player, player1, player2, variant, gameStatus, moves);
     }
 }
\ No newline at end of file
@@ -0,0 +1,207 @@
+package com.assignment1.state;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SerializationCustomSerializer;
+
+import java.util.UUID;
+
+/**
+ * Compact AMQP encoding of [TPMState], used for every state sent between nodes and recorded in the vault.
+ * Corda finds the serializer by scanning the CorDapp, it travels in the contracts jar so any verifying node has it.
+ *
+ * The board and both hands are packed into one long, the two masks of up to 24 points and a hand of up to
+ * 31 tokens each. The last move is packed into an int. The player making the move follows from the move
+ * count, and the game status and status hint are derived from the board on read rather than stored. The
+ * move log, added after the first release of the proxy, is a nullable field on the end, as are the move
+ * timeout, deadline and forfeit of a timed game which are left null for an untimed one.
+ *
+ * Evolution: states recorded before this serializer were written field by field from the
+ * @ConstructorForDeserialization constructor of [TPMState], which is kept so they are still read by Corda's
+ * evolution serializer, TPMStateSerializerTests reads such a state with this serializer registered. Changes to
+ * [Proxy] add nullable fields on the end, VERSION is bumped when the meaning of an existing field changes and
+ * fromProxy decodes each version it knows.
+ */
+public class TPMStateSerializer implements SerializationCustomSerializer<TPMState, TPMStateSerializer.Proxy> {
+
+    public static final int VERSION = 1;
+
+    // Bit layout of the packed board.
+    private static final int PLAYER2_MASK_SHIFT = TPMVariant.MAX_POINTS;
+    private static final int PLAYER1_TOKENS_SHIFT = 2 * TPMVariant.MAX_POINTS;
+    private static final int PLAYER2_TOKENS_SHIFT = PLAYER1_TOKENS_SHIFT + 5;
+    private static final long POINTS_MASK = (1L << TPMVariant.MAX_POINTS) - 1;
+    private static final long TOKENS_MASK = 0x1F;
+
+    @CordaSerializable
+    public static class Proxy {
+        private final int version;
+        private final int variant;
+        private final long board;
+        private final int lastMove;
+        private final int moves;
+        private final Party player1;
+        private final Party player2;
+        private final String moveHint;
+        private final String gameId;
+        private final UUID id;
+        private final long[] positionHistory;
+        private final byte[] moveLog;
+        private final Long moveTimeout;
+        private final Long deadline;
+        private final Boolean forfeited;
+
+        public Proxy(int version, int variant, long board, int lastMove, int moves, Party player1, Party player2,
+                     String moveHint, String gameId, UUID id, long[] positionHistory, byte[] moveLog,
+                     Long moveTimeout, Long deadline, Boolean forfeited) {
+            this.version = version;
+            this.variant = variant;
+            this.board = board;
+            this.lastMove = lastMove;
+            this.moves = moves;
+            this.player1 = player1;
+            this.player2 = player2;
+            this.moveHint = moveHint;
+            this.gameId = gameId;
+            this.id = id;
+            this.positionHistory = positionHistory;
+            this.moveLog = moveLog;
+            this.moveTimeout = moveTimeout;
+            this.deadline = deadline;
+            this.forfeited = forfeited;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public int getVariant() {
+            return variant;
+        }
+
+        public long getBoard() {
+            return board;
+        }
+
+        public int getLastMove() {
+            return lastMove;
+        }
+
+        public int getMoves() {
+            return moves;
+        }
+
+        public Party getPlayer1() {
+            return player1;
+        }
+
+        public Party getPlayer2() {
+            return player2;
+        }
+
+        public String getMoveHint() {
+            return moveHint;
+        }
+
+        public String getGameId() {
+            return gameId;
+        }
+
+        public UUID getId() {
+            return id;
+        }
+
+        public long[] getPositionHistory() {
+            return positionHistory;
+        }
+
+        public byte[] getMoveLog() {
+            return moveLog;
+        }
+
+        public Long getMoveTimeout() {
+            return moveTimeout;
+        }
+
+        public Long getDeadline() {
+            return deadline;
+        }
+
+        public Boolean getForfeited() {
+            return forfeited;
+        }
+    }
+
+    // Player masks and tokens in hand in one long.
+    private static long packBoard(int player1Mask, int player2Mask, int player1Tokens, int player2Tokens) {
+        return (player1Mask & POINTS_MASK)
+                | ((player2Mask & POINTS_MASK) << PLAYER2_MASK_SHIFT)
+                | ((player1Tokens & TOKENS_MASK) << PLAYER1_TOKENS_SHIFT)
+                | ((player2Tokens & TOKENS_MASK) << PLAYER2_TOKENS_SHIFT);
+    }
+
+    // Points of the last move stored one up so that -1, none, packs as zero.
+    private static int packMove(int src, int dst, int capture) {
+        return ((src + 1) & 0xFF) | (((dst + 1) & 0xFF) << 8) | (((capture + 1) & 0xFF) << 16);
+    }
+
+    private static int unpackPoint(int lastMove, int shift) {
+        return ((lastMove >>> shift) & 0xFF) - 1;
+    }
+
+    private static long orZero(Long value) {
+        return (null == value) ? 0L : value;
+    }
+
+    @Override
+    public Proxy toProxy(TPMState state) {
+        return new Proxy(
+                VERSION,
+                state.getVariant().ordinal(),
+                packBoard(state.getPlayer1Mask(), state.getPlayer2Mask(), state.getPlayer1Tokens(), state.getPlayer2Tokens()),
+                packMove(state.getLastSrc(), state.getLastDst(), state.getLastCapture()),
+                state.getMoves(),
+                state.getPlayer1(),
+                state.getPlayer2(),
+                state.getMoveHint(),
+                state.getLinearId().getExternalId(),
+                state.getLinearId().getId(),
+                state.getPositionHistory(),
+                state.getMoveLog(),
+                (null == state.getMoveTimeout()) ? null : state.getMoveTimeout().toMillis(),
+                (null == state.getDeadline()) ? null : state.getDeadline().toEpochMilli(),
+                state.isForfeited() ? Boolean.TRUE : null);
+    }
+
+    @Override
+    public TPMState fromProxy(Proxy proxy) {
+        if ((proxy.getVersion() < 1) || (proxy.getVersion() > VERSION)) {
+            throw new IllegalArgumentException("Unsupported TPMState encoding version " + proxy.getVersion());
+        }
+        final TPMVariant[] variants = TPMVariant.values();
+        if ((proxy.getVariant() < 0) || (proxy.getVariant() >= variants.length)) {
+            throw new IllegalArgumentException("Unknown TPMState variant " + proxy.getVariant());
+        }
+        final long board = proxy.getBoard();
+        return TPMState.fromCompact(
+                variants[proxy.getVariant()],
+                (int) ((board >>> PLAYER1_TOKENS_SHIFT) & TOKENS_MASK),
+                (int) ((board >>> PLAYER2_TOKENS_SHIFT) & TOKENS_MASK),
+                (int) (board & POINTS_MASK),
+                (int) ((board >>> PLAYER2_MASK_SHIFT) & POINTS_MASK),
+                proxy.getPlayer1(),
+                proxy.getPlayer2(),
+                proxy.getMoves(),
+                proxy.getMoveHint(),
+                new UniqueIdentifier(proxy.getGameId(), proxy.getId()),
+                proxy.getPositionHistory(),
+                proxy.getMoveLog(),
+                unpackPoint(proxy.getLastMove(), 0),
+                unpackPoint(proxy.getLastMove(), 8),
+                unpackPoint(proxy.getLastMove(), 16),
+                orZero(proxy.getMoveTimeout()),
+                orZero(proxy.getDeadline()),
+                Boolean.TRUE.equals(proxy.getForfeited()));
+    }
+}
@@ -0,0 +1,96 @@
+package com.assignment1.state;
+
+/**
+ * Every legal Three Men's Morris transition, precomputed when the class is loaded.
+ *
+ * A position is packed into a code from the two board masks read as base 3 digits and the side to move,
+ * tokens in hand follow from the tokens on the board. LEGAL[code] is the mask of move indexes (see
+ * [TPMState.moveIndex]) that are legal from the position, so checking a move is a mask diff to find the
+ * move index and one array lookup. The table is 3^9 * 2 longs, about 300KB.
+ */
+public final class TPMTransitions {
+
+    // Boards are indexed in base 3, each cell is empty, player1 or player2.
+    private static final int BOARDS = 19683; // 3^9
+    public static final int POSITIONS = 2 * BOARDS;
+
+    // Value of a mask read as base 3 digits.
+    private static final int[] BASE3 = new int[1 << TPMState.BOARD_SIZE];
+    private static final long[] LEGAL = new long[POSITIONS];
+
+    static {
+        for (int mask=0; mask<BASE3.length; ++mask) {
+            int value = 0;
+            for (int i=TPMState.BOARD_SIZE-1; i>=0; --i) {
+                value = value*3 + ((mask >> i) & 1);
+            }
+            BASE3[mask] = value;
+        }
+
+        final int tokens = TPMVariant.THREE.getTokens();
+        for (int p1=0; p1<BASE3.length; ++p1) {
+            if (Integer.bitCount(p1) > tokens) {
+                continue;
+            }
+            for (int p2=0; p2<BASE3.length; ++p2) {
+                if ((0 != (p1 & p2)) || (Integer.bitCount(p2) > tokens)) {
+                    continue;
+                }
+                for (int side=0; side<2; ++side) {
+                    final boolean player1ToMove = (0 == side);
+                    if (reachable(p1, p2, player1ToMove)) {
+                        final int mover = player1ToMove ? p1 : p2;
+                        final int opponent = player1ToMove ? p2 : p1;
+                        LEGAL[index(p1, p2, player1ToMove)] = TPMState.legalMoveMask(mover, opponent, tokens - Integer.bitCount(mover));
+                    }
+                }
+            }
+        }
+    }
+
+    private TPMTransitions() {
+    }
+
+    // Player1 places first, so during placement they have the same number of tokens down as player2 when
+    // it is their turn and one more when it is not. Once all are placed either may be next.
+    private static boolean reachable(int p1, int p2, boolean player1ToMove) {
+        final int c1 = Integer.bitCount(p1);
+        final int c2 = Integer.bitCount(p2);
+        final int tokens = TPMVariant.THREE.getTokens();
+        if ((tokens == c1) && (tokens == c2)) {
+            return true;
+        }
+        return player1ToMove ? (c1 == c2) : (c1 == (c2 + 1));
+    }
+
+    /**
+     * The packed position code, also used to index the tablebase.
+     */
+    public static int index(int player1Mask, int player2Mask, boolean player1ToMove) {
+        return 2 * (BASE3[player1Mask] + 2 * BASE3[player2Mask]) + (player1ToMove ? 0 : 1);
+    }
+
+    // Mask of move indexes legal from the position, zero if there are none or the position can't be reached.
+    public static long legalMoves(int player1Mask, int player2Mask, boolean player1ToMove) {
+        return LEGAL[index(player1Mask, player2Mask, player1ToMove)];
+    }
+
+    /**
+     * True if going from the first board to the second is a legal move for the side to move. The
+     * opponent's tokens must not change, the mover's must change by one placement or one slide.
+     */
+    public static boolean isLegal(int player1Mask, int player2Mask, boolean player1ToMove, int player1MaskNew, int player2MaskNew) {
+        final int mover = player1ToMove ? player1Mask : player2Mask;
+        final int moverNew = player1ToMove ? player1MaskNew : player2MaskNew;
+        if ((player1ToMove ? player2Mask : player1Mask) != (player1ToMove ? player2MaskNew : player1MaskNew)) {
+            return false;
+        }
+        final int src = mover & ~moverNew;
+        final int dst = moverNew & ~mover;
+        if ((1 != Integer.bitCount(dst)) || (Integer.bitCount(src) > 1)) {
+            return false;
+        }
+        final int move = TPMState.moveIndex((0 == src) ? -1 : Integer.numberOfTrailingZeros(src), Integer.numberOfTrailingZeros(dst));
+        return (move >= 0) && (0L != (LEGAL[index(player1Mask, player2Mask, player1ToMove)] & (1L << move)));
+    }
+}
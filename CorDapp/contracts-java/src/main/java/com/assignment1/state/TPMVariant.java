@@ -0,0 +1,225 @@
+package com.assignment1.state;
+
+import net.corda.core.serialization.CordaSerializable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Morris boards a game can be played on, chosen when the game is created.
+ *
+ * Each variant is a set of precomputed tables over board masks, bit i set for a token at point i:
+ * ADJACENT[i] is the mask of points a token at i may slide to, MILLS are the lines of three and
+ * MILLS_THROUGH[i] the lines passing through point i. Rules are then a handful of mask operations
+ * per move whatever the size of the board.
+ *
+ * Three Men's Morris is the 3x3 grid with diagonals, addressed row by row from the top left, a line
+ * wins the game. The larger boards are concentric squares, ring 0 outside, with eight points per ring
+ * numbered clockwise from the top left corner, so point r*8+k is position k on ring r. On these a
+ * line captures an opponent's token, and a player is beaten when down to two tokens or blocked in.
+ */
+@CordaSerializable
+public enum TPMVariant {
+    // Encoded by ordinal in TPMStateSerializer, new boards go on the end.
+    THREE("Three Men's Morris", 3, 9, false, false, 100,
+        new int[] {
+            0x01A, // 0 -> 1 3 4
+            0x015, // 1 -> 0 2 4
+            0x032, // 2 -> 1 4 5
+            0x051, // 3 -> 0 4 6
+            0x1EF, // 4 -> all but 4
+            0x114, // 5 -> 2 4 8
+            0x098, // 6 -> 3 4 7
+            0x150, // 7 -> 4 6 8
+            0x0B0  // 8 -> 4 5 7
+        },
+        new int[] {
+            0x007, // 0 1 2
+            0x038, // 3 4 5
+            0x1C0, // 6 7 8
+            0x049, // 0 3 6
+            0x092, // 1 4 7
+            0x124, // 2 5 8
+            0x111, // 0 4 8
+            0x054  // 2 4 6
+        }),
+    SIX("Six Men's Morris", 6, 16, true, false, 150, ringAdjacency(2, false), ringMills(2, false)),
+    NINE("Nine Men's Morris", 9, 24, true, true, 200, ringAdjacency(3, false), ringMills(3, false)),
+    TWELVE("Twelve Men's Morris", 12, 24, true, true, 200, ringAdjacency(3, true), ringMills(3, true));
+
+    // The largest board, board masks for every variant fit in an int.
+    public static final int MAX_POINTS = 24;
+
+    private static final int RING_POINTS = 8;
+
+    private final String title;
+    private final int tokens;
+    private final int points;
+    private final boolean captures;
+    private final boolean flying;
+    private final int moveLimit;
+    private final int fullBoard;
+    private final int[] adjacent;
+    private final int[] mills;
+    private final int[][] millsThrough;
+
+    TPMVariant(String title, int tokens, int points, boolean captures, boolean flying, int moveLimit, int[] adjacent, int[] mills) {
+        this.title = title;
+        this.tokens = tokens;
+        this.points = points;
+        this.captures = captures;
+        this.flying = flying;
+        this.moveLimit = moveLimit;
+        this.fullBoard = (1 << points) - 1;
+        this.adjacent = adjacent;
+        this.mills = mills;
+        this.millsThrough = new int[points][];
+        for (int i=0; i<points; ++i) {
+            final List<Integer> through = new ArrayList<>();
+            for (int mill : mills) {
+                if (0 != (mill & (1 << i))) {
+                    through.add(mill);
+                }
+            }
+            this.millsThrough[i] = through.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    // Position k on ring r, wrapping round the ring.
+    private static int point(int ring, int k) {
+        return ring*RING_POINTS + (k % RING_POINTS);
+    }
+
+    // Neighbours round each ring, plus the midpoints between rings and, with diagonals, the corners too.
+    private static int[] ringAdjacency(int rings, boolean diagonals) {
+        final int[] adjacent = new int[rings*RING_POINTS];
+        for (int r=0; r<rings; ++r) {
+            for (int k=0; k<RING_POINTS; ++k) {
+                adjacent[point(r, k)] |= (1 << point(r, k + 1)) | (1 << point(r, k + RING_POINTS - 1));
+                if ((r + 1 < rings) && (diagonals || (1 == (k % 2)))) {
+                    adjacent[point(r, k)] |= 1 << point(r + 1, k);
+                    adjacent[point(r + 1, k)] |= 1 << point(r, k);
+                }
+            }
+        }
+        return adjacent;
+    }
+
+    // The four sides of each ring, plus lines across three rings through the midpoints and, with diagonals, the corners.
+    private static int[] ringMills(int rings, boolean diagonals) {
+        final List<Integer> mills = new ArrayList<>();
+        for (int r=0; r<rings; ++r) {
+            for (int k=0; k<RING_POINTS; k+=2) {
+                mills.add((1 << point(r, k)) | (1 << point(r, k + 1)) | (1 << point(r, k + 2)));
+            }
+        }
+        if (3 == rings) {
+            for (int k=0; k<RING_POINTS; ++k) {
+                if (diagonals || (1 == (k % 2))) {
+                    mills.add((1 << point(0, k)) | (1 << point(1, k)) | (1 << point(2, k)));
+                }
+            }
+        }
+        return mills.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    // Tokens each player starts with in hand.
+    public int getTokens() {
+        return tokens;
+    }
+
+    public int getPoints() {
+        return points;
+    }
+
+    // True if a line captures an opponent's token, otherwise a line wins the game.
+    public boolean hasCaptures() {
+        return captures;
+    }
+
+    public int getMoveLimit() {
+        return moveLimit;
+    }
+
+    public int getFullBoard() {
+        return fullBoard;
+    }
+
+    // Mask with the single bit for the point set, zero if the point is off the board.
+    public int pointBit(int point) {
+        return ((point >= 0) && (point < points)) ? (1 << point) : 0;
+    }
+
+    public boolean isAdjacent(int src, int dst) {
+        return (0 != pointBit(src)) && (0 != (adjacent[src] & pointBit(dst)));
+    }
+
+    public int getAdjacent(int point) {
+        return adjacent[point];
+    }
+
+    public int[] getMills() {
+        return mills.clone();
+    }
+
+    // A player down to three tokens may move to any empty point on boards that allow flying.
+    public boolean flies(int mask) {
+        return flying && (3 == Integer.bitCount(mask));
+    }
+
+    // Points a token at src may move to, given the player's mask and the empty points.
+    public int destinations(int src, int mask, int empty) {
+        return flies(mask) ? empty : (adjacent[src] & empty);
+    }
+
+    // Return true if the mask contains a completed line.
+    public boolean isMill(int mask) {
+        for (int mill : mills) {
+            if ((mask & mill) == mill) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Return true if the token at point is part of a completed line in mask, only the lines through the point are checked.
+    public boolean inMill(int mask, int point) {
+        for (int mill : millsThrough[point]) {
+            if ((mask & mill) == mill) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Tokens of mask that may be captured, those not in a line unless every token is in one.
+    public int capturable(int mask) {
+        int inMills = 0;
+        for (int mill : mills) {
+            if ((mask & mill) == mill) {
+                inMills |= mill;
+            }
+        }
+        return (inMills == mask) ? mask : (mask & ~inMills);
+    }
+
+    // True if the player with mask has a slide, or a flight, to an empty point.
+    public boolean canMove(int mask, int empty) {
+        if (0 == empty) {
+            return false;
+        }
+        if (flies(mask)) {
+            return true;
+        }
+        for (int m = mask; 0 != m; m &= m - 1) {
+            if (0 != (adjacent[Integer.numberOfTrailingZeros(m)] & empty)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
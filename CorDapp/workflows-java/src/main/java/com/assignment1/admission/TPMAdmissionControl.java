@@ -0,0 +1,195 @@
+package com.assignment1.admission;
+
+import com.assignment1.index.TPMGameIndex;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.flows.StateMachineRunId;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for the acceptors, so one counterparty can't fill this node's flow workers and
+ * checkpoints with games or moves.
+ *
+ * Each counterparty may have up to admission.maxOpenGames unfinished games with us, counting creates
+ * being signed, the unfinished games come from the [TPMGameIndex]. It may also have up to
+ * admission.maxInFlight creates or moves being signed at once. Anything over either limit is rejected at
+ * once, nothing waits, so a busy counterparty's flow ends with a [TPMAdmissionException] before anything is
+ * received or signed and it can try again later.
+ *
+ * Admitted signings are held by flow id, only in memory. [leave] undoes an [enter] once however often it is
+ * called, and does nothing for a flow it never admitted, such as one restored from a checkpoint after the
+ * node restarted.
+ *
+ * Configured in the CorDapp config, for example:
+ * <pre>
+ * admission.maxOpenGames = 1000
+ * admission.maxInFlight = 16
+ * </pre>
+ */
+@CordaService
+public class TPMAdmissionControl extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(TPMAdmissionControl.class);
+
+    private final AppServiceHub serviceHub;
+    private final int maxOpenGames;
+    private final int maxInFlight;
+    private final Map<Party, Counterparty> counterparties = new ConcurrentHashMap<>();
+    private final Map<StateMachineRunId, Admitted> flows = new ConcurrentHashMap<>();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedGames = new AtomicLong();
+    private final AtomicLong rejectedBusy = new AtomicLong();
+
+    // What one counterparty has being signed with us.
+    private static class Counterparty {
+        private final AtomicInteger creating = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    // One admitted signing, what leave gives back.
+    private static class Admitted {
+        private final Counterparty counterparty;
+        private final int creates;
+
+        private Admitted(Counterparty counterparty, int creates) {
+            this.counterparty = counterparty;
+            this.creates = creates;
+        }
+    }
+
+    public TPMAdmissionControl(AppServiceHub serviceHub) {
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.maxOpenGames = config.exists("admission.maxOpenGames") ? config.getInt("admission.maxOpenGames") : 1000;
+        this.maxInFlight = config.exists("admission.maxInFlight") ? config.getInt("admission.maxInFlight") : 16;
+        this.serviceHub = serviceHub;
+
+        logger.info(String.format("TPMAdmissionControl allows %d open games and %d signings in flight per counterparty",
+                maxOpenGames, maxInFlight));
+    }
+
+    private Counterparty counterparty(Party party) {
+        return counterparties.computeIfAbsent(party, p -> new Counterparty());
+    }
+
+    private static boolean tryIncrement(AtomicInteger counter, int max) {
+        return tryAdd(counter, 1, max);
+    }
+
+    private static boolean tryAdd(AtomicInteger counter, int amount, int max) {
+        int current;
+        do {
+            current = counter.get();
+            if (current + amount > max) {
+                return false;
+            }
+        } while (!counter.compareAndSet(current, current + amount));
+        return true;
+    }
+
+    /**
+     * Called by an acceptor before it signs, returns if the signing is admitted and throws
+     * [TPMAdmissionException] if it is not. An admitted flow must call [leave] with its id once it is done,
+     * whether or not it succeeded. A flow already admitted is admitted again without counting twice.
+     */
+    public void enter(StateMachineRunId flowId, Party counterparty, boolean create) throws TPMAdmissionException {
+        enter(flowId, counterparty, create ? 1 : 0);
+    }
+
+    // As above for a signing that creates a number of games at once.
+    public void enter(StateMachineRunId flowId, Party counterparty, int creates) throws TPMAdmissionException {
+        if (flows.containsKey(flowId)) {
+            return;
+        }
+        final Counterparty state = counterparty(counterparty);
+
+        if (creates > 0) {
+            final int openGames = serviceHub.cordaService(TPMGameIndex.class).openGames(counterparty);
+            if (!tryAdd(state.creating, creates, maxOpenGames - openGames)) {
+                rejectedGames.incrementAndGet();
+                throw new TPMAdmissionException(String.format("Too many open games with %s, the limit is %d", counterparty, maxOpenGames));
+            }
+        }
+
+        if (!tryIncrement(state.inFlight, maxInFlight)) {
+            state.creating.addAndGet(-creates);
+            rejectedBusy.incrementAndGet();
+            throw new TPMAdmissionException(String.format("Too busy with %s, %d signings in flight", counterparty, maxInFlight));
+        }
+        flows.put(flowId, new Admitted(state, creates));
+        admitted.incrementAndGet();
+    }
+
+    public void leave(StateMachineRunId flowId) {
+        final Admitted entry = flows.remove(flowId);
+        if (null == entry) {
+            return;
+        }
+        entry.counterparty.inFlight.decrementAndGet();
+        entry.counterparty.creating.addAndGet(-entry.creates);
+    }
+
+    public Metrics getMetrics() {
+        int openGames = serviceHub.cordaService(TPMGameIndex.class).openGames();
+        int inFlight = 0;
+        for (Counterparty state : counterparties.values()) {
+            openGames += state.creating.get();
+            inFlight += state.inFlight.get();
+        }
+        return new Metrics(counterparties.size(), openGames, inFlight, admitted.get(), rejectedGames.get(), rejectedBusy.get());
+    }
+
+    /**
+     * Snapshot of the admission counters over all counterparties, returned over RPC by [TPMFlowMetrics].
+     */
+    @CordaSerializable
+    public static class Metrics {
+        private final int counterparties;
+        private final int openGames;
+        private final int inFlight;
+        private final long admitted;
+        private final long rejectedGames;
+        private final long rejectedBusy;
+
+        public Metrics(int counterparties,
+                       int openGames,
+                       int inFlight,
+                       long admitted,
+                       long rejectedGames,
+                       long rejectedBusy) {
+            this.counterparties = counterparties;
+            this.openGames = openGames;
+            this.inFlight = inFlight;
+            this.admitted = admitted;
+            this.rejectedGames = rejectedGames;
+            this.rejectedBusy = rejectedBusy;
+        }
+
+        public int getCounterparties() { return counterparties; }
+
+        public int getOpenGames() { return openGames; }
+
+        public int getInFlight() { return inFlight; }
+
+        public long getAdmitted() { return admitted; }
+
+        public long getRejectedGames() { return rejectedGames; }
+
+        public long getRejectedBusy() { return rejectedBusy; }
+
+        @Override
+        public String toString() {
+            return String.format("counterparties=%d, openGames=%d, inFlight=%d, admitted=%d, rejectedGames=%d, rejectedBusy=%d",
+                    counterparties, openGames, inFlight, admitted, rejectedGames, rejectedBusy);
+        }
+    }
+}
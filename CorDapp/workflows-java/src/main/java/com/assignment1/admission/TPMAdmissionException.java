@@ -0,0 +1,14 @@
+package com.assignment1.admission;
+
+import net.corda.core.flows.FlowException;
+
+/**
+ * Thrown by an acceptor that won't take a game or move from a counterparty over its limits, it ends the
+ * counterparty's flow with this message. Nothing has been signed, so the game or move can be tried again.
+ */
+public class TPMAdmissionException extends FlowException {
+
+    public TPMAdmissionException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,216 @@
+package com.assignment1.archive;
+
+import com.assignment1.flow.TPMFlowArchive;
+import com.assignment1.schema.TPMQueries;
+import com.assignment1.state.TPMState;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Node service that archives finished games and compacts consumed game states on a retention policy, see
+ * [TPMFlowArchive].
+ *
+ * Every interval the finished games recorded longer ago than finishedRetentionMillis are archived to their
+ * results, up to batchSize a run in one transaction per notary. Player1 archives a game, player2 only once it
+ * is twice as old, so the two nodes don't race for the same game. Then up to batchSize states consumed longer
+ * ago than consumedRetentionMillis are compacted, their rows moved to tpm_states_archive. batchSize is at most
+ * MAX_BATCH_SIZE, as a run's games for one notary are archived in one transaction. A run is skipped while the
+ * flows of the last are still going. It is off by default, in the CorDapp config for example:
+ * <pre>
+ * archive.enabled = true
+ * archive.intervalMillis = 60000
+ * archive.finishedRetentionMillis = 86400000
+ * archive.consumedRetentionMillis = 86400000
+ * archive.batchSize = 500
+ * </pre>
+ */
+@CordaService
+public class TPMArchiveService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(TPMArchiveService.class);
+
+    public static final int MAX_BATCH_SIZE = 500;
+
+    private final AppServiceHub serviceHub;
+    private final Party me;
+    private final boolean enabled;
+    private final long finishedRetentionMillis;
+    private final long consumedRetentionMillis;
+    private final int batchSize;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong archiveFailed = new AtomicLong();
+    private final AtomicLong compacted = new AtomicLong();
+
+    public TPMArchiveService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.me = serviceHub.getMyInfo().getLegalIdentities().get(0);
+
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.enabled = config.exists("archive.enabled") && config.getBoolean("archive.enabled");
+        final long intervalMillis = config.exists("archive.intervalMillis") ? config.getLong("archive.intervalMillis") : 60000L;
+        this.finishedRetentionMillis = config.exists("archive.finishedRetentionMillis") ? config.getLong("archive.finishedRetentionMillis") : 86400000L;
+        this.consumedRetentionMillis = config.exists("archive.consumedRetentionMillis") ? config.getLong("archive.consumedRetentionMillis") : 86400000L;
+        this.batchSize = Math.min(config.exists("archive.batchSize") ? config.getInt("archive.batchSize") : MAX_BATCH_SIZE, MAX_BATCH_SIZE);
+
+        if (!enabled) {
+            this.scheduler = null;
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::run, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+        logger.info(String.format("TPMArchiveService archiving every %dms, %d games a run", intervalMillis, batchSize));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Runs one archive and compaction pass, called by the scheduler every interval.
+     */
+    public void run() {
+        if (0 != inFlight.get()) {
+            return;
+        }
+        try {
+            runs.incrementAndGet();
+            final Instant now = serviceHub.getClock().instant();
+            final Instant finishedCutoff = now.minusMillis(finishedRetentionMillis);
+            final Instant player2Cutoff = now.minusMillis(2 * finishedRetentionMillis);
+
+            final Vault.Page<TPMState> page = serviceHub.getVaultService().queryBy(
+                    TPMState.class, TPMQueries.finishedBefore(finishedCutoff), new PageSpecification(DEFAULT_PAGE_NUM, batchSize));
+            final Map<Party, List<String>> byNotary = new LinkedHashMap<>();
+            for (int i=0; i<page.getStates().size(); ++i) {
+                final StateAndRef<TPMState> stateAndRef = page.getStates().get(i);
+                final TPMState state = stateAndRef.getState().getData();
+                // Games watched for an observer aren't ours to archive.
+                final boolean ours = me.equals(state.getPlayer1()) ||
+                        (me.equals(state.getPlayer2()) && page.getStatesMetadata().get(i).getRecordedTime().isBefore(player2Cutoff));
+                if (ours) {
+                    byNotary.computeIfAbsent(stateAndRef.getState().getNotary(), notary -> new ArrayList<>())
+                            .add(state.getGameId());
+                }
+            }
+
+            for (List<String> gameIds : byNotary.values()) {
+                inFlight.incrementAndGet();
+                serviceHub.startFlow(new TPMFlowArchive.Initiator(gameIds))
+                        .getReturnValue()
+                        .then(future -> {
+                            archived(gameIds, future);
+                            return null;
+                        });
+            }
+
+            inFlight.incrementAndGet();
+            serviceHub.startFlow(new TPMFlowArchive.Compact(now.minusMillis(consumedRetentionMillis), batchSize))
+                    .getReturnValue()
+                    .then(future -> {
+                        compacted(future);
+                        return null;
+                    });
+        } catch (RuntimeException e) {
+            logger.error("Archive run failed", e);
+        }
+    }
+
+    private void archived(List<String> gameIds, CordaFuture<TPMFlowArchive.Result> future) {
+        try {
+            for (TPMFlowArchive.Archived game : future.get().getGames()) {
+                if (game.getSuccess()) {
+                    archived.incrementAndGet();
+                } else {
+                    archiveFailed.incrementAndGet();
+                    logger.info(String.format("Game %s not archived : %s", game.getGameId(), game.getError()));
+                }
+            }
+        } catch (Exception e) {
+            archiveFailed.addAndGet(gameIds.size());
+            logger.warn(String.format("Failed to archive %d games : %s", gameIds.size(), e.getMessage()));
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void compacted(CordaFuture<Integer> future) {
+        try {
+            compacted.addAndGet(future.get());
+        } catch (Exception e) {
+            logger.warn(String.format("Failed to compact consumed states : %s", e.getMessage()));
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public Metrics getMetrics() {
+        return new Metrics(enabled, inFlight.get(), runs.get(), archived.get(), archiveFailed.get(), compacted.get());
+    }
+
+    /**
+     * Snapshot of the archive counters, returned over RPC by [TPMFlowMetrics].
+     */
+    @CordaSerializable
+    public static class Metrics {
+        private final boolean enabled;
+        private final int inFlight;
+        private final long runs;
+        private final long archived;
+        private final long archiveFailed;
+        private final long compacted;
+
+        public Metrics(boolean enabled, int inFlight, long runs, long archived, long archiveFailed, long compacted) {
+            this.enabled = enabled;
+            this.inFlight = inFlight;
+            this.runs = runs;
+            this.archived = archived;
+            this.archiveFailed = archiveFailed;
+            this.compacted = compacted;
+        }
+
+        public boolean getEnabled() { return enabled; }
+
+        public int getInFlight() { return inFlight; }
+
+        public long getRuns() { return runs; }
+
+        public long getArchived() { return archived; }
+
+        public long getArchiveFailed() { return archiveFailed; }
+
+        public long getCompacted() { return compacted; }
+
+        @Override
+        public String toString() {
+            return String.format("enabled=%s, inFlight=%d, runs=%d, archived=%d, archiveFailed=%d, compacted=%d",
+                    enabled, inFlight, runs, archived, archiveFailed, compacted);
+        }
+    }
+}
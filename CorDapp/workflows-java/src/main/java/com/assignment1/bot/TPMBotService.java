@@ -0,0 +1,336 @@
+package com.assignment1.bot;
+
+import com.assignment1.flow.TPMFlowMove;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import com.assignment1.tablebase.TPMTablebase;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node side bot that plays every Three Men's Morris game where it is this node's turn.
+ *
+ * The service follows the game states from [TPMGameIndex]. When it is our move a worker picks one, from the
+ * tablebase if one is configured otherwise with [TPMSearch] under the per move time budget, and starts
+ * [TPMFlowMove.Initiator]. Searches run on a fixed pool of workers and the number of move flows in flight
+ * is capped, so a node can hold many games without flooding its flow workers. A game that can't start a
+ * move because the cap is reached is tried again shortly, no worker waits on it. A failed move is retried
+ * with exponential backoff up to bot.maxRetries times, then left until the game's state changes, and
+ * games past their deadline are left to be forfeited.
+ *
+ * Disabled unless enabled in the CorDapp config, for example:
+ * <pre>
+ * bot.enabled = true
+ * bot.workers = 4
+ * bot.maxInFlight = 64
+ * bot.moveTimeMillis = 100
+ * bot.maxRetries = 5
+ * bot.retryMillis = 500
+ * bot.tablebase = "/path/to/tpm.tablebase"
+ * </pre>
+ */
+@CordaService
+public class TPMBotService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(TPMBotService.class);
+
+    private static final String MOVE_HINT = "TPMBotService";
+    private static final int TABLE_BITS = 16;
+    private static final long SATURATED_MILLIS = 10L;
+    private static final long MAX_RETRY_MILLIS = 30_000L;
+
+    private final AppServiceHub serviceHub;
+    private final boolean enabled;
+    private final long moveTimeMillis;
+    private final int maxRetries;
+    private final long retryMillis;
+    private final Party me;
+    private final ScheduledExecutorService workers;
+    private final Semaphore inFlight;
+    private final TPMTablebase tablebase;
+    private final ThreadLocal<TPMSearch> search = ThreadLocal.withInitial(() -> new TPMSearch(TABLE_BITS));
+
+    // Latest state of each game we're playing, the games with a move being searched or in flight, and the
+    // failed moves against each game's latest state.
+    private final Map<String, StateAndRef<TPMState>> games = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> busy = new ConcurrentHashMap<>();
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+
+    private final long started = System.nanoTime();
+    private final AtomicLong movesStarted = new AtomicLong();
+    private final AtomicLong movesCompleted = new AtomicLong();
+    private final AtomicLong movesFailed = new AtomicLong();
+    private final AtomicLong movesExpired = new AtomicLong();
+    private final AtomicLong searchDepthTotal = new AtomicLong();
+    private final AtomicLong searchNodesTotal = new AtomicLong();
+    private final AtomicLong searchCount = new AtomicLong();
+    private final AtomicLong tablebaseHits = new AtomicLong();
+
+    public TPMBotService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.enabled = config.exists("bot.enabled") && config.getBoolean("bot.enabled");
+        this.moveTimeMillis = config.exists("bot.moveTimeMillis") ? config.getLong("bot.moveTimeMillis") : 100L;
+        this.maxRetries = config.exists("bot.maxRetries") ? config.getInt("bot.maxRetries") : 5;
+        this.retryMillis = config.exists("bot.retryMillis") ? config.getLong("bot.retryMillis") : 500L;
+        this.me = serviceHub.getMyInfo().getLegalIdentities().get(0);
+
+        if (!enabled) {
+            this.workers = null;
+            this.inFlight = null;
+            this.tablebase = null;
+            return;
+        }
+
+        final int workerCount = config.exists("bot.workers") ? config.getInt("bot.workers") : Runtime.getRuntime().availableProcessors();
+        final int maxInFlight = config.exists("bot.maxInFlight") ? config.getInt("bot.maxInFlight") : 64;
+        this.workers = Executors.newScheduledThreadPool(workerCount);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.tablebase = config.exists("bot.tablebase") ? openTablebase(config.getString("bot.tablebase")) : null;
+
+        // Pick up games waiting on us from before we started, then follow new states as they are recorded.
+        TPMGameIndex.listen(serviceHub, workers, this::offer);
+
+        logger.info(String.format("TPMBotService playing as %s with %d workers, %d moves in flight, %dms per move, tablebase %s",
+                me, workerCount, maxInFlight, moveTimeMillis, (null != tablebase) ? "loaded" : "not used"));
+    }
+
+    private static TPMTablebase openTablebase(String path) {
+        try {
+            return TPMTablebase.open(Paths.get(path));
+        } catch (IOException e) {
+            logger.warn(String.format("Failed to open tablebase %s, searching instead", path), e);
+            return null;
+        }
+    }
+
+    // Note the latest state of a game and queue a move if it is ours to make, a new state resets the retries.
+    private void offer(StateAndRef<TPMState> stateAndRef) {
+        final TPMState state = stateAndRef.getState().getData();
+        final String gameId = state.getGameId();
+        // The search and tablebase only know the Three Men's Morris board.
+        if (TPMVariant.THREE != state.getVariant()) {
+            return;
+        }
+        if (TPMState.GameStatus.FINISHED == state.getGameStatus()) {
+            games.remove(gameId);
+            failures.remove(gameId);
+            return;
+        }
+        // The index hands over states in the order they were recorded, the last is the latest.
+        final StateAndRef<TPMState> previous = games.put(gameId, stateAndRef);
+        if ((null == previous) || !previous.getRef().equals(stateAndRef.getRef())) {
+            failures.remove(gameId);
+        }
+        queue(gameId, 0L);
+    }
+
+    // Queue a move for the game after the delay if it is ours to make and nothing is in flight.
+    private void queue(String gameId, long delayMillis) {
+        final StateAndRef<TPMState> stateAndRef = games.get(gameId);
+        final TPMState state = (null == stateAndRef) ? null : stateAndRef.getState().getData();
+        if ((null != state) && me.equals(state.getNextPlayer()) && state.hasLegalMove() && (null == busy.putIfAbsent(gameId, Boolean.TRUE))) {
+            workers.schedule(() -> play(gameId), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void play(String gameId) {
+        boolean keepBusy = false;
+        try {
+            final StateAndRef<TPMState> stateAndRef = games.get(gameId);
+            final TPMState state = (null == stateAndRef) ? null : stateAndRef.getState().getData();
+            if ((null == state) || !me.equals(state.getNextPlayer())) {
+                return;
+            }
+
+            // Too late to move, the game is left for the forfeit service.
+            final Instant deadline = state.getDeadline();
+            if ((null != deadline) && serviceHub.getClock().instant().isAfter(deadline)) {
+                movesExpired.incrementAndGet();
+                return;
+            }
+
+            // Saturated, try again shortly rather than hold a worker.
+            if (!inFlight.tryAcquire()) {
+                workers.schedule(() -> play(gameId), SATURATED_MILLIS, TimeUnit.MILLISECONDS);
+                keepBusy = true;
+                return;
+            }
+            try {
+                final int move = chooseMove(state);
+                if (move >= 0) {
+                    serviceHub.startFlow(new TPMFlowMove.Initiator(gameId, MOVE_HINT, TPMState.moveSource(move), TPMState.moveDestination(move)))
+                            .getReturnValue()
+                            .then(future -> {
+                                completed(gameId, future);
+                                return null;
+                            });
+                    keepBusy = true;
+                    movesStarted.incrementAndGet();
+                }
+            } finally {
+                if (!keepBusy) {
+                    inFlight.release();
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failed to start move for game %s", gameId), e);
+        } finally {
+            if (!keepBusy) {
+                busy.remove(gameId);
+            }
+        }
+    }
+
+    private void completed(String gameId, CordaFuture<SignedTransaction> future) {
+        inFlight.release();
+        long delayMillis = 0L;
+        try {
+            future.get();
+            movesCompleted.incrementAndGet();
+            failures.remove(gameId);
+        } catch (InterruptedException | ExecutionException e) {
+            movesFailed.incrementAndGet();
+            final int failed = failures.merge(gameId, 1, Integer::sum);
+            if (failed > maxRetries) {
+                logger.warn(String.format("Move failed for game %s %d times, waiting for the game to change : %s", gameId, failed, e.getMessage()));
+                busy.remove(gameId);
+                return;
+            }
+            delayMillis = Math.min(retryMillis << (failed - 1), MAX_RETRY_MILLIS);
+            logger.warn(String.format("Move failed for game %s, retrying in %dms : %s", gameId, delayMillis, e.getMessage()));
+        }
+        busy.remove(gameId);
+
+        // An update may have arrived while we were busy with this game.
+        queue(gameId, delayMillis);
+    }
+
+    private int chooseMove(TPMState state) {
+        if (null != tablebase) {
+            final int move = tablebase.bestMove(state);
+            if (move >= 0) {
+                tablebaseHits.incrementAndGet();
+                return move;
+            }
+        }
+        final TPMSearch.Result result = search.get().search(state, moveTimeMillis, TPMSearch.MAX_PLY);
+        searchCount.incrementAndGet();
+        searchDepthTotal.addAndGet(result.getDepth());
+        searchNodesTotal.addAndGet(result.getNodes());
+        return result.getMove();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Metrics getMetrics() {
+        final double seconds = Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+        final long searches = searchCount.get();
+        return new Metrics(
+                enabled,
+                games.size(),
+                busy.size(),
+                movesStarted.get(),
+                movesCompleted.get(),
+                movesFailed.get(),
+                movesExpired.get(),
+                movesCompleted.get() / seconds,
+                (0 == searches) ? 0.0 : ((double)searchDepthTotal.get()) / searches,
+                (0 == searches) ? 0L : searchNodesTotal.get() / searches,
+                tablebaseHits.get());
+    }
+
+    /**
+     * Snapshot of the bot's counters, returned over RPC by [TPMFlowMetrics].
+     */
+    @CordaSerializable
+    public static class Metrics {
+        private final boolean enabled;
+        private final int activeGames;
+        private final int busyGames;
+        private final long movesStarted;
+        private final long movesCompleted;
+        private final long movesFailed;
+        private final long movesExpired;
+        private final double movesPerSecond;
+        private final double averageSearchDepth;
+        private final long averageSearchNodes;
+        private final long tablebaseHits;
+
+        public Metrics(boolean enabled,
+                       int activeGames,
+                       int busyGames,
+                       long movesStarted,
+                       long movesCompleted,
+                       long movesFailed,
+                       long movesExpired,
+                       double movesPerSecond,
+                       double averageSearchDepth,
+                       long averageSearchNodes,
+                       long tablebaseHits) {
+            this.enabled = enabled;
+            this.activeGames = activeGames;
+            this.busyGames = busyGames;
+            this.movesStarted = movesStarted;
+            this.movesCompleted = movesCompleted;
+            this.movesFailed = movesFailed;
+            this.movesExpired = movesExpired;
+            this.movesPerSecond = movesPerSecond;
+            this.averageSearchDepth = averageSearchDepth;
+            this.averageSearchNodes = averageSearchNodes;
+            this.tablebaseHits = tablebaseHits;
+        }
+
+        public boolean getEnabled() { return enabled; }
+
+        public int getActiveGames() { return activeGames; }
+
+        public int getBusyGames() { return busyGames; }
+
+        public long getMovesStarted() { return movesStarted; }
+
+        public long getMovesCompleted() { return movesCompleted; }
+
+        public long getMovesFailed() { return movesFailed; }
+
+        public long getMovesExpired() { return movesExpired; }
+
+        public double getMovesPerSecond() { return movesPerSecond; }
+
+        public double getAverageSearchDepth() { return averageSearchDepth; }
+
+        public long getAverageSearchNodes() { return averageSearchNodes; }
+
+        public long getTablebaseHits() { return tablebaseHits; }
+
+        @Override
+        public String toString() {
+            return String.format("enabled=%s, activeGames=%d, busyGames=%d, movesStarted=%d, movesCompleted=%d, movesFailed=%d, movesExpired=%d, movesPerSecond=%.2f, averageSearchDepth=%.2f, averageSearchNodes=%d, tablebaseHits=%d",
+                    enabled, activeGames, busyGames, movesStarted, movesCompleted, movesFailed, movesExpired, movesPerSecond, averageSearchDepth, averageSearchNodes, tablebaseHits);
+        }
+    }
+}
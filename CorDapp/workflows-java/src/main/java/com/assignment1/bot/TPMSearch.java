@@ -0,0 +1,263 @@
+package com.assignment1.bot;
+
+import com.assignment1.state.TPMState;
+
+/**
+ * Iterative deepening alpha-beta (negamax) search over Three Person's Morris (TPM) positions.
+ *
+ * Positions are the board masks and tokens in hand for the player to move and their opponent, so the
+ * search never builds a [TPMState]. A transposition table keyed on the exact position is kept between
+ * searches, so an instance should be used by one thread at a time.
+ */
+public class TPMSearch {
+
+    // Scores within MAX_PLY of WIN are forced wins, WIN - ply for a win at ply.
+    public static final int WIN = 10000;
+    public static final int MAX_PLY = 64;
+
+    private static final int EXACT = 0;
+    private static final int LOWER = 1;
+    private static final int UPPER = 2;
+
+    private static final int[] LINES = TPMState.getWinningLines();
+    private static final int CENTRE = 1 << 4;
+
+    // Transposition table, open addressed on the position key. Entries pack move, depth, flag and score.
+    private final long[] keys;
+    private final long[] entries;
+    private final int tableMask;
+
+    private long deadline;
+    private boolean aborted;
+    private long nodes;
+    private int rootMove;
+
+    /**
+     * Result of a search, the best move index for the player to move (-1 if none), its score and the
+     * deepest completed iteration.
+     */
+    public static class Result {
+        private final int move;
+        private final int score;
+        private final int depth;
+        private final long nodes;
+
+        Result(int move, int score, int depth, long nodes) {
+            this.move = move;
+            this.score = score;
+            this.depth = depth;
+            this.nodes = nodes;
+        }
+
+        public int getMove() { return move; }
+
+        public int getScore() { return score; }
+
+        public int getDepth() { return depth; }
+
+        public long getNodes() { return nodes; }
+    }
+
+    /**
+     * @param tableBits The transposition table has 2^tableBits entries.
+     */
+    public TPMSearch(int tableBits) {
+        this.keys = new long[1 << tableBits];
+        this.entries = new long[1 << tableBits];
+        this.tableMask = (1 << tableBits) - 1;
+    }
+
+    public Result search(TPMState state, long budgetMillis, int maxDepth) {
+        final boolean player1ToMove = state.isPlayer1Next();
+        return search(
+                player1ToMove ? state.getPlayer1Mask() : state.getPlayer2Mask(),
+                player1ToMove ? state.getPlayer2Mask() : state.getPlayer1Mask(),
+                player1ToMove ? state.getPlayer1Tokens() : state.getPlayer2Tokens(),
+                player1ToMove ? state.getPlayer2Tokens() : state.getPlayer1Tokens(),
+                budgetMillis, maxDepth);
+    }
+
+    /**
+     * Search deeper one ply at a time until the time budget runs out, a forced result is found or
+     * maxDepth is reached. The move from the last completed iteration is returned.
+     */
+    public Result search(int mover, int opponent, int moverTokens, int opponentTokens, long budgetMillis, int maxDepth) {
+        deadline = System.nanoTime() + budgetMillis * 1000000L;
+        aborted = false;
+        nodes = 0;
+        rootMove = -1;
+
+        int bestMove = -1;
+        int bestScore = 0;
+        int depthDone = 0;
+        for (int depth=1; depth<=Math.min(maxDepth, MAX_PLY); ++depth) {
+            final int score = negamax(mover, opponent, moverTokens, opponentTokens, depth, 0, -WIN-1, WIN+1);
+            if (aborted) {
+                break;
+            }
+            bestMove = rootMove;
+            bestScore = score;
+            depthDone = depth;
+            if (Math.abs(score) >= (WIN - MAX_PLY)) {
+                break;
+            }
+        }
+
+        // Always have a move to play, even if the first iteration didn't complete.
+        if (-1 == bestMove) {
+            final long moves = TPMState.legalMoveMask(mover, opponent, moverTokens);
+            bestMove = (0L == moves) ? -1 : Long.numberOfTrailingZeros(moves);
+        }
+        return new Result(bestMove, bestScore, depthDone, nodes);
+    }
+
+    private int negamax(int mover, int opponent, int moverTokens, int opponentTokens, int depth, int ply, int alpha, int beta) {
+        if ((0 == (++nodes & 0x3FF)) && (System.nanoTime() > deadline)) {
+            aborted = true;
+        }
+        if (aborted) {
+            return 0;
+        }
+
+        // The opponent's last move completed a line, or we're blocked in.
+        if (TPMState.isMill(opponent)) {
+            return -(WIN - ply);
+        }
+        final long moves = TPMState.legalMoveMask(mover, opponent, moverTokens);
+        if (0L == moves) {
+            return -(WIN - ply);
+        }
+        if ((0 == depth) || (ply >= MAX_PLY)) {
+            return evaluate(mover, opponent);
+        }
+
+        final long key = key(mover, opponent, moverTokens, opponentTokens);
+        final long entry = probe(key);
+        int ttMove = -1;
+        if (0L != entry) {
+            ttMove = entryMove(entry);
+            // Never cut off at the root, the root move must come from this iteration.
+            if ((ply > 0) && (entryDepth(entry) >= depth)) {
+                final int score = fromTable(entryScore(entry), ply);
+                final int flag = entryFlag(entry);
+                if ((EXACT == flag) || ((LOWER == flag) && (score >= beta)) || ((UPPER == flag) && (score <= alpha))) {
+                    return score;
+                }
+            }
+        }
+
+        final int alphaIn = alpha;
+        int best = -WIN - 1;
+        int bestMove = -1;
+
+        // Try the table move first, it is usually the cutoff.
+        long remaining = moves;
+        if ((ttMove >= 0) && (0L != (moves & (1L << ttMove)))) {
+            remaining &= ~(1L << ttMove);
+        } else {
+            ttMove = -1;
+        }
+        for (int next = ttMove; (next >= 0) || (0L != remaining); ) {
+            final int index;
+            if (next >= 0) {
+                index = next;
+                next = -1;
+            } else {
+                index = Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+            }
+
+            final int src = TPMState.moveSource(index);
+            final int moverNew = (mover & ~((src < 0) ? 0 : (1 << src))) | (1 << TPMState.moveDestination(index));
+            final int score = -negamax(opponent, moverNew, opponentTokens, (src < 0) ? moverTokens - 1 : moverTokens, depth - 1, ply + 1, -beta, -alpha);
+            if (aborted) {
+                return 0;
+            }
+            if (score > best) {
+                best = score;
+                bestMove = index;
+                if (0 == ply) {
+                    rootMove = index;
+                }
+            }
+            if (score > alpha) {
+                alpha = score;
+            }
+            if (alpha >= beta) {
+                break;
+            }
+        }
+
+        final int flag = (best <= alphaIn) ? UPPER : ((best >= beta) ? LOWER : EXACT);
+        store(key, bestMove, depth, flag, toTable(best, ply));
+        return best;
+    }
+
+    // Open lines, two of a player's tokens with the third cell empty, and holding the centre.
+    private static int evaluate(int mover, int opponent) {
+        int score = 0;
+        for (int line : LINES) {
+            final int m = Integer.bitCount(mover & line);
+            final int o = Integer.bitCount(opponent & line);
+            if ((2 == m) && (0 == o)) {
+                score += 10;
+            } else if ((2 == o) && (0 == m)) {
+                score -= 10;
+            }
+        }
+        if (0 != (mover & CENTRE)) {
+            score += 3;
+        } else if (0 != (opponent & CENTRE)) {
+            score -= 3;
+        }
+        return score;
+    }
+
+    // Forced win scores are stored relative to the position, not the root.
+    private static int toTable(int score, int ply) {
+        return (score >= (WIN - MAX_PLY)) ? score + ply : ((score <= -(WIN - MAX_PLY)) ? score - ply : score);
+    }
+
+    private static int fromTable(int score, int ply) {
+        return (score >= (WIN - MAX_PLY)) ? score - ply : ((score <= -(WIN - MAX_PLY)) ? score + ply : score);
+    }
+
+    private static long key(int mover, int opponent, int moverTokens, int opponentTokens) {
+        // Never zero, zero marks an empty table slot.
+        return (1L << 62) | ((long)mover) | ((long)opponent << 24) | ((long)moverTokens << 48) | ((long)opponentTokens << 54);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h >>> 32) & tableMask;
+    }
+
+    private long probe(long key) {
+        final int slot = slot(key);
+        return (keys[slot] == key) ? entries[slot] : 0L;
+    }
+
+    // Always replace, the table is small and positions repeat a lot between moves.
+    private void store(long key, int move, int depth, int flag, int score) {
+        final int slot = slot(key);
+        keys[slot] = key;
+        entries[slot] = (1L << 62) | (((long)(move + 1) & 0xFF) << 40) | ((long)(depth & 0xFF) << 32) | ((long)flag << 30) | ((long)score & 0x3FFFFFFFL);
+    }
+
+    private static int entryMove(long entry) {
+        return (int)((entry >>> 40) & 0xFF) - 1;
+    }
+
+    private static int entryDepth(long entry) {
+        return (int)((entry >>> 32) & 0xFF);
+    }
+
+    private static int entryFlag(long entry) {
+        return (int)((entry >>> 30) & 0x3);
+    }
+
+    private static int entryScore(long entry) {
+        // Sign extend the 30 bit score.
+        return ((int)(entry << 2)) >> 2;
+    }
+}
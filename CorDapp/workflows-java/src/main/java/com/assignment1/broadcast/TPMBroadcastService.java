@@ -0,0 +1,405 @@
+package com.assignment1.broadcast;
+
+import com.assignment1.flow.TPMFlowBroadcast;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.state.TPMState;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node service that streams games to observer nodes, see [TPMFlowBroadcast]. It plays both sides.
+ *
+ * On a player's node it holds the observers registered for its games. Each game transaction the node records
+ * is queued for the game's observers as the vault update comes in, so the player's flow never waits on them.
+ * Every window one [TPMFlowBroadcast.Send] is started for each observer with up to maxBatch transactions,
+ * only one at a time for an observer so they arrive in order. A batch that fails is queued again, after
+ * maxAttempts failures in a row the observer's queue is dropped. An observer registered before the first
+ * move records the game's transactions, one registered mid-game is sent them as snapshots instead, which
+ * are checked for signatures but not resolved.
+ *
+ * On an observer's node it holds the (player, gameId) pairs it agreed to observe, and declines more once it
+ * watches maxWatched unfinished games. A transaction sent by a player must be for one of them and only hold
+ * games that player plays, anything else is rejected. It keeps the latest state of each game it agreed to,
+ * from the vault and from snapshots, other games recorded alongside them are ignored.
+ *
+ * The observers, the agreements and the snapshots are only kept in memory. After either node restarts the
+ * player sends nothing more and the observer rejects what it is sent, the player registers the observer
+ * again, and [TPMFlowBroadcast.CatchUp] fetches the latest snapshot. In the CorDapp config for example:
+ * <pre>
+ * broadcast.windowMillis = 200
+ * broadcast.maxBatch = 100
+ * broadcast.maxAttempts = 3
+ * broadcast.maxWatched = 1000
+ * </pre>
+ */
+@CordaService
+public class TPMBroadcastService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(TPMBroadcastService.class);
+
+    private final AppServiceHub serviceHub;
+    private final Party me;
+    private final int maxBatch;
+    private final int maxAttempts;
+    private final int maxWatched;
+    // gameId to its observers, true if the observer records the game on its ledger.
+    private final Map<String, Map<Party, Boolean>> observers = new ConcurrentHashMap<>();
+    private final Map<Party, Outbox> outboxes = new ConcurrentHashMap<>();
+    // The latest state of each game this node watches.
+    private final Map<String, TPMState> spectated = new ConcurrentHashMap<>();
+    // gameId to the players this node agreed to observe it for, until it finishes.
+    private final Map<String, Set<Party>> agreed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong registered = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong declined = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong windows = new AtomicLong();
+
+    // The transactions waiting for one observer, guarded by itself.
+    private static class Outbox {
+        private final Set<SecureHash> ledger = new LinkedHashSet<>();
+        private final Set<SecureHash> snapshots = new LinkedHashSet<>();
+        private boolean inFlight;
+        private int failures;
+    }
+
+    public TPMBroadcastService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.me = serviceHub.getMyInfo().getLegalIdentities().get(0);
+
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        final long windowMillis = config.exists("broadcast.windowMillis") ? config.getLong("broadcast.windowMillis") : 200L;
+        this.maxBatch = config.exists("broadcast.maxBatch") ? config.getInt("broadcast.maxBatch") : 100;
+        this.maxAttempts = config.exists("broadcast.maxAttempts") ? config.getInt("broadcast.maxAttempts") : 3;
+        this.maxWatched = config.exists("broadcast.maxWatched") ? config.getInt("broadcast.maxWatched") : 1000;
+
+        // Games already recorded go to no observer and are watched for no player, as none are registered yet.
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        TPMGameIndex.listen(serviceHub, scheduler, this::recorded);
+        scheduler.scheduleWithFixedDelay(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+
+        logger.info(String.format("TPMBroadcastService sending every %dms", windowMillis));
+    }
+
+    private boolean plays(TPMState state) {
+        return me.equals(state.getPlayer1()) || me.equals(state.getPlayer2());
+    }
+
+    // A game state was recorded, forward it if we play the game and watch it if we agreed to.
+    private void recorded(StateAndRef<TPMState> stateAndRef) {
+        final TPMState state = stateAndRef.getState().getData();
+        if (!plays(state)) {
+            if (hasAgreed(state.getPlayer1(), state.getGameId()) || hasAgreed(state.getPlayer2(), state.getGameId())) {
+                spectate(state);
+            }
+            return;
+        }
+        final Map<Party, Boolean> watching = observers.get(state.getGameId());
+        if (null == watching) {
+            return;
+        }
+        watching.forEach((observer, ledger) -> queue(observer, stateAndRef.getRef().getTxhash(), ledger));
+        // Nothing follows the last move.
+        if (TPMState.GameStatus.FINISHED == state.getGameStatus()) {
+            observers.remove(state.getGameId());
+        }
+    }
+
+    // An observer records the game on its ledger only if it has no moves yet.
+    public boolean isFromTheStart(StateAndRef<TPMState> current) {
+        return 0 == current.getState().getData().getMoves();
+    }
+
+    /**
+     * Register an observer for a game this node plays, called by [TPMFlowBroadcast.Register] once the observer
+     * has agreed. The game's current transaction is queued for it at once.
+     */
+    public void register(StateAndRef<TPMState> current, Party observer, boolean ledger) {
+        observers.computeIfAbsent(current.getState().getData().getGameId(), gameId -> new ConcurrentHashMap<>()).put(observer, ledger);
+        registered.incrementAndGet();
+        queue(observer, current.getRef().getTxhash(), ledger);
+    }
+
+    public boolean isObserver(String gameId, Party party) {
+        final Map<Party, Boolean> watching = observers.get(gameId);
+        return (null != watching) && watching.containsKey(party);
+    }
+
+    private void queue(Party observer, SecureHash txId, boolean ledger) {
+        final Outbox outbox = outboxes.computeIfAbsent(observer, party -> new Outbox());
+        synchronized (outbox) {
+            // A batch transaction can hold games sent both ways, recording it covers the snapshot.
+            final boolean added = ledger ?
+                    (outbox.ledger.add(txId) && !outbox.snapshots.remove(txId)) :
+                    (!outbox.ledger.contains(txId) && outbox.snapshots.add(txId));
+            if (added) {
+                queued.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Runs one window, starting a send for each observer with transactions waiting and none in flight.
+     * Called by the scheduler every window.
+     */
+    public void flush() {
+        try {
+            windows.incrementAndGet();
+            for (Map.Entry<Party, Outbox> entry : outboxes.entrySet()) {
+                final Party observer = entry.getKey();
+                final Outbox outbox = entry.getValue();
+                final List<SecureHash> ledger = new ArrayList<>();
+                final List<SecureHash> snapshots = new ArrayList<>();
+                synchronized (outbox) {
+                    if (outbox.inFlight) {
+                        continue;
+                    }
+                    take(outbox.ledger, ledger, maxBatch);
+                    take(outbox.snapshots, snapshots, maxBatch - ledger.size());
+                    if (ledger.isEmpty() && snapshots.isEmpty()) {
+                        continue;
+                    }
+                    outbox.inFlight = true;
+                }
+                serviceHub.startFlow(new TPMFlowBroadcast.Send(observer, ledger, snapshots))
+                        .getReturnValue()
+                        .then(future -> {
+                            finished(observer, outbox, ledger, snapshots, future);
+                            return null;
+                        });
+            }
+        } catch (RuntimeException e) {
+            logger.error("Broadcast window failed", e);
+        }
+    }
+
+    private static void take(Set<SecureHash> from, List<SecureHash> to, int limit) {
+        for (Iterator<SecureHash> it = from.iterator(); it.hasNext() && (to.size() < limit); ) {
+            to.add(it.next());
+            it.remove();
+        }
+    }
+
+    // The order of a retried batch doesn't matter, the observer resolves what it's missing or keeps the later state.
+    private void finished(Party observer, Outbox outbox, List<SecureHash> ledger, List<SecureHash> snapshots, CordaFuture<Integer> future) {
+        final int size = ledger.size() + snapshots.size();
+        synchronized (outbox) {
+            try {
+                future.get();
+                sent.addAndGet(size);
+                batches.incrementAndGet();
+                outbox.failures = 0;
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                if (++outbox.failures < maxAttempts) {
+                    logger.info(String.format("Failed to send %d transactions to %s, will retry : %s", size, observer, e.getMessage()));
+                    outbox.ledger.addAll(ledger);
+                    outbox.snapshots.addAll(snapshots);
+                } else {
+                    final int lost = size + outbox.ledger.size() + outbox.snapshots.size();
+                    logger.warn(String.format("Dropped %d transactions for %s : %s", lost, observer, e.getMessage()));
+                    dropped.addAndGet(lost);
+                    outbox.ledger.clear();
+                    outbox.snapshots.clear();
+                    outbox.failures = 0;
+                }
+            } finally {
+                outbox.inFlight = false;
+            }
+        }
+    }
+
+    /**
+     * Agree to observe a game for a player, called on the observer by [TPMFlowBroadcast.RegisterAcceptor] and
+     * [TPMFlowBroadcast.CatchUp]. Returns false if this node already watches maxWatched games.
+     */
+    public boolean agree(Party player, String gameId) {
+        synchronized (agreed) {
+            if (!agreed.containsKey(gameId) && (agreed.size() >= maxWatched)) {
+                declined.incrementAndGet();
+                logger.info(String.format("Declined to observe %s for %s, watching %d games", gameId, player, maxWatched));
+                return false;
+            }
+            agreed.computeIfAbsent(gameId, id -> ConcurrentHashMap.newKeySet()).add(player);
+        }
+        return true;
+    }
+
+    public boolean hasAgreed(Party player, String gameId) {
+        final Set<Party> players = agreed.get(gameId);
+        return (null != players) && players.contains(player);
+    }
+
+    /**
+     * Check a transaction a player sent this node as an observer, every game in it must be played by the
+     * player and one at least agreed to with them. Throws IllegalArgumentException if not.
+     */
+    public void checkSent(Party player, SignedTransaction stx) {
+        final List<TPMState> games = stx.getTx().outputsOfType(TPMState.class);
+        final boolean played = games.stream().allMatch(state -> player.equals(state.getPlayer1()) || player.equals(state.getPlayer2()));
+        final boolean observed = games.stream().anyMatch(state -> hasAgreed(player, state.getGameId()));
+        if (!played || !observed) {
+            rejected.incrementAndGet();
+            throw new IllegalArgumentException(played ?
+                    String.format("Not an observer of any game in %s for %s", stx.getId(), player) :
+                    String.format("Games in %s should be played by %s", stx.getId(), player));
+        }
+    }
+
+    // Keep the later of two states for a game, a finished game takes no more room in the agreements.
+    private void spectate(TPMState state) {
+        spectated.merge(state.getGameId(), state, (a, b) -> (b.getMoves() >= a.getMoves()) ? b : a);
+        if (TPMState.GameStatus.FINISHED == state.getGameStatus()) {
+            agreed.remove(state.getGameId());
+        }
+    }
+
+    /**
+     * Watch the games a player sent in a snapshot that we agreed to observe, its signatures and
+     * [checkSent] must already have been checked.
+     */
+    public void spectate(SignedTransaction stx, Party player) {
+        for (TPMState state : stx.getTx().outputsOfType(TPMState.class)) {
+            if (!plays(state) && hasAgreed(player, state.getGameId())) {
+                spectate(state);
+            }
+        }
+        received.incrementAndGet();
+    }
+
+    // The latest state seen of a game this node watches, null if there is none.
+    public TPMState getGame(String gameId) {
+        return spectated.get(gameId);
+    }
+
+    public List<TPMState> getGames() {
+        return new ArrayList<>(spectated.values());
+    }
+
+    public Metrics getMetrics() {
+        int waiting = 0;
+        for (Outbox outbox : outboxes.values()) {
+            synchronized (outbox) {
+                waiting += outbox.ledger.size() + outbox.snapshots.size();
+            }
+        }
+        return new Metrics(
+                observers.size(),
+                waiting,
+                registered.get(),
+                queued.get(),
+                sent.get(),
+                batches.get(),
+                failed.get(),
+                dropped.get(),
+                spectated.size(),
+                agreed.size(),
+                received.get(),
+                declined.get(),
+                rejected.get(),
+                windows.get());
+    }
+
+    /**
+     * Snapshot of the broadcast counters, returned over RPC by [TPMFlowMetrics]. Games counts the
+     * games with observers, waiting the transactions not yet sent, and spectated, agreed, received, declined
+     * and rejected the games watched and agreed to, snapshots taken, offers declined and transactions
+     * rejected by this node as an observer.
+     */
+    @CordaSerializable
+    public static class Metrics {
+        private final int games;
+        private final int waiting;
+        private final long registered;
+        private final long queued;
+        private final long sent;
+        private final long batches;
+        private final long failed;
+        private final long dropped;
+        private final int spectated;
+        private final int agreed;
+        private final long received;
+        private final long declined;
+        private final long rejected;
+        private final long windows;
+
+        public Metrics(int games, int waiting, long registered, long queued, long sent, long batches, long failed, long dropped, int spectated, int agreed, long received, long declined, long rejected, long windows) {
+            this.games = games;
+            this.waiting = waiting;
+            this.registered = registered;
+            this.queued = queued;
+            this.sent = sent;
+            this.batches = batches;
+            this.failed = failed;
+            this.dropped = dropped;
+            this.spectated = spectated;
+            this.agreed = agreed;
+            this.received = received;
+            this.declined = declined;
+            this.rejected = rejected;
+            this.windows = windows;
+        }
+
+        public int getGames() { return games; }
+
+        public int getWaiting() { return waiting; }
+
+        public long getRegistered() { return registered; }
+
+        public long getQueued() { return queued; }
+
+        public long getSent() { return sent; }
+
+        public long getBatches() { return batches; }
+
+        public long getFailed() { return failed; }
+
+        public long getDropped() { return dropped; }
+
+        public int getSpectated() { return spectated; }
+
+        public int getAgreed() { return agreed; }
+
+        public long getReceived() { return received; }
+
+        public long getDeclined() { return declined; }
+
+        public long getRejected() { return rejected; }
+
+        public long getWindows() { return windows; }
+
+        @Override
+        public String toString() {
+            return String.format("games=%d, waiting=%d, registered=%d, queued=%d, sent=%d, batches=%d, failed=%d, dropped=%d, spectated=%d, agreed=%d, received=%d, declined=%d, rejected=%d, windows=%d",
+                    games, waiting, registered, queued, sent, batches, failed, dropped, spectated, agreed, received, declined, rejected, windows);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.assignment1.flow;
+
+import com.assignment1.contract.TPMContract;
+import com.assignment1.state.TPMState;
+import net.corda.core.contracts.TimeWindow;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Time windows and deadlines for the create and move flows of timed games, as [TPMContract] checks them.
+ *
+ * A transaction with a timed game gets a window from a little before now, for clock skew with the notary,
+ * to WINDOW after, closing early at the deadline of any game moved. Each timed output is then due its move
+ * timeout after the window closes. Untimed games need no window, so a transaction of only those has none.
+ */
+public final class TPMDeadlines {
+
+    // How long the notary has to sign a timed create or move, with the skew inside TPMContract.MAX_TIME_WINDOW.
+    public static final Duration WINDOW = Duration.ofSeconds(30);
+    public static final Duration CLOCK_SKEW = Duration.ofSeconds(5);
+
+    private TPMDeadlines() {
+    }
+
+    // True if the game needs a time window to create or move.
+    public static boolean isTimed(TPMState state) {
+        return null != state.getMoveTimeout();
+    }
+
+    // A game can only be moved while there is time for the notary to sign before its deadline.
+    public static void checkDue(Instant now, TPMState state) {
+        final Instant deadline = state.getDeadline();
+        requireThat(require -> {
+            require.using("Move is after the deadline.", (null == deadline) || deadline.isAfter(now));
+            return null;
+        });
+    }
+
+    /**
+     * The window for a transaction built now, closing no later than the earliest deadline of the inputs.
+     * Deadlines are kept to the millisecond so the window is too.
+     */
+    public static TimeWindow window(Instant now, Iterable<TPMState> inputs) {
+        final Instant from = now.truncatedTo(ChronoUnit.MILLIS);
+        Instant until = from.plus(WINDOW);
+        for (TPMState input : inputs) {
+            final Instant deadline = input.getDeadline();
+            if ((null != deadline) && deadline.isBefore(until)) {
+                until = deadline;
+            }
+        }
+        return TimeWindow.between(from.minus(CLOCK_SKEW), until);
+    }
+
+    // The output due its move timeout after the window closes, unchanged for an untimed game.
+    public static TPMState due(TPMState output, TimeWindow window) {
+        final Duration moveTimeout = output.getMoveTimeout();
+        return (null == moveTimeout) ? output : output.withDeadline(window.getUntilTime().plus(moveTimeout));
+    }
+}
@@ -0,0 +1,238 @@
+package com.assignment1.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.contract.TPMContract;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.schema.TPMQueries;
+import com.assignment1.state.TPMResultState;
+import com.assignment1.state.TPMState;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Flows for TPM to keep the live vault small as games pile up, run by [TPMArchiveService] or from the shell.
+ *
+ * [Initiator] archives finished games, consuming each for its [TPMResultState] in one transaction signed by
+ * us alone and sent to the opponents with [FinalityFlow], so the games drop out of the unconsumed states.
+ *
+ * [Compact] moves the rows of consumed game states from the tpm_states table to tpm_states_archive, so
+ * queries over the schema only see rows for the states still in play. Corda keeps the transactions and its
+ * own vault rows, which the backchain and the notary depend on.
+ *
+ * All methods called within the [FlowLogic] sub-class need to be annotated with the @Suspendable annotation.
+ */
+public class TPMFlowArchive {
+
+    /**
+     * What happened to one game, error is null if it was archived.
+     */
+    @CordaSerializable
+    public static class Archived {
+        private final String gameId;
+        private final String error;
+
+        public Archived(String gameId, String error) {
+            this.gameId = gameId;
+            this.error = error;
+        }
+
+        public String getGameId() { return gameId; }
+
+        public boolean getSuccess() { return null == error; }
+
+        public String getError() { return error; }
+
+        @Override
+        public String toString() {
+            return (null == error) ? String.format("%s archived", gameId) : String.format("%s not archived : %s", gameId, error);
+        }
+    }
+
+    /**
+     * The games in the order they were given, and the transaction id, null if nothing was archived.
+     */
+    @CordaSerializable
+    public static class Result {
+        private final SecureHash txId;
+        private final List<Archived> games;
+
+        public Result(SecureHash txId, List<Archived> games) {
+            this.txId = txId;
+            this.games = games;
+        }
+
+        public SecureHash getTxId() { return txId; }
+
+        public List<Archived> getGames() { return games; }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class Initiator extends FlowLogic<Result> {
+
+        private final List<String> gameIds;
+
+        public Initiator(List<String> gameIds) {
+            this.gameIds = gameIds;
+        }
+
+        @Suspendable
+        @Override
+        public Result call() throws FlowException {
+            final Party me = getOurIdentity();
+            final TPMGameIndex index = getServiceHub().cordaService(TPMGameIndex.class);
+
+            // Each game is checked as the contract will, so one still being played can't fail the others.
+            final String[] errors = new String[gameIds.size()];
+            final List<StateAndRef<TPMState>> inputs = new ArrayList<>();
+            final Set<String> seen = new HashSet<>();
+            final Map<Party, FlowSession> sessions = new LinkedHashMap<>();
+            Party notary = null;
+            for (int i=0; i<gameIds.size(); ++i) {
+                final String gameId = gameIds.get(i);
+                try {
+                    final List<StateAndRef<TPMState>> states = index.find(gameId);
+                    requireThat(require -> {
+                        require.using("Failed to find game on ledger", states.size() != 0);
+                        require.using("Should only be one game on ledger", states.size() == 1);
+                        require.using("Game is already in this batch", seen.add(gameId));
+                        return null;
+                    });
+                    final StateAndRef<TPMState> stateAndRef = states.get(0);
+                    final TPMState state = stateAndRef.getState().getData();
+                    final Party gameNotary = stateAndRef.getState().getNotary();
+                    final boolean sameNotary = (null == notary) || notary.equals(gameNotary);
+                    requireThat(require -> {
+                        require.using("Node Party should be player1 or player2", state.getPlayer1().equals(me) || state.getPlayer2().equals(me));
+                        require.using("Only a finished game can be archived", TPMState.GameStatus.FINISHED == state.getGameStatus());
+                        require.using("Game uses a different notary", sameNotary);
+                        return null;
+                    });
+
+                    inputs.add(stateAndRef);
+                    notary = gameNotary;
+                    final Party opponent = state.getPlayer1().equals(me) ? state.getPlayer2() : state.getPlayer1();
+                    if (!sessions.containsKey(opponent)) {
+                        sessions.put(opponent, initiateFlow(opponent));
+                    }
+                } catch (IllegalArgumentException e) {
+                    errors[i] = e.getMessage();
+                }
+            }
+
+            SecureHash txId = null;
+            if (!inputs.isEmpty()) {
+                final TransactionBuilder txBuilder = new TransactionBuilder(notary)
+                        .addCommand(new Command<>(new TPMContract.Commands.Archive(), me.getOwningKey()));
+                for (StateAndRef<TPMState> input : inputs) {
+                    txBuilder.addInputState(input);
+                    txBuilder.addOutputState(TPMResultState.of(input.getState().getData()), TPMContract.ID);
+                }
+                txBuilder.verify(getServiceHub());
+                final SignedTransaction signedTx = getServiceHub().signInitialTransaction(txBuilder);
+                txId = subFlow(new FinalityFlow(signedTx, sessions.values())).getId();
+            }
+
+            final List<Archived> games = new ArrayList<>(gameIds.size());
+            for (int i=0; i<gameIds.size(); ++i) {
+                games.add(new Archived(gameIds.get(i), errors[i]));
+            }
+            return new Result(txId, games);
+        }
+    }
+
+    // This is the receiving party side for the above, the opponent records the results too.
+    @InitiatedBy(Initiator.class)
+    public static class Acceptor extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartySession;
+
+        public Acceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new ReceiveFinalityFlow(otherPartySession));
+        }
+    }
+
+    /**
+     * Compacts up to limit game states consumed before the cutoff, returning how many. Each row is copied to
+     * tpm_states_archive with when the state was consumed and then deleted from tpm_states, both in the flow's
+     * own database transaction, so a state is either moved or left where it was.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class Compact extends FlowLogic<Integer> {
+
+        private final Instant cutoff;
+        private final int limit;
+
+        public Compact(Instant cutoff, int limit) {
+            this.cutoff = cutoff;
+            this.limit = limit;
+        }
+
+        @Suspendable
+        @Override
+        public Integer call() throws FlowException {
+            final Vault.Page<TPMState> page = getServiceHub().getVaultService().queryBy(
+                    TPMState.class, TPMQueries.consumedBefore(cutoff), new PageSpecification(DEFAULT_PAGE_NUM, limit));
+            final List<StateAndRef<TPMState>> states = page.getStates();
+            if (states.isEmpty()) {
+                return 0;
+            }
+
+            final Connection connection = getServiceHub().jdbcSession();
+            try (PreparedStatement copy = connection.prepareStatement(
+                    "insert into tpm_states_archive (output_index, transaction_id, game_id, linear_id, variant, player1, player2, " +
+                            "last_mover, next_player, moves, status, consumed_time) " +
+                            "select output_index, transaction_id, game_id, linear_id, variant, player1, player2, " +
+                            "last_mover, next_player, moves, status, ? from tpm_states where transaction_id = ? and output_index = ?");
+                 PreparedStatement delete = connection.prepareStatement(
+                    "delete from tpm_states where transaction_id = ? and output_index = ?")) {
+                for (int i=0; i<states.size(); ++i) {
+                    final StateAndRef<TPMState> stateAndRef = states.get(i);
+                    copy.setTimestamp(1, Timestamp.from(page.getStatesMetadata().get(i).getConsumedTime()));
+                    copy.setString(2, stateAndRef.getRef().getTxhash().toString());
+                    copy.setInt(3, stateAndRef.getRef().getIndex());
+                    copy.addBatch();
+                    delete.setString(1, stateAndRef.getRef().getTxhash().toString());
+                    delete.setInt(2, stateAndRef.getRef().getIndex());
+                    delete.addBatch();
+                }
+                copy.executeBatch();
+                delete.executeBatch();
+            } catch (SQLException e) {
+                throw new FlowException("Failed to compact consumed states", e);
+            }
+            return states.size();
+        }
+    }
+}
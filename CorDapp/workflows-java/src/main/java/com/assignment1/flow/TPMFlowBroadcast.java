@@ -0,0 +1,329 @@
+package com.assignment1.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.broadcast.TPMBroadcastService;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.state.TPMState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.StatesToRecord;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Flows for the [TPMBroadcastService], to stream games to observers such as a tournament host or a
+ * commentary node without the players waiting on them.
+ *
+ * A player registers an observer for a game with [Register], which asks the observer and only goes ahead if
+ * it agrees. The service then sends the observer the game's transactions in batches with [Send]. The observer
+ * keeps the (player, gameId) pairs it agreed to and rejects a batch holding a transaction with none of them,
+ * or with a game the sender doesn't play. An observer registered before the first move records them on its
+ * ledger with [ReceiveTransactionFlow] and ALL_VISIBLE, an observer registered mid-game is sent them as
+ * snapshots, checked for signatures only, so it never resolves the moves before it joined. Either way it only
+ * watches the games it agreed to. An observer can pull the latest snapshot of a game at any time with [CatchUp].
+ *
+ * All methods called within the [FlowLogic] sub-class need to be annotated with the @Suspendable annotation.
+ */
+public class TPMFlowBroadcast {
+
+    /**
+     * What a send holds, the snapshots and then how many transactions follow to be recorded.
+     */
+    @CordaSerializable
+    public static class Batch {
+        private final List<SignedTransaction> snapshots;
+        private final int ledger;
+
+        public Batch(List<SignedTransaction> snapshots, int ledger) {
+            this.snapshots = snapshots;
+            this.ledger = ledger;
+        }
+
+        public List<SignedTransaction> getSnapshots() { return snapshots; }
+
+        public int getLedger() { return ledger; }
+    }
+
+    /**
+     * What a player asks an observer, to be sent a game from now on, recorded on its ledger or as snapshots.
+     */
+    @CordaSerializable
+    public static class Offer {
+        private final String gameId;
+        private final boolean ledger;
+
+        public Offer(String gameId, boolean ledger) {
+            this.gameId = gameId;
+            this.ledger = ledger;
+        }
+
+        public String getGameId() { return gameId; }
+
+        public boolean getLedger() { return ledger; }
+    }
+
+    // Register an observer for one of our games, returns true if it records the game on its ledger.
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class Register extends FlowLogic<Boolean> {
+
+        private final String gameId;
+        private final Party observer;
+
+        public Register(String gameId, Party observer) {
+            this.gameId = gameId;
+            this.observer = observer;
+        }
+
+        @Suspendable
+        @Override
+        public Boolean call() throws FlowException {
+            final Party me = getOurIdentity();
+            final List<StateAndRef<TPMState>> states = getServiceHub().cordaService(TPMGameIndex.class).find(gameId);
+            requireThat(require -> {
+                require.using("Failed to find game on ledger", states.size() != 0);
+                require.using("Should only be one game on ledger", states.size() == 1);
+                final TPMState state = states.get(0).getState().getData();
+                require.using("Node Party should be player1 or player2", state.getPlayer1().equals(me) || state.getPlayer2().equals(me));
+                require.using("Observer can't be a player", !state.getPlayer1().equals(observer) && !state.getPlayer2().equals(observer));
+                require.using("Game is already finished", TPMState.GameStatus.FINISHED != state.getGameStatus());
+                return null;
+            });
+
+            final TPMBroadcastService service = getServiceHub().cordaService(TPMBroadcastService.class);
+            final boolean ledger = service.isFromTheStart(states.get(0));
+            final FlowSession session = initiateFlow(observer);
+            final boolean agreed = session.sendAndReceive(Boolean.class, new Offer(gameId, ledger)).unwrap(received -> received);
+            requireThat(require -> {
+                require.using("Observer declined the game", agreed);
+                return null;
+            });
+            service.register(states.get(0), observer, ledger);
+            return ledger;
+        }
+    }
+
+    // This is the observer side for the above, it agrees unless it is watching as many games as it will.
+    @InitiatedBy(Register.class)
+    public static class RegisterAcceptor extends FlowLogic<Void> {
+
+        private final FlowSession otherPartySession;
+
+        public RegisterAcceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            final Offer offer = otherPartySession.receive(Offer.class).unwrap(received -> {
+                requireThat(require -> {
+                    require.using("Offer should name a game", null != received.getGameId());
+                    return null;
+                });
+                return received;
+            });
+            final boolean agreed = getServiceHub().cordaService(TPMBroadcastService.class).agree(otherPartySession.getCounterparty(), offer.getGameId());
+            otherPartySession.send(agreed);
+            return null;
+        }
+    }
+
+    // Started by the service, sends one batch to an observer and returns how many transactions it held.
+    @InitiatingFlow
+    @StartableByService
+    public static class Send extends FlowLogic<Integer> {
+
+        private final Party observer;
+        private final List<SecureHash> ledger;
+        private final List<SecureHash> snapshots;
+
+        public Send(Party observer, List<SecureHash> ledger, List<SecureHash> snapshots) {
+            this.observer = observer;
+            this.ledger = ledger;
+            this.snapshots = snapshots;
+        }
+
+        @Suspendable
+        @Override
+        public Integer call() throws FlowException {
+            final List<SignedTransaction> sending = new ArrayList<>(snapshots.size());
+            for (SecureHash txId : snapshots) {
+                sending.add(transaction(txId));
+            }
+            final FlowSession session = initiateFlow(observer);
+            session.send(new Batch(sending, ledger.size()));
+            // The observer asks for the dependencies it doesn't have, for a game followed from the start only
+            // the moves before, which it was sent already.
+            for (SecureHash txId : ledger) {
+                subFlow(new SendTransactionFlow(session, transaction(txId)));
+            }
+            return ledger.size() + snapshots.size();
+        }
+
+        private SignedTransaction transaction(SecureHash txId) throws FlowException {
+            final SignedTransaction stx = getServiceHub().getValidatedTransactions().getTransaction(txId);
+            if (null == stx) {
+                throw new FlowException("Failed to find transaction " + txId);
+            }
+            return stx;
+        }
+    }
+
+    // This is the observer side for the above.
+    @InitiatedBy(Send.class)
+    public static class SendAcceptor extends FlowLogic<Void> {
+
+        private final FlowSession otherPartySession;
+
+        public SendAcceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            final TPMBroadcastService service = getServiceHub().cordaService(TPMBroadcastService.class);
+            final Party player = otherPartySession.getCounterparty();
+            final Batch batch = otherPartySession.receive(Batch.class).unwrap(received -> {
+                requireThat(require -> {
+                    require.using("Batch should have snapshots", null != received.getSnapshots());
+                    require.using("Batch should have a count", received.getLedger() >= 0);
+                    return null;
+                });
+                for (SignedTransaction stx : received.getSnapshots()) {
+                    service.checkSent(player, stx);
+                }
+                return received;
+            });
+            for (SignedTransaction stx : batch.getSnapshots()) {
+                service.spectate(verified(stx), player);
+            }
+            for (int i=0; i<batch.getLedger(); ++i) {
+                subFlow(new ReceiveObserved(otherPartySession, service, player));
+            }
+            return null;
+        }
+    }
+
+    // Records a transaction sent by a player, only if it is for a game we agreed to observe.
+    private static class ReceiveObserved extends ReceiveTransactionFlow {
+
+        private final TPMBroadcastService service;
+        private final Party player;
+
+        private ReceiveObserved(FlowSession otherSideSession, TPMBroadcastService service, Party player) {
+            super(otherSideSession, true, StatesToRecord.ALL_VISIBLE);
+            this.service = service;
+            this.player = player;
+        }
+
+        @Suspendable
+        @Override
+        protected void checkBeforeRecording(SignedTransaction stx) {
+            service.checkSent(player, stx);
+        }
+    }
+
+    // A snapshot must have every signature it needs, the notary's included, as it isn't resolved.
+    private static SignedTransaction verified(SignedTransaction stx) throws FlowException {
+        try {
+            stx.verifyRequiredSignatures();
+        } catch (SignatureException e) {
+            throw new FlowException("Snapshot signature is missing or invalid", e);
+        }
+        return stx;
+    }
+
+    // Started by an observer, pulls the latest snapshot of a game from a player who registered it.
+    @InitiatingFlow
+    @StartableByRPC
+    public static class CatchUp extends FlowLogic<TPMState> {
+
+        private final Party player;
+        private final String gameId;
+
+        public CatchUp(Party player, String gameId) {
+            this.player = player;
+            this.gameId = gameId;
+        }
+
+        @Suspendable
+        @Override
+        public TPMState call() throws FlowException {
+            final FlowSession session = initiateFlow(player);
+            final SignedTransaction stx = verified(session.sendAndReceive(SignedTransaction.class, gameId).unwrap(received -> received));
+            TPMState game = null;
+            for (TPMState state : stx.getTx().outputsOfType(TPMState.class)) {
+                if (state.getGameId().equals(gameId)) {
+                    game = state;
+                }
+            }
+            final TPMState found = game;
+            requireThat(require -> {
+                require.using("Snapshot should hold the game", null != found);
+                require.using("Snapshot should be from a player", found.getPlayer1().equals(player) || found.getPlayer2().equals(player));
+                return null;
+            });
+            // Asking is agreeing, on our side, to observe the game.
+            final TPMBroadcastService service = getServiceHub().cordaService(TPMBroadcastService.class);
+            requireThat(require -> {
+                require.using("Watching too many games", service.agree(player, gameId));
+                return null;
+            });
+            service.spectate(stx, player);
+            return found;
+        }
+    }
+
+    // This is the player side for the above.
+    @InitiatedBy(CatchUp.class)
+    public static class CatchUpAcceptor extends FlowLogic<Void> {
+
+        private final FlowSession otherPartySession;
+
+        public CatchUpAcceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            final TPMBroadcastService service = getServiceHub().cordaService(TPMBroadcastService.class);
+            final String gameId = otherPartySession.receive(String.class).unwrap(received -> {
+                requireThat(require -> {
+                    require.using("Not an observer of this game", service.isObserver(received, otherPartySession.getCounterparty()));
+                    return null;
+                });
+                return received;
+            });
+            final List<StateAndRef<TPMState>> states = getServiceHub().cordaService(TPMGameIndex.class).find(gameId);
+            requireThat(require -> {
+                require.using("Should only be one game on ledger", states.size() == 1);
+                return null;
+            });
+            otherPartySession.send(getServiceHub().getValidatedTransactions().getTransaction(states.get(0).getRef().getTxhash()));
+            return null;
+        }
+    }
+
+    // The games this node watches, as an observer.
+    @StartableByRPC
+    public static class Games extends FlowLogic<List<TPMState>> {
+
+        @Suspendable
+        @Override
+        public List<TPMState> call() throws FlowException {
+            return getServiceHub().cordaService(TPMBroadcastService.class).getGames();
+        }
+    }
+}
@@ -1,23 +1,26 @@
 package com.assignment1.flow;
 
 import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.admission.TPMAdmissionControl;
 import com.assignment1.contract.TPMContract;
+import com.assignment1.index.TPMGameIndex;
 import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.ContractState;
-import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.TimeWindow;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
 import net.corda.core.utilities.ProgressTracker.Step;
 
-import java.util.List;
+import java.time.Duration;
+import java.util.Collections;
 
 import static net.corda.core.contracts.ContractsDSL.requireThat;
 
@@ -40,6 +43,8 @@ public class TPMFlowCreate {
         private final Party otherParty;
         private final String createHint;
         private final String gameId;
+        private final TPMVariant variant;
+        private final Duration moveTimeout;
 
         private final Step GENERATING_TRANSACTION = new Step("Generating transaction based on new IOU.");
         private final Step VERIFYING_TRANSACTION = new Step("Verifying contract constraints.");
@@ -69,9 +74,20 @@ public class TPMFlowCreate {
         );
 
         public Initiator(Party otherParty, String createHint, String gameId) {
+            this(otherParty, createHint, gameId, TPMVariant.THREE);
+        }
+
+        public Initiator(Party otherParty, String createHint, String gameId, TPMVariant variant) {
+            this(otherParty, createHint, gameId, variant, null);
+        }
+
+        // A timed game, each move must be made within moveTimeout or the game may be claimed by forfeit.
+        public Initiator(Party otherParty, String createHint, String gameId, TPMVariant variant, Duration moveTimeout) {
             this.otherParty = otherParty;
             this.createHint = createHint;
             this.gameId=gameId;
+            this.variant = variant;
+            this.moveTimeout = moveTimeout;
         }
 
         @Override
@@ -85,8 +101,8 @@ public class TPMFlowCreate {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            // Obtain a reference to the notary we want to use.
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            // Obtain a reference to the notary we want to use, games are spread over the notaries by gameId.
+            final Party notary = TPMNotarySelector.select(getServiceHub().getNetworkMapCache().getNotaryIdentities(), gameId);
 
             // This is for board creation, start of a game.
 
@@ -96,22 +112,26 @@ public class TPMFlowCreate {
             // Generate an unsigned transaction with an initial board state.
             Party me = getOurIdentity();
 
-            // Query vault to make sure this game does not already exist. gameIds must be unique on me and gameId.
-            QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(me), null, ImmutableList.of(gameId));
-            List<StateAndRef<TPMState>> states = getServiceHub().getVaultService().queryBy(TPMState.class, queryCriteria).getStates();
+            // Check the game index to make sure this game does not already exist. gameIds must be unique on me and gameId.
+            final boolean exists = getServiceHub().cordaService(TPMGameIndex.class).exists(gameId);
 
-            // Should be one, should be same parties (we queried for!). Not sure if this is overkill. Could just test and then throw exception?
             requireThat(require -> {
-                require.using("Game already exists on ledger", states.size() == 0);
+                require.using("Game already exists on ledger", !exists);
                 return null;
             });
 
-            TPMState state = new TPMState(me, otherParty, createHint, gameId);
+            TPMState state = new TPMState(me, otherParty, createHint, gameId, variant, moveTimeout);
             final Command<TPMContract.Commands.Create> txCommand = new Command<>(
                     new TPMContract.Commands.Create(),
                     ImmutableList.of(state.getPlayer1().getOwningKey(), state.getPlayer2().getOwningKey()));
-            final TransactionBuilder txBuilder = new TransactionBuilder(notary)
-                    .addOutputState(state, TPMContract.ID)
+            final TransactionBuilder txBuilder = new TransactionBuilder(notary);
+            // The first move of a timed game is due the timeout after the notary signs.
+            if (TPMDeadlines.isTimed(state)) {
+                final TimeWindow window = TPMDeadlines.window(getServiceHub().getClock().instant(), Collections.emptyList());
+                txBuilder.setTimeWindow(window);
+                state = TPMDeadlines.due(state, window);
+            }
+            txBuilder.addOutputState(state, TPMContract.ID)
                     .addCommand(txCommand);
 
             // Stage 2.
@@ -151,6 +171,19 @@ public class TPMFlowCreate {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            // Turn the counterparty away before receiving anything if they have too many games or signings with us.
+            final Party counterparty = otherPartySession.getCounterparty();
+            final TPMAdmissionControl admission = getServiceHub().cordaService(TPMAdmissionControl.class);
+            admission.enter(getRunId(), counterparty, true);
+            try {
+                return sign();
+            } finally {
+                admission.leave(getRunId());
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction sign() throws FlowException {
 
             class SignTxFlow extends SignTransactionFlow {
                 private SignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
@@ -0,0 +1,415 @@
+package com.assignment1.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.admission.TPMAdmissionControl;
+import com.assignment1.contract.TPMContract;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.matchmaker.TPMMatchmaker;
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.TimeWindow;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Flow for TPM to create many games against many opponents at once, e.g. a tournament round.
+ *
+ * The gameIds are checked against the game index in one lookup. The games are grouped by the notary
+ * [TPMNotarySelector] picks for each, and each group goes into one transaction of up to
+ * MAX_GAMES_PER_TRANSACTION games. The proposal goes to every opponent in the transaction before any reply is
+ * read, so they check and sign it in parallel, each sending back just their signature. Once notarised and
+ * recorded each opponent is sent only the signatures, as in [TPMFlowMoveFast]. An opponent that
+ * refuses has its games dropped and the smaller transaction is proposed again to the rest.
+ *
+ * Every opponent in a transaction sees all of its games, use [TPMFlowCreate] for a game nobody else should see.
+ * An opponent signs a game created with the [TPMFlowMatch.MATCHED] hint only if it claimed the pairing.
+ *
+ * All methods called within the [FlowLogic] sub-class need to be annotated with the @Suspendable annotation.
+ */
+public class TPMFlowCreateBatch {
+
+    public static final int MAX_GAMES_PER_TRANSACTION = 500;
+
+    /**
+     * One game, as for [TPMFlowCreate.Initiator].
+     */
+    @CordaSerializable
+    public static class Game {
+        private final Party opponent;
+        private final String gameId;
+        private final String createHint;
+        private final TPMVariant variant;
+        private final Duration moveTimeout;
+
+        public Game(Party opponent, String gameId) {
+            this(opponent, gameId, null, TPMVariant.THREE);
+        }
+
+        public Game(Party opponent, String gameId, String createHint, TPMVariant variant) {
+            this(opponent, gameId, createHint, variant, null);
+        }
+
+        // A timed game, see [TPMFlowCreate.Initiator].
+        public Game(Party opponent, String gameId, String createHint, TPMVariant variant, Duration moveTimeout) {
+            this.opponent = opponent;
+            this.gameId = gameId;
+            this.createHint = createHint;
+            this.variant = variant;
+            this.moveTimeout = moveTimeout;
+        }
+
+        public Party getOpponent() { return opponent; }
+
+        public String getGameId() { return gameId; }
+
+        public String getCreateHint() { return createHint; }
+
+        public TPMVariant getVariant() { return variant; }
+
+        public Duration getMoveTimeout() { return moveTimeout; }
+    }
+
+    /**
+     * What happened to one game, the transaction that created it or why it wasn't.
+     */
+    @CordaSerializable
+    public static class GameResult {
+        private final String gameId;
+        private final SecureHash txId;
+        private final String error;
+
+        public GameResult(String gameId, SecureHash txId, String error) {
+            this.gameId = gameId;
+            this.txId = txId;
+            this.error = error;
+        }
+
+        public String getGameId() { return gameId; }
+
+        public boolean getSuccess() { return null != txId; }
+
+        public SecureHash getTxId() { return txId; }
+
+        public String getError() { return error; }
+
+        @Override
+        public String toString() {
+            return getSuccess() ? String.format("%s created by %s", gameId, txId) : String.format("%s failed : %s", gameId, error);
+        }
+    }
+
+    /**
+     * The results in the order the games were given, and the transactions recorded.
+     */
+    @CordaSerializable
+    public static class Result {
+        private final List<SecureHash> txIds;
+        private final List<GameResult> games;
+
+        public Result(List<SecureHash> txIds, List<GameResult> games) {
+            this.txIds = txIds;
+            this.games = games;
+        }
+
+        public List<SecureHash> getTxIds() { return txIds; }
+
+        public List<GameResult> getGames() { return games; }
+    }
+
+    /**
+     * What the initiator sends, a transaction to sign, or the opponents' and notary's signatures for the one
+     * signed last.
+     */
+    @CordaSerializable
+    public static class Step {
+        private final SignedTransaction proposal;
+        private final List<TransactionSignature> signatures;
+
+        public Step(SignedTransaction proposal, List<TransactionSignature> signatures) {
+            this.proposal = proposal;
+            this.signatures = signatures;
+        }
+
+        public SignedTransaction getProposal() { return proposal; }
+
+        public List<TransactionSignature> getSignatures() { return signatures; }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class Initiator extends FlowLogic<Result> {
+
+        private final List<Game> games;
+
+        public Initiator(List<Game> games) {
+            this.games = games;
+        }
+
+        @Suspendable
+        @Override
+        public Result call() throws FlowException {
+            final Party me = getOurIdentity();
+            final List<Party> notaries = getServiceHub().getNetworkMapCache().getNotaryIdentities();
+
+            final List<String> gameIds = new ArrayList<>(games.size());
+            for (Game game : games) {
+                gameIds.add(game.getGameId());
+            }
+            final Set<String> existing = getServiceHub().cordaService(TPMGameIndex.class).existing(gameIds);
+
+            // Each game is checked on its own so one bad game can't fail the others.
+            final String[] errors = new String[games.size()];
+            final SecureHash[] txIds = new SecureHash[games.size()];
+            final TPMState[] states = new TPMState[games.size()];
+            final Set<String> seen = new HashSet<>();
+            final Map<Party, List<Integer>> byNotary = new LinkedHashMap<>();
+            for (int i=0; i<games.size(); ++i) {
+                final Game game = games.get(i);
+                try {
+                    requireThat(require -> {
+                        require.using("The two players cannot be the same entity.", !me.equals(game.getOpponent()));
+                        require.using("Game is already in this batch", seen.add(game.getGameId()));
+                        require.using("Game already exists on ledger", !existing.contains(game.getGameId()));
+                        return null;
+                    });
+                    states[i] = new TPMState(me, game.getOpponent(), game.getCreateHint(), game.getGameId(), game.getVariant(), game.getMoveTimeout());
+                    states[i].checkInvariants();
+                    byNotary.computeIfAbsent(TPMNotarySelector.select(notaries, game.getGameId()), notary -> new ArrayList<>()).add(i);
+                } catch (IllegalArgumentException e) {
+                    errors[i] = e.getMessage();
+                }
+            }
+
+            final List<SecureHash> recorded = new ArrayList<>();
+            for (Map.Entry<Party, List<Integer>> entry : byNotary.entrySet()) {
+                final List<Integer> all = entry.getValue();
+                for (int from=0; from<all.size(); from+=MAX_GAMES_PER_TRANSACTION) {
+                    final List<Integer> chunk = new ArrayList<>(all.subList(from, Math.min(all.size(), from + MAX_GAMES_PER_TRANSACTION)));
+                    final SecureHash txId = create(entry.getKey(), chunk, states, errors);
+                    if (null != txId) {
+                        recorded.add(txId);
+                        for (int i : chunk) {
+                            txIds[i] = txId;
+                        }
+                    }
+                }
+            }
+
+            final List<GameResult> results = new ArrayList<>(games.size());
+            for (int i=0; i<games.size(); ++i) {
+                results.add(new GameResult(games.get(i).getGameId(), txIds[i], errors[i]));
+            }
+            return new Result(recorded, results);
+        }
+
+        // Creates the games in one transaction, those refused are dropped from the chunk with their errors set.
+        @Suspendable
+        private SecureHash create(Party notary, List<Integer> chunk, TPMState[] states, String[] errors) throws FlowException {
+            final Map<Party, FlowSession> sessions = new LinkedHashMap<>();
+            for (int i : chunk) {
+                if (!sessions.containsKey(states[i].getPlayer2())) {
+                    sessions.put(states[i].getPlayer2(), initiateFlow(states[i].getPlayer2()));
+                }
+            }
+
+            while (!chunk.isEmpty()) {
+                final Set<Party> opponents = new LinkedHashSet<>();
+                final List<PublicKey> signers = new ArrayList<>();
+                signers.add(getOurIdentity().getOwningKey());
+                final TransactionBuilder txBuilder = new TransactionBuilder(notary);
+                // Timed games are due their first move the timeout after the notary signs.
+                TimeWindow window = null;
+                for (int i : chunk) {
+                    if ((null == window) && TPMDeadlines.isTimed(states[i])) {
+                        window = TPMDeadlines.window(getServiceHub().getClock().instant(), Collections.emptyList());
+                        txBuilder.setTimeWindow(window);
+                    }
+                }
+                for (int i : chunk) {
+                    txBuilder.addOutputState((null == window) ? states[i] : TPMDeadlines.due(states[i], window), TPMContract.ID);
+                    if (opponents.add(states[i].getPlayer2())) {
+                        signers.add(states[i].getPlayer2().getOwningKey());
+                    }
+                }
+                txBuilder.addCommand(new Command<>(new TPMContract.Commands.Create(), signers));
+                txBuilder.verify(getServiceHub());
+                final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+                // Every opponent has the proposal before we wait on any of them.
+                for (Party opponent : opponents) {
+                    sessions.get(opponent).send(new Step(partSignedTx, null));
+                }
+                final List<TransactionSignature> sigs = new ArrayList<>();
+                final Set<Party> refused = new HashSet<>();
+                for (Party opponent : opponents) {
+                    try {
+                        sigs.add(sessions.get(opponent).receive(TransactionSignature.class).unwrap(sig -> {
+                            requireThat(require -> {
+                                require.using("Signature should be the opponent's", sig.getBy().equals(opponent.getOwningKey()));
+                                return null;
+                            });
+                            try {
+                                sig.verify(partSignedTx.getId());
+                            } catch (GeneralSecurityException e) {
+                                throw new FlowException("Opponent's signature is invalid", e);
+                            }
+                            return sig;
+                        }));
+                    } catch (FlowException | UnexpectedFlowEndException | IllegalArgumentException e) {
+                        // A flow that ended with anything but a FlowException arrives as UnexpectedFlowEndException.
+                        refused.add(opponent);
+                        for (int i : chunk) {
+                            if (opponent.equals(states[i].getPlayer2())) {
+                                errors[i] = e.getMessage();
+                            }
+                        }
+                    }
+                }
+
+                if (refused.isEmpty()) {
+                    final SignedTransaction fullySignedTx = partSignedTx.withAdditionalSignatures(sigs);
+                    final List<TransactionSignature> notarySigs = subFlow(new NotaryFlow.Client(fullySignedTx));
+                    final SignedTransaction notarisedTx = fullySignedTx.withAdditionalSignatures(notarySigs);
+                    getServiceHub().recordTransactions(notarisedTx);
+                    sigs.addAll(notarySigs);
+                    for (Party opponent : opponents) {
+                        sessions.get(opponent).send(new Step(null, sigs));
+                    }
+                    return notarisedTx.getId();
+                }
+
+                // Those that refused have ended their flows, propose the rest again.
+                chunk.removeIf(i -> refused.contains(states[i].getPlayer2()));
+            }
+            return null;
+        }
+    }
+
+    // This is the receiving party side for the above.
+    @InitiatedBy(Initiator.class)
+    public static class Acceptor extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartySession;
+
+        public Acceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final Party counterparty = otherPartySession.getCounterparty();
+            final Step first = otherPartySession.receive(Step.class).unwrap(step -> step);
+            final int creates = (null == first.getProposal()) ? 0 : ourGames(first.getProposal());
+
+            // Admitted for all the games proposed with us, later proposals only ever drop games.
+            final TPMAdmissionControl admission = getServiceHub().cordaService(TPMAdmissionControl.class);
+            admission.enter(getRunId(), counterparty, creates);
+            try {
+                return sign(first);
+            } finally {
+                admission.leave(getRunId());
+            }
+        }
+
+        private int ourGames(SignedTransaction stx) {
+            return ourStates(stx).size();
+        }
+
+        private List<TPMState> ourStates(SignedTransaction stx) {
+            final Party me = getOurIdentity();
+            final List<TPMState> ours = new ArrayList<>();
+            for (ContractState output : stx.getTx().getOutputStates()) {
+                if ((output instanceof TPMState) && me.equals(((TPMState) output).getPlayer2())) {
+                    ours.add((TPMState) output);
+                }
+            }
+            return ours;
+        }
+
+        // Throws IllegalArgumentException if the proposal isn't one we'd sign.
+        private void check(SignedTransaction stx, Party counterparty, TPMMatchmaker matchmaker) {
+            requireThat(require -> {
+                require.using("On creation there should be no input state.", stx.getTx().getInputs().isEmpty());
+                for (ContractState output : stx.getTx().getOutputStates()) {
+                    require.using("This must be a board transaction.", output instanceof TPMState);
+                    require.using("Games should be created by the counterparty", counterparty.equals(((TPMState) output).getPlayer1()));
+                }
+                require.using("Should create a game with us", 0 != ourGames(stx));
+                require.using("Should be signed by the counterparty", stx.getRequiredSigningKeys().contains(counterparty.getOwningKey()));
+                for (TPMState state : ourStates(stx)) {
+                    require.using("Matched game should be one we joined", !TPMFlowMatch.MATCHED.equals(state.getMoveHint()) ||
+                            matchmaker.isJoining(counterparty, state.getGameId()));
+                }
+                return null;
+            });
+        }
+
+        @Suspendable
+        private SignedTransaction sign(Step first) throws FlowException {
+            final Party counterparty = otherPartySession.getCounterparty();
+            final TPMMatchmaker matchmaker = getServiceHub().cordaService(TPMMatchmaker.class);
+            Step step = first;
+            SignedTransaction signed = null;
+            while (null != step.getProposal()) {
+                final SignedTransaction stx = step.getProposal();
+                try {
+                    check(stx, counterparty, matchmaker);
+                } catch (IllegalArgumentException e) {
+                    // Sent to the initiator as the reason, so it drops only our games.
+                    throw new FlowException(e.getMessage(), e);
+                }
+                // The other opponents sign alongside us, only the initiator's signature must already be there.
+                final Set<PublicKey> unsigned = new HashSet<>(stx.getRequiredSigningKeys());
+                unsigned.remove(counterparty.getOwningKey());
+                try {
+                    stx.verifySignaturesExcept(unsigned);
+                    stx.toLedgerTransaction(getServiceHub(), false).verify();
+                } catch (SignatureException e) {
+                    throw new FlowException("Initiator's signature is missing or invalid", e);
+                }
+                signed = stx;
+                step = otherPartySession.sendAndReceive(Step.class, getServiceHub().createSignature(stx)).unwrap(next -> next);
+            }
+
+            requireThat(require -> {
+                require.using("Should have signed a proposal", null != first.getProposal());
+                return null;
+            });
+            final SignedTransaction notarisedTx = signed.withAdditionalSignatures(step.getSignatures());
+            try {
+                notarisedTx.verifyRequiredSignatures();
+            } catch (SignatureException e) {
+                throw new FlowException("Notary signature is missing or invalid", e);
+            }
+            getServiceHub().recordTransactions(notarisedTx);
+            for (TPMState state : ourStates(notarisedTx)) {
+                matchmaker.joined(state.getGameId());
+            }
+            return notarisedTx;
+        }
+    }
+}
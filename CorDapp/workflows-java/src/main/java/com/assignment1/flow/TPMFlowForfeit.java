@@ -0,0 +1,183 @@
+package com.assignment1.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.contract.TPMContract;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.state.TPMState;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.TimeWindow;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Flows for TPM to claim timed games whose deadline has passed, the player owed the move wins by forfeit.
+ *
+ * [TPMForfeitService] on the claimant's node keeps the deadlines of its timed games on a timer wheel rather
+ * than having the node scheduler start a checkpointed flow per game on both players' nodes. Every window it
+ * starts one [Initiator] per notary for the games that timed out, which forfeits them all in one transaction
+ * signed by us alone and sent to the opponents with [FinalityFlow].
+ *
+ * All methods called within the [FlowLogic] sub-class need to be annotated with the @Suspendable annotation.
+ */
+public class TPMFlowForfeit {
+
+    /**
+     * What happened to one claim, error is null if the game was forfeited.
+     */
+    @CordaSerializable
+    public static class Claim {
+        private final String gameId;
+        private final String error;
+
+        public Claim(String gameId, String error) {
+            this.gameId = gameId;
+            this.error = error;
+        }
+
+        public String getGameId() { return gameId; }
+
+        public boolean getSuccess() { return null == error; }
+
+        public String getError() { return error; }
+
+        @Override
+        public String toString() {
+            return (null == error) ? String.format("%s forfeited", gameId) : String.format("%s not claimed : %s", gameId, error);
+        }
+    }
+
+    /**
+     * The claims in the order the games were given, and the transaction id, null if nothing was forfeited.
+     */
+    @CordaSerializable
+    public static class Result {
+        private final SecureHash txId;
+        private final List<Claim> claims;
+
+        public Result(SecureHash txId, List<Claim> claims) {
+            this.txId = txId;
+            this.claims = claims;
+        }
+
+        public SecureHash getTxId() { return txId; }
+
+        public List<Claim> getClaims() { return claims; }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class Initiator extends FlowLogic<Result> {
+
+        private final List<String> gameIds;
+
+        public Initiator(List<String> gameIds) {
+            this.gameIds = gameIds;
+        }
+
+        @Suspendable
+        @Override
+        public Result call() throws FlowException {
+            final Party me = getOurIdentity();
+            final TPMGameIndex index = getServiceHub().cordaService(TPMGameIndex.class);
+            final Instant now = getServiceHub().getClock().instant();
+
+            // Each game is checked as the contract will, so one that has moved on can't fail the others.
+            final String[] errors = new String[gameIds.size()];
+            final List<StateAndRef<TPMState>> inputs = new ArrayList<>();
+            final Set<String> seen = new HashSet<>();
+            final Map<Party, FlowSession> sessions = new LinkedHashMap<>();
+            Party notary = null;
+            Instant latest = null;
+            for (int i=0; i<gameIds.size(); ++i) {
+                final String gameId = gameIds.get(i);
+                try {
+                    final List<StateAndRef<TPMState>> states = index.find(gameId);
+                    requireThat(require -> {
+                        require.using("Failed to find game on ledger", states.size() != 0);
+                        require.using("Should only be one game on ledger", states.size() == 1);
+                        require.using("Game is already in this batch", seen.add(gameId));
+                        return null;
+                    });
+                    final StateAndRef<TPMState> stateAndRef = states.get(0);
+                    final TPMState state = stateAndRef.getState().getData();
+                    final Party gameNotary = stateAndRef.getState().getNotary();
+                    final boolean sameNotary = (null == notary) || notary.equals(gameNotary);
+                    requireThat(require -> {
+                        require.using("Only the player owed the move can claim a forfeit", me.equals(state.getClaimant()));
+                        require.using("Game has no deadline", null != state.getDeadline());
+                        require.using("Deadline has not passed", !now.isBefore(state.getDeadline()));
+                        require.using("Game uses a different notary", sameNotary);
+                        return null;
+                    });
+                    state.checkForfeit(state.forfeit());
+
+                    inputs.add(stateAndRef);
+                    notary = gameNotary;
+                    if ((null == latest) || state.getDeadline().isAfter(latest)) {
+                        latest = state.getDeadline();
+                    }
+                    final Party opponent = state.getPlayer1().equals(me) ? state.getPlayer2() : state.getPlayer1();
+                    if (!sessions.containsKey(opponent)) {
+                        sessions.put(opponent, initiateFlow(opponent));
+                    }
+                } catch (IllegalArgumentException e) {
+                    errors[i] = e.getMessage();
+                }
+            }
+
+            SecureHash txId = null;
+            if (!inputs.isEmpty()) {
+                // Signed by us alone, the notary won't sign before the window opens at the last of the deadlines.
+                final TransactionBuilder txBuilder = new TransactionBuilder(notary)
+                        .addCommand(new Command<>(new TPMContract.Commands.Forfeit(), me.getOwningKey()))
+                        .setTimeWindow(TimeWindow.fromOnly(latest));
+                for (StateAndRef<TPMState> input : inputs) {
+                    txBuilder.addInputState(input);
+                    txBuilder.addOutputState(input.getState().getData().forfeit(), TPMContract.ID);
+                }
+                txBuilder.verify(getServiceHub());
+                final SignedTransaction signedTx = getServiceHub().signInitialTransaction(txBuilder);
+                txId = subFlow(new FinalityFlow(signedTx, sessions.values())).getId();
+            }
+
+            final List<Claim> claims = new ArrayList<>(gameIds.size());
+            for (int i=0; i<gameIds.size(); ++i) {
+                claims.add(new Claim(gameIds.get(i), errors[i]));
+            }
+            return new Result(txId, claims);
+        }
+    }
+
+    // This is the receiving party side for the above, the player who missed the deadline records the forfeit.
+    @InitiatedBy(Initiator.class)
+    public static class Acceptor extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartySession;
+
+        public Acceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new ReceiveFinalityFlow(otherPartySession));
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.assignment1.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.matchmaker.TPMMatchmaker;
+import com.assignment1.state.TPMVariant;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Flows for the [TPMMatchmaker]. A player registers with a matchmaker to be paired, the matchmaker then sends
+ * each pairing to the player who is to join the game, and once it has claimed them to the player who is to
+ * create it, who creates them with [TPMFlowCreateBatch].
+ *
+ * Each registration is used up by one pairing on its board, a player turns away any pairing it has no
+ * registration left for, so a matchmaker can only pair a player as often as it asked. The joining player
+ * signs a matched game only if it claimed the pairing, see [TPMMatchmaker.joined].
+ *
+ * All methods called within the [FlowLogic] sub-class need to be annotated with the @Suspendable annotation.
+ */
+public class TPMFlowMatch {
+
+    // The hint a matched game is created with, the joining player's acceptor checks these against its claims.
+    public static final String MATCHED = "Matched";
+
+    /**
+     * What a player registers for, the board and their rating, used when pairing by rating.
+     */
+    @CordaSerializable
+    public static class Registration {
+        private final TPMVariant variant;
+        private final int rating;
+
+        public Registration(TPMVariant variant, int rating) {
+            this.variant = variant;
+            this.rating = rating;
+        }
+
+        public TPMVariant getVariant() { return variant; }
+
+        public int getRating() { return rating; }
+    }
+
+    /**
+     * The pairings one player is sent in a window, the games it is to create and those it is to be
+     * invited to by the other player.
+     */
+    @CordaSerializable
+    public static class Pairings {
+        private final List<TPMMatchmaker.Pairing> create;
+        private final List<TPMMatchmaker.Pairing> join;
+
+        public Pairings(List<TPMMatchmaker.Pairing> create, List<TPMMatchmaker.Pairing> join) {
+            this.create = create;
+            this.join = join;
+        }
+
+        public List<TPMMatchmaker.Pairing> getCreate() { return create; }
+
+        public List<TPMMatchmaker.Pairing> getJoin() { return join; }
+    }
+
+    // Register this node to be paired for one game, it returns once queued and the game is created later.
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class Register extends FlowLogic<Void> {
+
+        private final Party matchmaker;
+        private final TPMVariant variant;
+        private final int rating;
+
+        public Register(Party matchmaker) {
+            this(matchmaker, TPMVariant.THREE, 0);
+        }
+
+        public Register(Party matchmaker, TPMVariant variant, int rating) {
+            this.matchmaker = matchmaker;
+            this.variant = variant;
+            this.rating = rating;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            final TPMMatchmaker service = getServiceHub().cordaService(TPMMatchmaker.class);
+            if (matchmaker.equals(getOurIdentity())) {
+                requireThat(require -> {
+                    require.using("Matchmaker is not enabled on this node", service.isEnabled());
+                    return null;
+                });
+                service.registeredWith(matchmaker, variant);
+                service.register(matchmaker, variant, rating);
+                return null;
+            }
+            // Counted before sending, as the matchmaker may pair us before its reply arrives.
+            service.registeredWith(matchmaker, variant);
+            try {
+                final FlowSession session = initiateFlow(matchmaker);
+                session.sendAndReceive(Boolean.class, new Registration(variant, rating)).unwrap(queued -> queued);
+            } catch (FlowException e) {
+                service.unregisteredWith(matchmaker, variant);
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    // This is the matchmaker side for the above.
+    @InitiatedBy(Register.class)
+    public static class RegisterAcceptor extends FlowLogic<Void> {
+
+        private final FlowSession otherPartySession;
+
+        public RegisterAcceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            final TPMMatchmaker service = getServiceHub().cordaService(TPMMatchmaker.class);
+            final Registration registration = otherPartySession.receive(Registration.class).unwrap(received -> {
+                requireThat(require -> {
+                    require.using("Matchmaker is not enabled on this node", service.isEnabled());
+                    require.using("Registration should be for a board", null != received.getVariant());
+                    return null;
+                });
+                return received;
+            });
+            service.register(otherPartySession.getCounterparty(), registration.getVariant(), registration.getRating());
+            otherPartySession.send(Boolean.TRUE);
+            return null;
+        }
+    }
+
+    /**
+     * Uses up a registration with the matchmaker for each pairing, the games to join are held for their
+     * creator's proposal and those to create are created. Pairings there is no registration left for are
+     * returned as failed, so the matchmaker doesn't send the creator a game the joiner turned away.
+     */
+    @Suspendable
+    private static TPMFlowCreateBatch.Result accept(FlowLogic<?> flow, Party matchmaker, Pairings pairings) throws FlowException {
+        final TPMMatchmaker service = flow.getServiceHub().cordaService(TPMMatchmaker.class);
+        final List<TPMMatchmaker.Pairing> joined = service.claim(matchmaker, pairings.getJoin());
+        service.join(joined);
+        final List<TPMMatchmaker.Pairing> claimed = service.claim(matchmaker, pairings.getCreate());
+
+        final List<TPMFlowCreateBatch.Game> games = new ArrayList<>(claimed.size());
+        for (TPMMatchmaker.Pairing pairing : claimed) {
+            games.add(new TPMFlowCreateBatch.Game(pairing.getOpponent(), pairing.getGameId(), MATCHED, pairing.getVariant()));
+        }
+        final TPMFlowCreateBatch.Result created = games.isEmpty()
+                ? new TPMFlowCreateBatch.Result(new ArrayList<>(), new ArrayList<>())
+                : flow.subFlow(new TPMFlowCreateBatch.Initiator(games));
+        if ((claimed.size() == pairings.getCreate().size()) && (joined.size() == pairings.getJoin().size())) {
+            return created;
+        }
+        final List<TPMFlowCreateBatch.GameResult> results = new ArrayList<>(created.getGames());
+        for (List<TPMMatchmaker.Pairing> list : Arrays.asList(pairings.getCreate(), pairings.getJoin())) {
+            for (TPMMatchmaker.Pairing pairing : list) {
+                if (!claimed.contains(pairing) && !joined.contains(pairing)) {
+                    results.add(new TPMFlowCreateBatch.GameResult(pairing.getGameId(), null, "No registration left for this pairing"));
+                }
+            }
+        }
+        return new TPMFlowCreateBatch.Result(created.getTxIds(), results);
+    }
+
+    // Started by the matchmaker, sends a player its pairings and has it join or make the games.
+    @InitiatingFlow
+    @StartableByService
+    public static class Pair extends FlowLogic<TPMFlowCreateBatch.Result> {
+
+        private final Party player;
+        private final Pairings pairings;
+
+        public Pair(Party player, Pairings pairings) {
+            this.player = player;
+            this.pairings = pairings;
+        }
+
+        @Suspendable
+        @Override
+        public TPMFlowCreateBatch.Result call() throws FlowException {
+            if (player.equals(getOurIdentity())) {
+                return accept(this, player, pairings);
+            }
+            final FlowSession session = initiateFlow(player);
+            return session.sendAndReceive(TPMFlowCreateBatch.Result.class, pairings).unwrap(result -> result);
+        }
+    }
+
+    // This is the player's side for the above.
+    @InitiatedBy(Pair.class)
+    public static class PairAcceptor extends FlowLogic<TPMFlowCreateBatch.Result> {
+
+        private final FlowSession otherPartySession;
+
+        public PairAcceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public TPMFlowCreateBatch.Result call() throws FlowException {
+            final Pairings pairings = otherPartySession.receive(Pairings.class).unwrap(received -> {
+                requireThat(require -> {
+                    require.using("Pairings should list the games to create and join", (null != received.getCreate()) && (null != received.getJoin()));
+                    for (List<TPMMatchmaker.Pairing> list : Arrays.asList(received.getCreate(), received.getJoin())) {
+                        for (TPMMatchmaker.Pairing pairing : list) {
+                            require.using("Each pairing should be for a board", (null != pairing) && (null != pairing.getVariant()));
+                            require.using("Each pairing should name the opponent and game", (null != pairing.getOpponent()) && (null != pairing.getGameId()));
+                        }
+                    }
+                    return null;
+                });
+                return received;
+            });
+            final TPMFlowCreateBatch.Result result = accept(this, otherPartySession.getCounterparty(), pairings);
+            otherPartySession.send(result);
+            return result;
+        }
+    }
+}
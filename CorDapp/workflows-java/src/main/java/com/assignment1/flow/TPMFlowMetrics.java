@@ -0,0 +1,58 @@
+package com.assignment1.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.admission.TPMAdmissionControl;
+import com.assignment1.archive.TPMArchiveService;
+import com.assignment1.bot.TPMBotService;
+import com.assignment1.broadcast.TPMBroadcastService;
+import com.assignment1.forfeit.TPMForfeitService;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.matchmaker.TPMMatchmaker;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.node.ServiceHub;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Returns the counters of one of this node's services, e.g. `flow start TPMFlowMetrics service: bot` from the
+ * shell. The services are admission, archive, bot, broadcast, forfeit, index and matchmaker, each returns its
+ * own Metrics class.
+ */
+@StartableByRPC
+public class TPMFlowMetrics extends FlowLogic<Object> {
+
+    public static final List<String> SERVICES = Arrays.asList("admission", "archive", "bot", "broadcast", "forfeit", "index", "matchmaker");
+
+    private final String service;
+
+    public TPMFlowMetrics(String service) {
+        this.service = service;
+    }
+
+    @Suspendable
+    @Override
+    public Object call() throws FlowException {
+        final ServiceHub hub = getServiceHub();
+        switch (service) {
+            case "admission":
+                return hub.cordaService(TPMAdmissionControl.class).getMetrics();
+            case "archive":
+                return hub.cordaService(TPMArchiveService.class).getMetrics();
+            case "bot":
+                return hub.cordaService(TPMBotService.class).getMetrics();
+            case "broadcast":
+                return hub.cordaService(TPMBroadcastService.class).getMetrics();
+            case "forfeit":
+                return hub.cordaService(TPMForfeitService.class).getMetrics();
+            case "index":
+                return hub.cordaService(TPMGameIndex.class).getMetrics();
+            case "matchmaker":
+                return hub.cordaService(TPMMatchmaker.class).getMetrics();
+            default:
+                throw new FlowException(String.format("Unknown service '%s', expected one of %s", service, SERVICES));
+        }
+    }
+}
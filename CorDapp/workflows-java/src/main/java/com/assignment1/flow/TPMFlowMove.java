@@ -1,21 +1,25 @@
 package com.assignment1.flow;
 
 import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.admission.TPMAdmissionControl;
 import com.assignment1.contract.TPMContract;
+import com.assignment1.index.TPMGameIndex;
 import com.assignment1.state.TPMState;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.ContractState;
 import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.TimeWindow;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
 
+import java.time.Instant;
+import java.util.Collections;
 import java.util.List;
 
 import static net.corda.core.contracts.ContractsDSL.requireThat;
@@ -29,12 +33,14 @@ public class TPMFlowMove {
 
     @InitiatingFlow
     @StartableByRPC
+    @StartableByService
     public static class Initiator extends FlowLogic<SignedTransaction> {
 
         private final String gameId;
         private final String moveHint;
         private final int src;
         private final int dst;
+        private final int capture;
 
         private final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating transaction based on new IOU.");
         private final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
@@ -64,10 +70,16 @@ public class TPMFlowMove {
         );
 
         public Initiator(String gameId,String moveHint, int src, int dst) {
+            this(gameId, moveHint, src, dst, -1);
+        }
+
+        // Capture is the opponent's token to take when the move completes a line on the larger boards.
+        public Initiator(String gameId,String moveHint, int src, int dst, int capture) {
             this.gameId = gameId;
             this.moveHint = moveHint;
             this.src = src;
             this.dst = dst;
+            this.capture = capture;
         }
 
         @Override
@@ -81,18 +93,15 @@ public class TPMFlowMove {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            // Obtain a reference to the notary we want to use.
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-
             // This is for a move in the game. So we need as input the game UniqueId and a proposed move.
 
             // Stage 1.
             progressTracker.setCurrentStep(GENERATING_TRANSACTION);
 
-            // Fetch the current state from the vault. We query using the foreign key for the LinearState on the ledger.
+            // Fetch the current state from the game index, which falls back to querying the vault using the
+            // foreign key for the LinearState on the ledger.
             Party me = getOurIdentity();
-            QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(me), null, ImmutableList.of(gameId));
-            List<StateAndRef<TPMState>> states = getServiceHub().getVaultService().queryBy(TPMState.class, queryCriteria).getStates();
+            List<StateAndRef<TPMState>> states = getServiceHub().cordaService(TPMGameIndex.class).find(gameId);
 
             // Should be one, should be same parties (we queried for!). Not sure if this is overkill. Could just test and then throw exception?
             requireThat(require -> {
@@ -101,17 +110,20 @@ public class TPMFlowMove {
                 return null;
             });
 
-            // Rehydrate current state from Vault.
+            // Rehydrate current state from Vault. The move must use the notary the game was created with.
             TPMState state = states.get(0).getState().getData();
+            final Party notary = states.get(0).getState().getNotary();
 
             // Now make the move. stateNext will be null if move is invalid. Bit lame since no hint why on failure.
-            TPMState stateNew = state.move(me, moveHint, src, dst);
+            final TPMState moved = state.move(me, moveHint, src, dst, capture);
+            final Instant now = getServiceHub().getClock().instant();
+            TPMDeadlines.checkDue(now, state);
 
             // Sanity check game and players, but we queried on these, so should be correct.
             requireThat(require -> {
                 require.using("GameId mismatch", state.getLinearId().getExternalId().equals(gameId));
                 require.using("Node Party should be player1 or player2", state.getPlayer1().equals(me) || state.getPlayer2().equals(me));
-                require.using("Move is invalid", null != stateNew);
+                require.using("Move is invalid", null != moved);
                 return null;
             });
 
@@ -121,8 +133,15 @@ public class TPMFlowMove {
             final Command<TPMContract.Commands.Move> txCommand = new Command<>(
                     new TPMContract.Commands.Move(),
                     ImmutableList.of(state.getPlayer1().getOwningKey(), state.getPlayer2().getOwningKey()));
-            final TransactionBuilder txBuilder = new TransactionBuilder(notary)
-                    .addInputState(states.get(0))
+            final TransactionBuilder txBuilder = new TransactionBuilder(notary);
+            // A timed game's move must be notarised by its deadline, and sets the deadline for the next.
+            TPMState stateNew = moved;
+            if (TPMDeadlines.isTimed(state)) {
+                final TimeWindow window = TPMDeadlines.window(now, Collections.singletonList(state));
+                txBuilder.setTimeWindow(window);
+                stateNew = TPMDeadlines.due(moved, window);
+            }
+            txBuilder.addInputState(states.get(0))
                     .addOutputState(stateNew, TPMContract.ID)
                     .addCommand(txCommand);
 
@@ -164,6 +183,19 @@ public class TPMFlowMove {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            // Turn the counterparty away before receiving anything if they have too many signings with us.
+            final Party counterparty = otherPartySession.getCounterparty();
+            final TPMAdmissionControl admission = getServiceHub().cordaService(TPMAdmissionControl.class);
+            admission.enter(getRunId(), counterparty, false);
+            try {
+                return sign();
+            } finally {
+                admission.leave(getRunId());
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction sign() throws FlowException {
 
             class SignTxFlow extends SignTransactionFlow {
                 private SignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
@@ -172,15 +204,14 @@ public class TPMFlowMove {
 
                 @Override
                 protected void checkTransaction(SignedTransaction stx) {
-
-                    // Query local vault for the input state.
+                    // SignTransactionFlow has verified the contract, so a Move that consumes the game moves it legally.
                     requireThat(require -> {
-                        // TODO : How can we validate the input here? Do we need to?
-                        ContractState output = stx.getTx().getOutputs().get(0).getData();
-                        require.using("This must be a board transaction.", output instanceof TPMState);
-                        // Any other constraints that are not covered in the contract for this party ??
-                        // TPMState iou = (TPMState) output;
-                        // require.using("I won't accept IOUs with a value over 100.", iou.getValue() <= 100);
+                        final List<Command<?>> commands = stx.getTx().getCommands();
+                        require.using("This must be a move.", (1 == commands.size()) && (commands.get(0).getValue() instanceof TPMContract.Commands.Move));
+                        require.using("A move must consume the game.", !stx.getTx().getInputs().isEmpty());
+                        for (ContractState output : stx.getTx().getOutputStates()) {
+                            require.using("This must be a board transaction.", output instanceof TPMState);
+                        }
                         return null;
                     });
                 }
@@ -0,0 +1,319 @@
+package com.assignment1.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.admission.TPMAdmissionControl;
+import com.assignment1.contract.TPMContract;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.state.TPMState;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.TimeWindow;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Flow for TPM to make moves in many games against the same opponent in one transaction.
+ *
+ * Each move is checked against the game rules first, moves that fail are left out and reported, the rest go
+ * into a single transaction signed by the opponent over one session and notarised once. The contract checks
+ * each game in the transaction on its own, see [TPMContract]. Games are spread over the notaries by
+ * [TPMNotarySelector], those not on the notary of the first game moved are left out, batch them separately.
+ * When timed games are moved the transaction's time window closes at the earliest of their deadlines.
+ *
+ * All methods called within the [FlowLogic] sub-class need to be annotated with the @Suspendable annotation.
+ */
+public class TPMFlowMoveBatch {
+
+    /**
+     * One move, as for [TPMFlowMove.Initiator].
+     */
+    @CordaSerializable
+    public static class Move {
+        private final String gameId;
+        private final String moveHint;
+        private final int src;
+        private final int dst;
+        private final int capture;
+
+        public Move(String gameId, String moveHint, int src, int dst) {
+            this(gameId, moveHint, src, dst, -1);
+        }
+
+        public Move(String gameId, String moveHint, int src, int dst, int capture) {
+            this.gameId = gameId;
+            this.moveHint = moveHint;
+            this.src = src;
+            this.dst = dst;
+            this.capture = capture;
+        }
+
+        public String getGameId() { return gameId; }
+
+        public String getMoveHint() { return moveHint; }
+
+        public int getSrc() { return src; }
+
+        public int getDst() { return dst; }
+
+        public int getCapture() { return capture; }
+    }
+
+    /**
+     * What happened to one move, error is null if it was made.
+     */
+    @CordaSerializable
+    public static class MoveResult {
+        private final String gameId;
+        private final boolean success;
+        private final String error;
+
+        public MoveResult(String gameId, boolean success, String error) {
+            this.gameId = gameId;
+            this.success = success;
+            this.error = error;
+        }
+
+        public String getGameId() { return gameId; }
+
+        public boolean getSuccess() { return success; }
+
+        public String getError() { return error; }
+
+        @Override
+        public String toString() {
+            return success ? String.format("%s moved", gameId) : String.format("%s failed : %s", gameId, error);
+        }
+    }
+
+    /**
+     * The results in the order the moves were given, and the transaction id, null if no move was made.
+     */
+    @CordaSerializable
+    public static class Result {
+        private final SecureHash txId;
+        private final List<MoveResult> moves;
+
+        public Result(SecureHash txId, List<MoveResult> moves) {
+            this.txId = txId;
+            this.moves = moves;
+        }
+
+        public SecureHash getTxId() { return txId; }
+
+        public List<MoveResult> getMoves() { return moves; }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class Initiator extends FlowLogic<Result> {
+
+        private final Party otherParty;
+        private final List<Move> moves;
+
+        private final ProgressTracker.Step CHECKING_MOVES = new ProgressTracker.Step("Checking moves against the game rules.");
+        private final ProgressTracker.Step GENERATING_TRANSACTION = new ProgressTracker.Step("Generating transaction for the moves.");
+        private final ProgressTracker.Step VERIFYING_TRANSACTION = new ProgressTracker.Step("Verifying contract constraints.");
+        private final ProgressTracker.Step SIGNING_TRANSACTION = new ProgressTracker.Step("Signing transaction with our private key.");
+        private final ProgressTracker.Step GATHERING_SIGS = new ProgressTracker.Step("Gathering the counterparty's signature.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final ProgressTracker.Step FINALISING_TRANSACTION = new ProgressTracker.Step("Obtaining notary signature and recording transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                CHECKING_MOVES,
+                GENERATING_TRANSACTION,
+                VERIFYING_TRANSACTION,
+                SIGNING_TRANSACTION,
+                GATHERING_SIGS,
+                FINALISING_TRANSACTION
+        );
+
+        public Initiator(Party otherParty, List<Move> moves) {
+            this.otherParty = otherParty;
+            this.moves = moves;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public Result call() throws FlowException {
+            final Party me = getOurIdentity();
+            final TPMGameIndex index = getServiceHub().cordaService(TPMGameIndex.class);
+
+            // Stage 1.
+            progressTracker.setCurrentStep(CHECKING_MOVES);
+
+            // Each move is made and checked as the contract will, so one bad move can't fail the others.
+            final String[] errors = new String[moves.size()];
+            final List<StateAndRef<TPMState>> inputs = new ArrayList<>();
+            final List<TPMState> outputs = new ArrayList<>();
+            final List<Integer> made = new ArrayList<>();
+            final Set<String> games = new HashSet<>();
+            // A transaction has one notary, the first game moved sets it.
+            Party notary = null;
+            boolean timed = false;
+            final Instant now = getServiceHub().getClock().instant();
+            for (int i=0; i<moves.size(); ++i) {
+                final Move move = moves.get(i);
+                try {
+                    final List<StateAndRef<TPMState>> states = index.find(move.getGameId());
+                    requireThat(require -> {
+                        require.using("Failed to find game on ledger", states.size() != 0);
+                        require.using("Should only be one game on ledger", states.size() == 1);
+                        require.using("Game is already in this batch", games.add(move.getGameId()));
+                        return null;
+                    });
+                    final StateAndRef<TPMState> stateAndRef = states.get(0);
+                    final TPMState state = stateAndRef.getState().getData();
+                    final Party gameNotary = stateAndRef.getState().getNotary();
+                    final boolean sameNotary = (null == notary) || notary.equals(gameNotary);
+                    requireThat(require -> {
+                        require.using("Node Party should be player1 or player2", state.getPlayer1().equals(me) || state.getPlayer2().equals(me));
+                        require.using("Game is against a different opponent", state.getPlayer1().equals(otherParty) || state.getPlayer2().equals(otherParty));
+                        require.using("Game uses a different notary", sameNotary);
+                        return null;
+                    });
+                    final TPMState stateNew = state.move(me, move.getMoveHint(), move.getSrc(), move.getDst(), move.getCapture());
+                    stateNew.checkInvariants();
+                    state.checkMove(stateNew);
+                    TPMDeadlines.checkDue(now, state);
+
+                    inputs.add(stateAndRef);
+                    outputs.add(stateNew);
+                    made.add(i);
+                    notary = gameNotary;
+                    timed |= TPMDeadlines.isTimed(state);
+                } catch (IllegalArgumentException e) {
+                    errors[i] = e.getMessage();
+                }
+            }
+
+            SecureHash txId = null;
+            if (!outputs.isEmpty()) {
+                // Stage 2.
+                progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+                final Command<TPMContract.Commands.Move> txCommand = new Command<>(
+                        new TPMContract.Commands.Move(),
+                        ImmutableList.of(me.getOwningKey(), otherParty.getOwningKey()));
+                final TransactionBuilder txBuilder = new TransactionBuilder(notary).addCommand(txCommand);
+                TimeWindow window = null;
+                if (timed) {
+                    final List<TPMState> moved = new ArrayList<>(inputs.size());
+                    inputs.forEach(input -> moved.add(input.getState().getData()));
+                    window = TPMDeadlines.window(now, moved);
+                    txBuilder.setTimeWindow(window);
+                }
+                for (int i=0; i<outputs.size(); ++i) {
+                    txBuilder.addInputState(inputs.get(i));
+                    txBuilder.addOutputState((null == window) ? outputs.get(i) : TPMDeadlines.due(outputs.get(i), window), TPMContract.ID);
+                }
+
+                // Stage 3.
+                progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+                txBuilder.verify(getServiceHub());
+
+                // Stage 4.
+                progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+                final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+                // Stage 5.
+                progressTracker.setCurrentStep(GATHERING_SIGS);
+                FlowSession otherPartySession = initiateFlow(otherParty);
+                final SignedTransaction fullySignedTx = subFlow(
+                        new CollectSignaturesFlow(partSignedTx, ImmutableSet.of(otherPartySession), CollectSignaturesFlow.Companion.tracker()));
+
+                // Stage 6.
+                progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+                txId = subFlow(new FinalityFlow(fullySignedTx, ImmutableSet.of(otherPartySession))).getId();
+            }
+
+            final List<MoveResult> results = new ArrayList<>(moves.size());
+            for (int i=0; i<moves.size(); ++i) {
+                results.add(new MoveResult(moves.get(i).getGameId(), null == errors[i], errors[i]));
+            }
+            return new Result(txId, results);
+        }
+    }
+
+    // This is the receiving party side for the above.
+    @InitiatedBy(Initiator.class)
+    public static class Acceptor extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartySession;
+
+        public Acceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            // Turn the counterparty away before receiving anything if they have too many signings with us.
+            final Party counterparty = otherPartySession.getCounterparty();
+            final TPMAdmissionControl admission = getServiceHub().cordaService(TPMAdmissionControl.class);
+            admission.enter(getRunId(), counterparty, false);
+            try {
+                return sign();
+            } finally {
+                admission.leave(getRunId());
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction sign() throws FlowException {
+
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
+                    super(otherPartyFlow, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require -> {
+                        final List<Command<?>> commands = stx.getTx().getCommands();
+                        require.using("This must be a move.", (1 == commands.size()) && (commands.get(0).getValue() instanceof TPMContract.Commands.Move));
+                        require.using("A move must consume the games.", !stx.getTx().getInputs().isEmpty());
+                        for (ContractState output : stx.getTx().getOutputStates()) {
+                            require.using("This must be a board transaction.", output instanceof TPMState);
+                        }
+                        return null;
+                    });
+                }
+            }
+
+            final SignTxFlow signTxFlow = new SignTxFlow(otherPartySession, SignTransactionFlow.Companion.tracker());
+            final SecureHash txId = subFlow(signTxFlow).getId();
+
+            return subFlow(new ReceiveFinalityFlow(otherPartySession, txId));
+        }
+    }
+}
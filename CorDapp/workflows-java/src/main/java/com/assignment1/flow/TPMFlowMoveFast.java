@@ -0,0 +1,210 @@
+package com.assignment1.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.assignment1.admission.TPMAdmissionControl;
+import com.assignment1.contract.TPMContract;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.state.TPMState;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.TimeWindow;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * Flow for TPM to make a move with as few messages and checkpoints as possible, otherwise as [TPMFlowMove].
+ *
+ * The opponent gets the proposed transaction and sends back just their signature in one round trip, we
+ * notarise and record it, then send them just the notary's signatures to record it too. That is three
+ * messages with the opponent, where [CollectSignaturesFlow] and [FinalityFlow] each run their own exchange
+ * and send the whole transaction back and forth. Neither side has a progress tracker, and each suspends
+ * only to wait for the other or the notary.
+ *
+ * Nothing is fetched from the initiator, the opponent checks the move against the game history it already
+ * has in its own storage, as both players record every move of a game.
+ *
+ * All methods called within the [FlowLogic] sub-class need to be annotated with the @Suspendable annotation.
+ */
+public class TPMFlowMoveFast {
+
+    /**
+     * The notary's signatures for the move, the last message to the opponent.
+     */
+    @CordaSerializable
+    public static class Notarised {
+        private final List<TransactionSignature> signatures;
+
+        public Notarised(List<TransactionSignature> signatures) {
+            this.signatures = signatures;
+        }
+
+        public List<TransactionSignature> getSignatures() { return signatures; }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class Initiator extends FlowLogic<SignedTransaction> {
+
+        private final String gameId;
+        private final String moveHint;
+        private final int src;
+        private final int dst;
+        private final int capture;
+
+        public Initiator(String gameId, String moveHint, int src, int dst) {
+            this(gameId, moveHint, src, dst, -1);
+        }
+
+        public Initiator(String gameId, String moveHint, int src, int dst, int capture) {
+            this.gameId = gameId;
+            this.moveHint = moveHint;
+            this.src = src;
+            this.dst = dst;
+            this.capture = capture;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final Party me = getOurIdentity();
+            final List<StateAndRef<TPMState>> states = getServiceHub().cordaService(TPMGameIndex.class).find(gameId);
+            requireThat(require -> {
+                require.using("Failed to find game on ledger", states.size() != 0);
+                require.using("Should only be one game on ledger", states.size() == 1);
+                return null;
+            });
+
+            final StateAndRef<TPMState> stateAndRef = states.get(0);
+            final TPMState state = stateAndRef.getState().getData();
+            final TPMState moved = state.move(me, moveHint, src, dst, capture);
+            requireThat(require -> {
+                require.using("Node Party should be player1 or player2", state.getPlayer1().equals(me) || state.getPlayer2().equals(me));
+                require.using("Move is invalid", null != moved);
+                return null;
+            });
+            final Instant now = getServiceHub().getClock().instant();
+            TPMDeadlines.checkDue(now, state);
+            final Party otherParty = state.getPlayer1().equals(me) ? state.getPlayer2() : state.getPlayer1();
+
+            final Command<TPMContract.Commands.Move> txCommand = new Command<>(
+                    new TPMContract.Commands.Move(),
+                    ImmutableList.of(state.getPlayer1().getOwningKey(), state.getPlayer2().getOwningKey()));
+            final TransactionBuilder txBuilder = new TransactionBuilder(stateAndRef.getState().getNotary());
+            TPMState stateNew = moved;
+            if (TPMDeadlines.isTimed(state)) {
+                final TimeWindow window = TPMDeadlines.window(now, Collections.singletonList(state));
+                txBuilder.setTimeWindow(window);
+                stateNew = TPMDeadlines.due(moved, window);
+            }
+            txBuilder.addInputState(stateAndRef)
+                    .addOutputState(stateNew, TPMContract.ID)
+                    .addCommand(txCommand);
+            txBuilder.verify(getServiceHub());
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+            // The proposal out and the opponent's signature back.
+            final FlowSession otherPartySession = initiateFlow(otherParty);
+            final TransactionSignature otherSig = otherPartySession.sendAndReceive(TransactionSignature.class, partSignedTx).unwrap(sig -> {
+                requireThat(require -> {
+                    require.using("Signature should be the opponent's", sig.getBy().equals(otherParty.getOwningKey()));
+                    return null;
+                });
+                try {
+                    sig.verify(partSignedTx.getId());
+                } catch (GeneralSecurityException e) {
+                    throw new FlowException("Opponent's signature is invalid", e);
+                }
+                return sig;
+            });
+            final SignedTransaction fullySignedTx = partSignedTx.withAdditionalSignature(otherSig);
+
+            // Notarise and record, then the opponent only needs the notary's signatures.
+            final List<TransactionSignature> notarySigs = subFlow(new NotaryFlow.Client(fullySignedTx));
+            final SignedTransaction notarisedTx = fullySignedTx.withAdditionalSignatures(notarySigs);
+            getServiceHub().recordTransactions(notarisedTx);
+            otherPartySession.send(new Notarised(notarySigs));
+            return notarisedTx;
+        }
+    }
+
+    // This is the receiving party side for the above.
+    @InitiatedBy(Initiator.class)
+    public static class Acceptor extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartySession;
+
+        public Acceptor(FlowSession otherPartySession) {
+            this.otherPartySession = otherPartySession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            // Turn the counterparty away before receiving anything if they have too many signings with us.
+            final Party counterparty = otherPartySession.getCounterparty();
+            final TPMAdmissionControl admission = getServiceHub().cordaService(TPMAdmissionControl.class);
+            admission.enter(getRunId(), counterparty, false);
+            try {
+                return sign();
+            } finally {
+                admission.leave(getRunId());
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction sign() throws FlowException {
+            final Party me = getOurIdentity();
+            final Party counterparty = otherPartySession.getCounterparty();
+            final SignedTransaction stx = otherPartySession.receive(SignedTransaction.class).unwrap(tx -> {
+                requireThat(require -> {
+                    final List<Command<?>> commands = tx.getTx().getCommands();
+                    require.using("This must be a move.", (1 == commands.size()) && (commands.get(0).getValue() instanceof TPMContract.Commands.Move));
+                    require.using("A move must consume the game.", !tx.getTx().getInputs().isEmpty());
+                    for (ContractState output : tx.getTx().getOutputStates()) {
+                        require.using("This must be a board transaction.", output instanceof TPMState);
+                        final TPMState state = (TPMState) output;
+                        require.using("Game should be between us", (state.getPlayer1().equals(me) && state.getPlayer2().equals(counterparty)) ||
+                                (state.getPlayer2().equals(me) && state.getPlayer1().equals(counterparty)));
+                    }
+                    return null;
+                });
+                return tx;
+            });
+
+            // Every signature but ours and the notary's must be there and valid, then the contract is checked
+            // against the inputs already in our storage.
+            try {
+                stx.verifySignaturesExcept(me.getOwningKey(), stx.getNotary().getOwningKey());
+                stx.toLedgerTransaction(getServiceHub(), false).verify();
+            } catch (SignatureException e) {
+                throw new FlowException("Initiator's signature is missing or invalid", e);
+            }
+            final TransactionSignature ourSig = getServiceHub().createSignature(stx);
+
+            final List<TransactionSignature> notarySigs = otherPartySession.sendAndReceive(Notarised.class, ourSig).unwrap(Notarised::getSignatures);
+            final SignedTransaction notarisedTx = stx.withAdditionalSignature(ourSig).withAdditionalSignatures(notarySigs);
+            try {
+                notarisedTx.verifyRequiredSignatures();
+            } catch (SignatureException e) {
+                throw new FlowException("Notary signature is missing or invalid", e);
+            }
+            getServiceHub().recordTransactions(notarisedTx);
+            return notarisedTx;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.assignment1.flow;
+
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.Party;
+
+import java.util.List;
+
+/**
+ * Picks the notary for a new game from those in the network map, so games are spread over all the notaries
+ * rather than all going through the first.
+ *
+ * The choice is a rendezvous hash of the gameId, each notary scores sha256(notary name + gameId) and the
+ * highest score wins. The same gameId always gets the same notary whatever order the network map lists them
+ * in, and adding a notary only moves the games it now wins. Only creation uses this, a game keeps the notary
+ * of its state for every move after.
+ */
+public final class TPMNotarySelector {
+
+    private TPMNotarySelector() {
+    }
+
+    public static Party select(List<Party> notaries, String gameId) {
+        if (notaries.isEmpty()) {
+            throw new IllegalArgumentException("No notaries in the network map");
+        }
+        Party selected = null;
+        long best = 0;
+        for (Party notary : notaries) {
+            final long score = score(notary, gameId);
+            // Ties go to the lower name so the order of the list never matters.
+            if ((null == selected) || (Long.compareUnsigned(score, best) > 0) ||
+                    ((score == best) && (notary.getName().toString().compareTo(selected.getName().toString()) < 0))) {
+                selected = notary;
+                best = score;
+            }
+        }
+        return selected;
+    }
+
+    private static long score(Party notary, String gameId) {
+        final byte[] hash = SecureHash.sha256(notary.getName().toString() + "/" + gameId).getBytes();
+        long score = 0;
+        for (int i=0; i<8; ++i) {
+            score = (score << 8) | (hash[i] & 0xff);
+        }
+        return score;
+    }
+}
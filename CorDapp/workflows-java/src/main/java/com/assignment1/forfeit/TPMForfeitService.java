@@ -0,0 +1,264 @@
+package com.assignment1.forfeit;
+
+import com.assignment1.flow.TPMFlowForfeit;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.state.TPMState;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node side timer for timed games, so that many games timing out together are forfeited in a few
+ * transactions rather than one flow with the opponent and the notary each.
+ *
+ * The service listens to the [TPMGameIndex] and keeps each game this node could claim, those where we are
+ * owed the move, on a timer wheel of window sized slots by its deadline. A game that moves on is put in the
+ * slot for its new deadline, the old slot is skipped when it comes round. Every window the slots that are due
+ * are drained, the games grouped by notary and one [TPMFlowForfeit.Initiator] started for each group of up to
+ * MAX_GAMES_PER_TRANSACTION. Nothing is checkpointed until a claim is made, and after a restart the index
+ * replays the unconsumed games so the wheel is rebuilt from the vault.
+ *
+ * A claim that fails, for example the notary's clock not yet past the deadline, is put back on the wheel
+ * after a backoff that doubles from one window up to maxBackoffMillis, until it is forfeited or the game
+ * moves on. In the CorDapp config for example:
+ * <pre>
+ * forfeit.windowMillis = 1000
+ * forfeit.maxBackoffMillis = 60000
+ * </pre>
+ */
+@CordaService
+public class TPMForfeitService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(TPMForfeitService.class);
+
+    public static final int MAX_GAMES_PER_TRANSACTION = 500;
+
+    private final AppServiceHub serviceHub;
+    private final Party me;
+    private final long windowMillis;
+    private final long maxBackoffMillis;
+    // Deadline of the latest state of each game we can claim.
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    // The timer wheel, gameIds by the window they are due in, guarded by itself.
+    private final TreeMap<Long, Set<String>> wheel = new TreeMap<>();
+    // Failed claims so far for each game, reset when it moves on.
+    private final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+    // Games in a forfeit flow.
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong forfeited = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong windows = new AtomicLong();
+
+    public TPMForfeitService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.me = serviceHub.getMyInfo().getLegalIdentities().get(0);
+
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.windowMillis = config.exists("forfeit.windowMillis") ? config.getLong("forfeit.windowMillis") : 1000L;
+        this.maxBackoffMillis = config.exists("forfeit.maxBackoffMillis") ? config.getLong("forfeit.maxBackoffMillis") : 60000L;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        TPMGameIndex.listen(serviceHub, scheduler, this::recorded);
+        scheduler.scheduleWithFixedDelay(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+
+        logger.info(String.format("TPMForfeitService claiming every %dms", windowMillis));
+    }
+
+    // Every game the index records, the wheel follows the deadline of the latest state.
+    private void recorded(StateAndRef<TPMState> stateAndRef) {
+        final TPMState state = stateAndRef.getState().getData();
+        final String gameId = state.getGameId();
+        if ((null == state.getDeadline()) || (TPMState.GameStatus.FINISHED == state.getGameStatus()) || !me.equals(state.getClaimant())) {
+            deadlines.remove(gameId);
+            attempts.remove(gameId);
+            return;
+        }
+        final long deadline = state.getDeadline().toEpochMilli();
+        final Long previous = deadlines.put(gameId, deadline);
+        // A state seen again, for example replayed by the index, is already on the wheel.
+        if (!Long.valueOf(deadline).equals(previous)) {
+            attempts.remove(gameId);
+            arm(gameId, deadline);
+        }
+    }
+
+    private void arm(String gameId, long dueMillis) {
+        synchronized (wheel) {
+            wheel.computeIfAbsent(dueMillis / windowMillis, slot -> new HashSet<>()).add(gameId);
+        }
+    }
+
+    /**
+     * Runs one window, draining the slots that are due and starting the forfeit flows. Called by the
+     * scheduler every window.
+     */
+    public void flush() {
+        try {
+            windows.incrementAndGet();
+            final long now = serviceHub.getClock().millis();
+            final Set<String> due = new LinkedHashSet<>();
+            synchronized (wheel) {
+                for (Map.Entry<Long, Set<String>> slot = wheel.firstEntry(); (null != slot) && (slot.getKey() <= now / windowMillis); slot = wheel.firstEntry()) {
+                    wheel.pollFirstEntry();
+                    due.addAll(slot.getValue());
+                }
+            }
+
+            final TPMGameIndex index = serviceHub.cordaService(TPMGameIndex.class);
+            final Map<Party, List<String>> byNotary = new LinkedHashMap<>();
+            for (String gameId : due) {
+                final Long deadline = deadlines.get(gameId);
+                // Finished, moved on to the opponent, or already being claimed.
+                if ((null == deadline) || inFlight.contains(gameId)) {
+                    continue;
+                }
+                // Moved on to a later deadline, or due later in the same slot.
+                if (deadline > now) {
+                    arm(gameId, deadline);
+                    continue;
+                }
+                final List<StateAndRef<TPMState>> states = index.find(gameId);
+                if (1 != states.size()) {
+                    deadlines.remove(gameId);
+                    continue;
+                }
+                inFlight.add(gameId);
+                claimed.incrementAndGet();
+                byNotary.computeIfAbsent(states.get(0).getState().getNotary(), notary -> new ArrayList<>()).add(gameId);
+            }
+
+            for (List<String> all : byNotary.values()) {
+                for (int from=0; from<all.size(); from+=MAX_GAMES_PER_TRANSACTION) {
+                    final List<String> chunk = new ArrayList<>(all.subList(from, Math.min(all.size(), from + MAX_GAMES_PER_TRANSACTION)));
+                    serviceHub.startFlow(new TPMFlowForfeit.Initiator(chunk))
+                            .getReturnValue()
+                            .then(future -> {
+                                finished(chunk, future);
+                                return null;
+                            });
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Forfeit window failed", e);
+        }
+    }
+
+    private void finished(List<String> chunk, CordaFuture<TPMFlowForfeit.Result> future) {
+        try {
+            final TPMFlowForfeit.Result result = future.get();
+            if (null != result.getTxId()) {
+                transactions.incrementAndGet();
+            }
+            for (TPMFlowForfeit.Claim claim : result.getClaims()) {
+                if (claim.getSuccess()) {
+                    done(claim.getGameId());
+                } else {
+                    retry(claim.getGameId(), claim.getError());
+                }
+            }
+        } catch (Exception e) {
+            logger.warn(String.format("Failed to forfeit %d games : %s", chunk.size(), e.getMessage()));
+            for (String gameId : chunk) {
+                retry(gameId, e.getMessage());
+            }
+        }
+    }
+
+    private void done(String gameId) {
+        inFlight.remove(gameId);
+        attempts.remove(gameId);
+        deadlines.remove(gameId);
+        forfeited.incrementAndGet();
+    }
+
+    // Back on the wheel after the backoff, a game that has moved on is dropped when its slot comes round.
+    private void retry(String gameId, String error) {
+        final int attempt = attempts.merge(gameId, 1, Integer::sum);
+        final long backoff = Math.min(windowMillis << Math.min(attempt - 1, 20), maxBackoffMillis);
+        failed.incrementAndGet();
+        logger.info(String.format("Game %s not forfeited, attempt %d, retrying in %dms : %s", gameId, attempt, backoff, error));
+        arm(gameId, serviceHub.getClock().millis() + backoff);
+        inFlight.remove(gameId);
+    }
+
+    public Metrics getMetrics() {
+        return new Metrics(
+                Math.max(0, deadlines.size() - inFlight.size()),
+                inFlight.size(),
+                claimed.get(),
+                forfeited.get(),
+                failed.get(),
+                transactions.get(),
+                windows.get());
+    }
+
+    /**
+     * Snapshot of the forfeit counters, returned over RPC by [TPMFlowMetrics]. Queued counts the timed
+     * games we could claim waiting on the wheel, pending those in a forfeit flow, failed the claims put back
+     * on the wheel to retry.
+     */
+    @CordaSerializable
+    public static class Metrics {
+        private final int queued;
+        private final int pending;
+        private final long claimed;
+        private final long forfeited;
+        private final long failed;
+        private final long transactions;
+        private final long windows;
+
+        public Metrics(int queued, int pending, long claimed, long forfeited, long failed, long transactions, long windows) {
+            this.queued = queued;
+            this.pending = pending;
+            this.claimed = claimed;
+            this.forfeited = forfeited;
+            this.failed = failed;
+            this.transactions = transactions;
+            this.windows = windows;
+        }
+
+        public int getQueued() { return queued; }
+
+        public int getPending() { return pending; }
+
+        public long getClaimed() { return claimed; }
+
+        public long getForfeited() { return forfeited; }
+
+        public long getFailed() { return failed; }
+
+        public long getTransactions() { return transactions; }
+
+        public long getWindows() { return windows; }
+
+        @Override
+        public String toString() {
+            return String.format("queued=%d, pending=%d, claimed=%d, forfeited=%d, failed=%d, transactions=%d, windows=%d",
+                    queued, pending, claimed, forfeited, failed, transactions, windows);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.assignment1.index;
+
+import com.assignment1.state.TPMResultState;
+import com.assignment1.state.TPMState;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.MAX_PAGE_SIZE;
+
+/**
+ * In memory index from gameId to the latest unconsumed [TPMState] of each game this node plays, so the
+ * create and move flows don't run a vault query for every move.
+ *
+ * The index is loaded from the vault when the node starts and then follows the vault updates, a game's
+ * entry is dropped when its state is consumed and replaced by the state produced. Finished games stay in
+ * the index as they stay unconsumed in the vault, which keeps gameIds unique. Once archived only the gameId
+ * of a game is kept, from its [TPMResultState], for the same reason. A lookup for a game not in the index
+ * falls back to the vault query the flows used to run, and the result is indexed.
+ *
+ * The snapshot is indexed before any update and updates are applied in the order the vault recorded them,
+ * so the state an update produces always replaces the one indexed, a forfeit included. The index's feed is
+ * the node's only vault feed of game states, the other services [listen] to it rather than track the vault.
+ */
+@CordaService
+public class TPMGameIndex extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(TPMGameIndex.class);
+
+    private static final long INSTALL_RETRY_MILLIS = 100L;
+
+    private final AppServiceHub serviceHub;
+    private final Party me;
+    private final Map<String, StateAndRef<TPMState>> games = new ConcurrentHashMap<>();
+    // Games on this node that it doesn't play, for example as an observer.
+    private final Map<String, StateAndRef<TPMState>> watched = new ConcurrentHashMap<>();
+    // The unfinished games with each counterparty.
+    private final Map<Party, Set<String>> open = new ConcurrentHashMap<>();
+    private final Set<String> archived = ConcurrentHashMap.newKeySet();
+    private final List<Consumer<StateAndRef<TPMState>>> listeners = new CopyOnWriteArrayList<>();
+    // Guards the index against the listeners, so each sees the games then every update in order.
+    private final Object lock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private volatile long lastUpdate = System.nanoTime();
+
+    public TPMGameIndex(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.me = serviceHub.getMyInfo().getLegalIdentities().get(0);
+
+        // The snapshot and updates leave no gap, an update waits for the snapshot to be indexed.
+        synchronized (lock) {
+            final DataFeed<Vault.Page<TPMState>, Vault.Update<TPMState>> feed = serviceHub.getVaultService().trackBy(
+                    TPMState.class,
+                    new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED),
+                    new PageSpecification(DEFAULT_PAGE_NUM, MAX_PAGE_SIZE));
+            feed.getUpdates().subscribe(this::update);
+            feed.getSnapshot().getStates().forEach(this::index);
+        }
+
+        final DataFeed<Vault.Page<TPMResultState>, Vault.Update<TPMResultState>> results = serviceHub.getVaultService().trackBy(
+                TPMResultState.class,
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED),
+                new PageSpecification(DEFAULT_PAGE_NUM, MAX_PAGE_SIZE));
+        results.getUpdates().subscribe(update -> update.getProduced().forEach(result -> archived.add(result.getState().getData().getGameId())));
+        results.getSnapshot().getStates().forEach(result -> archived.add(result.getState().getData().getGameId()));
+
+        logger.info(String.format("TPMGameIndex loaded %d games and %d archived for %s", games.size(), archived.size(), me));
+    }
+
+    private void update(Vault.Update<TPMState> update) {
+        synchronized (lock) {
+            for (StateAndRef<TPMState> consumed : update.getConsumed()) {
+                final String gameId = consumed.getState().getData().getGameId();
+                // Anything other than the consumed state here means the index had fallen behind or got ahead.
+                if (!games.remove(gameId, consumed) && games.containsKey(gameId)) {
+                    stale.incrementAndGet();
+                }
+                watched.remove(gameId, consumed);
+            }
+            for (StateAndRef<TPMState> produced : update.getProduced()) {
+                index(produced);
+                for (Consumer<StateAndRef<TPMState>> listener : listeners) {
+                    notify(listener, produced);
+                }
+            }
+            updates.incrementAndGet();
+            lastUpdate = System.nanoTime();
+        }
+    }
+
+    // The latest recorded state of a game replaces the one indexed, called holding the lock.
+    private void index(StateAndRef<TPMState> stateAndRef) {
+        final TPMState state = stateAndRef.getState().getData();
+        final Party opponent = me.equals(state.getPlayer1()) ? state.getPlayer2() : me.equals(state.getPlayer2()) ? state.getPlayer1() : null;
+        if (null == opponent) {
+            watched.put(state.getGameId(), stateAndRef);
+            return;
+        }
+        games.put(state.getGameId(), stateAndRef);
+        final Set<String> openGames = open.computeIfAbsent(opponent, party -> ConcurrentHashMap.newKeySet());
+        if (TPMState.GameStatus.FINISHED == state.getGameStatus()) {
+            openGames.remove(state.getGameId());
+        } else {
+            openGames.add(state.getGameId());
+        }
+    }
+
+    private static void notify(Consumer<StateAndRef<TPMState>> listener, StateAndRef<TPMState> stateAndRef) {
+        try {
+            listener.accept(stateAndRef);
+        } catch (RuntimeException e) {
+            logger.error(String.format("Index listener failed for game '%s'", stateAndRef.getState().getData().getGameId()), e);
+        }
+    }
+
+    /**
+     * Give the listener every unconsumed game state on the node, played or not, then each state produced
+     * from now on in the order the vault records them. The listener runs on the vault's thread holding the
+     * index, so it should only note the state and hand any work off.
+     */
+    public void listen(Consumer<StateAndRef<TPMState>> listener) {
+        synchronized (lock) {
+            games.values().forEach(stateAndRef -> notify(listener, stateAndRef));
+            watched.values().forEach(stateAndRef -> notify(listener, stateAndRef));
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * [listen] from another service's constructor. Services are installed in no set order, so the index may
+     * not be there yet, the lookup is tried on the executor until it is.
+     */
+    public static void listen(AppServiceHub serviceHub, ScheduledExecutorService executor, Consumer<StateAndRef<TPMState>> listener) {
+        executor.execute(() -> {
+            try {
+                serviceHub.cordaService(TPMGameIndex.class).listen(listener);
+            } catch (IllegalArgumentException e) {
+                executor.schedule(() -> listen(serviceHub, executor, listener), INSTALL_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    // Unfinished games with the counterparty.
+    public int openGames(Party counterparty) {
+        final Set<String> openGames = open.get(counterparty);
+        return (null == openGames) ? 0 : openGames.size();
+    }
+
+    // Unfinished games with every counterparty.
+    public int openGames() {
+        int count = 0;
+        for (Set<String> openGames : open.values()) {
+            count += openGames.size();
+        }
+        return count;
+    }
+
+    /**
+     * The unconsumed states for the game, at most one when found in the index. On a miss the vault is
+     * queried by gameId with this node as a participant, as the flows did before the index.
+     */
+    public List<StateAndRef<TPMState>> find(String gameId) {
+        final StateAndRef<TPMState> indexed = games.get(gameId);
+        if (null != indexed) {
+            hits.incrementAndGet();
+            return Collections.singletonList(indexed);
+        }
+        misses.incrementAndGet();
+
+        final QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(ImmutableList.of(me), null, ImmutableList.of(gameId));
+        final List<StateAndRef<TPMState>> states = serviceHub.getVaultService().queryBy(TPMState.class, queryCriteria).getStates();
+        // An update may have indexed a later state since the query ran.
+        if (1 == states.size()) {
+            synchronized (lock) {
+                if (!games.containsKey(gameId)) {
+                    index(states.get(0));
+                }
+            }
+        }
+        return states;
+    }
+
+    /**
+     * True if the game is on the ledger. The index holds every unconsumed game from startup on, so the
+     * answer comes from memory, for the create flow to keep gameIds unique without a vault query.
+     */
+    public boolean exists(String gameId) {
+        if (games.containsKey(gameId) || archived.contains(gameId)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    // The gameIds already on the ledger, as [exists] for many games in one lookup.
+    public Set<String> existing(Collection<String> gameIds) {
+        final Set<String> found = new HashSet<>();
+        for (String gameId : gameIds) {
+            if (games.containsKey(gameId) || archived.contains(gameId)) {
+                found.add(gameId);
+            }
+        }
+        hits.addAndGet(found.size());
+        misses.addAndGet(gameIds.size() - found.size());
+        return found;
+    }
+
+    public Metrics getMetrics() {
+        return new Metrics(
+                games.size(),
+                hits.get(),
+                misses.get(),
+                stale.get(),
+                updates.get(),
+                (System.nanoTime() - lastUpdate) / 1000000L);
+    }
+
+    /**
+     * Snapshot of the index counters, returned over RPC by [TPMFlowMetrics].
+     */
+    @CordaSerializable
+    public static class Metrics {
+        private final int games;
+        private final long hits;
+        private final long misses;
+        private final long stale;
+        private final long updates;
+        private final long millisSinceUpdate;
+
+        public Metrics(int games, long hits, long misses, long stale, long updates, long millisSinceUpdate) {
+            this.games = games;
+            this.hits = hits;
+            this.misses = misses;
+            this.stale = stale;
+            this.updates = updates;
+            this.millisSinceUpdate = millisSinceUpdate;
+        }
+
+        public int getGames() { return games; }
+
+        public long getHits() { return hits; }
+
+        public long getMisses() { return misses; }
+
+        public long getStale() { return stale; }
+
+        public long getUpdates() { return updates; }
+
+        public long getMillisSinceUpdate() { return millisSinceUpdate; }
+
+        @Override
+        public String toString() {
+            return String.format("games=%d, hits=%d, misses=%d, stale=%d, updates=%d, millisSinceUpdate=%d",
+                    games, hits, misses, stale, updates, millisSinceUpdate);
+        }
+    }
+}
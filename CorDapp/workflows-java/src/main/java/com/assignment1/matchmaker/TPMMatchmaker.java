@@ -0,0 +1,422 @@
+package com.assignment1.matchmaker;
+
+import com.assignment1.flow.TPMFlowCreateBatch;
+import com.assignment1.flow.TPMFlowMatch;
+import com.assignment1.state.TPMVariant;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node side matchmaker that pairs players who registered with [TPMFlowMatch.Register] and has their
+ * games created.
+ *
+ * Registrations go onto a lock free queue for their board. Every batch window the queues are drained and
+ * paired, in the order players registered or, with pairBy = "rating", each with the nearest rating. The
+ * player who waited longer creates the game. Each joining player is sent its pairings in one
+ * [TPMFlowMatch.Pair] flow first, then each creating player is sent those the joiners claimed in another,
+ * and makes all its games with one [TPMFlowCreateBatch]. Anyone left over waits for the next window, as
+ * does a player paired with itself.
+ *
+ * Any node can register with a matchmaker, but only a node with the matchmaker enabled pairs them, in the
+ * CorDapp config for example:
+ * <pre>
+ * matchmaker.enabled = true
+ * matchmaker.windowMillis = 1000
+ * matchmaker.pairBy = "rating"
+ * </pre>
+ * A player node counts its registrations with each matchmaker by board, and accepts only as many pairings
+ * from it as it has registrations left. It holds the games it claimed to join by gameId until they are
+ * created, and refuses to sign any other matched game. Both are in memory, so registrations and pairings
+ * outstanding when the node restarts are lost and the player registers again.
+ */
+@CordaService
+public class TPMMatchmaker extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(TPMMatchmaker.class);
+
+    private final AppServiceHub serviceHub;
+    private final boolean enabled;
+    private final boolean byRating;
+    private final long windowMillis;
+    private final Map<TPMVariant, ConcurrentLinkedQueue<Entry>> queues = new EnumMap<>(TPMVariant.class);
+    private final ScheduledExecutorService scheduler;
+
+    // Registrations this node has outstanding with each matchmaker, by board ordinal.
+    private final Map<Party, int[]> registrations = new ConcurrentHashMap<>();
+    // Games this node claimed to join, by gameId to the player who is to create them.
+    private final Map<String, Party> joining = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong registered = new AtomicLong();
+    private final AtomicLong paired = new AtomicLong();
+    private final AtomicLong gamesCreated = new AtomicLong();
+    private final AtomicLong gamesFailed = new AtomicLong();
+    private final AtomicLong pairingsRejected = new AtomicLong();
+    private final AtomicLong windows = new AtomicLong();
+    private final AtomicLong waitMillisTotal = new AtomicLong();
+    private final AtomicLong waitMillisMax = new AtomicLong();
+
+    // One registration waiting to be paired.
+    private static class Entry {
+        private final Party player;
+        private final int rating;
+        private final long registered;
+
+        private Entry(Party player, int rating, long registered) {
+            this.player = player;
+            this.rating = rating;
+            this.registered = registered;
+        }
+    }
+
+    /**
+     * A game for the creating node to make, with the opponent it was paired with.
+     */
+    @CordaSerializable
+    public static class Pairing {
+        private final Party opponent;
+        private final String gameId;
+        private final TPMVariant variant;
+
+        public Pairing(Party opponent, String gameId, TPMVariant variant) {
+            this.opponent = opponent;
+            this.gameId = gameId;
+            this.variant = variant;
+        }
+
+        public Party getOpponent() { return opponent; }
+
+        public String getGameId() { return gameId; }
+
+        public TPMVariant getVariant() { return variant; }
+    }
+
+    public TPMMatchmaker(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.enabled = config.exists("matchmaker.enabled") && config.getBoolean("matchmaker.enabled");
+        this.byRating = config.exists("matchmaker.pairBy") && "rating".equals(config.getString("matchmaker.pairBy"));
+        this.windowMillis = config.exists("matchmaker.windowMillis") ? config.getLong("matchmaker.windowMillis") : 1000L;
+        for (TPMVariant variant : TPMVariant.values()) {
+            queues.put(variant, new ConcurrentLinkedQueue<>());
+        }
+
+        if (!enabled) {
+            this.scheduler = null;
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::pair, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+
+        logger.info(String.format("TPMMatchmaker pairing by %s every %dms", byRating ? "rating" : "queue order", windowMillis));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queue a player for a game on the board, called by the matchmaker's side of [TPMFlowMatch.Register].
+     */
+    public void register(Party player, TPMVariant variant, int rating) {
+        queues.get(variant).add(new Entry(player, rating, System.currentTimeMillis()));
+        queued.incrementAndGet();
+        registered.incrementAndGet();
+    }
+
+    // Called by [TPMFlowMatch.Register] on the player's node, one more pairing will be accepted on the board.
+    public void registeredWith(Party matchmaker, TPMVariant variant) {
+        final int[] counts = registrations.computeIfAbsent(matchmaker, party -> new int[TPMVariant.values().length]);
+        synchronized (counts) {
+            ++counts[variant.ordinal()];
+        }
+    }
+
+    // The registration never reached the matchmaker.
+    public void unregisteredWith(Party matchmaker, TPMVariant variant) {
+        take(registrations.get(matchmaker), variant);
+    }
+
+    private static boolean take(int[] counts, TPMVariant variant) {
+        if (null == counts) {
+            return false;
+        }
+        synchronized (counts) {
+            if (0 == counts[variant.ordinal()]) {
+                return false;
+            }
+            --counts[variant.ordinal()];
+            return true;
+        }
+    }
+
+    /**
+     * Uses up one registration with the matchmaker for each pairing, returns the pairings there was a
+     * registration for, the rest are rejected.
+     */
+    public List<Pairing> claim(Party matchmaker, List<Pairing> pairings) {
+        final int[] counts = registrations.get(matchmaker);
+        final List<Pairing> claimed = new ArrayList<>(pairings.size());
+        for (Pairing pairing : pairings) {
+            if (take(counts, pairing.getVariant())) {
+                claimed.add(pairing);
+            } else {
+                pairingsRejected.incrementAndGet();
+                logger.warn(String.format("Rejected pairing %s from %s, no registration left for %s", pairing.getGameId(), matchmaker, pairing.getVariant()));
+            }
+        }
+        return claimed;
+    }
+
+    // Hold the claimed pairings to join until their creator proposes them.
+    public void join(List<Pairing> pairings) {
+        for (Pairing pairing : pairings) {
+            joining.put(pairing.getGameId(), pairing.getOpponent());
+        }
+    }
+
+    // True if this node claimed a pairing to join the game created by the creator.
+    public boolean isJoining(Party creator, String gameId) {
+        return creator.equals(joining.get(gameId));
+    }
+
+    // The game was created, its pairing is used.
+    public void joined(String gameId) {
+        joining.remove(gameId);
+    }
+
+    /**
+     * Runs one batch window, draining each queue and pairing what was waiting, the unpaired go back on the
+     * queue. Called by the scheduler every window.
+     */
+    public void pair() {
+        try {
+            windows.incrementAndGet();
+            final Map<Party, List<Pairing>> byCreator = new LinkedHashMap<>();
+            final Map<Party, List<Pairing>> byJoiner = new LinkedHashMap<>();
+            final long now = System.currentTimeMillis();
+            for (Map.Entry<TPMVariant, ConcurrentLinkedQueue<Entry>> queue : queues.entrySet()) {
+                final List<Entry> waiting = new ArrayList<>();
+                for (Entry entry = queue.getValue().poll(); null != entry; entry = queue.getValue().poll()) {
+                    queued.decrementAndGet();
+                    waiting.add(entry);
+                }
+                if (byRating) {
+                    waiting.sort(Comparator.comparingInt(entry -> entry.rating));
+                }
+                final List<Entry> leftOver = new ArrayList<>();
+                Entry candidate = null;
+                for (Entry entry : waiting) {
+                    if (null == candidate) {
+                        candidate = entry;
+                    } else if (candidate.player.equals(entry.player)) {
+                        leftOver.add(entry);
+                    } else {
+                        final Entry first = (candidate.registered <= entry.registered) ? candidate : entry;
+                        final Entry second = (first == candidate) ? entry : candidate;
+                        final String gameId = "match-" + UUID.randomUUID();
+                        byCreator.computeIfAbsent(first.player, player -> new ArrayList<>())
+                                .add(new Pairing(second.player, gameId, queue.getKey()));
+                        byJoiner.computeIfAbsent(second.player, player -> new ArrayList<>())
+                                .add(new Pairing(first.player, gameId, queue.getKey()));
+                        waited(now - first.registered);
+                        waited(now - second.registered);
+                        paired.incrementAndGet();
+                        candidate = null;
+                    }
+                }
+                if (null != candidate) {
+                    leftOver.add(candidate);
+                }
+                queue.getValue().addAll(leftOver);
+                queued.addAndGet(leftOver.size());
+            }
+
+            // The creators are sent their pairings once every joiner has claimed or turned away its own.
+            final Set<String> refused = ConcurrentHashMap.newKeySet();
+            final AtomicInteger joiners = new AtomicInteger(byJoiner.size());
+            if (byJoiner.isEmpty()) {
+                create(byCreator, refused);
+            }
+            for (Map.Entry<Party, List<Pairing>> entry : byJoiner.entrySet()) {
+                final Party player = entry.getKey();
+                final List<Pairing> pairings = entry.getValue();
+                serviceHub.startFlow(new TPMFlowMatch.Pair(player, new TPMFlowMatch.Pairings(new ArrayList<>(), pairings)))
+                        .getReturnValue()
+                        .then(future -> {
+                            joined(player, pairings, future, refused);
+                            if (0 == joiners.decrementAndGet()) {
+                                create(byCreator, refused);
+                            }
+                            return null;
+                        });
+            }
+        } catch (RuntimeException e) {
+            logger.error("Matchmaking window failed", e);
+        }
+    }
+
+    // Sends each creator the pairings its joiners didn't refuse.
+    private void create(Map<Party, List<Pairing>> byCreator, Set<String> refused) {
+        try {
+            for (Map.Entry<Party, List<Pairing>> entry : byCreator.entrySet()) {
+                final Party player = entry.getKey();
+                final List<Pairing> pairings = new ArrayList<>(entry.getValue());
+                pairings.removeIf(pairing -> refused.contains(pairing.getGameId()));
+                if (pairings.isEmpty()) {
+                    continue;
+                }
+                serviceHub.startFlow(new TPMFlowMatch.Pair(player, new TPMFlowMatch.Pairings(pairings, new ArrayList<>())))
+                        .getReturnValue()
+                        .then(future -> {
+                            created(player, pairings, future);
+                            return null;
+                        });
+            }
+        } catch (RuntimeException e) {
+            logger.error("Matchmaking window failed", e);
+        }
+    }
+
+    // The joiner's result lists only the pairings it turned away, those games fail without being created.
+    private void joined(Party joiner, List<Pairing> pairings, CordaFuture<TPMFlowCreateBatch.Result> future, Set<String> refused) {
+        try {
+            for (TPMFlowCreateBatch.GameResult game : future.get().getGames()) {
+                refused.add(game.getGameId());
+                gamesFailed.incrementAndGet();
+                logger.warn(String.format("Matched game %s refused by %s : %s", game.getGameId(), joiner, game.getError()));
+            }
+        } catch (Exception e) {
+            for (Pairing pairing : pairings) {
+                refused.add(pairing.getGameId());
+            }
+            gamesFailed.addAndGet(pairings.size());
+            logger.warn(String.format("Failed to send pairings to %s with %d matched games to join : %s", joiner, pairings.size(), e.getMessage()));
+        }
+    }
+
+    private void waited(long millis) {
+        waitMillisTotal.addAndGet(millis);
+        waitMillisMax.accumulateAndGet(millis, Math::max);
+    }
+
+    private void created(Party creator, List<Pairing> pairings, CordaFuture<TPMFlowCreateBatch.Result> future) {
+        try {
+            for (TPMFlowCreateBatch.GameResult game : future.get().getGames()) {
+                if (game.getSuccess()) {
+                    gamesCreated.incrementAndGet();
+                } else {
+                    gamesFailed.incrementAndGet();
+                    logger.warn(String.format("Matched game %s not created : %s", game.getGameId(), game.getError()));
+                }
+            }
+        } catch (Exception e) {
+            gamesFailed.addAndGet(pairings.size());
+            logger.warn(String.format("Failed to send pairings to %s with %d matched games to create : %s", creator, pairings.size(), e.getMessage()));
+        }
+    }
+
+    public Metrics getMetrics() {
+        final long players = 2 * paired.get();
+        return new Metrics(
+                enabled,
+                queued.get(),
+                registered.get(),
+                paired.get(),
+                gamesCreated.get(),
+                gamesFailed.get(),
+                pairingsRejected.get(),
+                windows.get(),
+                (0 == players) ? 0L : waitMillisTotal.get() / players,
+                waitMillisMax.get());
+    }
+
+    /**
+     * Snapshot of the matchmaker's counters, returned over RPC by [TPMFlowMetrics]. Queue wait is
+     * from registration to pairing, pairingsRejected counts pairings this node turned away as a player.
+     */
+    @CordaSerializable
+    public static class Metrics {
+        private final boolean enabled;
+        private final int queued;
+        private final long registered;
+        private final long paired;
+        private final long gamesCreated;
+        private final long gamesFailed;
+        private final long pairingsRejected;
+        private final long windows;
+        private final long averageWaitMillis;
+        private final long maxWaitMillis;
+
+        public Metrics(boolean enabled,
+                       int queued,
+                       long registered,
+                       long paired,
+                       long gamesCreated,
+                       long gamesFailed,
+                       long pairingsRejected,
+                       long windows,
+                       long averageWaitMillis,
+                       long maxWaitMillis) {
+            this.enabled = enabled;
+            this.queued = queued;
+            this.registered = registered;
+            this.paired = paired;
+            this.gamesCreated = gamesCreated;
+            this.gamesFailed = gamesFailed;
+            this.pairingsRejected = pairingsRejected;
+            this.windows = windows;
+            this.averageWaitMillis = averageWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        public boolean getEnabled() { return enabled; }
+
+        public int getQueued() { return queued; }
+
+        public long getRegistered() { return registered; }
+
+        public long getPaired() { return paired; }
+
+        public long getGamesCreated() { return gamesCreated; }
+
+        public long getGamesFailed() { return gamesFailed; }
+
+        public long getPairingsRejected() { return pairingsRejected; }
+
+        public long getWindows() { return windows; }
+
+        public long getAverageWaitMillis() { return averageWaitMillis; }
+
+        public long getMaxWaitMillis() { return maxWaitMillis; }
+
+        @Override
+        public String toString() {
+            return String.format("enabled=%s, queued=%d, registered=%d, paired=%d, gamesCreated=%d, gamesFailed=%d, pairingsRejected=%d, windows=%d, averageWaitMillis=%d, maxWaitMillis=%d",
+                    enabled, queued, registered, paired, gamesCreated, gamesFailed, pairingsRejected, windows, averageWaitMillis, maxWaitMillis);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.assignment1.tablebase;
+
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMTransitions;
+import com.assignment1.state.TPMVariant;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only, memory mapped Three Person's Morris (TPM) tablebase written by [TPMTablebaseGenerator].
+ *
+ * Every position is a board (one mask per player) and the side to move, tokens in hand follow from the
+ * number of tokens on the board. Each position has a two byte entry holding the result for the side to
+ * move and the number of moves (plies) to that result with best play. Lookups read the mapped file
+ * directly, nothing is copied onto the heap.
+ */
+public class TPMTablebase {
+
+    public enum Result {INVALID, WIN, LOSS, DRAW};
+    private static final Result[] RESULTS = Result.values();
+
+    public static final int MAGIC = 0x54504D54; // "TPMT"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 16;
+    public static final int ENTRY_SIZE = 2;
+
+    // Positions are indexed by their packed code, see [TPMTransitions.index].
+    public static final int POSITIONS = TPMTransitions.POSITIONS;
+
+    private final MappedByteBuffer buffer;
+
+    private TPMTablebase(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Map a tablebase file. The mapping stays valid after the channel is closed.
+     */
+    public static TPMTablebase open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = HEADER_SIZE + (long)POSITIONS * ENTRY_SIZE;
+            if (channel.size() != size) {
+                throw new IOException(String.format("Tablebase %s has size %d, expected %d", path, channel.size(), size));
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if ((MAGIC != buffer.getInt(0)) || (VERSION != buffer.getInt(4)) || (POSITIONS != buffer.getInt(8))) {
+                throw new IOException(String.format("Tablebase %s has an unknown header", path));
+            }
+            return new TPMTablebase(buffer);
+        }
+    }
+
+    public static int index(int player1Mask, int player2Mask, boolean player1ToMove) {
+        return TPMTransitions.index(player1Mask, player2Mask, player1ToMove);
+    }
+
+    public static short entry(Result result, int distance) {
+        return (short)((result.ordinal() << 14) | (distance & 0x3FFF));
+    }
+
+    public static Result result(short entry) {
+        return RESULTS[(entry >> 14) & 0x3];
+    }
+
+    public static int distance(short entry) {
+        return entry & 0x3FFF;
+    }
+
+    public short probe(int player1Mask, int player2Mask, boolean player1ToMove) {
+        return buffer.getShort(HEADER_SIZE + ENTRY_SIZE * index(player1Mask, player2Mask, player1ToMove));
+    }
+
+    public short probe(TPMState state) {
+        if (TPMVariant.THREE != state.getVariant()) {
+            return entry(Result.INVALID, 0);
+        }
+        return probe(state.getPlayer1Mask(), state.getPlayer2Mask(), state.isPlayer1Next());
+    }
+
+    /**
+     * Best move for the player next to move in state. Wins are taken as quickly as possible, losses
+     * held off for as long as possible. The file only knows the board, so a result that would land after
+     * the move limit, or a move that repeats the position for the last time, is scored as the draw it is.
+     * @return The move index, see [TPMState.moveSource] and [TPMState.moveDestination], -1 if there are no legal moves.
+     */
+    public int bestMove(TPMState state) {
+        if (TPMVariant.THREE != state.getVariant()) {
+            return -1;
+        }
+        final boolean player1ToMove = state.isPlayer1Next();
+        final int mover = player1ToMove ? state.getPlayer1Mask() : state.getPlayer2Mask();
+        final int opponent = player1ToMove ? state.getPlayer2Mask() : state.getPlayer1Mask();
+        final int tokens = player1ToMove ? state.getPlayer1Tokens() : state.getPlayer2Tokens();
+        final int movesLeft = state.getVariant().getMoveLimit() - state.getMoves() - 1;
+        final long[] history = state.getPositionHistory();
+
+        int best = -1;
+        int bestScore = Integer.MIN_VALUE;
+        for (long m = TPMState.legalMoveMask(mover, opponent, tokens); 0L != m; m &= m - 1) {
+            final int index = Long.numberOfTrailingZeros(m);
+            final int moverNew = applyMove(mover, index);
+            final short reply = player1ToMove ? probe(moverNew, opponent, false) : probe(opponent, moverNew, true);
+            final long hashNew = player1ToMove ? TPMState.zobrist(moverNew, opponent, false) : TPMState.zobrist(opponent, moverNew, true);
+            final boolean repeats = !TPMState.isMill(moverNew) && ((repetitions(history, hashNew) + 1) >= TPMState.REPETITION_LIMIT);
+            final int score = (repeats || (distance(reply) > movesLeft)) ? 0 : score(reply);
+            if (score > bestScore) {
+                bestScore = score;
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    // Mover's mask after making move index.
+    static int applyMove(int mover, int index) {
+        final int src = TPMState.moveSource(index);
+        return (mover & ~((src < 0) ? 0 : (1 << src))) | (1 << TPMState.moveDestination(index));
+    }
+
+    // Times a position is in the history, placements never repeat so only slides can reach the limit.
+    private static int repetitions(long[] history, long hash) {
+        int count = 0;
+        for (long h : history) {
+            if (h == hash) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    // Score of a reply position for the player who moved into it, higher is better.
+    private static int score(short reply) {
+        switch (result(reply)) {
+            case LOSS:
+                return Integer.MAX_VALUE - distance(reply);
+            case WIN:
+                return Integer.MIN_VALUE + 1 + distance(reply);
+            default:
+                return 0;
+        }
+    }
+}
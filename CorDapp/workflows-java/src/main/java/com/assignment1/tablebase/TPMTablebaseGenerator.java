@@ -0,0 +1,156 @@
+package com.assignment1.tablebase;
+
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static com.assignment1.tablebase.TPMTablebase.Result;
+
+/**
+ * Offline generator for the [TPMTablebase] file, run with the workflows-java generateTablebase task.
+ *
+ * Retrograde analysis over every position of the PLACEMENT and MOVING phases. Positions where the last
+ * mover completed a line are losses for the side to move. A MOVING position with no legal slide is a draw,
+ * the contract only ends a Three Men's Morris game on a line so a blocked player isn't beaten. Results are
+ * then worked back one ply at a time, a position is won in n if some move reaches a position lost in n-1,
+ * and lost in n if every move reaches a position already won. Anything left over can be played forever and
+ * is a draw.
+ *
+ * Positions are only the board and the side to move, so the move limit and repetition draws can't be
+ * in the file. [TPMTablebase.bestMove] applies them from the state being played instead.
+ */
+public class TPMTablebaseGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(TPMTablebaseGenerator.class);
+
+    public static void main(String[] args) throws IOException {
+        final Path path = Paths.get((args.length > 0) ? args[0] : "tpm.tablebase");
+        final short[] entries = generate();
+        write(path, entries);
+        logger.info(String.format("Wrote %d positions to %s", entries.length, path));
+    }
+
+    public static short[] generate() {
+        final short[] entries = new short[TPMTablebase.POSITIONS];
+        final int boardMask = (1 << TPMState.BOARD_SIZE) - 1;
+
+        // Terminal positions, everything else valid is left unresolved (zero distance DRAW) for now.
+        final boolean[] resolved = new boolean[TPMTablebase.POSITIONS];
+        for (int p1=0; p1<=boardMask; ++p1) {
+            for (int p2=0; p2<=boardMask; ++p2) {
+                if (0 != (p1 & p2)) {
+                    continue;
+                }
+                for (int side=0; side<2; ++side) {
+                    final boolean player1ToMove = (0 == side);
+                    if (!valid(p1, p2, player1ToMove)) {
+                        continue;
+                    }
+                    final int index = TPMTablebase.index(p1, p2, player1ToMove);
+                    final int mover = player1ToMove ? p1 : p2;
+                    final int opponent = player1ToMove ? p2 : p1;
+                    if (TPMState.isMill(opponent)) {
+                        entries[index] = TPMTablebase.entry(Result.LOSS, 0);
+                        resolved[index] = true;
+                    } else if (0L == TPMState.legalMoveMask(mover, opponent, tokens(mover))) {
+                        entries[index] = TPMTablebase.entry(Result.DRAW, 0);
+                        resolved[index] = true;
+                    } else {
+                        entries[index] = TPMTablebase.entry(Result.DRAW, 0);
+                    }
+                }
+            }
+        }
+
+        // Work back from the terminal positions one ply at a time, only using results from earlier plies.
+        final int[] pending = new int[TPMTablebase.POSITIONS];
+        int count = 1;
+        for (int ply=1; 0 != count; ++ply) {
+            count = 0;
+            for (int p1=0; p1<=boardMask; ++p1) {
+                for (int p2=0; p2<=boardMask; ++p2) {
+                    if (0 != (p1 & p2)) {
+                        continue;
+                    }
+                    for (int side=0; side<2; ++side) {
+                        final boolean player1ToMove = (0 == side);
+                        final int index = TPMTablebase.index(p1, p2, player1ToMove);
+                        if (resolved[index] || !valid(p1, p2, player1ToMove)) {
+                            continue;
+                        }
+                        final Result result = resolve(entries, resolved, p1, p2, player1ToMove, ply);
+                        if (null != result) {
+                            entries[index] = TPMTablebase.entry(result, ply);
+                            pending[count++] = index;
+                        }
+                    }
+                }
+            }
+            // Mark after the pass so positions resolved at this ply aren't used until the next.
+            for (int i=0; i<count; ++i) {
+                resolved[pending[i]] = true;
+            }
+        }
+        return entries;
+    }
+
+    // WIN or LOSS at this ply, or null if the position can't be resolved from earlier plies yet.
+    private static Result resolve(short[] entries, boolean[] resolved, int p1, int p2, boolean player1ToMove, int ply) {
+        final int mover = player1ToMove ? p1 : p2;
+        final int opponent = player1ToMove ? p2 : p1;
+        boolean allWon = true;
+        for (long m = TPMState.legalMoveMask(mover, opponent, tokens(mover)); 0L != m; m &= m - 1) {
+            final int moverNew = TPMTablebase.applyMove(mover, Long.numberOfTrailingZeros(m));
+            final int reply = player1ToMove ? TPMTablebase.index(moverNew, opponent, false) : TPMTablebase.index(opponent, moverNew, true);
+            if (!resolved[reply]) {
+                allWon = false;
+            } else if (Result.LOSS == TPMTablebase.result(entries[reply])) {
+                if (TPMTablebase.distance(entries[reply]) == (ply - 1)) {
+                    return Result.WIN;
+                }
+                allWon = false;
+            } else if (Result.DRAW == TPMTablebase.result(entries[reply])) {
+                // A blocked reply, the opponent can't win from it.
+                allWon = false;
+            }
+        }
+        return allWon ? Result.LOSS : null;
+    }
+
+    // Tokens still in hand, there are no captures so every token not on the board is in hand.
+    private static int tokens(int mask) {
+        return TPMVariant.THREE.getTokens() - Integer.bitCount(mask);
+    }
+
+    // Reachable positions, player1 places first so during placement the token counts fix the side to move.
+    private static boolean valid(int p1, int p2, boolean player1ToMove) {
+        final int c1 = Integer.bitCount(p1);
+        final int c2 = Integer.bitCount(p2);
+        final int tokens = TPMVariant.THREE.getTokens();
+        if ((tokens == c1) && (tokens == c2)) {
+            return true;
+        }
+        return player1ToMove ? (c1 == c2) : (c1 == (c2 + 1));
+    }
+
+    public static void write(Path path, short[] entries) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(TPMTablebase.HEADER_SIZE + TPMTablebase.ENTRY_SIZE * entries.length);
+        buffer.putInt(TPMTablebase.MAGIC).putInt(TPMTablebase.VERSION).putInt(entries.length).putInt(0);
+        for (short entry : entries) {
+            buffer.putShort(entry);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.assignment1.test.admission;
+
+import com.assignment1.admission.TPMAdmissionControl;
+import com.assignment1.admission.TPMAdmissionException;
+import com.assignment1.flow.TPMFlowCreate;
+import com.assignment1.flow.TPMFlowMove;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.flows.StateMachineRunId;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TPMAdmissionControlTests {
+    private MockNetwork network;
+    private StartedMockNode a;
+    private StartedMockNode b;
+
+    @Before
+    public void setup() {
+        network = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
+                TestCordapp.findCordapp("com.assignment1.contract"),
+                TestCordapp.findCordapp("com.assignment1.flow").withConfig(ImmutableMap.of("admission.maxOpenGames", 2)))));
+        a = network.createPartyNode(null);
+        b = network.createPartyNode(null);
+        // For real nodes this happens automatically, but we have to manually register the flow for tests.
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.registerInitiatedFlow(TPMFlowMove.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowCreate.Acceptor.class);
+        }
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private CordaFuture<SignedTransaction> create(StartedMockNode node, StartedMockNode other, String gameId) {
+        CordaFuture<SignedTransaction> future = node.startFlow(new TPMFlowCreate.Initiator(other.getInfo().getLegalIdentities().get(0), null, gameId));
+        network.runNetwork();
+        return future;
+    }
+
+    @Test
+    public void gamesOverTheLimitAreRejected() throws Exception {
+        create(a, b, "game1").get();
+        create(a, b, "game2").get();
+        try {
+            create(a, b, "game3").get();
+            fail("Game created over the limit");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TPMAdmissionException);
+            assertTrue(e.getCause().getMessage().contains("Too many open games"));
+        }
+
+        // Moves in the open games are still accepted.
+        CordaFuture<SignedTransaction> move = a.startFlow(new TPMFlowMove.Initiator("game1", null, -1, 4));
+        network.runNetwork();
+        move.get();
+
+        TPMAdmissionControl.Metrics metrics = b.getServices().cordaService(TPMAdmissionControl.class).getMetrics();
+        assertEquals(2, metrics.getOpenGames());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(3, metrics.getAdmitted());
+        assertEquals(1, metrics.getRejectedGames());
+    }
+
+    @Test
+    public void limitsArePerCounterparty() throws Exception {
+        StartedMockNode c = network.createPartyNode(null);
+        c.registerInitiatedFlow(TPMFlowCreate.Acceptor.class);
+        network.runNetwork();
+
+        create(a, b, "game1").get();
+        create(a, b, "game2").get();
+        create(c, b, "game3").get();
+        create(c, b, "game4").get();
+
+        TPMAdmissionControl.Metrics metrics = b.getServices().cordaService(TPMAdmissionControl.class).getMetrics();
+        assertEquals(2, metrics.getCounterparties());
+        assertEquals(4, metrics.getOpenGames());
+        assertEquals(0, metrics.getRejectedGames());
+    }
+
+    @Test
+    public void leaveIsOnlyCountedOnce() throws Exception {
+        TPMAdmissionControl admission = b.getServices().cordaService(TPMAdmissionControl.class);
+        StateMachineRunId flowId = StateMachineRunId.Companion.createRandom();
+        admission.enter(flowId, a.getInfo().getLegalIdentities().get(0), false);
+        admission.enter(flowId, a.getInfo().getLegalIdentities().get(0), false);
+        assertEquals(1, admission.getMetrics().getInFlight());
+
+        admission.leave(flowId);
+        admission.leave(flowId);
+        // A flow restored after a restart was never admitted by this instance.
+        admission.leave(StateMachineRunId.Companion.createRandom());
+        assertEquals(0, admission.getMetrics().getInFlight());
+        assertEquals(1, admission.getMetrics().getAdmitted());
+    }
+}
@@ -0,0 +1,46 @@
+package com.assignment1.test.bot;
+
+import com.assignment1.bot.TPMSearch;
+import com.assignment1.state.TPMState;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TPMSearchTests {
+    static private final TestIdentity megaCorp = new TestIdentity(new CordaX500Name("MegaCorp", "London", "GB"));
+    static private final TestIdentity miniCorp = new TestIdentity(new CordaX500Name("MiniCorp", "London", "GB"));
+
+    private TPMState play(int... placements) {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123");
+        for (int dst : placements) {
+            state = state.move(state.getNextPlayer(), null, -1, dst);
+        }
+        return state;
+    }
+
+    @Test
+    public void completesALine() {
+        // Player1 has 0 and 1, player2 has 3 and 4. Player1 to move wins at 2.
+        TPMSearch.Result result = new TPMSearch(12).search(play(0, 3, 1, 4), 1000, 8);
+        assertEquals(-1, TPMState.moveSource(result.getMove()));
+        assertEquals(2, TPMState.moveDestination(result.getMove()));
+        assertEquals(TPMSearch.WIN - 1, result.getScore());
+    }
+
+    @Test
+    public void blocksALine() {
+        // Player2 has 3 and 4 and threatens 5, player1 to move must block.
+        TPMSearch.Result result = new TPMSearch(12).search(play(0, 3, 8, 4), 1000, 2);
+        assertEquals(5, TPMState.moveDestination(result.getMove()));
+    }
+
+    @Test
+    public void findsTheForcedWinFromTheStart() {
+        TPMSearch.Result result = new TPMSearch(16).search(play(), 10000, TPMSearch.MAX_PLY);
+        assertTrue(result.getScore() >= TPMSearch.WIN - TPMSearch.MAX_PLY);
+        assertTrue(result.getDepth() > 0);
+    }
+}
@@ -1,13 +1,19 @@
 package com.assignment1.test.contract;
 
 import com.assignment1.contract.TPMContract;
+import com.assignment1.state.TPMResultState;
 import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
 import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.TimeWindow;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.testing.core.TestIdentity;
 import net.corda.testing.node.MockServices;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.time.Instant;
+
 import static java.util.Arrays.asList;
 import static net.corda.testing.node.NodeTestUtils.ledger;
 
@@ -46,12 +52,39 @@ public class TPMContractTests {
 
     @Test
     public void transactionMustHaveOneOutput() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123");
+                tx.output(TPMContract.ID, state);
+                tx.output(TPMContract.ID, state);
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Create());
+                tx.failsWith("Only one output state should be created.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void transactionMustHaveAGame() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Create());
+                tx.failsWith("The transaction should have at least one game.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void gamesMustHaveTheirOwnGameId() {
         ledger(ledgerServices, (ledger -> {
             ledger.transaction(tx -> {
                 tx.output(TPMContract.ID, new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123"));
                 tx.output(TPMContract.ID, new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123"));
                 tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Create());
-                tx.failsWith("Only one output state should be created.");
+                tx.failsWith("Each game in the transaction should have its own gameId.");
                 return null;
             });
             return null;
@@ -173,4 +206,415 @@ public class TPMContractTests {
         }));
     }
 
-}
\ No newline at end of file
+    // Place all six tokens without completing a line, ready for the moving phase.
+    private TPMState placeAll() {
+        return placeAll("123");
+    }
+
+    private TPMState placeAll(String gameId) {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, gameId);
+        final int[] placements = {0, 1, 2, 3, 5, 4};
+        for (int i=0; i<placements.length; ++i) {
+            state = state.move((0 == (i % 2)) ? miniCorp.getParty() : megaCorp.getParty(), null, -1, placements[i]);
+        }
+        return state;
+    }
+
+    @Test
+    public void transactionValidSlide() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = placeAll();
+                TPMState stateNxt = stateOld.move(miniCorp.getParty(), null, 5, 8);
+
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateNxt);
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.verifies();
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void transactionInvalidSlide() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = placeAll();
+                TPMState stateNxt = stateOld.move(miniCorp.getParty(), null, 0, 8);
+
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateNxt);
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.failsWith("Invalid move");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+
+    @Test
+    public void transactionInvalidMoveAfterDraw() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                // Shuffle two tokens back and forth until the position repeats three times.
+                TPMState stateOld = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123");
+                final int[] placements = {0, 4, 8, 2, 6, 7};
+                for (int dst : placements) {
+                    stateOld = stateOld.move(stateOld.getNextPlayer(), null, -1, dst);
+                }
+                final int[][] cycle = {{0, 1}, {2, 5}, {1, 0}, {5, 2}};
+                for (int i=0; i<8; ++i) {
+                    stateOld = stateOld.move(stateOld.getNextPlayer(), null, cycle[i % 4][0], cycle[i % 4][1]);
+                }
+                TPMState stateNxt = stateOld.move(miniCorp.getParty(), null, 0, 1);
+
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateNxt);
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.failsWith("Game is over");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void transactionInvalidMissingCapture() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                // On Nine Men's Morris completing 0 1 2 must take one of player2's tokens.
+                TPMState stateOld = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123", TPMVariant.NINE);
+                final int[] placements = {0, 8, 1, 9};
+                for (int dst : placements) {
+                    stateOld = stateOld.move(stateOld.getNextPlayer(), null, -1, dst);
+                }
+                TPMState stateNxt = stateOld.move(miniCorp.getParty(), null, -1, 2);
+
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateNxt);
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.failsWith("Capture required");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void transactionInvalidMoveLog() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                // The board shows a placement at 4 but the log claims 5.
+                TPMState stateOld = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123");
+                TPMState stateMoved = stateOld.move(miniCorp.getParty(), null, -1, 4);
+                TPMState stateNxt = new TPMState(stateMoved.getPlayer1Tokens(), stateMoved.getPlayer2Tokens(), stateMoved.getBoard(),
+                        stateMoved.getPlayer(), stateMoved.getPlayer1(), stateMoved.getPlayer2(), stateMoved.getMoves(),
+                        stateMoved.getGameStatus(), stateMoved.getGameStatusHint(), stateMoved.getMoveHint(), stateMoved.getLinearId(),
+                        stateMoved.getPositionHistory(), stateMoved.getVariant(), new byte[] {5},
+                        stateMoved.getMoveTimeout(), stateMoved.getDeadline(), stateMoved.isForfeited());
+
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateNxt);
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.failsWith("Move log mismatch");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void transactionCreatesManyGames() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                for (int game=0; game<3; ++game) {
+                    tx.output(TPMContract.ID, new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "game" + game));
+                }
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Create());
+                tx.verifies();
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void transactionMovesManyGames() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                for (int game=0; game<3; ++game) {
+                    TPMState stateOld = placeAll("game" + game);
+                    tx.input(TPMContract.ID, stateOld);
+                    tx.output(TPMContract.ID, stateOld.move(miniCorp.getParty(), null, 5, 8));
+                }
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.verifies();
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void transactionInvalidMoveInManyGames() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                // Every game is checked, one bad move fails the lot.
+                TPMState stateOld = placeAll("game0");
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.move(miniCorp.getParty(), null, 5, 8));
+                stateOld = placeAll("game1");
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.move(miniCorp.getParty(), null, 0, 8));
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.failsWith("Invalid move");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void transactionGameWithoutOutput() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = placeAll("game0");
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.move(miniCorp.getParty(), null, 5, 8));
+                tx.input(TPMContract.ID, placeAll("game1"));
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.failsWith("Only one output state should be created.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    private static final Duration MOVE_TIMEOUT = Duration.ofMinutes(5);
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+
+    // A timed game with its first move due, created in a window of 30 seconds from START.
+    private TPMState timedGame() {
+        return new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123", TPMVariant.THREE, MOVE_TIMEOUT)
+                .withDeadline(START.plusSeconds(30).plus(MOVE_TIMEOUT));
+    }
+
+    @Test
+    public void timedCreateNeedsTimeWindow() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.output(TPMContract.ID, timedGame());
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Create());
+                tx.failsWith("A timed game needs a bounded time window.");
+                tx.timeWindow(TimeWindow.between(START, START.plusSeconds(30)));
+                tx.verifies();
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void timedCreateMustSetDeadline() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                tx.output(TPMContract.ID, timedGame().withDeadline(START.plus(Duration.ofDays(1))));
+                tx.timeWindow(TimeWindow.between(START, START.plusSeconds(30)));
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Create());
+                tx.failsWith("Deadline should be the move timeout after the time window.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void timedMoveBeforeDeadline() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = timedGame();
+                Instant from = START.plus(Duration.ofMinutes(1));
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.move(miniCorp.getParty(), null, -1, 4).withDeadline(from.plusSeconds(30).plus(MOVE_TIMEOUT)));
+                tx.timeWindow(TimeWindow.between(from, from.plusSeconds(30)));
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.verifies();
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void timedMoveAfterDeadline() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = timedGame();
+                Instant from = stateOld.getDeadline();
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.move(miniCorp.getParty(), null, -1, 4).withDeadline(from.plusSeconds(30).plus(MOVE_TIMEOUT)));
+                tx.timeWindow(TimeWindow.between(from, from.plusSeconds(30)));
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Move());
+                tx.failsWith("Move is after the deadline.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void forfeitAfterDeadline() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                // MiniCorp, player1, missed the first move so MegaCorp claims the game alone.
+                TPMState stateOld = timedGame();
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.forfeit());
+                tx.command(megaCorp.getPublicKey(), new TPMContract.Commands.Forfeit());
+                tx.failsWith("Forfeit is before the deadline.");
+                tx.timeWindow(TimeWindow.fromOnly(stateOld.getDeadline()));
+                tx.verifies();
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void forfeitBeforeDeadline() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = timedGame();
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.forfeit());
+                tx.timeWindow(TimeWindow.fromOnly(stateOld.getDeadline().minusSeconds(1)));
+                tx.command(megaCorp.getPublicKey(), new TPMContract.Commands.Forfeit());
+                tx.failsWith("Forfeit is before the deadline.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void forfeitByPlayerWhoMissedTheDeadline() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = timedGame();
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.forfeit());
+                tx.timeWindow(TimeWindow.fromOnly(stateOld.getDeadline()));
+                tx.command(miniCorp.getPublicKey(), new TPMContract.Commands.Forfeit());
+                tx.failsWith("The claimant must be a signer.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void forfeitOfUntimedGame() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123");
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.forfeit());
+                tx.timeWindow(TimeWindow.fromOnly(START));
+                tx.command(megaCorp.getPublicKey(), new TPMContract.Commands.Forfeit());
+                tx.failsWith("Game has no deadline");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void forfeitCantChangeTheBoard() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = timedGame();
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, stateOld.move(miniCorp.getParty(), null, -1, 4).forfeit());
+                tx.timeWindow(TimeWindow.fromOnly(stateOld.getDeadline()));
+                tx.command(megaCorp.getPublicKey(), new TPMContract.Commands.Forfeit());
+                tx.failsWith("Forfeit can't change the board");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    // Player1 completes the top row.
+    private TPMState finishedGame() {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123");
+        for (int dst : new int[] {0, 3, 1, 4, 2}) {
+            state = state.move(state.getNextPlayer(), null, -1, dst);
+        }
+        return state;
+    }
+
+    @Test
+    public void archiveFinishedGame() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = finishedGame();
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, TPMResultState.of(stateOld));
+                tx.command(megaCorp.getPublicKey(), new TPMContract.Commands.Archive());
+                tx.verifies();
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void archiveUnfinishedGame() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = placeAll();
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, TPMResultState.of(stateOld));
+                tx.command(miniCorp.getPublicKey(), new TPMContract.Commands.Archive());
+                tx.failsWith("Only a finished game can be archived.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void archiveWithWrongResult() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = finishedGame();
+                TPMResultState result = TPMResultState.of(stateOld);
+                tx.input(TPMContract.ID, stateOld);
+                tx.output(TPMContract.ID, new TPMResultState(result.getVariant(), result.getPlayer1(), result.getPlayer2(),
+                        result.getPlayer2(), result.getMoves(), false, result.getMoveLog(), result.getLinearId()));
+                tx.command(miniCorp.getPublicKey(), new TPMContract.Commands.Archive());
+                tx.failsWith("Result should match the game.");
+                return null;
+            });
+            return null;
+        }));
+    }
+
+    @Test
+    public void resultOnlyByArchiving() {
+        ledger(ledgerServices, (ledger -> {
+            ledger.transaction(tx -> {
+                TPMState stateOld = finishedGame();
+                tx.output(TPMContract.ID, new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "456"));
+                tx.output(TPMContract.ID, TPMResultState.of(stateOld));
+                tx.command(ImmutableList.of(megaCorp.getPublicKey(), miniCorp.getPublicKey()), new TPMContract.Commands.Create());
+                tx.failsWith("Results are only made by archiving.");
+                return null;
+            });
+            return null;
+        }));
+    }
+}
@@ -0,0 +1,162 @@
+package com.assignment1.test.flow;
+
+import com.assignment1.flow.TPMFlowArchive;
+import com.assignment1.flow.TPMFlowCreate;
+import com.assignment1.flow.TPMFlowMove;
+import com.assignment1.state.TPMResultState;
+import com.assignment1.state.TPMState;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TPMFlowArchiveTests {
+    private MockNetwork network;
+    private StartedMockNode a;
+    private StartedMockNode b;
+
+    @Before
+    public void setup() {
+        network = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
+                TestCordapp.findCordapp("com.assignment1.contract"),
+                TestCordapp.findCordapp("com.assignment1.flow"))));
+        a = network.createPartyNode(null);
+        b = network.createPartyNode(null);
+        // For real nodes this happens automatically, but we have to manually register the flow for tests.
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.registerInitiatedFlow(TPMFlowCreate.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowMove.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowArchive.Acceptor.class);
+        }
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private void create(String gameId) throws Exception {
+        CordaFuture<SignedTransaction> future = a.startFlow(new TPMFlowCreate.Initiator(party(b), null, gameId));
+        network.runNetwork();
+        future.get();
+    }
+
+    // a completes the top row.
+    private void play(String gameId) throws Exception {
+        create(gameId);
+        final int[] placements = {0, 3, 1, 4, 2};
+        for (int i=0; i<placements.length; ++i) {
+            CordaFuture<SignedTransaction> future = ((0 == (i % 2)) ? a : b).startFlow(new TPMFlowMove.Initiator(gameId, null, -1, placements[i]));
+            network.runNetwork();
+            future.get();
+        }
+    }
+
+    private TPMFlowArchive.Result archive(StartedMockNode node, List<String> gameIds) throws Exception {
+        CordaFuture<TPMFlowArchive.Result> future = node.startFlow(new TPMFlowArchive.Initiator(gameIds));
+        network.runNetwork();
+        return future.get();
+    }
+
+    @Test
+    public void finishedGamesAreArchivedToResults() throws Exception {
+        play("game1");
+        play("game2");
+        create("game3");
+        TPMFlowArchive.Result result = archive(a, ImmutableList.of("game1", "game2", "game3"));
+
+        assertNotNull(result.getTxId());
+        assertTrue(result.getGames().get(0).getSuccess());
+        assertTrue(result.getGames().get(1).getSuccess());
+        assertTrue(result.getGames().get(2).getError().contains("Only a finished game can be archived"));
+
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.transaction(() -> {
+                List<StateAndRef<TPMState>> games = node.getServices().getVaultService().queryBy(TPMState.class).getStates();
+                assertEquals(1, games.size());
+                assertEquals("game3", games.get(0).getState().getData().getGameId());
+                List<StateAndRef<TPMResultState>> results = node.getServices().getVaultService().queryBy(TPMResultState.class).getStates();
+                assertEquals(2, results.size());
+                for (StateAndRef<TPMResultState> stateAndRef : results) {
+                    assertEquals(party(a), stateAndRef.getState().getData().getWinner());
+                    assertEquals(5, stateAndRef.getState().getData().getMoveList().length);
+                }
+                return null;
+            });
+        }
+    }
+
+    @Test
+    public void archivedGameIdsStayTaken() throws Exception {
+        play("game1");
+        archive(b, ImmutableList.of("game1"));
+        try {
+            create("game1");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("Game already exists on ledger"));
+            return;
+        }
+        throw new AssertionError("Archived gameId was reused");
+    }
+
+    private int rows(StartedMockNode node, String table, String gameId) {
+        return node.transaction(() -> {
+            try (PreparedStatement count = node.getServices().jdbcSession().prepareStatement(
+                    "select count(*) from " + table + " where game_id = ?")) {
+                count.setString(1, gameId);
+                try (ResultSet rows = count.executeQuery()) {
+                    rows.next();
+                    return rows.getInt(1);
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Test
+    public void consumedStatesAreMovedToTheArchiveTable() throws Exception {
+        play("game1");
+        archive(a, ImmutableList.of("game1"));
+        Instant cutoff = Instant.now().plus(Duration.ofDays(1));
+        assertEquals(6, rows(a, "tpm_states", "game1"));
+
+        // The created state and the five moves were consumed, a second run finds nothing left.
+        CordaFuture<Integer> future = a.startFlow(new TPMFlowArchive.Compact(cutoff, 100));
+        network.runNetwork();
+        assertEquals(6, (int) future.get());
+        assertEquals(0, rows(a, "tpm_states", "game1"));
+        assertEquals(6, rows(a, "tpm_states_archive", "game1"));
+
+        future = a.startFlow(new TPMFlowArchive.Compact(cutoff, 100));
+        network.runNetwork();
+        assertEquals(0, (int) future.get());
+        assertFalse(b.transaction(() -> b.getServices().getVaultService().queryBy(TPMResultState.class).getStates().isEmpty()));
+    }
+}
@@ -0,0 +1,206 @@
+package com.assignment1.test.flow;
+
+import com.assignment1.broadcast.TPMBroadcastService;
+import com.assignment1.flow.TPMFlowBroadcast;
+import com.assignment1.flow.TPMFlowCreate;
+import com.assignment1.flow.TPMFlowMove;
+import com.assignment1.state.TPMState;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TPMFlowBroadcastTests {
+    private MockNetwork network;
+    private StartedMockNode a;
+    private StartedMockNode b;
+    private StartedMockNode c;
+
+    @Before
+    public void setup() {
+        // The window is long so the tests send the batches when they choose, and an observer watches one game.
+        network = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
+                TestCordapp.findCordapp("com.assignment1.contract"),
+                TestCordapp.findCordapp("com.assignment1.flow").withConfig(ImmutableMap.of(
+                        "broadcast.windowMillis", 3600000,
+                        "broadcast.maxWatched", 1)))));
+        a = network.createPartyNode(null);
+        b = network.createPartyNode(null);
+        c = network.createPartyNode(null);
+        // For real nodes this happens automatically, but we have to manually register the flow for tests.
+        for (StartedMockNode node : ImmutableList.of(a, b, c)) {
+            node.registerInitiatedFlow(TPMFlowCreate.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowMove.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowBroadcast.RegisterAcceptor.class);
+            node.registerInitiatedFlow(TPMFlowBroadcast.SendAcceptor.class);
+            node.registerInitiatedFlow(TPMFlowBroadcast.CatchUpAcceptor.class);
+        }
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private void create(String gameId) throws Exception {
+        CordaFuture<SignedTransaction> future = a.startFlow(new TPMFlowCreate.Initiator(party(b), null, gameId));
+        network.runNetwork();
+        future.get();
+    }
+
+    private void move(StartedMockNode node, String gameId, int dst) throws Exception {
+        CordaFuture<SignedTransaction> future = node.startFlow(new TPMFlowMove.Initiator(gameId, null, -1, dst));
+        network.runNetwork();
+        future.get();
+    }
+
+    private boolean register(StartedMockNode node, String gameId, StartedMockNode observer) throws Exception {
+        CordaFuture<Boolean> future = node.startFlow(new TPMFlowBroadcast.Register(gameId, party(observer)));
+        network.runNetwork();
+        return future.get();
+    }
+
+    // The service starts the send on its own, wait for it to finish.
+    private void flush(StartedMockNode node) throws Exception {
+        final TPMBroadcastService service = node.getServices().cordaService(TPMBroadcastService.class);
+        final long done = service.getMetrics().getBatches() + service.getMetrics().getFailed();
+        service.flush();
+        for (int i=0; (i<100) && (done == service.getMetrics().getBatches() + service.getMetrics().getFailed()); ++i) {
+            network.runNetwork();
+            Thread.sleep(50);
+        }
+    }
+
+    private List<StateAndRef<TPMState>> recorded(StartedMockNode node) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(TPMState.class).getStates());
+    }
+
+    private TPMState watched(StartedMockNode node, String gameId) {
+        return node.getServices().cordaService(TPMBroadcastService.class).getGame(gameId);
+    }
+
+    @Test
+    public void observerFromTheStartRecordsTheGame() throws Exception {
+        create("game1");
+        assertTrue(register(a, "game1", c));
+        move(a, "game1", 0);
+        move(b, "game1", 3);
+        flush(a);
+
+        // The create and both moves, sent in one batch.
+        final TPMBroadcastService.Metrics metrics = a.getServices().cordaService(TPMBroadcastService.class).getMetrics();
+        assertEquals(3, metrics.getSent());
+        assertEquals(1, metrics.getBatches());
+        assertEquals(0, metrics.getWaiting());
+
+        final List<StateAndRef<TPMState>> states = recorded(c);
+        assertEquals(1, states.size());
+        assertEquals(2, states.get(0).getState().getData().getMoves());
+        assertEquals(2, watched(c, "game1").getMoves());
+        assertNull(watched(a, "game1"));
+    }
+
+    @Test
+    public void observerJoiningMidGameIsSentSnapshots() throws Exception {
+        create("game1");
+        move(a, "game1", 0);
+        move(b, "game1", 3);
+        assertFalse(register(a, "game1", c));
+        flush(a);
+        assertEquals(2, watched(c, "game1").getMoves());
+
+        move(a, "game1", 1);
+        flush(a);
+        assertEquals(3, watched(c, "game1").getMoves());
+        assertEquals(2, c.getServices().cordaService(TPMBroadcastService.class).getMetrics().getReceived());
+        // Nothing was resolved or recorded.
+        assertTrue(recorded(c).isEmpty());
+    }
+
+    @Test
+    public void catchUpIsOnlyForObservers() throws Exception {
+        create("game1");
+        move(a, "game1", 0);
+        CordaFuture<TPMState> future = c.startFlow(new TPMFlowBroadcast.CatchUp(party(b), "game1"));
+        network.runNetwork();
+        try {
+            future.get();
+            throw new AssertionError("Caught up without being an observer");
+        } catch (ExecutionException e) {
+            assertNull(watched(c, "game1"));
+        }
+
+        register(b, "game1", c);
+        future = c.startFlow(new TPMFlowBroadcast.CatchUp(party(b), "game1"));
+        network.runNetwork();
+        assertEquals(1, future.get().getMoves());
+        assertEquals(1, watched(c, "game1").getMoves());
+    }
+
+    @Test
+    public void batchForAGameNotAgreedToIsRejected() throws Exception {
+        create("game1");
+        final SecureHash txId = recorded(a).get(0).getRef().getTxhash();
+        CordaFuture<Integer> future = a.startFlow(new TPMFlowBroadcast.Send(party(c), ImmutableList.of(txId), ImmutableList.of()));
+        network.runNetwork();
+        try {
+            future.get();
+            throw new AssertionError("Observer took a game it never agreed to");
+        } catch (ExecutionException e) {
+            assertTrue(recorded(c).isEmpty());
+            assertNull(watched(c, "game1"));
+            assertEquals(1, c.getServices().cordaService(TPMBroadcastService.class).getMetrics().getRejected());
+        }
+    }
+
+    @Test
+    public void observerDeclinesMoreGamesThanItWatches() throws Exception {
+        create("game1");
+        create("game2");
+        assertTrue(register(a, "game1", c));
+        try {
+            register(a, "game2", c);
+            throw new AssertionError("Observer agreed to more games than it watches");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("Observer declined the game"));
+        }
+        assertTrue(a.getServices().cordaService(TPMBroadcastService.class).isObserver("game1", party(c)));
+        assertFalse(a.getServices().cordaService(TPMBroadcastService.class).isObserver("game2", party(c)));
+        assertEquals(1, c.getServices().cordaService(TPMBroadcastService.class).getMetrics().getDeclined());
+    }
+
+    @Test
+    public void playerCantBeAnObserver() throws Exception {
+        create("game1");
+        try {
+            register(a, "game1", b);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("Observer can't be a player"));
+            return;
+        }
+        throw new AssertionError("Player registered as an observer");
+    }
+}
@@ -0,0 +1,152 @@
+package com.assignment1.test.flow;
+
+import com.assignment1.flow.TPMFlowCreate;
+import com.assignment1.flow.TPMFlowCreateBatch;
+import com.assignment1.flow.TPMFlowMatch;
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TPMFlowCreateBatchTests {
+    private MockNetwork network;
+    private StartedMockNode a;
+    private StartedMockNode b;
+    private StartedMockNode c;
+
+    @Before
+    public void setup() {
+        network = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
+                TestCordapp.findCordapp("com.assignment1.contract"),
+                TestCordapp.findCordapp("com.assignment1.flow").withConfig(ImmutableMap.of("admission.maxOpenGames", 2)))));
+        a = network.createPartyNode(null);
+        b = network.createPartyNode(null);
+        c = network.createPartyNode(null);
+        // For real nodes this happens automatically, but we have to manually register the flow for tests.
+        for (StartedMockNode node : ImmutableList.of(a, b, c)) {
+            node.registerInitiatedFlow(TPMFlowCreateBatch.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowCreate.Acceptor.class);
+        }
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private TPMFlowCreateBatch.Result createBatch(List<TPMFlowCreateBatch.Game> games) throws Exception {
+        CordaFuture<TPMFlowCreateBatch.Result> future = a.startFlow(new TPMFlowCreateBatch.Initiator(games));
+        network.runNetwork();
+        return future.get();
+    }
+
+    private int games(StartedMockNode node) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(TPMState.class).getStates().size());
+    }
+
+    @Test
+    public void gamesWithManyOpponentsAreCreatedInOneTransaction() throws Exception {
+        TPMFlowCreateBatch.Result result = createBatch(ImmutableList.of(
+                new TPMFlowCreateBatch.Game(party(b), "game1"),
+                new TPMFlowCreateBatch.Game(party(c), "game2", "Good luck", TPMVariant.NINE),
+                new TPMFlowCreateBatch.Game(party(b), "game3")));
+
+        assertEquals(1, result.getTxIds().size());
+        for (TPMFlowCreateBatch.GameResult game : result.getGames()) {
+            assertTrue(game.toString(), game.getSuccess());
+            assertEquals(result.getTxIds().get(0), game.getTxId());
+        }
+
+        // Everyone records the transaction, each vault holds its own games.
+        for (StartedMockNode node : ImmutableList.of(a, b, c)) {
+            SignedTransaction tx = node.getServices().getValidatedTransactions().getTransaction(result.getTxIds().get(0));
+            assertEquals(3, tx.getTx().getOutputs().size());
+            tx.verifyRequiredSignatures();
+        }
+        assertEquals(3, games(a));
+        assertEquals(2, games(b));
+        assertEquals(1, games(c));
+        c.transaction(() -> {
+            List<StateAndRef<TPMState>> states = c.getServices().getVaultService().queryBy(TPMState.class).getStates();
+            assertEquals(TPMVariant.NINE, states.get(0).getState().getData().getVariant());
+            return null;
+        });
+    }
+
+    @Test
+    public void badGamesAreReportedAndTheRestCreated() throws Exception {
+        CordaFuture<SignedTransaction> existing = a.startFlow(new TPMFlowCreate.Initiator(party(b), null, "game0"));
+        network.runNetwork();
+        existing.get();
+
+        TPMFlowCreateBatch.Result result = createBatch(ImmutableList.of(
+                new TPMFlowCreateBatch.Game(party(b), "game0"),
+                new TPMFlowCreateBatch.Game(party(b), "game1"),
+                new TPMFlowCreateBatch.Game(party(c), "game1"),
+                new TPMFlowCreateBatch.Game(party(a), "game2")));
+
+        assertTrue(result.getGames().get(0).getError().contains("Game already exists on ledger"));
+        assertTrue(result.getGames().get(1).getSuccess());
+        assertNull(result.getGames().get(1).getError());
+        assertTrue(result.getGames().get(2).getError().contains("Game is already in this batch"));
+        assertFalse(result.getGames().get(3).getSuccess());
+        assertEquals(2, games(b));
+    }
+
+    @Test
+    public void opponentThatRefusesIsDropped() throws Exception {
+        // c allows two open games with a, so refuses all three and b's games go ahead without them.
+        TPMFlowCreateBatch.Result result = createBatch(ImmutableList.of(
+                new TPMFlowCreateBatch.Game(party(c), "game1"),
+                new TPMFlowCreateBatch.Game(party(b), "game2"),
+                new TPMFlowCreateBatch.Game(party(c), "game3"),
+                new TPMFlowCreateBatch.Game(party(c), "game4"),
+                new TPMFlowCreateBatch.Game(party(b), "game5")));
+
+        assertEquals(1, result.getTxIds().size());
+        for (int i : new int[] {0, 2, 3}) {
+            assertTrue(result.getGames().get(i).getError().contains("Too many open games"));
+        }
+        assertTrue(result.getGames().get(1).getSuccess());
+        assertTrue(result.getGames().get(4).getSuccess());
+        assertEquals(2, games(b));
+        assertEquals(0, games(c));
+    }
+
+    @Test
+    public void opponentThatRejectsTheProposalIsDropped() throws Exception {
+        // c never claimed a matched game, so its own checks reject the proposal and b's game goes ahead.
+        TPMFlowCreateBatch.Result result = createBatch(ImmutableList.of(
+                new TPMFlowCreateBatch.Game(party(b), "game1"),
+                new TPMFlowCreateBatch.Game(party(c), "game2", TPMFlowMatch.MATCHED, TPMVariant.THREE)));
+
+        assertEquals(1, result.getTxIds().size());
+        assertTrue(result.getGames().get(0).getSuccess());
+        assertTrue(result.getGames().get(1).getError().contains("Matched game should be one we joined"));
+        assertEquals(1, games(b));
+        assertEquals(0, games(c));
+    }
+}
@@ -2,6 +2,7 @@ package com.assignment1.test.flow;
 
 import com.assignment1.flow.TPMFlowCreate;
 import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
 import com.google.common.collect.ImmutableList;
 import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.*;
@@ -17,9 +18,12 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TPMFlowCreateTests {
     private MockNetwork network;
@@ -135,4 +139,44 @@ public class TPMFlowCreateTests {
             });
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void flowRecordsTheChosenVariant() throws Exception {
+        TPMFlowCreate.Initiator flow = new TPMFlowCreate.Initiator(b.getInfo().getLegalIdentities().get(0), null,"123", TPMVariant.NINE);
+        CordaFuture<SignedTransaction> future = a.startFlow(flow);
+        network.runNetwork();
+        future.get();
+
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.transaction(() -> {
+                List<StateAndRef<TPMState>> states = node.getServices().getVaultService().queryBy(TPMState.class).getStates();
+                assertEquals(1, states.size());
+                TPMState recordedState = states.get(0).getState().getData();
+                assertEquals(TPMVariant.NINE, recordedState.getVariant());
+                assertEquals(9, recordedState.getPlayer1Tokens());
+                assertEquals(9, recordedState.getPlayer2Tokens());
+                assertEquals(24, recordedState.getBoard().length);
+                return null;
+            });
+        }
+    }
+
+    @Test
+    public void flowRejectsAGameThatAlreadyExists() throws Exception {
+        a.startFlow(new TPMFlowCreate.Initiator(b.getInfo().getLegalIdentities().get(0), null,"123"));
+        network.runNetwork();
+
+        // The game index on each node now knows the game, so it can't be created again from either side.
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            StartedMockNode other = (node == a) ? b : a;
+            CordaFuture<SignedTransaction> future = node.startFlow(new TPMFlowCreate.Initiator(other.getInfo().getLegalIdentities().get(0), null,"123"));
+            network.runNetwork();
+            try {
+                future.get();
+                fail("Game created twice");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("Game already exists on ledger"));
+            }
+        }
+    }
+}
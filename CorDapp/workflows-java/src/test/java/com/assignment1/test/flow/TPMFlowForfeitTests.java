@@ -0,0 +1,208 @@
+package com.assignment1.test.flow;
+
+import com.assignment1.flow.TPMFlowCreate;
+import com.assignment1.flow.TPMFlowForfeit;
+import com.assignment1.flow.TPMFlowMove;
+import com.assignment1.forfeit.TPMForfeitService;
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestClock;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TPMFlowForfeitTests {
+    private static final Duration MOVE_TIMEOUT = Duration.ofMinutes(5);
+
+    private MockNetwork network;
+    private StartedMockNode a;
+    private StartedMockNode b;
+
+    @Before
+    public void setup() {
+        // The window is long so the tests flush the claims when they choose.
+        network = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
+                TestCordapp.findCordapp("com.assignment1.contract"),
+                TestCordapp.findCordapp("com.assignment1.flow").withConfig(ImmutableMap.of("forfeit.windowMillis", 3600000)))));
+        a = network.createPartyNode(null);
+        b = network.createPartyNode(null);
+        // For real nodes this happens automatically, but we have to manually register the flow for tests.
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.registerInitiatedFlow(TPMFlowCreate.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowMove.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowForfeit.Acceptor.class);
+        }
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private void createTimed(String gameId) throws Exception {
+        CordaFuture<SignedTransaction> future = a.startFlow(new TPMFlowCreate.Initiator(party(b), null, gameId, TPMVariant.THREE, MOVE_TIMEOUT));
+        network.runNetwork();
+        future.get();
+    }
+
+    private SignedTransaction move(StartedMockNode node, String gameId, int dst) throws Exception {
+        CordaFuture<SignedTransaction> future = node.startFlow(new TPMFlowMove.Initiator(gameId, null, -1, dst));
+        network.runNetwork();
+        return future.get();
+    }
+
+    // The players and the notary all move on together.
+    private void advance(Duration duration) {
+        for (StartedMockNode node : ImmutableList.of(a, b, network.getDefaultNotaryNode())) {
+            ((TestClock) node.getServices().getClock()).advanceBy(duration);
+        }
+    }
+
+    private TPMState game(StartedMockNode node, String gameId) {
+        return node.transaction(() -> {
+            List<StateAndRef<TPMState>> states = node.getServices().getVaultService().queryBy(TPMState.class).getStates();
+            for (StateAndRef<TPMState> state : states) {
+                if (state.getState().getData().getGameId().equals(gameId)) {
+                    return state.getState().getData();
+                }
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void timedMovesSetTheDeadline() throws Exception {
+        createTimed("game1");
+        TPMState created = game(a, "game1");
+        assertEquals(MOVE_TIMEOUT, created.getMoveTimeout());
+        assertNotNull(created.getDeadline());
+
+        move(a, "game1", 4);
+        TPMState moved = game(b, "game1");
+        assertEquals(1, moved.getMoves());
+        assertFalse(moved.getDeadline().isBefore(created.getDeadline()));
+    }
+
+    @Test
+    public void moveAfterTheDeadlineFails() throws Exception {
+        createTimed("game1");
+        advance(MOVE_TIMEOUT.plusMinutes(1));
+        try {
+            move(a, "game1", 4);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("Move is after the deadline"));
+            return;
+        }
+        throw new AssertionError("Move after the deadline was made");
+    }
+
+    // The index hands the services their games on its own thread, flush until the service has done its work.
+    private void flushUntil(TPMForfeitService service, BooleanSupplier done) throws InterruptedException {
+        for (int i=0; (i<100) && !done.getAsBoolean(); ++i) {
+            service.flush();
+            network.runNetwork();
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void timedOutGameIsClaimedByTheWaitingPlayer() throws Exception {
+        createTimed("game1");
+        final TPMForfeitService service = b.getServices().cordaService(TPMForfeitService.class);
+        flushUntil(service, () -> 1 == service.getMetrics().getQueued());
+        assertEquals(0, service.getMetrics().getClaimed());
+
+        advance(MOVE_TIMEOUT.plusMinutes(1));
+        flushUntil(service, () -> 1 == service.getMetrics().getForfeited());
+        assertEquals(1, service.getMetrics().getClaimed());
+        assertEquals(1, service.getMetrics().getForfeited());
+        assertEquals(0, service.getMetrics().getQueued());
+        a.getServices().cordaService(TPMForfeitService.class).flush();
+        assertEquals(0, a.getServices().cordaService(TPMForfeitService.class).getMetrics().getClaimed());
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            TPMState state = game(node, "game1");
+            assertTrue(state.isForfeited());
+            assertEquals(TPMState.GameStatus.FINISHED, state.getGameStatus());
+            assertEquals(TPMState.Token.PLAYER2, state.getWinner());
+        }
+    }
+
+    @Test
+    public void failedClaimIsRetried() throws Exception {
+        createTimed("game1");
+        final TPMForfeitService service = b.getServices().cordaService(TPMForfeitService.class);
+        flushUntil(service, () -> 1 == service.getMetrics().getQueued());
+
+        // Past the deadline on b's clock but not the notary's, so the notary refuses the claim.
+        ((TestClock) b.getServices().getClock()).advanceBy(MOVE_TIMEOUT.plusMinutes(1));
+        flushUntil(service, () -> 1 == service.getMetrics().getFailed());
+        assertEquals(1, service.getMetrics().getQueued());
+
+        // Back on the wheel a window later, and claimed once the notary catches up.
+        for (StartedMockNode node : ImmutableList.of(a, network.getDefaultNotaryNode())) {
+            ((TestClock) node.getServices().getClock()).advanceBy(MOVE_TIMEOUT.plusMinutes(1));
+        }
+        ((TestClock) b.getServices().getClock()).advanceBy(Duration.ofHours(1));
+        flushUntil(service, () -> 1 == service.getMetrics().getForfeited());
+        assertTrue(game(a, "game1").isForfeited());
+    }
+
+    @Test
+    public void forfeitsAreMadeInOneTransaction() throws Exception {
+        createTimed("game1");
+        createTimed("game2");
+        createTimed("game3");
+        move(a, "game3", 4);
+        advance(MOVE_TIMEOUT.plusMinutes(1));
+
+        // Game3 is b's move, so b can't claim it.
+        CordaFuture<TPMFlowForfeit.Result> future = b.startFlow(new TPMFlowForfeit.Initiator(ImmutableList.of("game1", "game2", "game3")));
+        network.runNetwork();
+        TPMFlowForfeit.Result result = future.get();
+
+        assertNotNull(result.getTxId());
+        assertTrue(result.getClaims().get(0).getSuccess());
+        assertTrue(result.getClaims().get(1).getSuccess());
+        assertFalse(result.getClaims().get(2).getSuccess());
+        assertTrue(result.getClaims().get(2).getError().contains("Only the player owed the move can claim a forfeit"));
+        SignedTransaction tx = a.getServices().getValidatedTransactions().getTransaction(result.getTxId());
+        assertEquals(2, tx.getTx().getOutputs().size());
+        assertFalse(game(a, "game3").isForfeited());
+    }
+
+    @Test
+    public void noForfeitBeforeTheDeadline() throws Exception {
+        createTimed("game1");
+        CordaFuture<TPMFlowForfeit.Result> future = b.startFlow(new TPMFlowForfeit.Initiator(ImmutableList.of("game1")));
+        network.runNetwork();
+        TPMFlowForfeit.Result result = future.get();
+        assertNull(result.getTxId());
+        assertTrue(result.getClaims().get(0).getError().contains("Deadline has not passed"));
+    }
+}
@@ -0,0 +1,123 @@
+package com.assignment1.test.flow;
+
+import com.assignment1.flow.TPMFlowCreate;
+import com.assignment1.flow.TPMFlowMoveBatch;
+import com.assignment1.schema.TPMQueries;
+import com.assignment1.state.TPMState;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TPMFlowMoveBatchTests {
+    private MockNetwork network;
+    private StartedMockNode a;
+    private StartedMockNode b;
+
+    @Before
+    public void setup() {
+        network = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
+                TestCordapp.findCordapp("com.assignment1.contract"),
+                TestCordapp.findCordapp("com.assignment1.flow"))));
+        a = network.createPartyNode(null);
+        b = network.createPartyNode(null);
+        // For real nodes this happens automatically, but we have to manually register the flow for tests.
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.registerInitiatedFlow(TPMFlowMoveBatch.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowCreate.Acceptor.class);
+        }
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private void createBoard(String gameId) throws Exception {
+        CordaFuture<SignedTransaction> future = a.startFlow(new TPMFlowCreate.Initiator(party(b), null, gameId));
+        network.runNetwork();
+        future.get();
+    }
+
+    private TPMFlowMoveBatch.Result moveBatch(StartedMockNode node, StartedMockNode other, List<TPMFlowMoveBatch.Move> moves) throws Exception {
+        CordaFuture<TPMFlowMoveBatch.Result> future = node.startFlow(new TPMFlowMoveBatch.Initiator(party(other), moves));
+        network.runNetwork();
+        return future.get();
+    }
+
+    @Test
+    public void movesAreMadeInOneTransaction() throws Exception {
+        createBoard("game1");
+        createBoard("game2");
+        createBoard("game3");
+        TPMFlowMoveBatch.Result result = moveBatch(a, b, ImmutableList.of(
+                new TPMFlowMoveBatch.Move("game1", null, -1, 4),
+                new TPMFlowMoveBatch.Move("game2", null, -1, 0),
+                new TPMFlowMoveBatch.Move("game3", null, -1, 8)));
+
+        assertNotNull(result.getTxId());
+        for (TPMFlowMoveBatch.MoveResult move : result.getMoves()) {
+            assertTrue(move.getSuccess());
+        }
+
+        // Every game moved in both vaults, by the one transaction.
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            SignedTransaction tx = node.getServices().getValidatedTransactions().getTransaction(result.getTxId());
+            assertEquals(3, tx.getTx().getInputs().size());
+            assertEquals(3, tx.getTx().getOutputs().size());
+        }
+        b.transaction(() -> {
+            List<StateAndRef<TPMState>> states = b.getServices().getVaultService().queryBy(TPMState.class, TPMQueries.myMove(party(b))).getStates();
+            assertEquals(3, states.size());
+            return null;
+        });
+    }
+
+    @Test
+    public void badMovesAreReportedAndTheRestMade() throws Exception {
+        createBoard("game1");
+        createBoard("game2");
+        TPMFlowMoveBatch.Result result = moveBatch(a, b, ImmutableList.of(
+                new TPMFlowMoveBatch.Move("game1", null, -1, 4),
+                new TPMFlowMoveBatch.Move("game2", null, -1, 9),
+                new TPMFlowMoveBatch.Move("game1", null, -1, 5),
+                new TPMFlowMoveBatch.Move("nogame", null, -1, 4)));
+
+        assertNotNull(result.getTxId());
+        assertTrue(result.getMoves().get(0).getSuccess());
+        assertNull(result.getMoves().get(0).getError());
+        assertFalse(result.getMoves().get(1).getSuccess());
+        assertTrue(result.getMoves().get(2).getError().contains("Game is already in this batch"));
+        assertTrue(result.getMoves().get(3).getError().contains("Failed to find game on ledger"));
+    }
+
+    @Test
+    public void nothingToMoveMakesNoTransaction() throws Exception {
+        createBoard("game1");
+        // It's a's move, so b can't make one.
+        TPMFlowMoveBatch.Result result = moveBatch(b, a, ImmutableList.of(new TPMFlowMoveBatch.Move("game1", null, -1, 4)));
+        assertNull(result.getTxId());
+        assertFalse(result.getMoves().get(0).getSuccess());
+    }
+}
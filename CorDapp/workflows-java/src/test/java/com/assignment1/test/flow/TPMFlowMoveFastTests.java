@@ -0,0 +1,153 @@
+package com.assignment1.test.flow;
+
+import com.assignment1.flow.TPMFlowCreate;
+import com.assignment1.flow.TPMFlowMove;
+import com.assignment1.flow.TPMFlowMoveFast;
+import com.assignment1.state.TPMState;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TPMFlowMoveFastTests {
+    private MockNetwork network;
+    private StartedMockNode a;
+    private StartedMockNode b;
+
+    @Before
+    public void setup() {
+        network = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
+                TestCordapp.findCordapp("com.assignment1.contract"),
+                TestCordapp.findCordapp("com.assignment1.flow"))));
+        a = network.createPartyNode(null);
+        b = network.createPartyNode(null);
+        // For real nodes this happens automatically, but we have to manually register the flow for tests.
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.registerInitiatedFlow(TPMFlowMoveFast.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowMove.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowCreate.Acceptor.class);
+        }
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private void createBoard(String gameId) throws Exception {
+        CordaFuture<SignedTransaction> future = a.startFlow(new TPMFlowCreate.Initiator(b.getInfo().getLegalIdentities().get(0), null, gameId));
+        network.runNetwork();
+        future.get();
+    }
+
+    // Messages delivered and checkpoints written by the players for one flow.
+    private static class Cost {
+        private int messages;
+        private final Set<String> checkpoints = new HashSet<>();
+    }
+
+    // Checkpoints are rewritten in place, so each new checkpoint value seen between messages counts as one.
+    private void sampleCheckpoints(Cost cost) {
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.transaction(() -> {
+                try (PreparedStatement statement = node.getServices().jdbcSession().prepareStatement("select checkpoint_id, checkpoint_value from node_checkpoints");
+                     ResultSet results = statement.executeQuery()) {
+                    while (results.next()) {
+                        cost.checkpoints.add(results.getString(1) + ":" + Arrays.hashCode(results.getBytes(2)));
+                    }
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            });
+        }
+    }
+
+    // As runNetwork, one message at a time.
+    private <T> Cost measure(FlowLogic<T> flow) throws Exception {
+        final Cost cost = new Cost();
+        final CordaFuture<T> future = a.startFlow(flow);
+        sampleCheckpoints(cost);
+        boolean delivered = true;
+        while (delivered) {
+            delivered = false;
+            for (StartedMockNode node : ImmutableList.of(a, b, network.getDefaultNotaryNode())) {
+                while (null != node.pumpReceive(false)) {
+                    ++cost.messages;
+                    sampleCheckpoints(cost);
+                    delivered = true;
+                }
+            }
+        }
+        future.get();
+        return cost;
+    }
+
+    @Test
+    public void moveIsRecordedByBothPlayers() throws Exception {
+        createBoard("game1");
+        CordaFuture<SignedTransaction> future = a.startFlow(new TPMFlowMoveFast.Initiator("game1", "fast", -1, 4));
+        network.runNetwork();
+        SignedTransaction signedTx = future.get();
+        signedTx.verifyRequiredSignatures();
+
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            assertEquals(signedTx, node.getServices().getValidatedTransactions().getTransaction(signedTx.getId()));
+            node.transaction(() -> {
+                List<StateAndRef<TPMState>> states = node.getServices().getVaultService().queryBy(TPMState.class).getStates();
+                assertEquals(1, states.size());
+                assertEquals(1, states.get(0).getState().getData().getMoves());
+                return null;
+            });
+        }
+    }
+
+    @Test
+    public void invalidMoveIsRejected() throws Exception {
+        createBoard("game1");
+        // It's a's move.
+        CordaFuture<SignedTransaction> future = b.startFlow(new TPMFlowMoveFast.Initiator("game1", null, -1, 4));
+        network.runNetwork();
+        try {
+            future.get();
+            fail("Moved out of turn");
+        } catch (ExecutionException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void fewerMessagesAndCheckpointsThanTPMFlowMove() throws Exception {
+        createBoard("game1");
+        createBoard("game2");
+        Cost standard = measure(new TPMFlowMove.Initiator("game1", null, -1, 4));
+        Cost fast = measure(new TPMFlowMoveFast.Initiator("game2", null, -1, 4));
+
+        String costs = String.format("TPMFlowMove %d messages %d checkpoints, TPMFlowMoveFast %d messages %d checkpoints",
+                standard.messages, standard.checkpoints.size(), fast.messages, fast.checkpoints.size());
+        assertTrue(costs, fast.messages < standard.messages);
+        assertTrue(costs, fast.checkpoints.size() < standard.checkpoints.size());
+    }
+}
@@ -2,8 +2,12 @@ package com.assignment1.test.flow;
 
 import com.assignment1.flow.TPMFlowCreate;
 import com.assignment1.flow.TPMFlowMove;
+import com.assignment1.index.TPMGameIndex;
+import com.assignment1.schema.TPMQueries;
+import com.assignment1.state.TPMState;
 import com.google.common.collect.ImmutableList;
 import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.testing.node.MockNetwork;
 import net.corda.testing.node.MockNetworkParameters;
@@ -15,6 +19,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
@@ -76,6 +82,47 @@ public class TPMFlowMoveTests {
         SignedTransaction signedTx = future.get();
         signedTx.verifySignaturesExcept(a.getInfo().getLegalIdentities().get(0).getOwningKey());
     }
+    @Test
+    public void moveFindsTheGameInTheIndex() throws Exception {
+        createBoard("game123");
+        CordaFuture<SignedTransaction> future = a.startFlow(new TPMFlowMove.Initiator("game123", null, -1, 1));
+        network.runNetwork();
+        future.get();
+
+        // Both the create and the move found what they needed in memory, and the index follows the move.
+        TPMGameIndex.Metrics metrics = a.getServices().cordaService(TPMGameIndex.class).getMetrics();
+        assertEquals(1, metrics.getGames());
+        assertEquals(0, metrics.getMisses());
+        assertEquals(1, metrics.getHits());
+        assertEquals(1, a.getServices().cordaService(TPMGameIndex.class).find("game123").get(0).getState().getData().getMoves());
+    }
+
+    @Test
+    public void myMoveQueryFindsGamesWaitingOnUs() throws Exception {
+        createBoard("game123");
+        createBoard("game124");
+        CordaFuture<SignedTransaction> future = a.startFlow(new TPMFlowMove.Initiator("game123", null, -1, 1));
+        network.runNetwork();
+        future.get();
+
+        // After a's move game123 waits on b and game124 still waits on a.
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.transaction(() -> {
+                List<StateAndRef<TPMState>> states = node.getServices().getVaultService().queryBy(TPMState.class,
+                        TPMQueries.myMove(node.getInfo().getLegalIdentities().get(0))).getStates();
+                assertEquals(1, states.size());
+                assertEquals((node == a) ? "game124" : "game123", states.get(0).getState().getData().getGameId());
+                return null;
+            });
+        }
+        a.transaction(() -> {
+            assertEquals(1, a.getServices().getVaultService().queryBy(TPMState.class,
+                    TPMQueries.byGameId("game123").and(TPMQueries.withStatus(TPMState.GameStatus.PLACEMENT))).getStates().size());
+            assertEquals(2, a.getServices().getVaultService().queryBy(TPMState.class, TPMQueries.active()).getStates().size());
+            return null;
+        });
+    }
+
 /*
     @Test
     public void flowRecordsATransactionInBothPartiesTransactionStorages() throws Exception {
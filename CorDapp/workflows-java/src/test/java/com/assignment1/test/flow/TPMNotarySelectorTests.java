@@ -0,0 +1,116 @@
+package com.assignment1.test.flow;
+
+import com.assignment1.flow.TPMFlowCreate;
+import com.assignment1.flow.TPMFlowMove;
+import com.assignment1.flow.TPMNotarySelector;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkNotarySpec;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TPMNotarySelectorTests {
+    static private final List<Party> notaries = ImmutableList.of(
+            new TestIdentity(new CordaX500Name("Notary1", "London", "GB")).getParty(),
+            new TestIdentity(new CordaX500Name("Notary2", "Paris", "FR")).getParty(),
+            new TestIdentity(new CordaX500Name("Notary3", "Frankfurt", "DE")).getParty());
+
+    private MockNetwork network;
+    private StartedMockNode a;
+    private StartedMockNode b;
+
+    @Before
+    public void setup() {
+        network = new MockNetwork(new MockNetworkParameters()
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("com.assignment1.contract"),
+                        TestCordapp.findCordapp("com.assignment1.flow")))
+                .withNotarySpecs(ImmutableList.of(
+                        new MockNetworkNotarySpec(new CordaX500Name("Notary1", "London", "GB")),
+                        new MockNetworkNotarySpec(new CordaX500Name("Notary2", "Paris", "FR")))));
+        a = network.createPartyNode(null);
+        b = network.createPartyNode(null);
+        // For real nodes this happens automatically, but we have to manually register the flow for tests.
+        for (StartedMockNode node : ImmutableList.of(a, b)) {
+            node.registerInitiatedFlow(TPMFlowMove.Acceptor.class);
+            node.registerInitiatedFlow(TPMFlowCreate.Acceptor.class);
+        }
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @Test
+    public void selectionIsStableWhateverTheOrder() {
+        List<Party> reversed = new ArrayList<>(notaries);
+        Collections.reverse(reversed);
+        for (int i=0; i<100; ++i) {
+            String gameId = "game" + i;
+            assertEquals(TPMNotarySelector.select(notaries, gameId), TPMNotarySelector.select(reversed, gameId));
+        }
+    }
+
+    @Test
+    public void gamesAreSpreadOverTheNotaries() {
+        Map<Party, Integer> counts = new HashMap<>();
+        for (int i=0; i<3000; ++i) {
+            counts.merge(TPMNotarySelector.select(notaries, "game" + i), 1, Integer::sum);
+        }
+        for (Party notary : notaries) {
+            assertTrue(counts.getOrDefault(notary, 0) > 800);
+        }
+    }
+
+    @Test
+    public void addingANotaryOnlyMovesTheGamesItWins() {
+        List<Party> two = notaries.subList(0, 2);
+        for (int i=0; i<1000; ++i) {
+            String gameId = "game" + i;
+            Party now = TPMNotarySelector.select(notaries, gameId);
+            assertTrue(now.equals(notaries.get(2)) || now.equals(TPMNotarySelector.select(two, gameId)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noNotariesIsRejected() {
+        TPMNotarySelector.select(Collections.emptyList(), "game1");
+    }
+
+    @Test
+    public void gamesKeepTheirNotary() throws Exception {
+        Party other = b.getInfo().getLegalIdentities().get(0);
+        List<Party> available = a.getServices().getNetworkMapCache().getNotaryIdentities();
+        for (int i=0; i<4; ++i) {
+            String gameId = "game" + i;
+            CordaFuture<SignedTransaction> create = a.startFlow(new TPMFlowCreate.Initiator(other, null, gameId));
+            network.runNetwork();
+            Party notary = create.get().getNotary();
+            assertEquals(TPMNotarySelector.select(available, gameId), notary);
+
+            CordaFuture<SignedTransaction> move = a.startFlow(new TPMFlowMove.Initiator(gameId, null, -1, 4));
+            network.runNetwork();
+            assertEquals(notary, move.get().getNotary());
+        }
+    }
+}
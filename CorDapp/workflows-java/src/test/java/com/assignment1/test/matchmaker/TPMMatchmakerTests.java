@@ -0,0 +1,179 @@
+package com.assignment1.test.matchmaker;
+
+import com.assignment1.flow.TPMFlowCreateBatch;
+import com.assignment1.flow.TPMFlowMatch;
+import com.assignment1.matchmaker.TPMMatchmaker;
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMVariant;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TPMMatchmakerTests {
+    private MockNetwork network;
+    private StartedMockNode m;
+    private StartedMockNode a;
+    private StartedMockNode b;
+    private StartedMockNode c;
+    private StartedMockNode d;
+
+    @Before
+    public void setup() {
+        // The window is long so the tests pair when they choose.
+        network = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
+                TestCordapp.findCordapp("com.assignment1.contract"),
+                TestCordapp.findCordapp("com.assignment1.flow").withConfig(ImmutableMap.of(
+                        "matchmaker.enabled", true,
+                        "matchmaker.windowMillis", 3600000,
+                        "matchmaker.pairBy", "rating")))));
+        m = network.createPartyNode(null);
+        a = network.createPartyNode(null);
+        b = network.createPartyNode(null);
+        c = network.createPartyNode(null);
+        d = network.createPartyNode(null);
+        // For real nodes this happens automatically, but we have to manually register the flow for tests.
+        for (StartedMockNode node : ImmutableList.of(m, a, b, c, d)) {
+            node.registerInitiatedFlow(TPMFlowMatch.RegisterAcceptor.class);
+            node.registerInitiatedFlow(TPMFlowMatch.PairAcceptor.class);
+            node.registerInitiatedFlow(TPMFlowCreateBatch.Acceptor.class);
+        }
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private void register(StartedMockNode node, TPMVariant variant, int rating) throws Exception {
+        CordaFuture<Void> future = node.startFlow(new TPMFlowMatch.Register(party(m), variant, rating));
+        network.runNetwork();
+        future.get();
+    }
+
+    private TPMMatchmaker matchmaker() {
+        return m.getServices().cordaService(TPMMatchmaker.class);
+    }
+
+    private List<StateAndRef<TPMState>> games(StartedMockNode node) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(TPMState.class).getStates());
+    }
+
+    @Test
+    public void playersArePairedByRating() throws Exception {
+        register(a, TPMVariant.THREE, 1000);
+        register(b, TPMVariant.THREE, 1500);
+        register(c, TPMVariant.THREE, 1010);
+        register(d, TPMVariant.THREE, 1490);
+        assertEquals(4, matchmaker().getMetrics().getQueued());
+
+        matchmaker().pair();
+        network.runNetwork();
+
+        // The player who registered first creates the game.
+        for (StartedMockNode node : ImmutableList.of(a, b, c, d)) {
+            assertEquals(1, games(node).size());
+        }
+        TPMState ac = games(a).get(0).getState().getData();
+        assertEquals(party(a), ac.getPlayer1());
+        assertEquals(party(c), ac.getPlayer2());
+        TPMState bd = games(d).get(0).getState().getData();
+        assertEquals(party(b), bd.getPlayer1());
+        assertEquals(party(d), bd.getPlayer2());
+
+        TPMMatchmaker.Metrics metrics = matchmaker().getMetrics();
+        assertEquals(0, metrics.getQueued());
+        assertEquals(2, metrics.getPaired());
+        assertEquals(2, metrics.getGamesCreated());
+        assertEquals(0, metrics.getGamesFailed());
+    }
+
+    @Test
+    public void playersWaitForSomeoneOnTheSameBoard() throws Exception {
+        register(a, TPMVariant.THREE, 1000);
+        register(b, TPMVariant.NINE, 1000);
+        register(a, TPMVariant.NINE, 1000);
+        register(c, TPMVariant.THREE, 1000);
+        register(c, TPMVariant.THREE, 1000);
+
+        matchmaker().pair();
+        network.runNetwork();
+
+        // a plays c on THREE and b on NINE, c's second registration waits.
+        assertEquals(2, games(a).size());
+        assertEquals(1, games(c).size());
+        assertEquals(TPMVariant.NINE, games(b).get(0).getState().getData().getVariant());
+        assertEquals(1, matchmaker().getMetrics().getQueued());
+    }
+
+    private TPMFlowCreateBatch.Result pair(StartedMockNode node, TPMFlowMatch.Pairings pairings) throws Exception {
+        CordaFuture<TPMFlowCreateBatch.Result> future = m.startFlow(new TPMFlowMatch.Pair(party(node), pairings));
+        network.runNetwork();
+        return future.get();
+    }
+
+    @Test
+    public void pairingsNeedARegistrationEach() throws Exception {
+        register(a, TPMVariant.THREE, 1000);
+        register(b, TPMVariant.THREE, 1000);
+        assertEquals(0, pair(b, new TPMFlowMatch.Pairings(ImmutableList.of(),
+                ImmutableList.of(new TPMMatchmaker.Pairing(party(a), "match-1", TPMVariant.THREE)))).getGames().size());
+
+        // One registration allows one game, whatever the matchmaker sends.
+        TPMFlowMatch.Pairings pairings = new TPMFlowMatch.Pairings(ImmutableList.of(
+                new TPMMatchmaker.Pairing(party(b), "match-1", TPMVariant.THREE),
+                new TPMMatchmaker.Pairing(party(c), "match-2", TPMVariant.THREE),
+                new TPMMatchmaker.Pairing(party(d), "match-3", TPMVariant.NINE)), ImmutableList.of());
+        CordaFuture<TPMFlowCreateBatch.Result> future = m.startFlow(new TPMFlowMatch.Pair(party(a), pairings));
+        network.runNetwork();
+        List<TPMFlowCreateBatch.GameResult> results = future.get().getGames();
+        assertEquals(3, results.size());
+        assertEquals(1, results.stream().filter(TPMFlowCreateBatch.GameResult::getSuccess).count());
+        assertEquals(1, games(a).size());
+
+        // The registration is used up.
+        future = m.startFlow(new TPMFlowMatch.Pair(party(a), pairings));
+        network.runNetwork();
+        assertEquals(0, future.get().getTxIds().size());
+        assertEquals(1, games(a).size());
+        assertEquals(5, a.getServices().cordaService(TPMMatchmaker.class).getMetrics().getPairingsRejected());
+    }
+
+    @Test
+    public void joinerWithNoRegistrationLeftIsNotPutInAGame() throws Exception {
+        register(a, TPMVariant.THREE, 1000);
+
+        // d never registered, so turns the pairing away and then refuses to sign the game.
+        TPMMatchmaker.Pairing join = new TPMMatchmaker.Pairing(party(a), "match-1", TPMVariant.THREE);
+        List<TPMFlowCreateBatch.GameResult> joined = pair(d, new TPMFlowMatch.Pairings(ImmutableList.of(), ImmutableList.of(join))).getGames();
+        assertEquals(1, joined.size());
+        assertFalse(joined.get(0).getSuccess());
+        assertEquals(1, d.getServices().cordaService(TPMMatchmaker.class).getMetrics().getPairingsRejected());
+
+        List<TPMFlowCreateBatch.GameResult> created = pair(a, new TPMFlowMatch.Pairings(
+                ImmutableList.of(new TPMMatchmaker.Pairing(party(d), "match-1", TPMVariant.THREE)), ImmutableList.of())).getGames();
+        assertEquals(1, created.size());
+        assertTrue(created.get(0).getError().contains("Matched game should be one we joined"));
+        assertEquals(0, games(a).size());
+        assertEquals(0, games(d).size());
+    }
+}
@@ -0,0 +1,166 @@
+package com.assignment1.test.state;
+
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMStateSerializer;
+import com.assignment1.state.TPMVariant;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.serialization.SerializedBytes;
+import net.corda.core.serialization.internal.SerializationEnvironment;
+import net.corda.node.serialization.amqp.AMQPServerSerializationScheme;
+import net.corda.serialization.internal.SerializationFactoryImpl;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.internal.InternalSerializationTestHelpersKt;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TPMStateSerializerTests {
+    static private final TestIdentity megaCorp = new TestIdentity(new CordaX500Name("MegaCorp", "London", "GB"));
+    static private final TestIdentity miniCorp = new TestIdentity(new CordaX500Name("MiniCorp", "London", "GB"));
+
+    private final TPMStateSerializer serializer = new TPMStateSerializer();
+
+    private TPMState roundTrip(TPMState state) {
+        return serializer.fromProxy(serializer.toProxy(state));
+    }
+
+    // Everything recorded or derived must come back the same.
+    private void assertSameState(TPMState expected, TPMState actual) {
+        assertEquals(expected.getVariant(), actual.getVariant());
+        assertEquals(expected.getPlayer1Mask(), actual.getPlayer1Mask());
+        assertEquals(expected.getPlayer2Mask(), actual.getPlayer2Mask());
+        assertEquals(expected.getPlayer1Tokens(), actual.getPlayer1Tokens());
+        assertEquals(expected.getPlayer2Tokens(), actual.getPlayer2Tokens());
+        assertEquals(expected.getPlayer(), actual.getPlayer());
+        assertEquals(expected.getPlayer1(), actual.getPlayer1());
+        assertEquals(expected.getPlayer2(), actual.getPlayer2());
+        assertEquals(expected.getMoves(), actual.getMoves());
+        assertEquals(expected.getGameStatus(), actual.getGameStatus());
+        assertEquals(expected.getGameStatusHint(), actual.getGameStatusHint());
+        assertEquals(expected.getMoveHint(), actual.getMoveHint());
+        assertEquals(expected.getLinearId(), actual.getLinearId());
+        assertEquals(expected.getGameId(), actual.getGameId());
+        assertEquals(expected.getPositionHash(), actual.getPositionHash());
+        assertArrayEquals(expected.getPositionHistory(), actual.getPositionHistory());
+        assertArrayEquals(expected.getMoveLog(), actual.getMoveLog());
+        assertEquals(expected.getMoveTimeout(), actual.getMoveTimeout());
+        assertEquals(expected.getDeadline(), actual.getDeadline());
+        assertEquals(expected.isForfeited(), actual.isForfeited());
+    }
+
+    @Test
+    public void timedGameRoundTrips() {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123", TPMVariant.THREE, Duration.ofMinutes(5));
+        state = state.move(state.getNextPlayer(), null, -1, 4).withDeadline(Instant.ofEpochMilli(1234567890L));
+        assertSameState(state, roundTrip(state));
+        TPMState forfeited = roundTrip(state.forfeit());
+        assertSameState(state.forfeit(), forfeited);
+        assertEquals("Player1 won by forfeit after 1 moves", forfeited.getGameStatusHint());
+    }
+
+    @Test
+    public void newGameRoundTrips() {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), "Let's play", "123");
+        assertSameState(state, roundTrip(state));
+        assertEquals("Initial", roundTrip(state).getGameStatusHint());
+    }
+
+    @Test
+    public void movesRoundTrip() {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123");
+        for (int dst : new int[] {0, 1, 2, 3, 5, 4}) {
+            state = state.move(state.getNextPlayer(), "placed", -1, dst);
+            assertSameState(state, roundTrip(state));
+        }
+        state = state.move(state.getNextPlayer(), "slide", 5, 8);
+        TPMState read = roundTrip(state);
+        assertSameState(state, read);
+        assertEquals("Player1 moved from 5 to 8", read.getGameStatusHint());
+
+        // The state read back plays on as the original would.
+        state.checkMove(read.move(read.getNextPlayer(), null, 3, 6));
+    }
+
+    @Test
+    public void capturesRoundTripOnLargerBoards() {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123", TPMVariant.TWELVE);
+        for (int dst : new int[] {0, 8, 1, 23}) {
+            state = state.move(state.getNextPlayer(), null, -1, dst);
+        }
+        state = state.move(state.getNextPlayer(), null, -1, 2, 23);
+        TPMState read = roundTrip(state);
+        assertSameState(state, read);
+        assertEquals("Player1 placed at 2 capturing 23", read.getGameStatusHint());
+        read.checkInvariants();
+    }
+
+    @Test
+    public void moveHintIsBounded() {
+        StringBuilder hint = new StringBuilder();
+        for (int i=0; i<10; ++i) {
+            hint.append("Where's your cheese? ");
+        }
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123").move(miniCorp.getParty(), hint.toString(), -1, 4);
+        assertEquals(TPMState.MAX_MOVE_HINT_LENGTH, state.getMoveHint().length());
+        state.checkInvariants();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void longMoveHintIsRejected() {
+        StringBuilder hint = new StringBuilder();
+        for (int i=0; i<=TPMState.MAX_MOVE_HINT_LENGTH; ++i) {
+            hint.append('x');
+        }
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123");
+        new TPMState(3, 3, new TPMState.Token[TPMState.BOARD_SIZE], null, state.getPlayer1(), state.getPlayer2(), 0,
+                TPMState.GameStatus.INITIAL, "Initial", hint.toString(), state.getLinearId(), null, null, null, null, null, null).checkInvariants();
+    }
+
+    @Test
+    public void stateWrittenFieldByFieldIsStillRead() {
+        // The test environment doesn't register CorDapp serializers, so writes TPMState as it was before the proxy.
+        final SerializationEnvironment env = InternalSerializationTestHelpersKt.createTestSerializationEnv();
+        TPMState original = new TPMState(miniCorp.getParty(), megaCorp.getParty(), "Let's play", "123");
+        for (int dst : new int[] {0, 1, 2, 3}) {
+            original = original.move(original.getNextPlayer(), "placed", -1, dst);
+        }
+        final TPMState state = original;
+        final SerializedBytes<TPMState> bytes = env.getSerializationFactory().serialize(state, env.getP2pContext());
+
+        // Read as a node reads it, with the CorDapp's serializer registered.
+        final SerializationFactoryImpl factory = new SerializationFactoryImpl();
+        factory.registerScheme(new AMQPServerSerializationScheme(ImmutableSet.of(serializer), ImmutableSet.of()));
+        final TPMState read = factory.deserialize(bytes, TPMState.class, env.getP2pContext());
+
+        assertEquals(state.getVariant(), read.getVariant());
+        assertEquals(state.getPlayer1Mask(), read.getPlayer1Mask());
+        assertEquals(state.getPlayer2Mask(), read.getPlayer2Mask());
+        assertEquals(state.getPlayer1Tokens(), read.getPlayer1Tokens());
+        assertEquals(state.getPlayer2Tokens(), read.getPlayer2Tokens());
+        assertEquals(state.getPlayer(), read.getPlayer());
+        assertEquals(state.getPlayer1(), read.getPlayer1());
+        assertEquals(state.getPlayer2(), read.getPlayer2());
+        assertEquals(state.getMoves(), read.getMoves());
+        assertEquals(state.getGameStatus(), read.getGameStatus());
+        assertEquals(state.getMoveHint(), read.getMoveHint());
+        assertEquals(state.getLinearId(), read.getLinearId());
+        assertEquals(state.getPositionHash(), read.getPositionHash());
+        read.checkInvariants();
+        // And plays on as the original would.
+        state.checkMove(read.move(read.getNextPlayer(), null, -1, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersionIsRejected() {
+        TPMStateSerializer.Proxy proxy = serializer.toProxy(new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123"));
+        serializer.fromProxy(new TPMStateSerializer.Proxy(TPMStateSerializer.VERSION + 1, proxy.getVariant(), proxy.getBoard(),
+                proxy.getLastMove(), proxy.getMoves(), proxy.getPlayer1(), proxy.getPlayer2(), proxy.getMoveHint(),
+                proxy.getGameId(), proxy.getId(), proxy.getPositionHistory(), proxy.getMoveLog(),
+                proxy.getMoveTimeout(), proxy.getDeadline(), proxy.getForfeited()));
+    }
+}
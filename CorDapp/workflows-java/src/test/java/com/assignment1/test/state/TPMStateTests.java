@@ -0,0 +1,285 @@
+package com.assignment1.test.state;
+
+import com.assignment1.state.TPMMoveLog;
+import com.assignment1.state.TPMState;
+import com.assignment1.state.TPMTransitions;
+import com.assignment1.state.TPMVariant;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TPMStateTests {
+    static private final TestIdentity megaCorp = new TestIdentity(new CordaX500Name("MegaCorp", "London", "GB"));
+    static private final TestIdentity miniCorp = new TestIdentity(new CordaX500Name("MiniCorp", "London", "GB"));
+
+    private TPMState play(int... placements) {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123");
+        for (int dst : placements) {
+            state = state.move(state.getNextPlayer(), null, -1, dst);
+        }
+        return state;
+    }
+
+    // The move is legal if checkMove and checkInvariants accept the resulting state.
+    private boolean accepted(TPMState state, int src, int dst) {
+        try {
+            TPMState stateNew = state.move(state.getNextPlayer(), null, src, dst);
+            stateNew.checkInvariants();
+            state.checkMove(stateNew);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void initialBoardAllowsEveryPlacement() {
+        TPMState state = play();
+        assertEquals(miniCorp.getParty(), state.getNextPlayer());
+        final int[] placements = {0};
+        state.forEachLegalMove((src, dst) -> {
+            placements[0]++;
+            return 0;
+        });
+        assertEquals(TPMState.BOARD_SIZE, placements[0]);
+        assertEquals(TPMState.BOARD_SIZE, state.successors(miniCorp.getParty()).size());
+        assertTrue(state.successors(megaCorp.getParty()).isEmpty());
+    }
+
+    @Test
+    public void slidesOnlyToAdjacentEmptyCells() {
+        TPMState state = play(0, 1, 2, 3, 5, 4);
+        assertEquals(TPMState.GameStatus.MOVING, state.getGameStatus());
+        assertTrue(state.isLegalMove(5, 8));
+        assertFalse(state.isLegalMove(0, 8));
+        assertFalse(state.isLegalMove(-1, 8));
+
+        List<TPMState> successors = state.successors(miniCorp.getParty());
+        assertEquals(1, successors.size());
+        assertEquals(TPMState.Token.PLAYER1, successors.get(0).getToken(8));
+    }
+
+    @Test
+    public void noMovesOnceGameIsOver() {
+        TPMState state = play(1, 2, 4, 5, 7);
+        assertTrue(state.gameOver());
+        assertFalse(state.hasLegalMove());
+        assertEquals(0, state.forEachLegalMove((src, dst) -> 1));
+    }
+
+    @Test
+    public void legalMovesAgreeWithCheckMove() {
+        TPMState state = play(0, 1, 2, 3, 5, 4);
+        for (int i=0; i<20 && state.hasLegalMove(); ++i) {
+            for (int src=0; src<TPMState.BOARD_SIZE; ++src) {
+                for (int dst=0; dst<TPMState.BOARD_SIZE; ++dst) {
+                    assertEquals(accepted(state, src, dst), state.isLegalMove(src, dst));
+                }
+            }
+            Party next = state.getNextPlayer();
+            state = state.successors(next).get(0);
+        }
+    }
+
+    // Shuffle the same two tokens back and forth until the position after placement has been seen three times.
+    private TPMState shuffle(TPMState state, int moves) {
+        final int[][] cycle = {{0, 1}, {2, 5}, {1, 0}, {5, 2}};
+        for (int i=0; i<moves; ++i) {
+            TPMState stateNew = state.move(state.getNextPlayer(), null, cycle[i % 4][0], cycle[i % 4][1]);
+            state.checkMove(stateNew);
+            state = stateNew;
+        }
+        return state;
+    }
+
+    @Test
+    public void repeatedPositionIsADraw() {
+        TPMState state = play(0, 4, 8, 2, 6, 7);
+        assertEquals(TPMState.GameStatus.MOVING, state.getGameStatus());
+        assertEquals(1, state.repetitions());
+
+        state = shuffle(state, 7);
+        assertEquals(TPMState.GameStatus.MOVING, state.getGameStatus());
+
+        state = state.move(megaCorp.getParty(), null, 5, 2);
+        assertEquals(TPMState.REPETITION_LIMIT, state.repetitions());
+        assertEquals(TPMState.GameStatus.FINISHED, state.getGameStatus());
+        assertTrue(state.isDraw());
+        assertFalse(state.gameOver());
+        assertFalse(state.hasLegalMove());
+    }
+
+    @Test
+    public void positionHashFollowsTheBoard() {
+        TPMState state = play(0, 4, 8, 2, 6, 7);
+        TPMState cycled = shuffle(state, 4);
+        assertEquals(state.getPositionHash(), cycled.getPositionHash());
+        assertEquals(TPMState.zobrist(cycled.getPlayer1Mask(), cycled.getPlayer2Mask(), cycled.isPlayer1Next()), cycled.getPositionHash());
+        assertFalse(state.getPositionHash() == shuffle(state, 1).getPositionHash());
+    }
+
+    // Place on a larger board, player1 then player2 alternately.
+    private TPMState place(TPMVariant variant, int... placements) {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123", variant);
+        for (int dst : placements) {
+            TPMState stateNew = state.move(state.getNextPlayer(), null, -1, dst);
+            state.checkMove(stateNew);
+            state = stateNew;
+        }
+        return state;
+    }
+
+    @Test
+    public void lineCapturesOnLargerBoards() {
+        // Player1 has 0 and 1 with 2 to complete the top side of the outer ring.
+        TPMState state = place(TPMVariant.NINE, 0, 8, 1, 9);
+        assertTrue(state.hasLegalMove());
+        assertTrue(state.isLegalMove(-1, 2));
+        assertTrue(state.requiresCapture(-1, 2));
+        assertFalse(state.requiresCapture(-1, 3));
+
+        // One successor per opponent token that can be taken.
+        List<TPMState> successors = state.successors(miniCorp.getParty());
+        assertEquals(19 + 2, successors.size());
+
+        TPMState captured = state.move(miniCorp.getParty(), null, -1, 2, 8);
+        state.checkMove(captured);
+        captured.checkInvariants();
+        assertEquals(null, captured.getToken(8));
+        assertEquals(TPMState.Token.PLAYER2, captured.getToken(9));
+        assertEquals(TPMState.GameStatus.PLACEMENT, captured.getGameStatus());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lineMustCapture() {
+        TPMState state = place(TPMVariant.NINE, 0, 8, 1, 9);
+        state.checkMove(state.move(miniCorp.getParty(), null, -1, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void captureNeedsALine() {
+        TPMState state = place(TPMVariant.NINE, 0, 8, 1, 9);
+        state.checkMove(state.move(miniCorp.getParty(), null, -1, 3, 8));
+    }
+
+    @Test
+    public void tokensInALineAreSafe() {
+        // Player2 completes 8 9 10 first taking 4, so only their loose token at 12 can be taken.
+        TPMState state = place(TPMVariant.NINE, 0, 8, 1, 9, 4);
+        state = state.move(megaCorp.getParty(), null, -1, 10, 4);
+        state = state.move(miniCorp.getParty(), null, -1, 7);
+        state = state.move(megaCorp.getParty(), null, -1, 12);
+        TPMState stateNew = state.move(miniCorp.getParty(), null, -1, 2, 12);
+        assertEquals(1 << 12, state.capturableMask());
+        assertTrue(accepted(state, stateNew));
+        assertFalse(accepted(state, state.move(miniCorp.getParty(), null, -1, 2, 9)));
+    }
+
+    private boolean accepted(TPMState state, TPMState stateNew) {
+        try {
+            stateNew.checkInvariants();
+            state.checkMove(stateNew);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void randomGamesFinishOnEveryBoard() {
+        final java.util.Random random = new java.util.Random(1);
+        for (TPMVariant variant : TPMVariant.values()) {
+            for (int game=0; game<20; ++game) {
+                TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null,"123", variant);
+                while ((TPMState.GameStatus.FINISHED != state.getGameStatus()) && !state.gameOver()) {
+                    List<TPMState> successors = state.successors(state.getNextPlayer());
+                    assertFalse(successors.isEmpty());
+                    TPMState stateNew = successors.get(random.nextInt(successors.size()));
+                    assertTrue(accepted(state, stateNew));
+                    state = stateNew;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void transitionTableAgreesWithCheckMove() {
+        final java.util.Random random = new java.util.Random(2);
+        for (int game=0; game<50; ++game) {
+            TPMState state = play();
+            while (state.hasLegalMove()) {
+                for (int src=-1; src<TPMState.BOARD_SIZE; ++src) {
+                    for (int dst=0; dst<TPMState.BOARD_SIZE; ++dst) {
+                        TPMState stateNew = state.move(state.getNextPlayer(), null, src, dst);
+                        assertEquals(accepted(state, stateNew), TPMTransitions.isLegal(state.getPlayer1Mask(), state.getPlayer2Mask(),
+                                state.isPlayer1Next(), stateNew.getPlayer1Mask(), stateNew.getPlayer2Mask()));
+                    }
+                }
+                List<TPMState> successors = state.successors(state.getNextPlayer());
+                state = successors.get(random.nextInt(successors.size()));
+            }
+        }
+    }
+
+    @Test
+    public void moveLogRecordsEveryMove() {
+        TPMState state = play(0, 1, 2, 3, 5, 4);
+        state = state.move(state.getNextPlayer(), null, 5, 8);
+        int[][] moves = state.getMoveList();
+        assertEquals(7, moves.length);
+        // Four bits a placement and eight a slide on the Three Men's Morris board.
+        assertEquals((6 * 4 + 8) / 8, state.getMoveLog().length);
+        assertArrayEquals(new int[] {-1, 0, -1}, moves[0]);
+        assertArrayEquals(new int[] {-1, 4, -1}, moves[5]);
+        assertArrayEquals(new int[] {5, 8, -1}, moves[6]);
+
+        // Captures are logged with the move that made the line.
+        TPMState nine = place(TPMVariant.NINE, 0, 8, 1, 9).move(miniCorp.getParty(), null, -1, 2, 8);
+        assertArrayEquals(new int[] {-1, 2, 8}, nine.getMoveList()[4]);
+
+        // A log begun mid-game knows the moves before it were slides.
+        byte[] log = TPMMoveLog.append(TPMMoveLog.EMPTY, TPMVariant.THREE, 7, 5, 8, -1);
+        log = TPMMoveLog.append(log, TPMVariant.THREE, 8, 0, 1, -1);
+        assertArrayEquals(new int[][] {{5, 8, -1}, {0, 1, -1}}, TPMMoveLog.decode(log, TPMVariant.THREE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void moveLogCantBeRewritten() {
+        TPMState state = play(0, 1);
+        TPMState stateNew = state.move(state.getNextPlayer(), null, -1, 2);
+        byte[] log = stateNew.getMoveLog();
+        log[0] = 3;
+        state.checkMove(new TPMState(stateNew.getPlayer1Tokens(), stateNew.getPlayer2Tokens(), stateNew.getBoard(),
+                stateNew.getPlayer(), stateNew.getPlayer1(), stateNew.getPlayer2(), stateNew.getMoves(),
+                stateNew.getGameStatus(), null, null, stateNew.getLinearId(), stateNew.getPositionHistory(), stateNew.getVariant(), log,
+                stateNew.getMoveTimeout(), stateNew.getDeadline(), stateNew.isForfeited()));
+    }
+
+    // As Corda's evolution serializer would rebuild the state field by field.
+    private TPMState copy(TPMState state) {
+        return new TPMState(state.getPlayer1Tokens(), state.getPlayer2Tokens(), state.getBoard(),
+                state.getPlayer(), state.getPlayer1(), state.getPlayer2(), state.getMoves(),
+                state.getGameStatus(), null, state.getMoveHint(), state.getLinearId(), state.getPositionHistory(), state.getVariant(),
+                state.getMoveLog(), state.getMoveTimeout(), state.getDeadline(), state.isForfeited());
+    }
+
+    @Test
+    public void deserializationConstructorKeepsTheClock() {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123", TPMVariant.THREE, Duration.ofSeconds(30))
+                .withDeadline(Instant.ofEpochSecond(1000));
+        assertEquals(Duration.ofSeconds(30), copy(state).getMoveTimeout());
+        assertEquals(Instant.ofEpochSecond(1000), copy(state).getDeadline());
+        assertFalse(copy(state).isForfeited());
+        assertTrue(copy(state.forfeit()).isForfeited());
+    }
+}
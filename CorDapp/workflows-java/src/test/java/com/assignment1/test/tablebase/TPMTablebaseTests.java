@@ -0,0 +1,64 @@
+package com.assignment1.test.tablebase;
+
+import com.assignment1.state.TPMState;
+import com.assignment1.tablebase.TPMTablebase;
+import com.assignment1.tablebase.TPMTablebaseGenerator;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.core.TestIdentity;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TPMTablebaseTests {
+    static private final TestIdentity megaCorp = new TestIdentity(new CordaX500Name("MegaCorp", "London", "GB"));
+    static private final TestIdentity miniCorp = new TestIdentity(new CordaX500Name("MiniCorp", "London", "GB"));
+
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static TPMTablebase tablebase;
+
+    @BeforeClass
+    public static void generate() throws Exception {
+        Path path = folder.newFile("tpm.tablebase").toPath();
+        TPMTablebaseGenerator.write(path, TPMTablebaseGenerator.generate());
+        tablebase = TPMTablebase.open(path);
+    }
+
+    @Test
+    public void firstPlayerWinsFromInitialBoard() {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123");
+        short entry = tablebase.probe(state);
+        assertEquals(TPMTablebase.Result.WIN, TPMTablebase.result(entry));
+        assertTrue(TPMTablebase.distance(entry) > 0);
+    }
+
+    @Test
+    public void completedLineIsLostForSideToMove() {
+        // Player1 has the top row, it is player2 to move.
+        assertEquals(TPMTablebase.Result.LOSS, TPMTablebase.result(tablebase.probe(0x007, 0x030, false)));
+        assertEquals(0, TPMTablebase.distance(tablebase.probe(0x007, 0x030, false)));
+    }
+
+    @Test
+    public void bestMovesPlayTheWinOut() {
+        TPMState state = new TPMState(miniCorp.getParty(), megaCorp.getParty(), null, "123");
+        int distance = TPMTablebase.distance(tablebase.probe(state));
+        for (int i=0; i<distance; ++i) {
+            int move = tablebase.bestMove(state);
+            assertTrue(state.isLegalMove(TPMState.moveSource(move), TPMState.moveDestination(move)));
+            TPMState stateNew = state.move(state.getNextPlayer(), null, TPMState.moveSource(move), TPMState.moveDestination(move));
+            state.checkMove(stateNew);
+            state = stateNew;
+            assertEquals(distance - i - 1, TPMTablebase.distance(tablebase.probe(state)));
+        }
+        assertTrue(state.gameOver());
+        assertEquals(-1, tablebase.bestMove(state));
+    }
+}